@@ -16,6 +16,7 @@ import org.springframework.beans.factory.annotation.Value;
 import ru.yandex.market.graphouse.data.MetricDataServiceServlet;
 import ru.yandex.market.graphouse.save.OnRecordMetricCacheServlet;
 import ru.yandex.market.graphouse.search.MetricSearchServlet;
+import ru.yandex.market.graphouse.server.MetricWriteServlet;
 
 /**
  * @author Dmitry Andreev <a href="mailto:AndreevDm@yandex-team.ru"></a>
@@ -42,17 +43,20 @@ public class GraphouseWebServer {
     private final OnRecordMetricCacheServlet onRecordMetricCacheServlet;
 
     private final MetricDataServiceServlet metricDataServiceServlet;
+    private final MetricWriteServlet metricWriteServlet;
 
     public GraphouseWebServer(
         MetricSearchServlet metricSearchServlet,
         MonitoringServlet monitoringServlet,
         MetricDataServiceServlet metricDataServiceServlet,
-        OnRecordMetricCacheServlet onRecordMetricCacheServlet
+        OnRecordMetricCacheServlet onRecordMetricCacheServlet,
+        MetricWriteServlet metricWriteServlet
     ) {
         this.metricSearchServlet = metricSearchServlet;
         this.monitoringServlet = monitoringServlet;
         this.metricDataServiceServlet = metricDataServiceServlet;
         this.onRecordMetricCacheServlet = onRecordMetricCacheServlet;
+        this.metricWriteServlet = metricWriteServlet;
     }
 
     private void startServer() throws Exception {
@@ -91,6 +95,8 @@ public class GraphouseWebServer {
         context.addServlet(onRecordMetricProviderServletHolder, "/checkOnRecordCache/*");
         context.addServlet(onRecordMetricProviderServletHolder, "/printBannedCacheState");
 
+        context.addServlet(new ServletHolder(metricWriteServlet), "/write");
+
         HandlerCollection handlers = new HandlerCollection();
         handlers.setHandlers(new Handler[]{context, new DefaultHandler()});
         server.setHandler(handlers);
@@ -0,0 +1,97 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AIMD control of the batch size and the number of concurrent writers within configured bounds.
+ * Every interval:
+ * <ul>
+ * <li>errors or inserts slower than the target - writers are halved and batches doubled,
+ * so ClickHouse gets fewer and larger parts while it's overloaded with merges;</li>
+ * <li>otherwise with the queue above the backlog threshold - a writer is added;</li>
+ * <li>otherwise batches are decreased by a tenth of the range back to the minimum for fresher data.</li>
+ * </ul>
+ */
+public class AdaptiveWriteController {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int batchSizeStep;
+    private final int minWriters;
+    private final int maxWriters;
+    private final long targetLatencyMillis;
+    private final double backlogPercent;
+
+    private volatile int batchSize;
+    private volatile int writers;
+
+    private final AtomicInteger inserts = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    public AdaptiveWriteController(int minBatchSize, int maxBatchSize, int minWriters, int maxWriters,
+                                   long targetLatencyMillis, double backlogPercent) {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = Math.max(maxBatchSize, minBatchSize);
+        this.batchSizeStep = Math.max((this.maxBatchSize - minBatchSize) / 10, 1);
+        this.minWriters = Math.max(minWriters, 1);
+        this.maxWriters = Math.max(maxWriters, this.minWriters);
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.backlogPercent = backlogPercent;
+        batchSize = minBatchSize;
+        writers = this.maxWriters;
+    }
+
+    public void onInsert(long latencyMillis) {
+        inserts.incrementAndGet();
+        maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+    }
+
+    public void onError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Called once per interval by a single thread.
+     */
+    public void adjust(double queueOccupancyPercent) {
+        int intervalInserts = inserts.getAndSet(0);
+        int intervalErrors = errors.getAndSet(0);
+        long intervalMaxLatencyMillis = maxLatencyMillis.getAndSet(0);
+        int oldBatchSize = batchSize;
+        int oldWriters = writers;
+
+        if (intervalErrors > 0 || intervalMaxLatencyMillis > targetLatencyMillis) {
+            writers = Math.max(oldWriters / 2, minWriters);
+            batchSize = (int) Math.min(oldBatchSize * 2L, maxBatchSize);
+        } else if (intervalInserts == 0) {
+            return;
+        } else if (queueOccupancyPercent >= backlogPercent) {
+            writers = Math.min(oldWriters + 1, maxWriters);
+        } else {
+            batchSize = Math.max(oldBatchSize - batchSizeStep, minBatchSize);
+        }
+
+        if (batchSize != oldBatchSize || writers != oldWriters) {
+            log.info(String.format(
+                "Adjusted writes to %d writers and batches of %d metrics " +
+                    "(%d inserts, %d errors, max latency %d ms, queue %.1f%%)",
+                writers, batchSize, intervalInserts, intervalErrors, intervalMaxLatencyMillis, queueOccupancyPercent
+            ));
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getWriters() {
+        return writers;
+    }
+}
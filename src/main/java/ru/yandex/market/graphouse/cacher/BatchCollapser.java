@@ -0,0 +1,113 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps only the last point of every metric and timestamp in a batch, so retransmitted points
+ * are not inserted and merged away by GraphiteMergeTree later.
+ * The last point is the one with the greatest updated time, as GraphiteMergeTree keeps it,
+ * or the latest one in the batch.
+ * <p>
+ * Points are found by an open addressing table of their positions in the batch, keyed by the description identity
+ * and the timestamp. Arrays are reused between batches, an instance is used by one thread.
+ */
+class BatchCollapser {
+
+    private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(MetricChunk.CAPACITY);
+    private static final int ROW_MASK = MetricChunk.CAPACITY - 1;
+
+    /**
+     * Position in the batch + 1, 0 - empty slot.
+     */
+    private int[] slots = new int[0];
+    private long[] removed = new long[0];
+
+    /**
+     * @return number of removed points
+     */
+    int collapse(List<MetricChunk> chunks) {
+        int points = MetricChunk.countMetrics(chunks);
+        if (points < 2) {
+            return 0;
+        }
+        int mask = prepare(points, chunks.size());
+        int removedCount = 0;
+        for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
+            MetricChunk chunk = chunks.get(chunkIndex);
+            for (int row = 0; row < chunk.size(); row++) {
+                int position = (chunkIndex << CHUNK_SHIFT) | row;
+                if (!put(chunks, mask, position)) {
+                    removedCount++;
+                }
+            }
+        }
+        if (removedCount > 0) {
+            for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
+                chunks.get(chunkIndex).remove(removed, chunkIndex << CHUNK_SHIFT);
+            }
+        }
+        return removedCount;
+    }
+
+    /**
+     * @return <code>false</code> if the point or the one already in the table is marked as removed
+     */
+    private boolean put(List<MetricChunk> chunks, int mask, int position) {
+        MetricChunk chunk = chunks.get(position >>> CHUNK_SHIFT);
+        int row = position & ROW_MASK;
+        MetricDescription description = chunk.getMetricDescription(row);
+        int timestamp = chunk.getTimestampSeconds(row);
+        int slot = hash(description, timestamp) & mask;
+        while (true) {
+            int existing = slots[slot] - 1;
+            if (existing < 0) {
+                slots[slot] = position + 1;
+                return true;
+            }
+            MetricChunk existingChunk = chunks.get(existing >>> CHUNK_SHIFT);
+            int existingRow = existing & ROW_MASK;
+            if (existingChunk.getMetricDescription(existingRow) == description
+                && existingChunk.getTimestampSeconds(existingRow) == timestamp) {
+                if (chunk.getUpdatedSeconds(row) >= existingChunk.getUpdatedSeconds(existingRow)) {
+                    markRemoved(existing);
+                    slots[slot] = position + 1;
+                } else {
+                    markRemoved(position);
+                }
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return mask of the cleared table with at most half of the slots to be taken
+     */
+    private int prepare(int points, int chunkCount) {
+        int tableSize = Integer.highestOneBit(points - 1) << 2;
+        if (slots.length < tableSize) {
+            slots = new int[tableSize];
+        } else {
+            Arrays.fill(slots, 0, tableSize, 0);
+        }
+        int removedWords = (chunkCount << CHUNK_SHIFT) / Long.SIZE;
+        if (removed.length < removedWords) {
+            removed = new long[removedWords];
+        } else {
+            Arrays.fill(removed, 0, removedWords, 0);
+        }
+        return tableSize - 1;
+    }
+
+    private void markRemoved(int position) {
+        removed[position >>> 6] |= 1L << position;
+    }
+
+    private static int hash(MetricDescription description, int timestamp) {
+        int hash = System.identityHashCode(description) * 0x9E3779B9 + timestamp * 0x85EBCA6B;
+        return hash ^ (hash >>> 16);
+    }
+}
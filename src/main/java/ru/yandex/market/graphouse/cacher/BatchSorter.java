@@ -0,0 +1,199 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorts points of a batch by (metric, timestamp), the order of the data table,
+ * so ClickHouse finds the block already sorted and doesn't sort it when forming a part.
+ * <p>
+ * Distinct metrics are sorted by their UTF-8 names, as ClickHouse compares strings, with a parallel sort
+ * in the common pool. Points are then placed by the rank of their metric with a counting sort of primitive keys,
+ * and points of a metric are sorted by timestamp, keeping the batch order of equal ones.
+ * Arrays are reused between batches, an instance is used by one thread.
+ */
+public class BatchSorter {
+
+    private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(MetricChunk.CAPACITY);
+    private static final int ROW_MASK = MetricChunk.CAPACITY - 1;
+    private static final Comparator<Name> NAME_ORDER = (a, b) -> compareUnsigned(a.bytes, b.bytes);
+
+    /**
+     * Distinct metric + 1 by the hash of description identity, 0 - empty slot.
+     */
+    private int[] slots = new int[0];
+    private MetricDescription[] distinct = new MetricDescription[0];
+    private int[] ranks = new int[0];
+    /**
+     * Distinct metric of every point.
+     */
+    private int[] metrics = new int[0];
+    /**
+     * Start of the points of every rank in the keys, the end once the keys are placed.
+     */
+    private int[] rankStarts = new int[0];
+    /**
+     * Timestamp and position in the batch of every point in the sorted order.
+     */
+    private long[] keys = new long[0];
+
+    private MetricDescription[] descriptions = new MetricDescription[0];
+    private int[] timestampsSeconds = new int[0];
+    private double[] values = new double[0];
+    private int[] updatedSeconds = new int[0];
+
+    /**
+     * Reorders points of the chunks, sizes of the chunks stay the same.
+     */
+    public void sort(List<MetricChunk> chunks) {
+        int points = MetricChunk.countMetrics(chunks);
+        if (points < 2) {
+            return;
+        }
+        ensureCapacity(points);
+        int distinctCount = findDistinct(chunks, points);
+        rankDistinct(distinctCount);
+        Arrays.fill(distinct, 0, distinctCount, null);
+        sortKeys(chunks, points, distinctCount);
+        if (!isOrdered(chunks)) {
+            reorder(chunks, points);
+        }
+    }
+
+    private int findDistinct(List<MetricChunk> chunks, int points) {
+        int mask = Integer.highestOneBit(points - 1) * 4 - 1;
+        Arrays.fill(slots, 0, mask + 1, 0);
+        int distinctCount = 0;
+        int point = 0;
+        for (MetricChunk chunk : chunks) {
+            for (int row = 0; row < chunk.size(); row++) {
+                MetricDescription description = chunk.getMetricDescription(row);
+                int hash = System.identityHashCode(description) * 0x9E3779B9;
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (slots[slot] != 0 && distinct[slots[slot] - 1] != description) {
+                    slot = (slot + 1) & mask;
+                }
+                if (slots[slot] == 0) {
+                    distinct[distinctCount] = description;
+                    slots[slot] = ++distinctCount;
+                }
+                metrics[point++] = slots[slot] - 1;
+            }
+        }
+        return distinctCount;
+    }
+
+    private void rankDistinct(int distinctCount) {
+        Name[] names = new Name[distinctCount];
+        for (int i = 0; i < distinctCount; i++) {
+            names[i] = new Name(distinct[i].getName().getBytes(StandardCharsets.UTF_8), i);
+        }
+        Arrays.parallelSort(names, NAME_ORDER);
+        for (int rank = 0; rank < distinctCount; rank++) {
+            ranks[names[rank].metric] = rank;
+        }
+    }
+
+    private void sortKeys(List<MetricChunk> chunks, int points, int distinctCount) {
+        Arrays.fill(rankStarts, 0, distinctCount + 1, 0);
+        for (int point = 0; point < points; point++) {
+            rankStarts[ranks[metrics[point]] + 1]++;
+        }
+        for (int rank = 0; rank < distinctCount; rank++) {
+            rankStarts[rank + 1] += rankStarts[rank];
+        }
+        int point = 0;
+        for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
+            MetricChunk chunk = chunks.get(chunkIndex);
+            for (int row = 0; row < chunk.size(); row++) {
+                int rank = ranks[metrics[point++]];
+                long timestamp = Integer.toUnsignedLong(chunk.getTimestampSeconds(row));
+                keys[rankStarts[rank]++] = timestamp << 32 | (chunkIndex << CHUNK_SHIFT | row);
+            }
+        }
+        int start = 0;
+        for (int rank = 0; rank < distinctCount; rank++) {
+            int end = rankStarts[rank];
+            if (end - start > 1) {
+                Arrays.sort(keys, start, end);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Already sorted chunks keep their encoded rows.
+     */
+    private boolean isOrdered(List<MetricChunk> chunks) {
+        int point = 0;
+        for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
+            for (int row = 0; row < chunks.get(chunkIndex).size(); row++) {
+                if ((int) keys[point++] != (chunkIndex << CHUNK_SHIFT | row)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void reorder(List<MetricChunk> chunks, int points) {
+        for (int point = 0; point < points; point++) {
+            int position = (int) keys[point];
+            MetricChunk chunk = chunks.get(position >>> CHUNK_SHIFT);
+            int row = position & ROW_MASK;
+            descriptions[point] = chunk.getMetricDescription(row);
+            timestampsSeconds[point] = chunk.getTimestampSeconds(row);
+            values[point] = chunk.getValue(row);
+            updatedSeconds[point] = chunk.getUpdatedSeconds(row);
+        }
+        int point = 0;
+        for (MetricChunk chunk : chunks) {
+            for (int row = 0; row < chunk.size(); row++, point++) {
+                chunk.set(row, descriptions[point], timestampsSeconds[point], values[point], updatedSeconds[point]);
+            }
+        }
+        Arrays.fill(descriptions, 0, points, null);
+    }
+
+    private void ensureCapacity(int points) {
+        int tableSize = Integer.highestOneBit(points - 1) * 4;
+        if (slots.length < tableSize) {
+            slots = new int[tableSize];
+        }
+        if (keys.length < points) {
+            distinct = new MetricDescription[points];
+            ranks = new int[points];
+            metrics = new int[points];
+            rankStarts = new int[points + 1];
+            keys = new long[points];
+            descriptions = new MetricDescription[points];
+            timestampsSeconds = new int[points];
+            values = new double[points];
+            updatedSeconds = new int[points];
+        }
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static class Name {
+        private final byte[] bytes;
+        private final int metric;
+
+        Name(byte[] bytes, int metric) {
+            this.bytes = bytes;
+            this.metric = metric;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.yandex.market.graphouse.cacher;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shards of the data table for direct writes, so batches are not split and sent again by a Distributed table.
+ * A metric is routed by the hash of its name, so every graphouse writes it to the same shard,
+ * and a consistent hash moves only a part of metrics when a shard is added.
+ */
+public class ClickHouseShards {
+
+    public static final ClickHouseShards NONE = new ClickHouseShards(Collections.emptyList(), null);
+
+    private static final HashFunction NAME_HASH = Hashing.murmur3_32();
+
+    private final List<JdbcTemplate> jdbcTemplates;
+    private final String dataWriteTable;
+
+    /**
+     * @param dataWriteTable local table on shards
+     */
+    public ClickHouseShards(List<JdbcTemplate> jdbcTemplates, String dataWriteTable) {
+        this.jdbcTemplates = jdbcTemplates;
+        this.dataWriteTable = dataWriteTable;
+    }
+
+    public boolean isEmpty() {
+        return jdbcTemplates.isEmpty();
+    }
+
+    public int getShardCount() {
+        return jdbcTemplates.size();
+    }
+
+    public JdbcTemplate getJdbcTemplate(int shard) {
+        return jdbcTemplates.get(shard);
+    }
+
+    public String getDataWriteTable() {
+        return dataWriteTable;
+    }
+
+    /**
+     * Hashes the cached UTF-8 name if there is one, so the full name is not built for every point.
+     */
+    public static int getShard(MetricDescription metricDescription, int shardCount) {
+        byte[] name = metricDescription.getCachedEncodedName();
+        if (name == null) {
+            name = metricDescription.getName().getBytes(StandardCharsets.UTF_8);
+        }
+        return Hashing.consistentHash(NAME_HASH.hashBytes(name), shardCount);
+    }
+}
@@ -0,0 +1,66 @@
+package ru.yandex.market.graphouse.cacher;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start seconds of the last {@link #DAYS} days and tomorrow in the ClickHouse time zone,
+ * so days of late and backfilled points are looked up instead of converted by {@link LocalDate} one by one.
+ * Days with DST changes are not 24 hours long, so the estimated day is corrected by the table.
+ */
+class DayCalendar {
+
+    static final int DAYS = 366;
+    private static final int SECONDS_PER_DAY = (int) TimeUnit.DAYS.toSeconds(1);
+
+    private static volatile DayCalendar last;
+
+    private final ZoneId zoneId;
+    private final LocalDate today;
+    private final int firstDay;
+    /**
+     * Starts of days from <code>today - DAYS</code> to tomorrow and the end of tomorrow.
+     */
+    private final int[] dayStarts = new int[DAYS + 3];
+
+    private DayCalendar(ZoneId zoneId, LocalDate today) {
+        this.zoneId = zoneId;
+        this.today = today;
+        LocalDate first = today.minusDays(DAYS);
+        firstDay = (int) first.toEpochDay();
+        for (int i = 0; i < dayStarts.length; i++) {
+            dayStarts[i] = (int) first.plusDays(i).atStartOfDay(zoneId).toEpochSecond();
+        }
+    }
+
+    /**
+     * @return calendar of the day, the last one is reused as all writers use the same time zone
+     */
+    static DayCalendar get(ZoneId zoneId, LocalDate today) {
+        DayCalendar calendar = last;
+        if (calendar == null || !calendar.today.equals(today) || !calendar.zoneId.equals(zoneId)) {
+            calendar = new DayCalendar(zoneId, today);
+            last = calendar;
+        }
+        return calendar;
+    }
+
+    /**
+     * @return days since epoch in the time zone
+     */
+    int getDay(int timestampSeconds) {
+        if (timestampSeconds < dayStarts[0] || timestampSeconds >= dayStarts[dayStarts.length - 1]) {
+            return (int) Instant.ofEpochSecond(timestampSeconds).atZone(zoneId).toLocalDate().toEpochDay();
+        }
+        int index = Math.min((timestampSeconds - dayStarts[0]) / SECONDS_PER_DAY, dayStarts.length - 2);
+        while (dayStarts[index] > timestampSeconds) {
+            index--;
+        }
+        while (dayStarts[index + 1] <= timestampSeconds) {
+            index++;
+        }
+        return firstDay + index;
+    }
+}
@@ -0,0 +1,165 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link MetricCacher} writers send batches to ClickHouse:
+ * <ul>
+ * <li>batch - an insert per batch, every insert pays for query parsing and creates a part</li>
+ * <li>streaming - the insert of a batch stays open for a while and the writer keeps feeding it
+ * with metrics from the queue, so ClickHouse creates parts of the insert block size</li>
+ * <li>async - an insert per batch with <code>async_insert</code>, ClickHouse buffers small frequent inserts
+ * and writes them as one part</li>
+ * </ul>
+ * Each strategy reports its own number of inserts and time spent on them.
+ */
+public interface InsertStrategy {
+
+    /**
+     * Sends the batch with the insert query.
+     *
+     * @param chunks of the batch, chunks taken from the source to the same insert are added to it
+     * @param source of more chunks for a long-lived insert, <code>null</code> to send only the batch
+     * @return millis spent on the insert, without the time waiting for more metrics
+     */
+    long insert(ClickHouseStatementImpl statement, String query, List<MetricChunk> chunks, ZoneId zoneId,
+                ChunkSource source) throws SQLException;
+
+    static InsertStrategy create(String name, RowBinarySender sender, StatisticsService statisticsService,
+                                 int streamingSeconds, boolean asyncWait) {
+        switch (name) {
+            case "batch":
+                return new BatchInsertStrategy(sender, statisticsService);
+            case "streaming":
+                return new StreamingInsertStrategy(
+                    sender, statisticsService, TimeUnit.SECONDS.toMillis(streamingSeconds)
+                );
+            case "async":
+                return new AsyncInsertStrategy(sender, statisticsService, asyncWait);
+            default:
+                throw new IllegalArgumentException("Unknown insert strategy: " + name);
+        }
+    }
+
+    interface ChunkSource {
+        /**
+         * @param all take all queued metrics, otherwise only if there are enough for a batch
+         * @return taken chunks, <code>null</code> if the insert should be finished
+         */
+        List<MetricChunk> poll(boolean all);
+    }
+
+    class BatchInsertStrategy implements InsertStrategy {
+        private final RowBinarySender sender;
+        private final StatisticsService statisticsService;
+
+        BatchInsertStrategy(RowBinarySender sender, StatisticsService statisticsService) {
+            this.sender = sender;
+            this.statisticsService = statisticsService;
+        }
+
+        @Override
+        public long insert(ClickHouseStatementImpl statement, String query, List<MetricChunk> chunks, ZoneId zoneId,
+                           ChunkSource source) throws SQLException {
+            long start = System.currentTimeMillis();
+            sender.send(statement, query, MetricsStreamCallback.ofChunks(chunks, zoneId));
+            long millis = System.currentTimeMillis() - start;
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_BATCH_INSERTS, 1);
+            statisticsService.accumulateMetric(AccumulatedMetric.BATCH_INSERT_MILLIS, millis);
+            return millis;
+        }
+    }
+
+    class StreamingInsertStrategy implements InsertStrategy {
+        /**
+         * Queued metrics are taken at least this often, even if there are not enough for a batch.
+         */
+        private static final long FLUSH_MILLIS = 1000;
+        private static final long POLL_MILLIS = 50;
+
+        private final RowBinarySender sender;
+        private final StatisticsService statisticsService;
+        private final long insertMillis;
+
+        StreamingInsertStrategy(RowBinarySender sender, StatisticsService statisticsService, long insertMillis) {
+            this.sender = sender;
+            this.statisticsService = statisticsService;
+            this.insertMillis = insertMillis;
+        }
+
+        /**
+         * Rows of the insert are sent with chunked transfer encoding as they are written,
+         * the insert is saved only when the stream is finished.
+         */
+        @Override
+        public long insert(ClickHouseStatementImpl statement, String query, List<MetricChunk> chunks, ZoneId zoneId,
+                           ChunkSource source) throws SQLException {
+            long start = System.currentTimeMillis();
+            long[] waitedMillis = new long[1];
+            int[] streamedBatches = new int[1];
+            sender.send(statement, query, stream -> {
+                MetricsStreamCallback.ofChunks(chunks, zoneId).writeTo(stream);
+                long lastWriteMillis = System.currentTimeMillis();
+                while (source != null && System.currentTimeMillis() - start < insertMillis) {
+                    List<MetricChunk> more = source.poll(System.currentTimeMillis() - lastWriteMillis >= FLUSH_MILLIS);
+                    if (more == null) {
+                        return;
+                    }
+                    if (more.isEmpty()) {
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        waitedMillis[0] += POLL_MILLIS;
+                        continue;
+                    }
+                    chunks.addAll(more);
+                    MetricsStreamCallback.ofChunks(more, zoneId).writeTo(stream);
+                    lastWriteMillis = System.currentTimeMillis();
+                    streamedBatches[0]++;
+                }
+            });
+            long millis = System.currentTimeMillis() - start - waitedMillis[0];
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_STREAMING_INSERTS, 1);
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_STREAMED_BATCHES, streamedBatches[0]);
+            statisticsService.accumulateMetric(AccumulatedMetric.STREAMING_INSERT_MILLIS, millis);
+            return millis;
+        }
+    }
+
+    class AsyncInsertStrategy implements InsertStrategy {
+        private final RowBinarySender sender;
+        private final StatisticsService statisticsService;
+        private final String settings;
+
+        /**
+         * @param wait the insert is acknowledged when buffered data is written to a part,
+         *             otherwise metrics are lost if ClickHouse fails to flush the buffer
+         */
+        AsyncInsertStrategy(RowBinarySender sender, StatisticsService statisticsService, boolean wait) {
+            this.sender = sender;
+            this.statisticsService = statisticsService;
+            settings = " SETTINGS async_insert = 1, wait_for_async_insert = " + (wait ? 1 : 0);
+        }
+
+        @Override
+        public long insert(ClickHouseStatementImpl statement, String query, List<MetricChunk> chunks, ZoneId zoneId,
+                           ChunkSource source) throws SQLException {
+            long start = System.currentTimeMillis();
+            sender.send(statement, query + settings, MetricsStreamCallback.ofChunks(chunks, zoneId));
+            long millis = System.currentTimeMillis() - start;
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_ASYNC_INSERTS, 1);
+            statisticsService.accumulateMetric(AccumulatedMetric.ASYNC_INSERT_MILLIS, millis);
+            return millis;
+        }
+    }
+}
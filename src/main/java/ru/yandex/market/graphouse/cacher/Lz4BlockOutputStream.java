@@ -0,0 +1,124 @@
+package ru.yandex.market.graphouse.cacher;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import ru.yandex.clickhouse.util.ClickHouseBlockChecksum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ClickHouse native compression, as expected in HTTP bodies with <code>decompress=1</code>.
+ * Every block is a CityHash128 checksum, the header (method, compressed size with the header, size)
+ * and at most {@link #BLOCK_SIZE} bytes compressed with LZ4.
+ * <p>
+ * Buffers are kept between bodies, so a writer thread reuses its stream with {@link #reset(OutputStream)}.
+ */
+class Lz4BlockOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final byte METHOD_LZ4 = (byte) 0x82;
+    private static final int CHECKSUM_SIZE = 16;
+    private static final int HEADER_SIZE = 9;
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+
+    private final byte[] block;
+    private final byte[] compressedBlock;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private OutputStream out;
+    private int position;
+    private long compressedBytes;
+    private long uncompressedBytes;
+
+    Lz4BlockOutputStream() {
+        this(BLOCK_SIZE);
+    }
+
+    Lz4BlockOutputStream(int blockSize) {
+        block = new byte[blockSize];
+        compressedBlock = new byte[COMPRESSOR.maxCompressedLength(blockSize)];
+        header[0] = METHOD_LZ4;
+    }
+
+    /**
+     * Starts a new body, unfinished data of the previous one is dropped.
+     */
+    Lz4BlockOutputStream reset(OutputStream out) {
+        this.out = out;
+        position = 0;
+        compressedBytes = 0;
+        uncompressedBytes = 0;
+        return this;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[position++] = (byte) b;
+        if (position == block.length) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int copied = Math.min(length, block.length - position);
+            System.arraycopy(bytes, offset, block, position, copied);
+            position += copied;
+            offset += copied;
+            length -= copied;
+            if (position == block.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses buffered data to a block, so it's sent before the block is full.
+     */
+    @Override
+    public void flush() throws IOException {
+        finish();
+        out.flush();
+    }
+
+    /**
+     * Writes the last block, the underlying stream is left open.
+     */
+    void finish() throws IOException {
+        if (position > 0) {
+            writeBlock();
+        }
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    private void writeBlock() throws IOException {
+        int length = COMPRESSOR.compress(block, 0, position, compressedBlock, 0);
+        int sizeWithHeader = length + HEADER_SIZE;
+        writeIntLE(header, 1, sizeWithHeader);
+        writeIntLE(header, 5, position);
+        out.write(ClickHouseBlockChecksum.calculateForBlock(
+            METHOD_LZ4, sizeWithHeader, position, compressedBlock, length
+        ).asBytes());
+        out.write(header);
+        out.write(compressedBlock, 0, length);
+        compressedBytes += CHECKSUM_SIZE + sizeWithHeader;
+        uncompressedBytes += position;
+        position = 0;
+    }
+
+    private static void writeIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,150 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.ClickhouseJdbcUrlParser;
+import ru.yandex.clickhouse.except.ClickHouseExceptionSpecifier;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseHttpClientBuilder;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.clickhouse.util.ClickHouseStreamCallback;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Sends inserts with RowBinary compressed by {@link Lz4BlockOutputStream} as it's written.
+ * The query goes in the URL, so only rows are compressed, and every writer thread reuses its buffers.
+ * The driver compresses the whole body with a new buffer per insert and the slowest LZ4 implementation.
+ * <p>
+ * Inserts go to the host of the statement's connection, so balancing and pings of the data source still apply.
+ */
+public class Lz4RowBinarySender implements RowBinarySender {
+
+    private static final ClickHouseProperties ROW_BINARY_PROPERTIES = new ClickHouseProperties();
+
+    private final ClickHouseProperties properties;
+    private final StatisticsService statisticsService;
+    private final CloseableHttpClient httpClient;
+    private final ThreadLocal<Lz4BlockOutputStream> streams = ThreadLocal.withInitial(Lz4BlockOutputStream::new);
+
+    public Lz4RowBinarySender(ClickHouseProperties properties, StatisticsService statisticsService) {
+        this.properties = properties;
+        this.statisticsService = statisticsService;
+        try {
+            httpClient = new ClickHouseHttpClientBuilder(properties).buildClient();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to create http client", e);
+        }
+    }
+
+    @Override
+    public void send(ClickHouseStatementImpl statement, String query, ClickHouseStreamCallback callback)
+        throws SQLException {
+        ClickHouseProperties host = getHost(statement);
+        Lz4BlockOutputStream stream = streams.get();
+        HttpPost post = new HttpPost(buildUri(host, query));
+        post.setEntity(new RowBinaryEntity(stream, callback));
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != 200) {
+                String message = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+                throw ClickHouseExceptionSpecifier.specify(message, host.getHost(), host.getPort());
+            }
+            EntityUtils.consume(entity);
+        } catch (IOException e) {
+            throw ClickHouseExceptionSpecifier.specify(e, host.getHost(), host.getPort());
+        }
+        statisticsService.accumulateMetric(AccumulatedMetric.INSERT_UNCOMPRESSED_BYTES, stream.getUncompressedBytes());
+        statisticsService.accumulateMetric(AccumulatedMetric.INSERT_COMPRESSED_BYTES, stream.getCompressedBytes());
+    }
+
+    /**
+     * @return host, port and database of the statement's connection
+     */
+    private static ClickHouseProperties getHost(ClickHouseStatementImpl statement) throws SQLException {
+        String url = statement.getConnection().getMetaData().getURL();
+        try {
+            return ClickhouseJdbcUrlParser.parse(url, new Properties());
+        } catch (URISyntaxException e) {
+            throw new SQLException("Invalid connection url " + url, e);
+        }
+    }
+
+    private URI buildUri(ClickHouseProperties host, String query) throws SQLException {
+        URIBuilder builder = new URIBuilder()
+            .setScheme(properties.getSsl() ? "https" : "http")
+            .setHost(host.getHost())
+            .setPort(host.getPort())
+            .setPath("/")
+            .setParameter("database", host.getDatabase())
+            .setParameter("query", query + " FORMAT RowBinary")
+            .setParameter("decompress", "1");
+        if (properties.getUser() != null && !properties.getUser().isEmpty()) {
+            builder.setParameter("user", properties.getUser());
+        }
+        if (properties.getPassword() != null && !properties.getPassword().isEmpty()) {
+            builder.setParameter("password", properties.getPassword());
+        }
+        try {
+            return builder.build();
+        } catch (URISyntaxException e) {
+            throw new SQLException("Invalid insert uri", e);
+        }
+    }
+
+    /**
+     * Sent with chunked transfer encoding, rows are compressed while the callback writes them.
+     */
+    private static class RowBinaryEntity extends AbstractHttpEntity {
+        private final Lz4BlockOutputStream stream;
+        private final ClickHouseStreamCallback callback;
+
+        RowBinaryEntity(Lz4BlockOutputStream stream, ClickHouseStreamCallback callback) {
+            this.stream = stream;
+            this.callback = callback;
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            stream.reset(outputStream);
+            callback.writeTo(new ClickHouseRowBinaryStream(stream, null, ROW_BINARY_PROPERTIES));
+            stream.finish();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
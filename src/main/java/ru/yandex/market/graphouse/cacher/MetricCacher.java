@@ -12,21 +12,24 @@ import ru.yandex.clickhouse.ClickHouseStatementImpl;
 import ru.yandex.market.graphouse.Metric;
 import ru.yandex.market.graphouse.monitoring.Monitoring;
 import ru.yandex.market.graphouse.monitoring.MonitoringUnit;
+import ru.yandex.market.graphouse.search.tree.EncodedNameCache;
 import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
 import ru.yandex.market.graphouse.statistics.InstantMetric;
 import ru.yandex.market.graphouse.statistics.StatisticsService;
 
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * @author Dmitry Andreev <a href="mailto:AndreevDm@yandex-team.ru"></a>
@@ -39,6 +42,7 @@ public class MetricCacher implements Runnable, InitializingBean {
     private final JdbcTemplate clickHouseJdbcTemplate;
     private final Monitoring monitoring;
     private final StatisticsService statisticsService;
+    private final MetricSpill metricSpill;
 
     @Value("${graphouse.clickhouse.data-write-table}")
     private String graphiteDataWriteTable;
@@ -46,6 +50,18 @@ public class MetricCacher implements Runnable, InitializingBean {
     @Value("${graphouse.cacher.queue-size}")
     private int queueSize = 1_000_000;
 
+    @Value("${graphouse.cacher.queue-size-mb}")
+    private int queueSizeMb = 0;
+
+    @Value("${graphouse.cacher.queue-stripes}")
+    private int queueStripes = 16;
+
+    @Value("${graphouse.cacher.pre-encode}")
+    private boolean preEncode = false;
+
+    @Value("${graphouse.cacher.cache-encoded-names}")
+    private boolean cacheEncodedNames = false;
+
     @Value("${graphouse.cacher.min-batch-size}")
     private int minBatchSize = 10_000;
 
@@ -61,30 +77,69 @@ public class MetricCacher implements Runnable, InitializingBean {
     @Value("${graphouse.cacher.max-output-threads}")
     private int maxOutputThreads = 2;
 
+    @Value("${graphouse.cacher.adaptive.enabled}")
+    private boolean adaptive = false;
+
+    @Value("${graphouse.cacher.adaptive.interval-seconds}")
+    private int adaptiveIntervalSeconds = 5;
+
+    @Value("${graphouse.cacher.adaptive.target-latency-millis}")
+    private int adaptiveTargetLatencyMillis = 5000;
+
+    @Value("${graphouse.cacher.adaptive.min-output-threads}")
+    private int adaptiveMinOutputThreads = 1;
+
+    @Value("${graphouse.cacher.adaptive.backlog-percent}")
+    private double adaptiveBacklogPercent = 30;
+
     @Value("${graphouse.cacher.min-retry-millis}")
     private int retryMillis = 1000;
 
     @Value("${graphouse.cacher.retry-interval-millis}")
     private int retryIntervalMillis = 3000;
 
-    private final AtomicLong lastBatchTimeMillis = new AtomicLong(System.currentTimeMillis());
+    @Value("${graphouse.cacher.insert-strategy}")
+    private String insertStrategyName = "batch";
+
+    @Value("${graphouse.cacher.insert.streaming-seconds}")
+    private int streamingSeconds = 10;
+
+    @Value("${graphouse.cacher.insert.async-wait}")
+    private boolean asyncWait = true;
+
+    @Value("${graphouse.cacher.collapse-duplicates}")
+    private boolean collapseDuplicates = false;
+
+    @Value("${graphouse.cacher.sort-batches}")
+    private boolean sortBatches = false;
+
+    @Value("${graphouse.cacher.partition-by}")
+    private String partitionByName = "";
+
+    @Value("${graphouse.cacher.partition.late-batch-time-seconds}")
+    private int lateBatchTimeSeconds = 60;
+
     private final MonitoringUnit metricCacherQueryUnit = new MonitoringUnit("MetricCacherQueue", 2, TimeUnit.MINUTES);
-    private final Semaphore semaphore = new Semaphore(0, false);
-    private BlockingQueue<Metric> metricQueue;
-    private final AtomicInteger activeWriters = new AtomicInteger(0);
-    private final AtomicInteger activeOutputMetrics = new AtomicInteger(0);
+    private ClickHouseShards shards = ClickHouseShards.NONE;
+    private RowBinarySender rowBinarySender = RowBinarySender.DRIVER;
+    private MetricSink sink;
+    private InsertStrategy insertStrategy;
+    private PartitionBy partitionBy;
+    private final ThreadLocal<BatchCollapser> collapsers = ThreadLocal.withInitial(BatchCollapser::new);
+    private final ThreadLocal<BatchSorter> sorters = ThreadLocal.withInitial(BatchSorter::new);
+    private List<Destination> destinations;
     private volatile boolean shutdown = false;
-
-    private ExecutorService executorService;
+    private long lastAdjustTimeMillis = System.currentTimeMillis();
 
     public MetricCacher(JdbcTemplate clickHouseJdbcTemplate, Monitoring monitoring,
-                        StatisticsService statisticsService) {
+                        StatisticsService statisticsService, MetricSpill metricSpill) {
         this.clickHouseJdbcTemplate = clickHouseJdbcTemplate;
         this.monitoring = monitoring;
         this.statisticsService = statisticsService;
+        this.metricSpill = metricSpill;
 
         statisticsService.registerInstantMetric(
-            InstantMetric.METRIC_CACHE_QUEUE_SIZE, () -> (double) this.metricQueue.size()
+            InstantMetric.METRIC_CACHE_QUEUE_SIZE, () -> (double) this.getQueueSize()
         );
 
         statisticsService.registerInstantMetric(
@@ -92,23 +147,87 @@ public class MetricCacher implements Runnable, InitializingBean {
         );
     }
 
+    /**
+     * Writes directly to shards instead of the data write table, if there are any.
+     */
+    public void setShards(ClickHouseShards shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Sends inserts compressed by itself instead of the driver, if set.
+     */
+    public void setRowBinarySender(RowBinarySender rowBinarySender) {
+        this.rowBinarySender = rowBinarySender;
+    }
+
+    /**
+     * Saves batches to the sink instead of ClickHouse, if set.
+     */
+    public void setSink(MetricSink sink) {
+        this.sink = sink;
+    }
+
     @Override
     public void afterPropertiesSet() {
-        metricQueue = new ArrayBlockingQueue<>(queueSize);
-        semaphore.release(queueSize);
-        executorService = Executors.newFixedThreadPool(
-            maxOutputThreads,
-            new ThreadFactoryBuilder().setNameFormat("output-thread-%d").build()
+        long queueSizeBytes = queueSizeMb > 0
+            ? queueSizeMb * 1024L * 1024L
+            : (long) queueSize * (preEncode ? MetricChunk.ENCODED_BYTES_PER_METRIC : MetricChunk.BYTES_PER_METRIC);
+        insertStrategy = InsertStrategy.create(
+            insertStrategyName, rowBinarySender, statisticsService, streamingSeconds, asyncWait
         );
+        partitionBy = PartitionBy.of(partitionByName);
+        if (shards.isEmpty()) {
+            destinations = Collections.singletonList(
+                new Destination("", clickHouseJdbcTemplate, graphiteDataWriteTable, queueSizeBytes)
+            );
+        } else {
+            if (metricSpill.isEnabled()) {
+                log.warn("Metric spill is not supported with direct writes to shards, failed batches stay in memory");
+            }
+            destinations = new ArrayList<>();
+            for (int i = 0; i < shards.getShardCount(); i++) {
+                destinations.add(new Destination(
+                    "shard " + (i + 1), shards.getJdbcTemplate(i), shards.getDataWriteTable(), queueSizeBytes
+                ));
+            }
+            log.info("Writing directly to " + shards.getShardCount() + " shards");
+        }
+        if (cacheEncodedNames) {
+            EncodedNameCache.setEnabled(true);
+            statisticsService.registerInstantMetric(
+                InstantMetric.ENCODED_NAME_CACHE_SIZE, () -> (double) EncodedNameCache.getNameCount()
+            );
+            statisticsService.registerInstantMetric(
+                InstantMetric.ENCODED_NAME_CACHE_BYTES, () -> (double) EncodedNameCache.getHeapBytes()
+            );
+        }
+        if (adaptive) {
+            statisticsService.registerInstantMetric(
+                InstantMetric.ADAPTIVE_BATCH_SIZE,
+                () -> (double) destinations.stream().mapToInt(Destination::getBatchSize).max().orElse(0)
+            );
+            statisticsService.registerInstantMetric(
+                InstantMetric.ADAPTIVE_OUTPUT_THREADS,
+                () -> (double) destinations.stream().mapToInt(Destination::getOutputThreads).sum()
+            );
+        }
         monitoring.addUnit(metricCacherQueryUnit);
         new Thread(this, "Metric cacher thread").start();
+        if (isSpillEnabled()) {
+            new Thread(this::replaySpill, "Metric spill replay thread").start();
+        }
+    }
+
+    private boolean isSpillEnabled() {
+        return metricSpill.isEnabled() && shards.isEmpty() && sink == null;
     }
 
     public void flushAndShutdown() {
         log.info("Shutting down metric cacher. Saving all cached metrics...");
         shutdown = true;
         flushOutputMetrics();
-        executorService.shutdown();
+        destinations.forEach(destination -> destination.executorService.shutdown());
         statisticsService.shutdownService();
         awaitSaveCompletion();
         log.info("Metric cacher stopped");
@@ -116,8 +235,11 @@ public class MetricCacher implements Runnable, InitializingBean {
 
     private void flushOutputMetrics() {
         while (hasOutputMetrics()) {
-            log.info((metricQueue.size() + activeOutputMetrics.get()) + " metrics remaining");
-            createBatches(true);
+            long remaining = destinations.stream()
+                .mapToLong(destination -> destination.getQueueSize() + destination.activeOutputMetrics.get())
+                .sum();
+            log.info(remaining + " metrics remaining");
+            destinations.forEach(destination -> destination.createBatches(true));
             try {
                 TimeUnit.MILLISECONDS.sleep(100);
             } catch (InterruptedException ignored) {
@@ -126,23 +248,24 @@ public class MetricCacher implements Runnable, InitializingBean {
     }
 
     private void awaitSaveCompletion() {
-        while (!executorService.isTerminated()) {
-            log.info("Awaiting save completion");
-            try {
-                executorService.awaitTermination(100, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException ignored) {
+        for (Destination destination : destinations) {
+            while (!destination.executorService.isTerminated()) {
+                log.info("Awaiting save completion");
+                try {
+                    destination.executorService.awaitTermination(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ignored) {
+                }
             }
         }
     }
 
     private boolean hasOutputMetrics() {
-        return !(metricQueue.isEmpty() && (activeOutputMetrics.get() == 0));
+        return destinations.stream().anyMatch(Destination::hasOutputMetrics);
     }
 
     public void submitMetric(Metric metric) {
         try {
-            semaphore.acquire();
-            metricQueue.put(metric);
+            getDestination(metric).add(metric);
             statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_RECEIVED_METRICS, 1);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
@@ -154,117 +277,481 @@ public class MetricCacher implements Runnable, InitializingBean {
             return;
         }
         try {
-            semaphore.acquire(metrics.size());
-            metricQueue.addAll(metrics);
+            if (destinations.size() == 1) {
+                destinations.get(0).addAll(metrics);
+            } else {
+                submitToShards(metrics);
+            }
             statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_RECEIVED_METRICS, metrics.size());
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void submitToShards(List<Metric> metrics) throws InterruptedException {
+        List<List<Metric>> shardMetrics = new ArrayList<>(destinations.size());
+        for (int i = 0; i < destinations.size(); i++) {
+            shardMetrics.add(new ArrayList<>(metrics.size() / destinations.size() + 1));
+        }
+        for (Metric metric : metrics) {
+            shardMetrics.get(ClickHouseShards.getShard(metric.getMetricDescription(), destinations.size())).add(metric);
+        }
+        for (int i = 0; i < destinations.size(); i++) {
+            if (!shardMetrics.get(i).isEmpty()) {
+                destinations.get(i).addAll(shardMetrics.get(i));
+            }
+        }
+    }
+
+    private Destination getDestination(Metric metric) {
+        if (destinations.size() == 1) {
+            return destinations.get(0);
+        }
+        return destinations.get(ClickHouseShards.getShard(metric.getMetricDescription(), destinations.size()));
+    }
+
     @Override
     public void run() {
         while (!Thread.interrupted()) {
             try {
                 TimeUnit.MILLISECONDS.sleep(1);
-                createBatches(false);
+                adjustWrites();
+                queueSizeMonitoring(getQueueOccupancyPercent());
+                for (Destination destination : destinations) {
+                    destination.updateCurrentPartition();
+                    destination.createBatches(false);
+                }
             } catch (InterruptedException ignored) {
             }
         }
     }
 
-    private boolean needBatch(boolean force) {
-        if (force) {
-            return !metricQueue.isEmpty();
-        } else if (shutdown) {
-            return false;
+    private void adjustWrites() {
+        if (!adaptive) {
+            return;
         }
-
-        if (metricQueue.size() >= maxBatchSize) {
-            return true;
+        long now = System.currentTimeMillis();
+        if (now - lastAdjustTimeMillis >= TimeUnit.SECONDS.toMillis(adaptiveIntervalSeconds)) {
+            lastAdjustTimeMillis = now;
+            for (Destination destination : destinations) {
+                destination.writeController.adjust(destination.metricQueue.getOccupancyPercent());
+            }
         }
-        long secondsPassed = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - lastBatchTimeMillis.get());
-        if (secondsPassed >= maxBatchTimeSeconds) {
-            return true;
+    }
+
+    public long getQueueSize() {
+        return destinations.stream().mapToLong(Destination::getQueueSize).sum();
+    }
+
+    /**
+     * @return occupancy of the fullest queue, as a slow shard blocks receivers when its queue is full
+     */
+    public double getQueueOccupancyPercent() {
+        return destinations.stream()
+            .mapToDouble(Destination::getOccupancyPercent)
+            .max().orElse(0);
+    }
+
+    private void queueSizeMonitoring(double queueOccupancyPercent) {
+        if (queueOccupancyPercent >= 95) {
+            metricCacherQueryUnit.critical("Metric queue size >= 95%");
+        } else if (queueOccupancyPercent >= 80) {
+            metricCacherQueryUnit.warning("Metric queue size >= 80%");
+        } else {
+            metricCacherQueryUnit.ok();
         }
-        if (metricQueue.size() >= minBatchSize && secondsPassed >= minBatchTimeSeconds) {
-            return true;
+    }
+
+    /**
+     * Replays spilled segments one by one from the oldest.
+     * The segment being appended is replayed only when writers stop spilling to it.
+     */
+    private void replaySpill() {
+        while (!Thread.interrupted()) {
+            try {
+                MetricSpill.Segment segment = metricSpill.nextSegment(retryMillis + retryIntervalMillis);
+                if (segment == null) {
+                    TimeUnit.MILLISECONDS.sleep(retryIntervalMillis);
+                    continue;
+                }
+                long start = System.currentTimeMillis();
+                int replayed = replaySegment(segment);
+                metricSpill.delete(segment);
+                statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_REPLAYED_METRICS, replayed);
+                log.info(String.format(
+                    "Replayed %d spilled metrics from %s in %d ms", replayed, segment.getPath(),
+                    System.currentTimeMillis() - start
+                ));
+            } catch (InterruptedException ignored) {
+                return;
+            } catch (Exception e) {
+                log.error("Failed to replay spilled metrics. Waiting " + retryMillis + " millis before retry", e);
+                statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_WRITE_ERRORS, 1);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(
+                        retryMillis + ThreadLocalRandom.current().nextInt(retryIntervalMillis)
+                    );
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
         }
-        return false;
     }
 
-    private double getQueueOccupancyPercent() {
-        int currentQueueSize = this.queueSize - semaphore.availablePermits();
-        return currentQueueSize * 100.0 / this.queueSize;
+    private int replaySegment(MetricSpill.Segment segment) {
+        int[] replayed = new int[1];
+        clickHouseJdbcTemplate.execute(
+            (StatementCallback<Void>) stmt -> {
+                rowBinarySender.send(
+                    (ClickHouseStatementImpl) stmt, insertQuery(graphiteDataWriteTable),
+                    stream -> replayed[0] = segment.writeTo(stream)
+                );
+                return null;
+            }
+        );
+        return replayed[0];
     }
 
-    private void createBatches(boolean force) {
-        if (metricQueue.isEmpty()) {
-            metricCacherQueryUnit.ok();
-            return;
+    private String insertQuery(String table) {
+        return "INSERT INTO " + table + " (metric, value, timestamp, date, updated)";
+    }
+
+    /**
+     * Queue and writers of the data write table, or of a shard with direct writes,
+     * so a slow shard backs up only its own queue.
+     */
+    private class Destination {
+        /**
+         * Chunks of open streaming inserts are held until they are saved, so inserts are finished early
+         * to leave space in the queue for receivers.
+         */
+        private static final double STREAMING_MAX_OCCUPANCY_PERCENT = 50;
+        /**
+         * Part of the queue size given to points of older partitions.
+         */
+        private static final int LATE_QUEUE_DIVISOR = 4;
+
+        private final String name;
+        private final String table;
+        private final MetricSink sink;
+        private final MetricQueue metricQueue;
+        /**
+         * Points outside of the current partition, <code>null</code> if all points are batched together.
+         */
+        private final MetricQueue lateQueue;
+        private final AdaptiveWriteController writeController;
+        private final ExecutorService executorService;
+        private final AtomicLong lastBatchTimeMillis = new AtomicLong(System.currentTimeMillis());
+        private final AtomicLong lastLateBatchTimeMillis = new AtomicLong(System.currentTimeMillis());
+        private final AtomicInteger activeWriters = new AtomicInteger(0);
+        private final AtomicInteger activeOutputMetrics = new AtomicInteger(0);
+        private volatile ZoneId clickHouseZoneId = ZoneId.systemDefault();
+        private volatile CurrentPartition currentPartition;
+
+        Destination(String name, JdbcTemplate jdbcTemplate, String table, long queueSizeBytes) {
+            this.name = name;
+            this.table = table;
+            sink = MetricCacher.this.sink != null
+                ? MetricCacher.this.sink
+                : new MetricSink.ClickHouseSink(jdbcTemplate, insertQuery(table), insertStrategy);
+            Supplier<ZoneId> encodingZoneId = preEncode ? () -> clickHouseZoneId : null;
+            if (partitionBy == PartitionBy.NONE) {
+                metricQueue = new MetricQueue(queueSizeBytes, queueStripes, encodingZoneId);
+                lateQueue = null;
+            } else {
+                long lateQueueSizeBytes = queueSizeBytes / LATE_QUEUE_DIVISOR;
+                metricQueue = new MetricQueue(queueSizeBytes - lateQueueSizeBytes, queueStripes, encodingZoneId);
+                lateQueue = new MetricQueue(lateQueueSizeBytes, queueStripes, encodingZoneId);
+                updateCurrentPartition();
+            }
+            if (adaptive) {
+                writeController = new AdaptiveWriteController(
+                    minBatchSize, maxBatchSize, adaptiveMinOutputThreads, maxOutputThreads,
+                    adaptiveTargetLatencyMillis, adaptiveBacklogPercent
+                );
+            } else {
+                writeController = null;
+            }
+            String threadPrefix = name.isEmpty() ? "output-thread-" : "output-" + name.replace(' ', '-') + "-thread-";
+            executorService = Executors.newFixedThreadPool(
+                maxOutputThreads,
+                new ThreadFactoryBuilder().setNameFormat(threadPrefix + "%d").build()
+            );
+        }
+
+        private boolean hasOutputMetrics() {
+            return !(getQueueSize() == 0 && (activeOutputMetrics.get() == 0));
+        }
+
+        private long getQueueSize() {
+            return metricQueue.size() + (lateQueue != null ? lateQueue.size() : 0);
+        }
+
+        private double getOccupancyPercent() {
+            double occupancyPercent = metricQueue.getOccupancyPercent();
+            return lateQueue != null ? Math.max(occupancyPercent, lateQueue.getOccupancyPercent()) : occupancyPercent;
+        }
+
+        private void add(Metric metric) throws InterruptedException {
+            if (lateQueue != null && !currentPartition.contains(metric.getTimestampSeconds())) {
+                lateQueue.add(metric);
+                statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_LATE_METRICS, 1);
+            } else {
+                metricQueue.add(metric);
+            }
+        }
+
+        /**
+         * Metrics are copied only if some of them are outside of the current partition.
+         */
+        private void addAll(List<Metric> metrics) throws InterruptedException {
+            if (lateQueue == null) {
+                metricQueue.addAll(metrics);
+                return;
+            }
+            CurrentPartition partition = currentPartition;
+            int lateCount = 0;
+            for (Metric metric : metrics) {
+                if (!partition.contains(metric.getTimestampSeconds())) {
+                    lateCount++;
+                }
+            }
+            if (lateCount == 0) {
+                metricQueue.addAll(metrics);
+                return;
+            }
+            List<Metric> current = new ArrayList<>(metrics.size() - lateCount);
+            List<Metric> late = new ArrayList<>(lateCount);
+            for (Metric metric : metrics) {
+                (partition.contains(metric.getTimestampSeconds()) ? current : late).add(metric);
+            }
+            if (!current.isEmpty()) {
+                metricQueue.addAll(current);
+            }
+            lateQueue.addAll(late);
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_LATE_METRICS, lateCount);
+        }
+
+        /**
+         * Moves to the next partition when the day of ClickHouse changes.
+         */
+        private void updateCurrentPartition() {
+            if (lateQueue == null) {
+                return;
+            }
+            ZoneId zoneId = clickHouseZoneId;
+            LocalDate today = LocalDate.now(zoneId);
+            CurrentPartition partition = currentPartition;
+            if (partition == null || !partition.today.equals(today) || !partition.zoneId.equals(zoneId)) {
+                currentPartition = new CurrentPartition(zoneId, today, partitionBy);
+            }
+        }
+
+        private int getBatchSize() {
+            return writeController != null ? writeController.getBatchSize() : maxBatchSize;
+        }
+
+        private int getOutputThreads() {
+            return writeController != null ? writeController.getWriters() : maxOutputThreads;
+        }
+
+        /**
+         * With the adaptive controller batches are created by its batch size or by max-batch-time-seconds.
+         */
+        private boolean needBatch(boolean force) {
+            if (force) {
+                return !metricQueue.isEmpty();
+            } else if (shutdown) {
+                return false;
+            }
+
+            if (metricQueue.size() >= getBatchSize()) {
+                return true;
+            }
+            long secondsPassed = TimeUnit.MILLISECONDS.toSeconds(
+                System.currentTimeMillis() - lastBatchTimeMillis.get()
+            );
+            if (secondsPassed >= maxBatchTimeSeconds) {
+                return true;
+            }
+            if (writeController != null) {
+                return false;
+            }
+            if (metricQueue.size() >= minBatchSize && secondsPassed >= minBatchTimeSeconds) {
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Points of older partitions are batched on their own, less often, so they don't spread
+         * every insert of the current partition over many partitions.
+         */
+        private boolean needLateBatch(boolean force) {
+            if (lateQueue == null || lateQueue.isEmpty()) {
+                return false;
+            } else if (force) {
+                return true;
+            } else if (shutdown) {
+                return false;
+            }
+            long secondsPassed = TimeUnit.MILLISECONDS.toSeconds(
+                System.currentTimeMillis() - lastLateBatchTimeMillis.get()
+            );
+            return lateQueue.size() >= getBatchSize() || secondsPassed >= lateBatchTimeSeconds;
         }
 
-        double queueOccupancyPercent = getQueueOccupancyPercent();
-        queueSizeMonitoring(queueOccupancyPercent);
+        private void createBatches(boolean force) {
+            if (getQueueSize() == 0) {
+                return;
+            }
 
-        int createdBatches = 0;
-        int metricsInBatches = 0;
-        Stopwatch stopwatch = Stopwatch.createStarted();
+            int createdBatches = 0;
+            int metricsInBatches = 0;
+            Stopwatch stopwatch = Stopwatch.createStarted();
 
-        while (needBatch(force) && activeWriters.get() < maxOutputThreads) {
-            List<Metric> metrics = createBatch();
-            if (metrics.isEmpty()) {
-                continue;
+            while (needBatch(force) && activeWriters.get() < getOutputThreads()) {
+                int batchSize = submitBatch(metricQueue);
+                if (batchSize == 0) {
+                    continue;
+                }
+                createdBatches++;
+                metricsInBatches += batchSize;
+                lastBatchTimeMillis.set(System.currentTimeMillis());
             }
+            while (needLateBatch(force) && activeWriters.get() < getOutputThreads()) {
+                int batchSize = submitBatch(lateQueue);
+                if (batchSize == 0) {
+                    continue;
+                }
+                createdBatches++;
+                metricsInBatches += batchSize;
+                lastLateBatchTimeMillis.set(System.currentTimeMillis());
+                statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_LATE_BATCHES, 1);
+            }
+
+            stopwatch.stop();
 
-            createdBatches++;
-            metricsInBatches += metrics.size();
+            if (createdBatches > 0) {
+                log.info(
+                    "Created " + createdBatches + " output worker(s) (" + activeWriters.get() + " total) " +
+                        "for " + metricsInBatches + " metrics " +
+                        "(" + activeOutputMetrics.get() + " total in processing) " +
+                        "in " + stopwatch.toString() + ". " +
+                        "Metric queue size" + (name.isEmpty() ? "" : " of " + name) + ": " + getQueueSize() +
+                        " (" + getOccupancyPercent() + "%)");
+            }
+        }
 
-            executorService.submit(new ClickhouseWriterWorker(metrics));
+        /**
+         * @return metrics in the batch, 0 if the queue is empty
+         */
+        private int submitBatch(MetricQueue queue) {
+            List<MetricChunk> chunks = queue.poll(getBatchSize());
+            if (chunks.isEmpty()) {
+                return 0;
+            }
+            collapse(chunks);
+            int batchSize = MetricChunk.countMetrics(chunks);
+            executorService.submit(new ClickhouseWriterWorker(this, queue, chunks, batchSize));
             activeWriters.incrementAndGet();
-            activeOutputMetrics.addAndGet(metrics.size());
+            activeOutputMetrics.addAndGet(batchSize);
+            return batchSize;
+        }
+
+        private List<MetricChunk> pollStreamed(boolean all) {
+            if (shutdown || metricQueue.getOccupancyPercent() >= STREAMING_MAX_OCCUPANCY_PERCENT) {
+                return null;
+            }
+            if (metricQueue.isEmpty() || (!all && metricQueue.size() < minBatchSize)) {
+                return Collections.emptyList();
+            }
+            List<MetricChunk> chunks = metricQueue.poll(getBatchSize());
+            collapse(chunks);
+            sort(chunks);
+            activeOutputMetrics.addAndGet(MetricChunk.countMetrics(chunks));
             lastBatchTimeMillis.set(System.currentTimeMillis());
+            return chunks;
         }
 
-        stopwatch.stop();
+        @Override
+        public String toString() {
+            return name.isEmpty() ? table : name;
+        }
+    }
 
-        if (createdBatches > 0) {
-            log.info(
-                "Created " + createdBatches + " output worker(s) (" + activeWriters.get() + " total) " +
-                    "for " + metricsInBatches + " metrics (" + activeOutputMetrics.get() + " total in processing) " +
-                    "in " + stopwatch.toString() + ". " +
-                    "Metric queue size: " + queueSize + " (" + queueOccupancyPercent + "%)");
+    /**
+     * Start and end of the current partition in ClickHouse time zone.
+     */
+    private static class CurrentPartition {
+        private final ZoneId zoneId;
+        private final LocalDate today;
+        private final int startSeconds;
+        private final int endSeconds;
+
+        CurrentPartition(ZoneId zoneId, LocalDate today, PartitionBy partitionBy) {
+            this.zoneId = zoneId;
+            this.today = today;
+            int startDay = partitionBy.getPartitionStartDay((int) today.toEpochDay());
+            int endDay = partitionBy.getNextPartitionStartDay(startDay);
+            startSeconds = (int) LocalDate.ofEpochDay(startDay).atStartOfDay(zoneId).toEpochSecond();
+            endSeconds = (int) LocalDate.ofEpochDay(endDay).atStartOfDay(zoneId).toEpochSecond();
         }
 
+        private boolean contains(int timestampSeconds) {
+            return timestampSeconds >= startSeconds && timestampSeconds < endSeconds;
+        }
     }
 
-    private void queueSizeMonitoring(double queueOccupancyPercent) {
-        if (queueOccupancyPercent >= 95) {
-            metricCacherQueryUnit.critical("Metric queue size >= 95%");
-        } else if (queueOccupancyPercent >= 80) {
-            metricCacherQueryUnit.warning("Metric queue size >= 80%");
-        } else {
-            metricCacherQueryUnit.ok();
+    /**
+     * Leaves only the last point of every metric and timestamp in the batch, if enabled.
+     */
+    private void collapse(List<MetricChunk> chunks) {
+        if (!collapseDuplicates) {
+            return;
+        }
+        int collapsed = collapsers.get().collapse(chunks);
+        if (collapsed > 0) {
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_COLLAPSED_METRICS, collapsed);
         }
     }
 
-    private List<Metric> createBatch() {
-        int batchSize = Math.min(maxBatchSize, metricQueue.size());
-        List<Metric> metrics = new ArrayList<>(batchSize);
-        metricQueue.drainTo(metrics, batchSize);
-        return metrics;
+    /**
+     * Orders the batch as the data table by the writer, if enabled.
+     */
+    private void sort(List<MetricChunk> chunks) {
+        if (!sortBatches) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        sorters.get().sort(chunks);
+        statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_SORTED_BATCHES, 1);
+        statisticsService.accumulateMetric(AccumulatedMetric.BATCH_SORT_MILLIS, System.currentTimeMillis() - start);
     }
 
     private class ClickhouseWriterWorker implements Runnable {
-        private List<Metric> metrics;
-
-        ClickhouseWriterWorker(List<Metric> metrics) {
-            this.metrics = metrics;
+        private final Destination destination;
+        private final MetricQueue queue;
+        private final List<MetricChunk> chunks;
+        private int size;
+        private boolean failed = false;
+
+        ClickhouseWriterWorker(Destination destination, MetricQueue queue, List<MetricChunk> chunks, int size) {
+            this.destination = destination;
+            this.queue = queue;
+            this.chunks = chunks;
+            this.size = size;
         }
 
         @Override
         public void run() {
-            while (!trySaveMetrics()) {
+            sort(chunks);
+            boolean saved;
+            while (!(saved = trySaveMetrics())) {
+                failed = true;
+                if (trySpillMetrics()) {
+                    break;
+                }
                 try {
                     TimeUnit.MILLISECONDS.sleep(
                         retryMillis + ThreadLocalRandom.current().nextInt(retryIntervalMillis)
@@ -273,22 +760,42 @@ public class MetricCacher implements Runnable, InitializingBean {
                 }
             }
 
-            activeOutputMetrics.addAndGet(-metrics.size());
-            activeWriters.decrementAndGet();
-            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_WRITTEN_METRICS, metrics.size());
+            queue.release(chunks);
+            destination.activeOutputMetrics.addAndGet(-size);
+            destination.activeWriters.decrementAndGet();
+            if (saved) {
+                statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_WRITTEN_METRICS, size);
+            }
+        }
+
+        /**
+         * Frees the queue from the failed batch, if it can be replayed later from disk.
+         */
+        private boolean trySpillMetrics() {
+            if (!isSpillEnabled() || !metricSpill.trySpill(chunks, destination.clickHouseZoneId)) {
+                return false;
+            }
+            log.info(String.format("Spilled %d metrics to disk", size));
+            return true;
         }
 
         private boolean trySaveMetrics() {
             try {
                 long start = System.currentTimeMillis();
-                saveMetrics();
+                long insertMillis = saveMetrics();
                 long processed = System.currentTimeMillis() - start;
+                if (destination.writeController != null) {
+                    destination.writeController.onInsert(insertMillis);
+                }
 
-                semaphore.release(metrics.size());
-
-                log.info(String.format("Saved %d metrics in %d ms", metrics.size(), processed));
+                log.info(String.format("Saved %d metrics to %s in %d ms", size, destination, processed));
             } catch (Exception e) {
-                log.error("Failed to save metrics. Waiting " + retryMillis + " millis before retry", e);
+                log.error(
+                    "Failed to save metrics to " + destination + ". Waiting " + retryMillis + " millis before retry", e
+                );
+                if (destination.writeController != null) {
+                    destination.writeController.onError();
+                }
 
                 statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_WRITE_ERRORS, 1);
 
@@ -302,20 +809,20 @@ public class MetricCacher implements Runnable, InitializingBean {
             return true;
         }
 
-        private void saveMetrics() {
-            clickHouseJdbcTemplate.execute(
-                (StatementCallback<Void>) stmt -> {
-                    ClickHouseStatementImpl statement = (ClickHouseStatementImpl) stmt;
-                    MetricsStreamCallback metricsStreamCallback = new MetricsStreamCallback(
-                        metrics, statement.getConnection().getTimeZone()
-                    );
-                    statement.sendRowBinaryStream(
-                        "INSERT INTO " + graphiteDataWriteTable + " (metric, value, timestamp, date, updated)",
-                        metricsStreamCallback
-                    );
-                    return null;
-                }
-            );
+        /**
+         * A retried batch and a batch of older partitions are sent as is, without taking more metrics from the queue.
+         *
+         * @return millis spent on the insert
+         */
+        private long saveMetrics() throws IOException {
+            try {
+                return destination.sink.save(
+                    chunks, failed || queue != destination.metricQueue ? null : destination::pollStreamed
+                );
+            } finally {
+                destination.clickHouseZoneId = destination.sink.getZoneId();
+                size = MetricChunk.countMetrics(chunks);
+            }
         }
     }
 }
@@ -0,0 +1,185 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed size block of queued metric points stored in parallel primitive arrays,
+ * so millions of queued points are a few thousand long-lived objects instead of millions of {@link Metric}.
+ * Not thread safe, filled under the lock of its {@link MetricQueue} stripe and then handed over to a writer.
+ * <p>
+ * With {@link #startEncoding(ZoneId)} points are added together with their RowBinary rows encoded by producers,
+ * so the writer only copies bytes.
+ */
+public class MetricChunk {
+
+    public static final int CAPACITY = 4096;
+
+    /**
+     * Reference (with compressed oops), timestamp, value and updated.
+     */
+    static final int BYTES_PER_METRIC = 4 + 4 + 8 + 4;
+    static final long BYTES = (long) CAPACITY * BYTES_PER_METRIC;
+    /**
+     * Estimate with the encoded row of a metric name of 60 bytes.
+     */
+    static final int ENCODED_BYTES_PER_METRIC = BYTES_PER_METRIC + 1 + 60 + 8 + 4 + 2 + 4;
+    static final long ENCODED_BYTES = (long) CAPACITY * ENCODED_BYTES_PER_METRIC;
+
+    private final MetricDescription[] descriptions = new MetricDescription[CAPACITY];
+    private final int[] timestampsSeconds = new int[CAPACITY];
+    private final double[] values = new double[CAPACITY];
+    private final int[] updatedSeconds = new int[CAPACITY];
+    private int size = 0;
+
+    private RowBinaryPages encodedRows;
+    private ZoneId encodedZoneId;
+
+    public static List<MetricChunk> fromMetrics(List<Metric> metrics) {
+        List<MetricChunk> chunks = new ArrayList<>(metrics.size() / CAPACITY + 1);
+        MetricChunk chunk = null;
+        for (Metric metric : metrics) {
+            if (chunk == null || chunk.isFull()) {
+                chunk = new MetricChunk();
+                chunks.add(chunk);
+            }
+            chunk.add(metric);
+        }
+        return chunks;
+    }
+
+    void startEncoding(ZoneId clickHouseZoneId) {
+        if (encodedRows == null) {
+            encodedRows = new RowBinaryPages();
+        }
+        encodedZoneId = clickHouseZoneId;
+    }
+
+    void add(Metric metric) {
+        descriptions[size] = metric.getMetricDescription();
+        timestampsSeconds[size] = metric.getTimestampSeconds();
+        values[size] = metric.getValue();
+        updatedSeconds[size] = metric.getUpdatedSeconds();
+        size++;
+        encodedZoneId = null;
+    }
+
+    /**
+     * Adds the point with its row from the encoder. Rows encoded for another time zone than the other rows
+     * of the chunk stop encoding of the chunk, the writer encodes it then.
+     */
+    void add(Metric metric, RowBinaryEncoder encoder, int index) {
+        ZoneId zoneId = encodedZoneId;
+        add(metric);
+        if (zoneId != null && zoneId.equals(encoder.getClickHouseZoneId())) {
+            int start = encoder.getRowStart(index);
+            encodedRows.write(encoder.getBytes(), start, encoder.getRowEnd(index) - start);
+            encodedZoneId = zoneId;
+        }
+    }
+
+    /**
+     * @return <code>false</code> if not encoded or the ClickHouse time zone was different
+     */
+    boolean isEncodedFor(ZoneId clickHouseZoneId) {
+        return encodedZoneId != null && encodedZoneId.equals(clickHouseZoneId);
+    }
+
+    void writeEncodedRows(ClickHouseRowBinaryStream stream) throws IOException {
+        encodedRows.writeTo(stream);
+    }
+
+    void writeEncodedRows(OutputStream outputStream) throws IOException {
+        encodedRows.writeTo(outputStream);
+    }
+
+    /**
+     * Replaces the point, encoded rows don't match the chunk anymore.
+     */
+    void set(int index, MetricDescription description, int timestampSeconds, double value, int updated) {
+        descriptions[index] = description;
+        timestampsSeconds[index] = timestampSeconds;
+        values[index] = value;
+        updatedSeconds[index] = updated;
+        encodedZoneId = null;
+    }
+
+    /**
+     * Removes points marked in the bitset, the point at index i is marked by bit <code>offset + i</code>.
+     * Encoded rows have no per-row offsets, so a chunk with removed points is encoded by the writer.
+     *
+     * @return number of removed points
+     */
+    int remove(long[] marks, int offset) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int bit = offset + i;
+            if ((marks[bit >>> 6] & (1L << bit)) != 0) {
+                continue;
+            }
+            if (kept != i) {
+                descriptions[kept] = descriptions[i];
+                timestampsSeconds[kept] = timestampsSeconds[i];
+                values[kept] = values[i];
+                updatedSeconds[kept] = updatedSeconds[i];
+            }
+            kept++;
+        }
+        int removed = size - kept;
+        if (removed > 0) {
+            Arrays.fill(descriptions, kept, size, null);
+            size = kept;
+            encodedZoneId = null;
+        }
+        return removed;
+    }
+
+    boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    void clear() {
+        Arrays.fill(descriptions, 0, size, null);
+        size = 0;
+        if (encodedRows != null) {
+            encodedRows.reset();
+        }
+        encodedZoneId = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public MetricDescription getMetricDescription(int index) {
+        return descriptions[index];
+    }
+
+    public int getTimestampSeconds(int index) {
+        return timestampsSeconds[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public int getUpdatedSeconds(int index) {
+        return updatedSeconds[index];
+    }
+
+    public static int countMetrics(List<MetricChunk> chunks) {
+        int count = 0;
+        for (MetricChunk chunk : chunks) {
+            count += chunk.size;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,206 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.market.graphouse.Metric;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded metric queue of {@link MetricChunk}s.
+ * Producers are spread over stripes by thread, every stripe fills its own chunk under its own lock,
+ * full chunks go to the shared queue of ready chunks. Writers take whole chunks and give them back
+ * with {@link #release(List)}, so chunks are reused and points are never copied between the queue and the writer.
+ * <p>
+ * Capacity is the number of chunks, so it's bounded by bytes. A partially filled chunk counts as a full one.
+ * Producers block when all chunks are taken.
+ * <p>
+ * Optionally producers also encode points to RowBinary, so serialization is spread over parser threads.
+ */
+public class MetricQueue {
+
+    private final Supplier<ZoneId> encodingZoneId;
+    private final Stripe[] stripes;
+    private final Semaphore chunkPermits;
+    private final int capacityChunks;
+    private final ConcurrentLinkedQueue<MetricChunk> readyChunks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<MetricChunk> freeChunks = new ConcurrentLinkedQueue<>();
+    private final LongAdder size = new LongAdder();
+    private final ThreadLocal<RowBinaryEncoder> encoders = ThreadLocal.withInitial(RowBinaryEncoder::new);
+
+    public MetricQueue(long capacityBytes, int stripeCount) {
+        this(capacityBytes, stripeCount, null);
+    }
+
+    /**
+     * @param capacityBytes  is rounded up to have at least two chunks per stripe,
+     *                       so partially filled chunks of idle stripes can't take all the capacity
+     * @param encodingZoneId ClickHouse time zone to encode points to RowBinary by producers, <code>null</code> - disabled
+     */
+    public MetricQueue(long capacityBytes, int stripeCount, Supplier<ZoneId> encodingZoneId) {
+        this.encodingZoneId = encodingZoneId;
+        long chunkBytes = encodingZoneId != null ? MetricChunk.ENCODED_BYTES : MetricChunk.BYTES;
+        capacityChunks = (int) Math.max(capacityBytes / chunkBytes, 2L * stripeCount);
+        chunkPermits = new Semaphore(capacityChunks);
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public void add(Metric metric) throws InterruptedException {
+        if (encodingZoneId != null) {
+            addAll(Collections.singletonList(metric));
+            return;
+        }
+        Stripe stripe = getStripe();
+        while (true) {
+            synchronized (stripe) {
+                if (stripe.chunk != null) {
+                    stripe.chunk.add(metric);
+                    size.increment();
+                    stripe.sealIfFull();
+                    return;
+                }
+            }
+            stripe.install(takeChunk());
+        }
+    }
+
+    /**
+     * With encoding, rows are encoded before the stripe is locked, so the lock is held only to copy them.
+     */
+    public void addAll(List<Metric> metrics) throws InterruptedException {
+        RowBinaryEncoder encoder = null;
+        if (encodingZoneId != null) {
+            encoder = encoders.get();
+            encoder.encode(metrics, encodingZoneId.get());
+        }
+        Stripe stripe = getStripe();
+        int added = 0;
+        while (true) {
+            synchronized (stripe) {
+                int from = added;
+                while (stripe.chunk != null && added < metrics.size()) {
+                    if (encoder != null) {
+                        stripe.chunk.add(metrics.get(added), encoder, added);
+                    } else {
+                        stripe.chunk.add(metrics.get(added));
+                    }
+                    added++;
+                    stripe.sealIfFull();
+                }
+                size.add(added - from);
+            }
+            if (added == metrics.size()) {
+                return;
+            }
+            stripe.install(takeChunk());
+        }
+    }
+
+    /**
+     * Takes ready chunks, and partially filled ones if there are not enough of them.
+     * The batch may be larger than <code>maxMetrics</code> by less than a chunk.
+     */
+    public List<MetricChunk> poll(int maxMetrics) {
+        List<MetricChunk> chunks = new ArrayList<>();
+        int metrics = pollReady(chunks, 0, maxMetrics);
+        if (metrics < maxMetrics) {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    if (stripe.chunk != null && stripe.chunk.size() > 0) {
+                        readyChunks.add(stripe.chunk);
+                        stripe.chunk = null;
+                    }
+                }
+            }
+            metrics = pollReady(chunks, metrics, maxMetrics);
+        }
+        size.add(-metrics);
+        return chunks;
+    }
+
+    private int pollReady(List<MetricChunk> chunks, int metrics, int maxMetrics) {
+        MetricChunk chunk;
+        while (metrics < maxMetrics && (chunk = readyChunks.poll()) != null) {
+            chunks.add(chunk);
+            metrics += chunk.size();
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns chunks of a saved batch to the queue.
+     */
+    public void release(List<MetricChunk> chunks) {
+        for (MetricChunk chunk : chunks) {
+            chunk.clear();
+            freeChunks.add(chunk);
+        }
+        chunkPermits.release(chunks.size());
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public double getOccupancyPercent() {
+        return (capacityChunks - chunkPermits.availablePermits()) * 100.0 / capacityChunks;
+    }
+
+    public int getCapacityChunks() {
+        return capacityChunks;
+    }
+
+    private MetricChunk takeChunk() throws InterruptedException {
+        chunkPermits.acquire();
+        MetricChunk chunk = freeChunks.poll();
+        if (chunk == null) {
+            chunk = new MetricChunk();
+        }
+        if (encodingZoneId != null) {
+            chunk.startEncoding(encodingZoneId.get());
+        }
+        return chunk;
+    }
+
+    private Stripe getStripe() {
+        return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    }
+
+    private class Stripe {
+        private MetricChunk chunk;
+
+        private void sealIfFull() {
+            if (chunk.isFull()) {
+                readyChunks.add(chunk);
+                chunk = null;
+            }
+        }
+
+        /**
+         * The chunk is taken without the lock, as it may wait for writers, so another producer may be first.
+         */
+        private void install(MetricChunk newChunk) {
+            synchronized (this) {
+                if (chunk == null) {
+                    chunk = newChunk;
+                    return;
+                }
+            }
+            newChunk.clear();
+            freeChunks.add(newChunk);
+            chunkPermits.release();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ru.yandex.market.graphouse.cacher;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.StatementCallback;
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where {@link MetricCacher} writers save batches:
+ * <ul>
+ * <li>clickhouse - inserts with the insert strategy, the only one for production</li>
+ * <li>null - encodes batches to RowBinary, counts and discards them</li>
+ * <li>file - appends RowBinary to segments on local disk, keeping the last few</li>
+ * <li>latency - as null after a fixed delay, like a remote storage</li>
+ * </ul>
+ * The others measure graphouse's own ingest ceiling: parsers, the queue and serialization without ClickHouse.
+ */
+public interface MetricSink {
+
+    /**
+     * Saves the batch.
+     *
+     * @param chunks of the batch, chunks taken from the source to the same insert are added to it
+     * @param source of more chunks for a long-lived insert, <code>null</code> to save only the batch
+     * @return millis spent on saving, without the time waiting for more metrics
+     */
+    long save(List<MetricChunk> chunks, InsertStrategy.ChunkSource source) throws IOException;
+
+    /**
+     * @return time zone of dates of saved rows, producers encode rows for it
+     */
+    ZoneId getZoneId();
+
+    /**
+     * @param name of a sink other than ClickHouse
+     */
+    static MetricSink create(String name, String fileDir, int latencyMillis) {
+        switch (name) {
+            case "null":
+                return new NullSink(0);
+            case "file":
+                return new FileSink(Paths.get(fileDir));
+            case "latency":
+                return new NullSink(latencyMillis);
+            default:
+                throw new IllegalArgumentException("Unknown metric sink: " + name);
+        }
+    }
+
+    class ClickHouseSink implements MetricSink {
+        private final JdbcTemplate jdbcTemplate;
+        private final String query;
+        private final InsertStrategy insertStrategy;
+        private volatile ZoneId zoneId = ZoneId.systemDefault();
+
+        ClickHouseSink(JdbcTemplate jdbcTemplate, String query, InsertStrategy insertStrategy) {
+            this.jdbcTemplate = jdbcTemplate;
+            this.query = query;
+            this.insertStrategy = insertStrategy;
+        }
+
+        @Override
+        public long save(List<MetricChunk> chunks, InsertStrategy.ChunkSource source) {
+            return jdbcTemplate.execute(
+                (StatementCallback<Long>) stmt -> {
+                    ClickHouseStatementImpl statement = (ClickHouseStatementImpl) stmt;
+                    zoneId = statement.getConnection().getTimeZone().toZoneId();
+                    return insertStrategy.insert(statement, query, chunks, zoneId, source);
+                }
+            );
+        }
+
+        /**
+         * @return server time zone of the last insert
+         */
+        @Override
+        public ZoneId getZoneId() {
+            return zoneId;
+        }
+    }
+
+    class NullSink implements MetricSink {
+        private static final ClickHouseProperties PROPERTIES = new ClickHouseProperties();
+
+        private final long latencyMillis;
+        private final AtomicLong savedMetrics = new AtomicLong();
+
+        public NullSink(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public long save(List<MetricChunk> chunks, InsertStrategy.ChunkSource source) throws IOException {
+            long start = System.currentTimeMillis();
+            ClickHouseRowBinaryStream stream = new ClickHouseRowBinaryStream(
+                ByteStreams.nullOutputStream(), null, PROPERTIES
+            );
+            MetricsStreamCallback.ofChunks(chunks, getZoneId()).writeTo(stream);
+            if (latencyMillis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            savedMetrics.addAndGet(MetricChunk.countMetrics(chunks));
+            return System.currentTimeMillis() - start;
+        }
+
+        @Override
+        public ZoneId getZoneId() {
+            return ZoneId.systemDefault();
+        }
+
+        public long getSavedMetrics() {
+            return savedMetrics.get();
+        }
+    }
+
+    class FileSink implements MetricSink {
+        private static final ClickHouseProperties PROPERTIES = new ClickHouseProperties();
+        private static final long SEGMENT_SIZE_BYTES = 256L * 1024 * 1024;
+        private static final int MAX_SEGMENTS = 4;
+
+        private final Path dir;
+        private final Deque<Path> segments = new ArrayDeque<>();
+        private long nextSegmentNumber = 0;
+        private OutputStream segment;
+        private long segmentBytes;
+
+        public FileSink(Path dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Batches are appended one by one, segments are rotated between batches.
+         */
+        @Override
+        public synchronized long save(List<MetricChunk> chunks, InsertStrategy.ChunkSource source)
+            throws IOException {
+            long start = System.currentTimeMillis();
+            if (segment == null || segmentBytes >= SEGMENT_SIZE_BYTES) {
+                openSegment();
+            }
+            CountingOutputStream out = new CountingOutputStream(segment);
+            MetricsStreamCallback.ofChunks(chunks, getZoneId()).writeTo(
+                new ClickHouseRowBinaryStream(out, null, PROPERTIES)
+            );
+            segment.flush();
+            segmentBytes += out.getCount();
+            return System.currentTimeMillis() - start;
+        }
+
+        @Override
+        public ZoneId getZoneId() {
+            return ZoneId.systemDefault();
+        }
+
+        private void openSegment() throws IOException {
+            if (segment != null) {
+                segment.close();
+            }
+            Files.createDirectories(dir);
+            Path path = dir.resolve("metrics-" + nextSegmentNumber++ + ".rowbinary");
+            segment = new BufferedOutputStream(Files.newOutputStream(path), 1024 * 1024);
+            segmentBytes = 0;
+            segments.add(path);
+            while (segments.size() > MAX_SEGMENTS) {
+                Files.deleteIfExists(segments.removeFirst());
+            }
+        }
+    }
+}
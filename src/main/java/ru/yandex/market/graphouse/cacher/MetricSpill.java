@@ -0,0 +1,317 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.InstantMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment files for metric batches that can't be saved to ClickHouse,
+ * so an outage doesn't block receivers when the metric queue is full and doesn't lose the batches on restart.
+ * <p>
+ * Batches are stored as RowBinary rows of the data table, ready to be streamed to ClickHouse as is.
+ * Rows of every {@link MetricChunk} are framed with their length, row count and CRC32,
+ * so a frame torn by a crash is detected and skipped on replay.
+ * Segments are replayed from the oldest, the one being appended is sealed when spilling stops.
+ */
+public class MetricSpill implements InitializingBean {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int FRAME_HEADER_BYTES = 12;
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".rowbinary";
+
+    @Value("${graphouse.cacher.spill.enabled}")
+    private boolean enabled = false;
+
+    @Value("${graphouse.cacher.spill.dir}")
+    private String dir;
+
+    @Value("${graphouse.cacher.spill.segment-size-mb}")
+    private int segmentSizeMb = 64;
+
+    @Value("${graphouse.cacher.spill.max-size-mb}")
+    private long maxSizeMb = 10240;
+
+    @Value("${graphouse.cacher.spill.max-age-hours}")
+    private int maxAgeHours = 24;
+
+    private final StatisticsService statisticsService;
+
+    private final Deque<Segment> sealedSegments = new ArrayDeque<>();
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private Path dirPath;
+    private long nextSegmentNumber = 0;
+    private Segment currentSegment;
+    private FileChannel currentChannel;
+    private volatile long lastSpillMillis = 0;
+
+    public MetricSpill(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+
+        statisticsService.registerInstantMetric(InstantMetric.SPILL_SIZE_BYTES, () -> (double) sizeBytes.get());
+        statisticsService.registerInstantMetric(InstantMetric.SPILL_SEGMENTS, () -> (double) getSegmentCount());
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        dirPath = Paths.get(dir);
+        Files.createDirectories(dirPath);
+        List<Segment> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dirPath)) {
+            files.map(Segment::fromPath).filter(segment -> segment != null).forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(a.number, b.number));
+        for (Segment segment : segments) {
+            sealedSegments.add(segment);
+            sizeBytes.addAndGet(segment.sizeBytes());
+            nextSegmentNumber = segment.number + 1;
+        }
+        log.info("Metric spill in {}: {} segments, {} bytes to replay", dirPath, segments.size(), sizeBytes.get());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return <code>false</code> if the spill is disabled, full or failed, so the batch must stay in memory
+     */
+    public boolean trySpill(List<MetricChunk> chunks, ZoneId clickHouseZoneId) {
+        if (!enabled) {
+            return false;
+        }
+        int metricCount = MetricChunk.countMetrics(chunks);
+        try {
+            byte[] frames = encode(chunks, clickHouseZoneId);
+            synchronized (this) {
+                if (sizeBytes.get() + frames.length > maxSizeMb * 1024 * 1024) {
+                    log.warn("Metric spill is full ({} bytes), keeping {} metrics in memory", sizeBytes, metricCount);
+                    return false;
+                }
+                if (currentChannel == null) {
+                    openSegment();
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(frames);
+                while (buffer.hasRemaining()) {
+                    currentChannel.write(buffer);
+                }
+                currentChannel.force(false);
+                sizeBytes.addAndGet(frames.length);
+                lastSpillMillis = System.currentTimeMillis();
+                if (currentChannel.size() >= segmentSizeMb * 1024L * 1024L) {
+                    sealCurrentSegment();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to spill " + metricCount + " metrics", e);
+            return false;
+        }
+        statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_SPILLED_METRICS, metricCount);
+        return true;
+    }
+
+    /**
+     * Drops expired segments and seals the current one, if nothing was spilled for <code>idleMillis</code>.
+     *
+     * @return the oldest segment to replay or <code>null</code>
+     */
+    public synchronized Segment nextSegment(long idleMillis) throws IOException {
+        long minModifiedMillis = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(maxAgeHours);
+        while (!sealedSegments.isEmpty() && sealedSegments.peekFirst().path.toFile().lastModified() < minModifiedMillis) {
+            Segment segment = sealedSegments.peekFirst();
+            log.warn("Dropping expired metric spill segment {}", segment.path);
+            delete(segment);
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_DROPPED_SPILL_SEGMENTS, 1);
+        }
+        if (sealedSegments.isEmpty() && currentChannel != null
+            && System.currentTimeMillis() - lastSpillMillis >= idleMillis) {
+            sealCurrentSegment();
+        }
+        return sealedSegments.peekFirst();
+    }
+
+    /**
+     * Removes the segment after it was replayed or dropped.
+     */
+    public synchronized void delete(Segment segment) throws IOException {
+        sealedSegments.remove(segment);
+        sizeBytes.addAndGet(-segment.sizeBytes());
+        Files.deleteIfExists(segment.path);
+    }
+
+    public synchronized int getSegmentCount() {
+        return sealedSegments.size() + (currentChannel != null ? 1 : 0);
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+
+    private void openSegment() throws IOException {
+        currentSegment = new Segment(dirPath.resolve(SEGMENT_PREFIX + nextSegmentNumber + SEGMENT_SUFFIX), nextSegmentNumber);
+        nextSegmentNumber++;
+        currentChannel = FileChannel.open(
+            currentSegment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE
+        );
+    }
+
+    private void sealCurrentSegment() throws IOException {
+        currentChannel.close();
+        currentChannel = null;
+        sealedSegments.add(currentSegment);
+        currentSegment = null;
+    }
+
+    static byte[] encode(List<MetricChunk> chunks, ZoneId clickHouseZoneId) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        ClickHouseRowBinaryStream stream = new ClickHouseRowBinaryStream(frame, null, new ClickHouseProperties());
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        for (MetricChunk chunk : chunks) {
+            frame.reset();
+            if (chunk.isEncodedFor(clickHouseZoneId)) {
+                chunk.writeEncodedRows(frame);
+            } else {
+                MetricsStreamCallback.ofChunks(Collections.singletonList(chunk), clickHouseZoneId).writeTo(stream);
+            }
+            crc.reset();
+            crc.update(frame.toByteArray(), 0, frame.size());
+            header.clear();
+            header.putInt(frame.size()).putInt(chunk.size()).putInt((int) crc.getValue());
+            frames.write(header.array(), 0, FRAME_HEADER_BYTES);
+            frame.writeTo(frames);
+        }
+        return frames.toByteArray();
+    }
+
+    /**
+     * Reads RowBinary frames of a sealed segment.
+     */
+    public static class Segment {
+        private final Path path;
+        private final long number;
+
+        private Segment(Path path, long number) {
+            this.path = path;
+            this.number = number;
+        }
+
+        private static Segment fromPath(Path path) {
+            String name = path.getFileName().toString();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                return null;
+            }
+            try {
+                long number = Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())
+                );
+                return new Segment(path, number);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private long sizeBytes() {
+            return path.toFile().length();
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Writes rows of all valid frames to the stream, stops at the first torn or corrupted frame.
+         *
+         * @return number of written rows
+         */
+        public int writeTo(ClickHouseRowBinaryStream stream) throws IOException {
+            int rows = 0;
+            File file = path.toFile();
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    int frameRows;
+                    int checksum;
+                    byte[] frame;
+                    try {
+                        length = input.readInt();
+                        frameRows = input.readInt();
+                        checksum = input.readInt();
+                        if (length < 0 || length > file.length()) {
+                            log.warn("Invalid frame length {} in {}, skipping the rest", length, path);
+                            return rows;
+                        }
+                        frame = new byte[length];
+                        input.readFully(frame);
+                    } catch (EOFException e) {
+                        return rows;
+                    }
+                    crc.reset();
+                    crc.update(frame, 0, frame.length);
+                    if ((int) crc.getValue() != checksum) {
+                        log.warn("Corrupted frame in {}, skipping the rest", path);
+                        return rows;
+                    }
+                    stream.writeBytes(frame);
+                    rows += frameRows;
+                }
+            }
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    public void setSegmentSizeMb(int segmentSizeMb) {
+        this.segmentSizeMb = segmentSizeMb;
+    }
+
+    public void setMaxSizeMb(long maxSizeMb) {
+        this.maxSizeMb = maxSizeMb;
+    }
+
+    public void setMaxAgeHours(int maxAgeHours) {
+        this.maxAgeHours = maxAgeHours;
+    }
+}
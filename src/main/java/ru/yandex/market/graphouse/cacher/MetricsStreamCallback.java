@@ -4,12 +4,11 @@ import com.google.common.annotations.VisibleForTesting;
 import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
 import ru.yandex.clickhouse.util.ClickHouseStreamCallback;
 import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
 
 import java.io.IOException;
-import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
-import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.TimeZone;
 
@@ -22,24 +21,27 @@ import java.util.TimeZone;
  */
 public class MetricsStreamCallback implements ClickHouseStreamCallback {
 
-    private static final LocalDate EPOCH = LocalDate.ofEpochDay(0);
-
-
     private final int todayStartSeconds;
     private final int todayEndSeconds;
     private final short currentDay;
+    private final DayCalendar calendar;
 
-    private final List<Metric> metrics;
+    private final List<MetricChunk> chunks;
     private final ZoneId clickHouseZoneId;
 
     @VisibleForTesting
     protected MetricsStreamCallback(List<Metric> metrics, ZoneId clickHouseZoneId, LocalDate localDate) {
-        this.metrics = metrics;
+        this(metrics == null ? null : MetricChunk.fromMetrics(metrics), localDate, clickHouseZoneId);
+    }
+
+    private MetricsStreamCallback(List<MetricChunk> chunks, LocalDate localDate, ZoneId clickHouseZoneId) {
+        this.chunks = chunks;
         this.clickHouseZoneId = clickHouseZoneId;
         //Optimization. Assume that all metrics are today and precalc day number.
         currentDay = (short) Short.toUnsignedInt((short) localDate.toEpochDay());
         todayStartSeconds = (int) localDate.atStartOfDay(clickHouseZoneId).toEpochSecond();
         todayEndSeconds = (int) localDate.plusDays(1).atStartOfDay(clickHouseZoneId).toEpochSecond();
+        calendar = DayCalendar.get(clickHouseZoneId, localDate);
     }
 
     public MetricsStreamCallback(List<Metric> metrics, TimeZone clickHouseTimeZone) {
@@ -50,27 +52,44 @@ public class MetricsStreamCallback implements ClickHouseStreamCallback {
         this(metrics, clickHouseZoneId, LocalDate.now());
     }
 
+    public static MetricsStreamCallback ofChunks(List<MetricChunk> chunks, ZoneId clickHouseZoneId) {
+        return new MetricsStreamCallback(chunks, LocalDate.now(), clickHouseZoneId);
+    }
+
+    /**
+     * Chunks encoded by parsers for the same time zone are copied as is.
+     */
     @Override
     public void writeTo(ClickHouseRowBinaryStream stream) throws IOException {
-        for (Metric metric : metrics) {
-            writeMetric(metric, stream);
+        for (MetricChunk chunk : chunks) {
+            if (chunk.isEncodedFor(clickHouseZoneId)) {
+                chunk.writeEncodedRows(stream);
+                continue;
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                writeMetric(
+                    stream, chunk.getMetricDescription(i), chunk.getTimestampSeconds(i),
+                    chunk.getValue(i), chunk.getUpdatedSeconds(i)
+                );
+            }
         }
     }
 
     /**
      * (metric, value, timestamp, date, updated).
-     *
-     * @param metric
-     * @param stream
-     * @throws IOException
      */
-    private void writeMetric(Metric metric, ClickHouseRowBinaryStream stream) throws IOException {
-        stream.writeUnsignedLeb128(metric.getMetricDescription().getNameLengthInBytes());
-        metric.getMetricDescription().writeName(stream);
-        stream.writeFloat64(metric.getValue());
-        stream.writeUInt32(metric.getTimestampSeconds());
-        stream.writeUInt16(getUnsignedDaysSinceEpoch(metric.getTimestampSeconds()));
-        stream.writeUInt32((int) Integer.toUnsignedLong(metric.getUpdatedSeconds()));
+    void writeMetric(ClickHouseRowBinaryStream stream, MetricDescription metricDescription, int timestampSeconds,
+                     double value, int updatedSeconds) throws IOException {
+        stream.writeUnsignedLeb128(metricDescription.getNameLengthInBytes());
+        metricDescription.writeName(stream);
+        stream.writeFloat64(value);
+        stream.writeUInt32(timestampSeconds);
+        stream.writeUInt16(getUnsignedDaysSinceEpoch(timestampSeconds));
+        stream.writeUInt32((int) Integer.toUnsignedLong(updatedSeconds));
+    }
+
+    ZoneId getClickHouseZoneId() {
+        return clickHouseZoneId;
     }
 
     @VisibleForTesting
@@ -78,9 +97,7 @@ public class MetricsStreamCallback implements ClickHouseStreamCallback {
         if (timestampSeconds >= todayStartSeconds && timestampSeconds < todayEndSeconds) {
             return currentDay;
         }
-        LocalDate localDate = Instant.ofEpochSecond(timestampSeconds).atZone(clickHouseZoneId).toLocalDate();
-        short days = (short) ChronoUnit.DAYS.between(EPOCH, localDate);
-        return (short) Short.toUnsignedInt(days);
+        return (short) Short.toUnsignedInt((short) calendar.getDay(timestampSeconds));
     }
 
     @VisibleForTesting
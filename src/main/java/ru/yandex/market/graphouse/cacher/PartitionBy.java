@@ -0,0 +1,71 @@
+package ru.yandex.market.graphouse.cacher;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+
+/**
+ * Partition key of the data table, by which {@link MetricCacher} keeps points of older partitions
+ * out of the batches of the current one.
+ */
+public enum PartitionBy {
+    NONE {
+        @Override
+        int getPartitionStartDay(int day) {
+            return 0;
+        }
+
+        @Override
+        int getNextPartitionStartDay(int partitionStartDay) {
+            return Integer.MAX_VALUE;
+        }
+    },
+    /**
+     * <code>PARTITION BY toMonday(date)</code>
+     */
+    MONDAY {
+        @Override
+        int getPartitionStartDay(int day) {
+            // 1970-01-01 is Thursday
+            return day - Math.floorMod(day + DayOfWeek.THURSDAY.ordinal(), 7);
+        }
+
+        @Override
+        int getNextPartitionStartDay(int partitionStartDay) {
+            return partitionStartDay + 7;
+        }
+    },
+    /**
+     * <code>PARTITION BY toYYYYMM(date)</code>
+     */
+    MONTH {
+        @Override
+        int getPartitionStartDay(int day) {
+            return (int) LocalDate.ofEpochDay(day).withDayOfMonth(1).toEpochDay();
+        }
+
+        @Override
+        int getNextPartitionStartDay(int partitionStartDay) {
+            return (int) LocalDate.ofEpochDay(partitionStartDay).plusMonths(1).toEpochDay();
+        }
+    };
+
+    abstract int getPartitionStartDay(int day);
+
+    abstract int getNextPartitionStartDay(int partitionStartDay);
+
+    /**
+     * @param name partition expression of the data table, empty if points of all partitions are batched together
+     */
+    public static PartitionBy of(String name) {
+        switch (name) {
+            case "":
+                return NONE;
+            case "toMonday":
+                return MONDAY;
+            case "toYYYYMM":
+                return MONTH;
+            default:
+                throw new IllegalArgumentException("Unknown partition expression: " + name);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.Metric;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes a submitted batch to RowBinary rows in the producer thread, before the queue stripe is locked.
+ * One instance per producer thread, the buffer is reused.
+ */
+class RowBinaryEncoder {
+
+    /**
+     * Created with reflection and only read by streams, so shared.
+     */
+    private static final ClickHouseProperties PROPERTIES = new ClickHouseProperties();
+
+    private final Buffer buffer = new Buffer();
+    private final ClickHouseRowBinaryStream stream = new ClickHouseRowBinaryStream(buffer, null, PROPERTIES);
+    private int[] rowEnds = new int[0];
+    private ZoneId clickHouseZoneId;
+
+    void encode(List<Metric> metrics, ZoneId clickHouseZoneId) {
+        this.clickHouseZoneId = clickHouseZoneId;
+        buffer.size = 0;
+        if (rowEnds.length < metrics.size()) {
+            rowEnds = new int[metrics.size()];
+        }
+        MetricsStreamCallback rowWriter = MetricsStreamCallback.ofChunks(Collections.emptyList(), clickHouseZoneId);
+        try {
+            for (int i = 0; i < metrics.size(); i++) {
+                Metric metric = metrics.get(i);
+                rowWriter.writeMetric(
+                    stream, metric.getMetricDescription(), metric.getTimestampSeconds(),
+                    metric.getValue(), metric.getUpdatedSeconds()
+                );
+                rowEnds[i] = buffer.size;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    ZoneId getClickHouseZoneId() {
+        return clickHouseZoneId;
+    }
+
+    byte[] getBytes() {
+        return buffer.bytes;
+    }
+
+    int getRowStart(int index) {
+        return index == 0 ? 0 : rowEnds[index - 1];
+    }
+
+    int getRowEnd(int index) {
+        return rowEnds[index];
+    }
+
+    /**
+     * Unlike {@link java.io.ByteArrayOutputStream} not synchronized, the stream writes byte by byte.
+     */
+    private static class Buffer extends OutputStream {
+        private byte[] bytes = new byte[64 * 1024];
+        private int size = 0;
+
+        @Override
+        public void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable buffer of encoded rows in fixed size pages, kept on {@link #reset()} to be reused.
+ * Full pages are written to ClickHouse as is, as {@link ClickHouseRowBinaryStream} writes only whole arrays.
+ */
+class RowBinaryPages extends OutputStream {
+
+    static final int PAGE_SIZE = 16 * 1024;
+
+    private final List<byte[]> pages = new ArrayList<>();
+    private int pageIndex = 0;
+    private int pageOffset = 0;
+
+    @Override
+    public void write(int b) {
+        page()[pageOffset++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            byte[] page = page();
+            int toCopy = Math.min(length, PAGE_SIZE - pageOffset);
+            System.arraycopy(bytes, offset, page, pageOffset, toCopy);
+            pageOffset += toCopy;
+            offset += toCopy;
+            length -= toCopy;
+        }
+    }
+
+    /**
+     * @return current page with free space
+     */
+    private byte[] page() {
+        if (pageOffset == PAGE_SIZE) {
+            pageIndex++;
+            pageOffset = 0;
+        }
+        if (pageIndex == pages.size()) {
+            pages.add(new byte[PAGE_SIZE]);
+        }
+        return pages.get(pageIndex);
+    }
+
+    void writeTo(ClickHouseRowBinaryStream stream) throws IOException {
+        for (int i = 0; i < pageIndex; i++) {
+            stream.writeBytes(pages.get(i));
+        }
+        if (pageOffset == PAGE_SIZE) {
+            stream.writeBytes(pages.get(pageIndex));
+        } else if (pageOffset > 0) {
+            stream.writeBytes(Arrays.copyOf(pages.get(pageIndex), pageOffset));
+        }
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        for (int i = 0; i < pageIndex; i++) {
+            outputStream.write(pages.get(i));
+        }
+        if (pageOffset > 0) {
+            outputStream.write(pages.get(pageIndex), 0, pageOffset);
+        }
+    }
+
+    void reset() {
+        pageIndex = 0;
+        pageOffset = 0;
+    }
+}
@@ -0,0 +1,22 @@
+package ru.yandex.market.graphouse.cacher;
+
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.util.ClickHouseStreamCallback;
+
+import java.sql.SQLException;
+
+/**
+ * Sends RowBinary inserts to the host of the statement.
+ */
+public interface RowBinarySender {
+
+    /**
+     * By the driver, compressed with <code>graphouse.clickhouse.compress</code>.
+     */
+    RowBinarySender DRIVER = ClickHouseStatementImpl::sendRowBinaryStream;
+
+    /**
+     * @param query insert without the format
+     */
+    void send(ClickHouseStatementImpl statement, String query, ClickHouseStreamCallback callback) throws SQLException;
+}
@@ -13,10 +13,12 @@ import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 import ru.yandex.clickhouse.ClickHouseDataSource;
 import ru.yandex.clickhouse.ClickhouseJdbcUrlParser;
 import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.market.graphouse.cacher.ClickHouseShards;
 import ru.yandex.market.graphouse.monitoring.BalancedClickhouseDataSourceMonitoring;
 import ru.yandex.market.graphouse.monitoring.Monitoring;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -66,6 +68,49 @@ public class DbConfig {
         ClickHouseProperties clickHouseProperties,
         Monitoring monitoring,
         @Qualifier("ping") Monitoring ping
+    ) {
+        return createClickHouseDataSource(
+            hostsString, port, db, pingRateSeconds, clickHouseProperties, monitoring, ping, "clickhouse"
+        );
+    }
+
+    /**
+     * Shards separated by ';', replicas of a shard by ','.
+     */
+    @Bean
+    public ClickHouseShards clickHouseShards(
+        @Value("${graphouse.clickhouse.shards}") String shardsString,
+        @Value("${graphouse.clickhouse.shards.data-write-table}") String dataWriteTable,
+        @Value("${graphouse.clickhouse.port}") int port,
+        @Value("${graphouse.clickhouse.db}") String db,
+        @Value("${graphouse.clickhouse.host-ping-rate-seconds}") int pingRateSeconds,
+        @Value("${graphouse.clickhouse.query-timeout-seconds}") int queryTimeoutSeconds,
+        ClickHouseProperties clickHouseProperties,
+        Monitoring monitoring,
+        @Qualifier("ping") Monitoring ping
+    ) {
+        List<JdbcTemplate> jdbcTemplates = new ArrayList<>();
+        for (String shardHosts : Splitter.on(';').trimResults().omitEmptyStrings().split(shardsString)) {
+            final JdbcTemplate jdbcTemplate = new JdbcTemplate();
+            jdbcTemplate.setDataSource(createClickHouseDataSource(
+                shardHosts, port, db, pingRateSeconds, clickHouseProperties, monitoring, ping,
+                "clickhouse-shard-" + jdbcTemplates.size()
+            ));
+            jdbcTemplate.setQueryTimeout(queryTimeoutSeconds);
+            jdbcTemplates.add(jdbcTemplate);
+        }
+        return new ClickHouseShards(jdbcTemplates, dataWriteTable);
+    }
+
+    private DataSource createClickHouseDataSource(
+        String hostsString,
+        int port,
+        String db,
+        int pingRateSeconds,
+        ClickHouseProperties clickHouseProperties,
+        Monitoring monitoring,
+        Monitoring ping,
+        String monitoringUnitName
     ) {
         List<String> hosts = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(hostsString);
         Preconditions.checkArgument(!hosts.isEmpty(), "ClickHouse host(s) not provided.");
@@ -75,7 +120,7 @@ public class DbConfig {
         }
 
         return createBalancedClickhouseDataSource(
-            hostsString, port, db, pingRateSeconds, clickHouseProperties, monitoring, ping
+            hostsString, port, db, pingRateSeconds, clickHouseProperties, monitoring, ping, monitoringUnitName
         );
     }
 
@@ -166,7 +211,7 @@ public class DbConfig {
         }
 
         return createBalancedClickhouseDataSource(
-            hostsString, port, db, pingRateSeconds, clickHouseProperties, monitoring, ping
+            hostsString, port, db, pingRateSeconds, clickHouseProperties, monitoring, ping, "clickhouse"
         );
     }
 
@@ -197,7 +242,8 @@ public class DbConfig {
         int pingRateSeconds,
         ClickHouseProperties clickHouseProperties,
         Monitoring monitoring,
-        Monitoring ping
+        Monitoring ping,
+        String monitoringUnitName
     ) {
         List<String> hosts = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(hostsString);
         String url = ClickhouseJdbcUrlParser.JDBC_CLICKHOUSE_PREFIX + "//" +
@@ -214,7 +260,7 @@ public class DbConfig {
             }
 
             BalancedClickhouseDataSourceMonitoring dataSourceMonitoring = new BalancedClickhouseDataSourceMonitoring(
-                balancedClickhouseDataSource, monitoring, ping, pingRateSeconds
+                balancedClickhouseDataSource, monitoring, ping, pingRateSeconds, monitoringUnitName
             );
             dataSourceMonitoring.startAsync();
         }
@@ -7,8 +7,13 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
 import ru.yandex.market.graphouse.MetricValidator;
+import ru.yandex.market.graphouse.cacher.ClickHouseShards;
+import ru.yandex.market.graphouse.cacher.Lz4RowBinarySender;
 import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.cacher.MetricSink;
+import ru.yandex.market.graphouse.cacher.MetricSpill;
 import ru.yandex.market.graphouse.data.MetricDataService;
 import ru.yandex.market.graphouse.monitoring.Monitoring;
 import ru.yandex.market.graphouse.retention.ClickHouseRetentionProvider;
@@ -19,8 +24,10 @@ import ru.yandex.market.graphouse.save.OnRecordMetricProvider;
 import ru.yandex.market.graphouse.save.UpdateMetricQueueService;
 import ru.yandex.market.graphouse.save.banned.BannedMetricCache;
 import ru.yandex.market.graphouse.search.MetricSearch;
+import ru.yandex.market.graphouse.server.MetricNameCache;
 import ru.yandex.market.graphouse.server.OnRecordCacheBasedMetricFactory;
 import ru.yandex.market.graphouse.server.SearchCacheBasedMetricFactory;
+import ru.yandex.market.graphouse.statistics.InstantMetric;
 import ru.yandex.market.graphouse.statistics.LoadedMetricsCounter;
 import ru.yandex.market.graphouse.statistics.StatisticsService;
 
@@ -48,6 +55,9 @@ public class MetricsConfig {
     @Autowired
     private JdbcTemplate clickHouseJdbcTemplateSearch;
 
+    @Autowired
+    private ClickHouseShards clickHouseShards;
+
     @Autowired
     private StatisticsService statisticsService;
 
@@ -136,8 +146,29 @@ public class MetricsConfig {
     }
 
     @Bean
-    public MetricCacher metricCacher() {
-        return new MetricCacher(clickHouseJdbcTemplate, monitoring, statisticsService);
+    public MetricSpill metricSpill() {
+        return new MetricSpill(statisticsService);
+    }
+
+    @Bean
+    public MetricCacher metricCacher(
+        @Value("${graphouse.cacher.insert.compress}") boolean compressInserts,
+        @Value("${graphouse.cacher.sink}") String sink,
+        @Value("${graphouse.cacher.sink.file-dir}") String sinkFileDir,
+        @Value("${graphouse.cacher.sink.latency-millis}") int sinkLatencyMillis,
+        ClickHouseProperties clickHouseProperties
+    ) {
+        MetricCacher metricCacher = new MetricCacher(
+            clickHouseJdbcTemplate, monitoring, statisticsService, metricSpill()
+        );
+        metricCacher.setShards(clickHouseShards);
+        if (compressInserts) {
+            metricCacher.setRowBinarySender(new Lz4RowBinarySender(clickHouseProperties, statisticsService));
+        }
+        if (!"clickhouse".equals(sink)) {
+            metricCacher.setSink(MetricSink.create(sink, sinkFileDir, sinkLatencyMillis));
+        }
+        return metricCacher;
     }
 
     @Bean
@@ -145,15 +176,27 @@ public class MetricsConfig {
         @Value("${graphouse.host-metric-redirect.enabled}") boolean redirectHostMetrics,
         @Value("${graphouse.host-metric-redirect.dir}") String hostMetricDir,
         @Value("${graphouse.host-metric-redirect.postfixes}") String hostPostfixes,
+        @Value("${graphouse.cacher.name-cache-size}") int nameCacheSize,
         MetricSearch metricSearch
     ) {
-        return new SearchCacheBasedMetricFactory(
+        SearchCacheBasedMetricFactory metricFactory = new SearchCacheBasedMetricFactory(
             metricSearch,
             metricValidator(),
             redirectHostMetrics,
             hostMetricDir,
             hostPostfixes
         );
+        if (nameCacheSize > 0) {
+            MetricNameCache nameCache = new MetricNameCache(nameCacheSize);
+            statisticsService.registerInstantMetric(
+                InstantMetric.NAME_CACHE_HITS, () -> (double) nameCache.getHitCount()
+            );
+            statisticsService.registerInstantMetric(
+                InstantMetric.NAME_CACHE_MISSES, () -> (double) nameCache.getMissCount()
+            );
+            metricFactory.setNameCache(nameCache);
+        }
+        return metricFactory;
     }
 
     @Bean
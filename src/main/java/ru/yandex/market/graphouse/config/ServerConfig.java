@@ -16,11 +16,23 @@ import ru.yandex.market.graphouse.save.OnRecordMetricProvider;
 import ru.yandex.market.graphouse.save.OnRecordMetricCacheServlet;
 import ru.yandex.market.graphouse.search.MetricSearch;
 import ru.yandex.market.graphouse.search.MetricSearchServlet;
+import ru.yandex.market.graphouse.server.ClientAdmission;
+import ru.yandex.market.graphouse.server.CompressedMetricServer;
+import ru.yandex.market.graphouse.server.LineBatchProcessorFactory;
+import ru.yandex.market.graphouse.server.MetricFactory;
+import ru.yandex.market.graphouse.server.MetricReceiver;
+import ru.yandex.market.graphouse.server.MetricReceiverShutdown;
 import ru.yandex.market.graphouse.server.MetricServer;
+import ru.yandex.market.graphouse.server.MetricWriteServlet;
+import ru.yandex.market.graphouse.server.NioMetricServer;
 import ru.yandex.market.graphouse.server.OnRecordCacheBasedMetricFactory;
+import ru.yandex.market.graphouse.server.PickleMetricServer;
 import ru.yandex.market.graphouse.server.SearchCacheBasedMetricFactory;
+import ru.yandex.market.graphouse.server.UdpMetricServer;
 import ru.yandex.market.graphouse.statistics.StatisticsService;
 
+import java.util.List;
+
 /**
  * @author Vlad Vinogradov <a href="mailto:vladvin@yandex-team.ru"></a> on 10.01.17
  */
@@ -62,7 +74,8 @@ public class ServerConfig {
     @Bean(initMethod = "startServer")
     public GraphouseWebServer server(
         @Value("${graphouse.metric-data.max-metrics-per-query}") int maxMetricsPerQuery,
-        @Value("${graphouse.http.response-buffer-size-bytes}") int responseBufferSizeBytes) {
+        @Value("${graphouse.http.response-buffer-size-bytes}") int responseBufferSizeBytes,
+        MetricWriteServlet metricWriteServlet) {
 
         final MetricSearchServlet metricSearchServlet = new MetricSearchServlet(
             metricSearch, statisticsService
@@ -82,14 +95,89 @@ public class ServerConfig {
             metricSearchServlet,
             monitoringServlet,
             metricDataServiceServlet,
-            onRecordMetricCacheServlet
+            onRecordMetricCacheServlet,
+            metricWriteServlet
         );
     }
 
+    /**
+     * A bean, as it is stopped along with the receivers.
+     */
+    @Bean
+    public MetricWriteServlet metricWriteServlet(
+        @Value("${graphouse.http.write.batch-size}") int writeBatchSize,
+        @Value("${graphouse.http.write.max-queue-load-percent}") double writeMaxQueueLoadPercent,
+        @Value("${graphouse.on-record-metric-cache.enable}") boolean onRecordCacheEnable
+    ) {
+        return new MetricWriteServlet(
+            selectMetricFactory(onRecordCacheEnable), metricCacher, statisticsService,
+            writeBatchSize, writeMaxQueueLoadPercent
+        );
+    }
+
+    @Bean
+    public LineBatchProcessorFactory lineBatchProcessorFactory() {
+        return new LineBatchProcessorFactory(statisticsService);
+    }
+
+    @Bean
+    public ClientAdmission clientAdmission() {
+        return new ClientAdmission(statisticsService);
+    }
+
     @Bean
     public MetricServer metricServer(
         @Value("${graphouse.on-record-metric-cache.enable}") boolean onRecordCacheEnable
     ) {
-        return new MetricServer(metricCacher, onRecordCacheEnable ? onRecordMetricFactory : searchMetricFactory);
+        return new MetricServer(
+            metricCacher, selectMetricFactory(onRecordCacheEnable), lineBatchProcessorFactory(), clientAdmission()
+        );
+    }
+
+    @Bean
+    public NioMetricServer nioMetricServer(
+        @Value("${graphouse.on-record-metric-cache.enable}") boolean onRecordCacheEnable
+    ) {
+        return new NioMetricServer(
+            metricCacher, selectMetricFactory(onRecordCacheEnable), lineBatchProcessorFactory(), clientAdmission()
+        );
+    }
+
+    @Bean
+    public UdpMetricServer udpMetricServer(
+        @Value("${graphouse.on-record-metric-cache.enable}") boolean onRecordCacheEnable
+    ) {
+        return new UdpMetricServer(
+            metricCacher, selectMetricFactory(onRecordCacheEnable), statisticsService, lineBatchProcessorFactory(),
+            clientAdmission()
+        );
+    }
+
+    @Bean
+    public PickleMetricServer pickleMetricServer(
+        @Value("${graphouse.on-record-metric-cache.enable}") boolean onRecordCacheEnable
+    ) {
+        return new PickleMetricServer(metricCacher, selectMetricFactory(onRecordCacheEnable), clientAdmission());
+    }
+
+    @Bean
+    public CompressedMetricServer compressedMetricServer(
+        @Value("${graphouse.on-record-metric-cache.enable}") boolean onRecordCacheEnable
+    ) {
+        return new CompressedMetricServer(
+            metricCacher, selectMetricFactory(onRecordCacheEnable), lineBatchProcessorFactory(), clientAdmission()
+        );
+    }
+
+    /**
+     * One shutdown hook for all receivers, so the cacher is flushed after all of them have stopped.
+     */
+    @Bean
+    public MetricReceiverShutdown metricReceiverShutdown(List<MetricReceiver> receivers) {
+        return new MetricReceiverShutdown(metricCacher, receivers);
+    }
+
+    private MetricFactory selectMetricFactory(boolean onRecordCacheEnable) {
+        return onRecordCacheEnable ? onRecordMetricFactory : searchMetricFactory;
     }
 }
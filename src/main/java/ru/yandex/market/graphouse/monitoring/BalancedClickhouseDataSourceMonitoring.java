@@ -21,16 +21,19 @@ public class BalancedClickhouseDataSourceMonitoring extends AbstractScheduledSer
     private final int clickHousePingRateSeconds;
     private final int totalServers;
 
+    /**
+     * @param unitName units are kept by name, so every monitored data source needs its own
+     */
     public BalancedClickhouseDataSourceMonitoring(BalancedClickhouseDataSource dataSource,
                                                   Monitoring monitoring, Monitoring ping,
-                                                  int clickHousePingRateSeconds) {
+                                                  int clickHousePingRateSeconds, String unitName) {
         this.dataSource = dataSource;
         this.clickHousePingRateSeconds = clickHousePingRateSeconds;
         this.totalServers = dataSource.getAllClickhouseUrls().size();
 
-        monitoringUnit = new MonitoringUnit("clickhouse");
+        monitoringUnit = new MonitoringUnit(unitName);
         monitoring.addUnit(monitoringUnit);
-        pingUnit = new MonitoringUnit("clickhouse");
+        pingUnit = new MonitoringUnit(unitName);
         ping.addUnit(pingUnit);
     }
 
@@ -0,0 +1,259 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.StatementCallback;
+import ru.yandex.clickhouse.ClickHouseDataSource;
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.BatchSorter;
+import ru.yandex.market.graphouse.cacher.MetricChunk;
+import ru.yandex.market.graphouse.cacher.MetricsStreamCallback;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares inserts of batches in arrival order and sorted by {@link BatchSorter} with
+ * <code>graphouse.cacher.sort-batches</code>.
+ * <p>
+ * By default inserts go to a local stand-in, which sorts every block by (metric, timestamp) unless it's
+ * already sorted, as ClickHouse does when it forms a part, and reports CPU spent on it.
+ * With <code>--url</code> inserts go to a real ClickHouse table and only insert latency is reported,
+ * compare server CPU with <code>ProfileEvents</code> of the inserts in <code>system.query_log</code>.
+ */
+public class BatchSortBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--rows", description = "Rows per insert")
+        private Integer rows = 1_000_000;
+
+        @Parameter(names = "--metrics", description = "Distinct metrics in inserts")
+        private Integer metrics = 200_000;
+
+        @Parameter(names = "--inserts", description = "Measured inserts for every mode")
+        private Integer inserts = 10;
+
+        @Parameter(names = "--url", description = "ClickHouse jdbc url instead of the stand-in")
+        private String url;
+
+        @Parameter(names = "--table", description = "Data table of ClickHouse")
+        private String table = "data";
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final AtomicLong receiverSortNanos = new AtomicLong();
+    private final AtomicLong sortedBlocks = new AtomicLong();
+
+    private BatchSortBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        new BatchSortBenchmark(benchmarkArgs).run();
+    }
+
+    private void run() throws IOException {
+        HttpServer server = null;
+        String url = args.url;
+        if (url == null) {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this::receive);
+            server.start();
+            url = "jdbc:clickhouse://127.0.0.1:" + server.getAddress().getPort() + "/graphite";
+        }
+        try {
+            ClickHouseProperties properties = new ClickHouseProperties();
+            properties.setUseServerTimeZone(true);
+            properties.setUseServerTimeZoneForDates(true);
+            properties.setCompress(false);
+            properties.setDecompress(false);
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(new ClickHouseDataSource(url, properties));
+            List<Metric> metrics = generateMetrics();
+            measure("arrival order", jdbcTemplate, metrics, null);
+            measure("sorted", jdbcTemplate, metrics, new BatchSorter());
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+    }
+
+    private void measure(String mode, JdbcTemplate jdbcTemplate, List<Metric> metrics, BatchSorter sorter) {
+        String query = "INSERT INTO " + args.table + " (metric, value, timestamp, date, updated)";
+        for (int i = 0; i < Math.max(args.inserts / 4, 1); i++) {
+            insert(jdbcTemplate, query, MetricChunk.fromMetrics(metrics), sorter);
+        }
+        receiverSortNanos.set(0);
+        sortedBlocks.set(0);
+        long sortNanos = 0;
+        long insertNanos = 0;
+        for (int i = 0; i < args.inserts; i++) {
+            List<MetricChunk> chunks = MetricChunk.fromMetrics(metrics);
+            long start = System.nanoTime();
+            if (sorter != null) {
+                sorter.sort(chunks);
+            }
+            long sorted = System.nanoTime();
+            insert(jdbcTemplate, query, chunks, null);
+            sortNanos += sorted - start;
+            insertNanos += System.nanoTime() - sorted;
+        }
+        double millionRows = (double) args.rows * args.inserts / 1_000_000;
+        String receiver = args.url != null ? "" : String.format(
+            ", stand-in sorted %d of %d blocks, its sort CPU ms per million rows %.1f",
+            sortedBlocks.get(), args.inserts,
+            TimeUnit.NANOSECONDS.toMicros(receiverSortNanos.get()) / 1000.0 / millionRows
+        );
+        log.info(String.format(
+            "%s: graphouse sort ms per million rows %.1f, insert latency ms %.1f%s",
+            mode, TimeUnit.NANOSECONDS.toMicros(sortNanos) / 1000.0 / millionRows,
+            TimeUnit.NANOSECONDS.toMicros(insertNanos) / 1000.0 / args.inserts, receiver
+        ));
+    }
+
+    private void insert(JdbcTemplate jdbcTemplate, String query, List<MetricChunk> chunks, BatchSorter sorter) {
+        if (sorter != null) {
+            sorter.sort(chunks);
+        }
+        jdbcTemplate.execute(
+            (StatementCallback<Void>) stmt -> {
+                ClickHouseStatementImpl statement = (ClickHouseStatementImpl) stmt;
+                ZoneId zoneId = statement.getConnection().getTimeZone().toZoneId();
+                statement.sendRowBinaryStream(query, MetricsStreamCallback.ofChunks(chunks, zoneId));
+                return null;
+            }
+        );
+    }
+
+    /**
+     * Answers the server time zone query of new connections and sorts inserted blocks.
+     */
+    private void receive(HttpExchange exchange) throws IOException {
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        String response = "";
+        if (new String(body, 0, Math.min(body.length, 6), StandardCharsets.UTF_8).equals("select")) {
+            response = "timezone()\nString\nUTC\n";
+        } else {
+            long start = threadMXBean.getCurrentThreadCpuTime();
+            if (sortBlock(body)) {
+                sortedBlocks.incrementAndGet();
+            }
+            receiverSortNanos.addAndGet(threadMXBean.getCurrentThreadCpuTime() - start);
+        }
+        exchange.sendResponseHeaders(200, 0);
+        exchange.getResponseBody().write(response.getBytes(StandardCharsets.UTF_8));
+        exchange.close();
+    }
+
+    /**
+     * Rows of the body after the query line are (metric, value, timestamp, date, updated).
+     *
+     * @return <code>true</code> if the block wasn't sorted already
+     */
+    private static boolean sortBlock(byte[] body) {
+        int offset = 0;
+        while (body[offset++] != '\n') {
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body, offset, body.length - offset).order(ByteOrder.LITTLE_ENDIAN);
+        List<int[]> rows = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int nameOffset = buffer.position();
+            buffer.position(nameOffset + length + 8);
+            int timestamp = buffer.getInt();
+            buffer.position(buffer.position() + 2 + 4);
+            rows.add(new int[]{nameOffset, length, timestamp});
+        }
+        int[][] block = rows.toArray(new int[0][]);
+        boolean sorted = true;
+        for (int i = 1; i < block.length && sorted; i++) {
+            sorted = compare(body, block[i - 1], block[i]) <= 0;
+        }
+        if (!sorted) {
+            Arrays.sort(block, (a, b) -> compare(body, a, b));
+        }
+        return !sorted;
+    }
+
+    private static int compare(byte[] body, int[] a, int[] b) {
+        int length = Math.min(a[1], b[1]);
+        for (int i = 0; i < length; i++) {
+            int diff = (body[a[0] + i] & 0xFF) - (body[b[0] + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compareUnsigned(a[2], b[2]);
+    }
+
+    /**
+     * Points of relay-like metrics in arrival order, a minute apart for every metric.
+     */
+    private List<Metric> generateMetrics() {
+        Random random = new Random(42);
+        MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+        MetricDir dir = new InMemoryMetricDir(root, "one_min", MetricStatus.SIMPLE);
+        MetricName[] names = new MetricName[args.metrics];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = new MetricName(
+                dir, "host" + i % 100 + ".service.timings.method" + i + ".p99",
+                MetricStatus.SIMPLE, new DefaultRetentionProvider()
+            );
+        }
+        int timestamp = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        List<Metric> metrics = new ArrayList<>(args.rows);
+        for (int i = 0; i < args.rows; i++) {
+            int metric = i % names.length;
+            if (metric == 0) {
+                timestamp += 60;
+            }
+            metrics.add(new Metric(names[metric], timestamp, random.nextInt(100_000) / 100.0, timestamp));
+        }
+        return metrics;
+    }
+}
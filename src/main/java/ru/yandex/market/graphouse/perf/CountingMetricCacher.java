@@ -0,0 +1,78 @@
+package ru.yandex.market.graphouse.perf;
+
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.cacher.MetricSink;
+import ru.yandex.market.graphouse.cacher.MetricSpill;
+import ru.yandex.market.graphouse.monitoring.Monitoring;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.InstantMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cacher for in-process benchmarks: counts submitted metrics and discards them,
+ * or passes them through the queue and writers to a {@link MetricSink} other than ClickHouse.
+ */
+public class CountingMetricCacher extends MetricCacher {
+
+    private final AtomicLong receivedMetrics = new AtomicLong();
+    private final boolean discard;
+
+    public CountingMetricCacher() {
+        this(null);
+    }
+
+    /**
+     * @param sink of the queued metrics, <code>null</code> to discard them when submitted
+     */
+    public CountingMetricCacher(MetricSink sink) {
+        super(null, new Monitoring(), NOOP_STATISTICS, new MetricSpill(NOOP_STATISTICS));
+        discard = sink == null;
+        if (!discard) {
+            setSink(sink);
+            afterPropertiesSet();
+        }
+    }
+
+    @Override
+    public void submitMetric(Metric metric) {
+        receivedMetrics.incrementAndGet();
+        if (!discard) {
+            super.submitMetric(metric);
+        }
+    }
+
+    @Override
+    public void submitMetrics(List<Metric> metrics) {
+        receivedMetrics.addAndGet(metrics.size());
+        if (!discard) {
+            super.submitMetrics(metrics);
+        }
+    }
+
+    @Override
+    public void flushAndShutdown() {
+    }
+
+    public long getReceivedMetrics() {
+        return receivedMetrics.get();
+    }
+
+    static final StatisticsService NOOP_STATISTICS = new StatisticsService() {
+        @Override
+        public void accumulateMetric(AccumulatedMetric metric, double value) {
+        }
+
+        @Override
+        public void registerInstantMetric(InstantMetric metric, Supplier<Double> supplier) {
+        }
+
+        @Override
+        public void shutdownService() {
+        }
+    };
+}
@@ -0,0 +1,148 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.server.GraphiteLineParser;
+import ru.yandex.market.graphouse.server.StreamCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reports CPU cost of decompressing and parsing a relay-like plaintext stream per million lines
+ * for every {@link StreamCodec}, so the cost of compression can be compared with the parsing itself.
+ * Runs in one thread without sockets.
+ */
+public class DecompressionBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--lines", description = "Lines in the stream")
+        private Integer lines = 1_000_000;
+
+        @Parameter(names = "--metrics", description = "Distinct metrics in the stream")
+        private Integer metrics = 10_000;
+
+        @Parameter(names = "--iterations", description = "Measured reads of the stream for every codec")
+        private Integer iterations = 10;
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final GraphiteLineParser parser = new GraphiteLineParser();
+    private final byte[] buffer = new byte[8192];
+
+    private DecompressionBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        new DecompressionBenchmark(benchmarkArgs).run();
+    }
+
+    private void run() throws IOException {
+        byte[] plain = generateStream();
+        double plainCpuMillis = measure(StreamCodec.PLAIN, plain, plain.length, 0);
+        measure(StreamCodec.GZIP, compress(plain, GZIPOutputStream::new), plain.length, plainCpuMillis);
+        measure(StreamCodec.LZ4, compress(plain, LZ4BlockOutputStream::new), plain.length, plainCpuMillis);
+    }
+
+    /**
+     * @return CPU millis per million lines
+     */
+    private double measure(StreamCodec codec, byte[] stream, int plainLength, double plainCpuMillis) throws IOException {
+        for (int i = 0; i < args.iterations; i++) {
+            read(codec, stream);
+        }
+        long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < args.iterations; i++) {
+            read(codec, stream);
+        }
+        long cpuNanos = threadMXBean.getCurrentThreadCpuTime() - startCpuNanos;
+        double millionLines = (double) args.lines * args.iterations / 1_000_000;
+        double cpuMillis = TimeUnit.NANOSECONDS.toMicros(cpuNanos) / 1000.0 / millionLines;
+        log.info(String.format(
+            "%s: %d bytes, ratio %.1f, CPU ms per million lines %.1f, decompression %.1f",
+            codec, stream.length, (double) plainLength / stream.length, cpuMillis,
+            codec == StreamCodec.PLAIN ? 0 : cpuMillis - plainCpuMillis
+        ));
+        return cpuMillis;
+    }
+
+    /**
+     * Splits and parses the lines the same way receivers do.
+     */
+    private void read(StreamCodec codec, byte[] stream) throws IOException {
+        InputStream inputStream = codec.decompress(new ByteArrayInputStream(stream));
+        int size = 0;
+        int bytesRead;
+        int parsed = 0;
+        while ((bytesRead = inputStream.read(buffer, size, buffer.length - size)) >= 0) {
+            size += bytesRead;
+            int lineStart = 0;
+            for (int i = 0; i < size; i++) {
+                if (buffer[i] == '\n') {
+                    if (parser.parse(buffer, lineStart, i - lineStart)) {
+                        parsed++;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            size -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, size);
+        }
+        if (parsed != args.lines) {
+            throw new IllegalStateException("Parsed " + parsed + " lines instead of " + args.lines);
+        }
+    }
+
+    private byte[] generateStream() {
+        Random random = new Random(42);
+        int timestamp = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < args.lines; i++) {
+            int metric = i % args.metrics;
+            if (metric == 0) {
+                timestamp += 60;
+            }
+            lines.append("one_min.host").append(metric % 100).append(".service.timings.method").append(metric)
+                .append(".p99 ").append(random.nextInt(100_000) / 100.0).append(' ').append(timestamp).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private interface Compressor {
+        OutputStream wrap(OutputStream outputStream) throws IOException;
+    }
+
+    private static byte[] compress(byte[] plain, Compressor compressor) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream outputStream = compressor.wrap(compressed)) {
+            outputStream.write(plain);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,124 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.search.MetricPath;
+import ru.yandex.market.graphouse.search.tree.GlobMatcher;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Compares {@link GlobMatcher} with the glob {@link PathMatcher} over {@link MetricPath}, which
+ * <code>MetricTree</code> used before, on names of a wide directory: time and allocations per name,
+ * and time to compile a glob, as the path matcher was compiled on every search.
+ */
+public class GlobMatcherBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--names", description = "Names to match every glob against")
+        private Integer names = 200_000;
+
+        @Parameter(names = "--passes", description = "Measured passes over the names for every glob")
+        private Integer passes = 10;
+
+        @Parameter(names = "--globs", description = "Globs to compare")
+        private List<String> globs = Arrays.asList(
+            "host1*", "*.yandex.net", "host?2*_net", "host{1,22,333}*", "*[0-9]_market_*", "*{_net,_ru}"
+        );
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<String> names = new ArrayList<>();
+    private long matched;
+
+    private GlobMatcherBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        new GlobMatcherBenchmark(benchmarkArgs).run();
+    }
+
+    private void run() {
+        Random random = new Random(42);
+        String[] domains = {"_market_yandex_net", ".yandex.net", "_search_ru", "-backend"};
+        for (int i = 0; i < args.names; i++) {
+            names.add("host" + random.nextInt(100_000) + domains[random.nextInt(domains.length)]);
+        }
+        for (String glob : args.globs) {
+            PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            GlobMatcher globMatcher = GlobMatcher.compile(glob, 0);
+            measure(glob, "path matcher", name -> pathMatcher.matches(new MetricPath(name)));
+            measure(glob, "glob matcher", globMatcher::matches);
+        }
+        measureCompile("path matcher", () -> FileSystems.getDefault().getPathMatcher("glob:host{1,22,333}*_net"));
+        measureCompile("glob matcher", () -> GlobMatcher.compile("host{1,22,333}*_net", 0));
+        log.info("Matched " + matched);
+    }
+
+    private void measure(String glob, String mode, Predicate<String> matcher) {
+        for (int i = 0; i < Math.max(args.passes / 2, 1); i++) {
+            match(matcher);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < args.passes; i++) {
+            found = match(matcher);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        double matches = (double) args.passes * names.size();
+        log.info(String.format(
+            "%s, %s: %.1f ns and %.1f bytes allocated per name, %d of %d names match",
+            glob, mode, nanos / matches, allocated / matches, found, names.size()
+        ));
+    }
+
+    private int match(Predicate<String> matcher) {
+        int found = 0;
+        for (String name : names) {
+            if (matcher.test(name)) {
+                found++;
+            }
+        }
+        matched += found;
+        return found;
+    }
+
+    private void measureCompile(String mode, Supplier<Object> compiler) {
+        int compiles = 100_000;
+        for (int i = 0; i < compiles; i++) {
+            matched += compiler.get().hashCode() & 1;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < compiles; i++) {
+            matched += compiler.get().hashCode() & 1;
+        }
+        log.info(String.format("%s: %.1f ns per compile", mode, (double) (System.nanoTime() - start) / compiles));
+    }
+}
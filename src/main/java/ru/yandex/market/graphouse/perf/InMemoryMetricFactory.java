@@ -0,0 +1,52 @@
+package ru.yandex.market.graphouse.perf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.MetricUtil;
+import ru.yandex.market.graphouse.MetricValidator;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+import ru.yandex.market.graphouse.search.tree.MetricTree;
+import ru.yandex.market.graphouse.server.BaseMetricFactory;
+
+/**
+ * Metric factory for in-process benchmarks. Keeps the whole tree in memory and never talks to ClickHouse.
+ */
+public class InMemoryMetricFactory extends BaseMetricFactory {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final MetricTree metricTree = new MetricTree(
+        InMemoryMetricDir::new, new DefaultRetentionProvider(), -1, -1
+    );
+
+    public InMemoryMetricFactory() {
+        super(new MetricValidator("[-_0-9a-zA-Z\\.]*$", 5, 500, 2, 20), false, "", "");
+    }
+
+    @Override
+    protected MetricDescription getOrCreateMetricDescription(String name) {
+        MetricDescription metric = metricTree.maybeFindMetric(MetricUtil.splitToLevels(name));
+        if (metric == null) {
+            if (!metricValidator.validate(name, false)) {
+                return null;
+            }
+            metric = metricTree.add(name);
+        }
+        if (metric == null || metric.getStatus() == MetricStatus.BAN) {
+            return null;
+        }
+        return metric;
+    }
+
+    public MetricTree getMetricTree() {
+        return metricTree;
+    }
+
+    @Override
+    protected Logger getLog() {
+        return log;
+    }
+}
@@ -0,0 +1,201 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.StatementCallback;
+import ru.yandex.clickhouse.ClickHouseDataSource;
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.response.ClickHouseLZ4Stream;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.Lz4RowBinarySender;
+import ru.yandex.market.graphouse.cacher.MetricChunk;
+import ru.yandex.market.graphouse.cacher.MetricsStreamCallback;
+import ru.yandex.market.graphouse.cacher.RowBinarySender;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares RowBinary inserts sent uncompressed, compressed by the driver
+ * with <code>graphouse.clickhouse.compress</code> and by {@link Lz4RowBinarySender}
+ * with <code>graphouse.cacher.insert.compress</code>.
+ * Inserts go to a local stand-in receiver, which decompresses bodies as ClickHouse would.
+ * Reports bytes on the wire and compression ratio, CPU of the writer thread per million rows
+ * and rows per second end to end. The receiver runs in the same process and shares CPU with the writer.
+ */
+public class InsertCompressionBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+    private static final String QUERY = "INSERT INTO data (metric, value, timestamp, date, updated)";
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--rows", description = "Rows per insert")
+        private Integer rows = 500_000;
+
+        @Parameter(names = "--metrics", description = "Distinct metrics in inserts")
+        private Integer metrics = 100_000;
+
+        @Parameter(names = "--inserts", description = "Measured inserts for every mode")
+        private Integer inserts = 20;
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong decompressedBytes = new AtomicLong();
+    private HttpServer server;
+
+    private InsertCompressionBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        new InsertCompressionBenchmark(benchmarkArgs).run();
+    }
+
+    private void run() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::receive);
+        server.start();
+        try {
+            List<MetricChunk> chunks = MetricChunk.fromMetrics(generateMetrics());
+            ClickHouseProperties plainProperties = properties(false);
+            measure("plain", plainProperties, RowBinarySender.DRIVER, chunks);
+            measure("driver lz4", properties(true), RowBinarySender.DRIVER, chunks);
+            measure(
+                "graphouse lz4", plainProperties,
+                new Lz4RowBinarySender(plainProperties, CountingMetricCacher.NOOP_STATISTICS), chunks
+            );
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void measure(String mode, ClickHouseProperties properties, RowBinarySender sender,
+                         List<MetricChunk> chunks) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new ClickHouseDataSource(
+            "jdbc:clickhouse://127.0.0.1:" + server.getAddress().getPort() + "/graphite", properties
+        ));
+        for (int i = 0; i < Math.max(args.inserts / 4, 1); i++) {
+            insert(jdbcTemplate, sender, chunks);
+        }
+        receivedBytes.set(0);
+        decompressedBytes.set(0);
+        long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < args.inserts; i++) {
+            insert(jdbcTemplate, sender, chunks);
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long cpuNanos = threadMXBean.getCurrentThreadCpuTime() - startCpuNanos;
+        double millionRows = (double) args.rows * args.inserts / 1_000_000;
+        log.info(String.format(
+            "%s: %d bytes per insert, ratio %.2f, writer CPU ms per million rows %.1f, %.0f rows per second",
+            mode, receivedBytes.get() / args.inserts, (double) decompressedBytes.get() / receivedBytes.get(),
+            TimeUnit.NANOSECONDS.toMicros(cpuNanos) / 1000.0 / millionRows,
+            millionRows * 1_000_000 / (nanos / 1e9)
+        ));
+    }
+
+    private static void insert(JdbcTemplate jdbcTemplate, RowBinarySender sender, List<MetricChunk> chunks) {
+        jdbcTemplate.execute(
+            (StatementCallback<Void>) stmt -> {
+                ClickHouseStatementImpl statement = (ClickHouseStatementImpl) stmt;
+                ZoneId zoneId = statement.getConnection().getTimeZone().toZoneId();
+                sender.send(statement, QUERY, MetricsStreamCallback.ofChunks(chunks, zoneId));
+                return null;
+            }
+        );
+    }
+
+    /**
+     * Answers the server time zone query of new connections and reads inserts.
+     */
+    private void receive(HttpExchange exchange) throws IOException {
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        String query = exchange.getRequestURI().getQuery();
+        InputStream data = new ByteArrayInputStream(body);
+        if (query != null && query.contains("decompress=1")) {
+            data = new ClickHouseLZ4Stream(data);
+        }
+        byte[] decompressed = ByteStreams.toByteArray(data);
+        String response = "";
+        if (new String(decompressed, 0, Math.min(decompressed.length, 6), StandardCharsets.UTF_8).equals("select")) {
+            response = "timezone()\nString\nUTC\n";
+        } else {
+            receivedBytes.addAndGet(body.length);
+            decompressedBytes.addAndGet(decompressed.length);
+        }
+        exchange.sendResponseHeaders(200, 0);
+        exchange.getResponseBody().write(response.getBytes(StandardCharsets.UTF_8));
+        exchange.close();
+    }
+
+    private static ClickHouseProperties properties(boolean driverCompression) {
+        ClickHouseProperties properties = new ClickHouseProperties();
+        properties.setUseServerTimeZone(true);
+        properties.setUseServerTimeZoneForDates(true);
+        properties.setCompress(false);
+        properties.setDecompress(driverCompression);
+        return properties;
+    }
+
+    /**
+     * Points of relay-like metrics, a minute apart for every metric.
+     */
+    private List<Metric> generateMetrics() {
+        Random random = new Random(42);
+        MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+        MetricDir dir = new InMemoryMetricDir(root, "one_min", MetricStatus.SIMPLE);
+        MetricName[] names = new MetricName[args.metrics];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = new MetricName(
+                dir, "host" + i % 100 + ".service.timings.method" + i + ".p99",
+                MetricStatus.SIMPLE, new DefaultRetentionProvider()
+            );
+        }
+        int timestamp = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        List<Metric> metrics = new ArrayList<>(args.rows);
+        for (int i = 0; i < args.rows; i++) {
+            int metric = i % names.length;
+            if (metric == 0) {
+                timestamp += 60;
+            }
+            metrics.add(new Metric(names[metric], timestamp, random.nextInt(100_000) / 100.0, timestamp));
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,292 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import com.google.common.io.ByteStreams;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricChunk;
+import ru.yandex.market.graphouse.cacher.MetricQueue;
+import ru.yandex.market.graphouse.cacher.MetricsStreamCallback;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.EncodedNameCache;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the metric cacher queue with the former <code>ArrayBlockingQueue&lt;Metric&gt;</code> guarded by a semaphore.
+ * Producer threads submit batches of new metrics like parsers do, one consumer takes batches like the cacher thread
+ * and serializes them to RowBinary like a writer. Reports points per second, GC time of the measurement and
+ * CPU of the consumer per million points, which is the serialization cost left to writers.
+ * Run with the production heap settings, as most of the difference is the GC cost of the queued points.
+ */
+public class MetricQueueBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--queue", description = "striped, array-blocking or all")
+        private String queue = "all";
+
+        @Parameter(names = "--producers", description = "Producer threads count")
+        private Integer producers = 16;
+
+        @Parameter(names = "--queue-size", description = "graphouse.cacher.queue-size")
+        private Integer queueSize = 10_000_000;
+
+        @Parameter(names = "--stripes", description = "graphouse.cacher.queue-stripes")
+        private Integer stripes = 16;
+
+        @Parameter(names = "--pre-encode", description = "graphouse.cacher.pre-encode for the striped queue")
+        private boolean preEncode = false;
+
+        @Parameter(names = "--cache-encoded-names", description = "graphouse.cacher.cache-encoded-names")
+        private boolean cacheEncodedNames = false;
+
+        @Parameter(names = "--name-levels", description = "Directory levels of metric names")
+        private Integer nameLevels = 1;
+
+        @Parameter(names = "--submit-batch-size", description = "Metrics per submit, graphouse.cacher.read-batch-size")
+        private Integer submitBatchSize = 1000;
+
+        @Parameter(names = "--batch-size", description = "Metrics per taken batch, graphouse.cacher.max-batch-size")
+        private Integer batchSize = 1_000_000;
+
+        @Parameter(names = "--writer-delay-millis", description = "Time to 'save' a batch, so the queue is kept full")
+        private Integer writerDelayMillis = 100;
+
+        @Parameter(names = "--warmup", description = "Warmup in seconds")
+        private Integer warmupSeconds = 5;
+
+        @Parameter(names = "--duration", description = "Measurement in seconds")
+        private Integer durationSeconds = 20;
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private static final ZoneId ZONE_ID = ZoneId.systemDefault();
+
+    private final BenchmarkArgs args;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final MetricDescription[] descriptions = new MetricDescription[1000];
+
+    private MetricQueueBenchmark(BenchmarkArgs args) {
+        this.args = args;
+        EncodedNameCache.setEnabled(args.cacheEncodedNames);
+        MetricDir dir = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+        for (int i = 0; i < args.nameLevels; i++) {
+            dir = new InMemoryMetricDir(dir, i == 0 ? "bench" : "level" + i, MetricStatus.SIMPLE);
+        }
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = new MetricName(
+                dir, "service.timings.method" + i + ".p99", MetricStatus.SIMPLE, new DefaultRetentionProvider()
+            );
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        MetricQueueBenchmark benchmark = new MetricQueueBenchmark(benchmarkArgs);
+        List<String> results = new ArrayList<>();
+        if (!"array-blocking".equals(benchmarkArgs.queue)) {
+            results.add(benchmark.run(new StripedQueue(benchmarkArgs)));
+        }
+        if (!"striped".equals(benchmarkArgs.queue)) {
+            results.add(benchmark.run(new ArrayBlockingMetricQueue(benchmarkArgs)));
+        }
+        results.forEach(log::info);
+        System.exit(0);
+    }
+
+    private String run(BenchmarkQueue queue) throws Exception {
+        AtomicLong consumed = new AtomicLong();
+        AtomicLong consumerCpuNanos = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < args.producers; i++) {
+            int producer = i;
+            threads.add(new Thread(() -> produce(queue, producer), "bench-producer-" + i));
+        }
+        threads.add(new Thread(() -> consume(queue, consumed, consumerCpuNanos), "bench-consumer"));
+        threads.forEach(Thread::start);
+
+        TimeUnit.SECONDS.sleep(args.warmupSeconds);
+        long startConsumed = consumed.get();
+        long startCpuNanos = consumerCpuNanos.get();
+        long startGcMillis = gcMillis();
+        long startGcCount = gcCount();
+        long startNanos = System.nanoTime();
+
+        TimeUnit.SECONDS.sleep(args.durationSeconds);
+
+        long points = consumed.get() - startConsumed;
+        long cpuNanos = consumerCpuNanos.get() - startCpuNanos;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long gcMillis = gcMillis() - startGcMillis;
+        long gcCount = gcCount() - startGcCount;
+        threads.forEach(Thread::interrupt);
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        System.gc();
+        return String.format(
+            "%s: producers %d, points/sec %.0f, GC %d ms in %d collections (%.1f%% of time), " +
+                "consumer CPU ms per million points %.1f",
+            queue.getName(), args.producers, points / seconds, gcMillis, gcCount, gcMillis / seconds / 10,
+            TimeUnit.NANOSECONDS.toMicros(cpuNanos) / 1000.0 / (points / 1e6)
+        );
+    }
+
+    private void produce(BenchmarkQueue queue, int producer) {
+        int now = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        int counter = producer;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Metric> metrics = new ArrayList<>(args.submitBatchSize);
+                for (int i = 0; i < args.submitBatchSize; i++) {
+                    counter++;
+                    metrics.add(new Metric(descriptions[counter % descriptions.length], now - counter % 60, i, now));
+                }
+                queue.addAll(metrics);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void consume(BenchmarkQueue queue, AtomicLong consumed, AtomicLong consumerCpuNanos) {
+        ClickHouseRowBinaryStream stream = new ClickHouseRowBinaryStream(
+            ByteStreams.nullOutputStream(), null, new ClickHouseProperties()
+        );
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+                int points = queue.takeBatch(stream);
+                if (points == 0) {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                    continue;
+                }
+                consumerCpuNanos.addAndGet(threadMXBean.getCurrentThreadCpuTime() - startCpuNanos);
+                consumed.addAndGet(points);
+                TimeUnit.MILLISECONDS.sleep(args.writerDelayMillis);
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private interface BenchmarkQueue {
+        String getName();
+
+        void addAll(List<Metric> metrics) throws InterruptedException;
+
+        /**
+         * Takes a batch, writes it to the stream and releases it.
+         *
+         * @return number of points
+         */
+        int takeBatch(ClickHouseRowBinaryStream stream) throws IOException;
+    }
+
+    private static class StripedQueue implements BenchmarkQueue {
+        private final MetricQueue queue;
+        private final int batchSize;
+        private final boolean preEncode;
+
+        StripedQueue(BenchmarkArgs args) {
+            preEncode = args.preEncode;
+            queue = new MetricQueue((long) args.queueSize * 20, args.stripes, preEncode ? () -> ZONE_ID : null);
+            batchSize = args.batchSize;
+        }
+
+        @Override
+        public String getName() {
+            return preEncode ? "striped-pre-encoded" : "striped";
+        }
+
+        @Override
+        public void addAll(List<Metric> metrics) throws InterruptedException {
+            queue.addAll(metrics);
+        }
+
+        @Override
+        public int takeBatch(ClickHouseRowBinaryStream stream) throws IOException {
+            List<MetricChunk> chunks = queue.poll(batchSize);
+            MetricsStreamCallback.ofChunks(chunks, ZONE_ID).writeTo(stream);
+            int points = MetricChunk.countMetrics(chunks);
+            queue.release(chunks);
+            return points;
+        }
+    }
+
+    /**
+     * The queue as it was in the cacher.
+     */
+    private static class ArrayBlockingMetricQueue implements BenchmarkQueue {
+        private final BlockingQueue<Metric> queue;
+        private final Semaphore semaphore;
+        private final int batchSize;
+
+        ArrayBlockingMetricQueue(BenchmarkArgs args) {
+            queue = new ArrayBlockingQueue<>(args.queueSize);
+            semaphore = new Semaphore(args.queueSize);
+            batchSize = args.batchSize;
+        }
+
+        @Override
+        public String getName() {
+            return "array-blocking";
+        }
+
+        @Override
+        public void addAll(List<Metric> metrics) throws InterruptedException {
+            semaphore.acquire(metrics.size());
+            queue.addAll(metrics);
+        }
+
+        @Override
+        public int takeBatch(ClickHouseRowBinaryStream stream) throws IOException {
+            List<Metric> metrics = new ArrayList<>(Math.min(batchSize, queue.size()));
+            queue.drainTo(metrics, batchSize);
+            new MetricsStreamCallback(metrics, ZONE_ID).writeTo(stream);
+            semaphore.release(metrics.size());
+            return metrics.size();
+        }
+    }
+}
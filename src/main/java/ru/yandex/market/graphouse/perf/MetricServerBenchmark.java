@@ -0,0 +1,313 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.cacher.MetricSink;
+import ru.yandex.market.graphouse.server.ClientAdmission;
+import ru.yandex.market.graphouse.server.LineBatchProcessorFactory;
+import ru.yandex.market.graphouse.server.MetricServer;
+import ru.yandex.market.graphouse.server.NioMetricServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares plaintext receivers in one process: starts a receiver with a counting cacher, floods it from
+ * many local connections and reports served connections, lines per second and lines per second per core.
+ * CPU is counted for all threads except the load generator ones.
+ * With <code>--sink</code> metrics also go through the cacher queue and writers to a sink other than ClickHouse,
+ * so the whole ingest path is measured on one machine.
+ */
+public class MetricServerBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final String CLIENT_THREAD_PREFIX = "bench-client-";
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--mode", description = "blocking, nio or all")
+        private String mode = "all";
+
+        @Parameter(names = "--connections", description = "Client connections count")
+        private Integer connections = 1000;
+
+        @Parameter(names = "--client-threads", description = "Load generator threads count")
+        private Integer clientThreads = 4;
+
+        @Parameter(names = "--metrics", description = "Distinct metrics per connection")
+        private Integer metricsPerConnection = 100;
+
+        @Parameter(names = "--threads", description = "graphouse.cacher.threads")
+        private Integer serverThreads = 100;
+
+        @Parameter(names = "--acceptors", description = "graphouse.cacher.acceptors")
+        private Integer acceptors = 1;
+
+        @Parameter(names = "--nio-threads", description = "graphouse.cacher.nio.threads")
+        private Integer nioThreads = 4;
+
+        @Parameter(names = "--handoff", description = "graphouse.cacher.handoff: executor or ring-buffer")
+        private String handoff = LineBatchProcessorFactory.EXECUTOR;
+
+        @Parameter(names = "--wait-strategy", description = "graphouse.cacher.ring-buffer.wait-strategy")
+        private String waitStrategy = "blocking";
+
+        @Parameter(names = "--ring-buffer-size", description = "graphouse.cacher.ring-buffer.size")
+        private Integer ringBufferSize = 1024;
+
+        @Parameter(
+            names = "--client-lines-per-second",
+            description = "graphouse.cacher.admission.lines-per-second, all connections are one client, 0 - disabled"
+        )
+        private Double clientLinesPerSecond = 0.0;
+
+        @Parameter(names = "--sink", description = "graphouse.cacher.sink: null, file or latency, none - discard")
+        private String sink = "none";
+
+        @Parameter(names = "--sink-file-dir", description = "graphouse.cacher.sink.file-dir")
+        private String sinkFileDir = "/tmp/graphouse-sink";
+
+        @Parameter(names = "--sink-latency-millis", description = "graphouse.cacher.sink.latency-millis")
+        private Integer sinkLatencyMillis = 100;
+
+        @Parameter(names = "--warmup", description = "Warmup in seconds")
+        private Integer warmupSeconds = 5;
+
+        @Parameter(names = "--duration", description = "Measurement in seconds")
+        private Integer durationSeconds = 20;
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private MetricServerBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        MetricServerBenchmark benchmark = new MetricServerBenchmark(benchmarkArgs);
+        List<String> results = new ArrayList<>();
+        if (!NioMetricServer.MODE.equals(benchmarkArgs.mode)) {
+            results.add(benchmark.run(MetricServer.MODE));
+        }
+        if (!MetricServer.MODE.equals(benchmarkArgs.mode)) {
+            results.add(benchmark.run(NioMetricServer.MODE));
+        }
+        results.forEach(log::info);
+        // Receivers are not stopped, nothing to save here
+        Runtime.getRuntime().halt(0);
+    }
+
+    private String run(String mode) throws Exception {
+        int port = findFreePort();
+        CountingMetricCacher metricCacher = new CountingMetricCacher(
+            "none".equals(args.sink) ? null : MetricSink.create(args.sink, args.sinkFileDir, args.sinkLatencyMillis)
+        );
+        startServer(mode, port, metricCacher);
+        log.info("Started {} server on port {}", mode, port);
+
+        List<LoadGenerator> generators = new ArrayList<>();
+        for (int i = 0; i < args.clientThreads; i++) {
+            int connections = args.connections / args.clientThreads + (i < args.connections % args.clientThreads ? 1 : 0);
+            LoadGenerator generator = new LoadGenerator(port, i, connections);
+            generators.add(generator);
+            new Thread(generator, CLIENT_THREAD_PREFIX + i).start();
+        }
+
+        TimeUnit.SECONDS.sleep(args.warmupSeconds);
+
+        long startLines = metricCacher.getReceivedMetrics();
+        long startCpuNanos = serverCpuNanos();
+        long startNanos = System.nanoTime();
+        generators.forEach(LoadGenerator::startMeasurement);
+
+        TimeUnit.SECONDS.sleep(args.durationSeconds);
+
+        long lines = metricCacher.getReceivedMetrics() - startLines;
+        long cpuNanos = serverCpuNanos() - startCpuNanos;
+        long elapsedNanos = System.nanoTime() - startNanos;
+        int servedConnections = generators.stream().mapToInt(LoadGenerator::getProgressingConnections).sum();
+        generators.forEach(LoadGenerator::stop);
+
+        double seconds = elapsedNanos / 1e9;
+        double cores = cpuNanos / (double) elapsedNanos;
+        double linesPerSecond = lines / seconds;
+        return String.format(
+            "%s (%s, sink %s): connections %d, served %d, lines/sec %.0f, cores used %.2f, " +
+                "lines/sec per core %.0f",
+            mode, args.handoff, args.sink, args.connections, servedConnections, linesPerSecond, cores,
+            linesPerSecond / cores
+        );
+    }
+
+    private void startServer(String mode, int port, CountingMetricCacher metricCacher) throws Exception {
+        InMemoryMetricFactory metricFactory = new InMemoryMetricFactory();
+        int socketTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(args.warmupSeconds + args.durationSeconds + 60);
+        LineBatchProcessorFactory processorFactory = new LineBatchProcessorFactory(CountingMetricCacher.NOOP_STATISTICS);
+        processorFactory.setHandoff(args.handoff);
+        processorFactory.setWaitStrategy(args.waitStrategy);
+        processorFactory.setRingBufferSize(args.ringBufferSize);
+        ClientAdmission admission = new ClientAdmission(CountingMetricCacher.NOOP_STATISTICS);
+        admission.setEnabled(args.clientLinesPerSecond > 0);
+        admission.setLinesPerSecond(args.clientLinesPerSecond);
+        if (MetricServer.MODE.equals(mode)) {
+            MetricServer server = new MetricServer(metricCacher, metricFactory, processorFactory, admission);
+            server.setPort(port);
+            server.setThreadCount(args.serverThreads);
+            server.setAcceptorCount(args.acceptors);
+            server.setReadBatchSize(1000);
+            server.setSocketTimeoutMillis(socketTimeoutMillis);
+            server.afterPropertiesSet();
+        } else {
+            NioMetricServer server = new NioMetricServer(metricCacher, metricFactory, processorFactory, admission);
+            server.setPort(port);
+            server.setParserThreadCount(args.serverThreads);
+            server.setEventLoopCount(args.nioThreads);
+            server.setBufferSizeBytes(65536);
+            server.setReadBatchSize(1000);
+            server.setSocketTimeoutMillis(socketTimeoutMillis);
+            server.afterPropertiesSet();
+        }
+    }
+
+    private long serverCpuNanos() {
+        long total = 0;
+        for (long threadId : threadMXBean.getAllThreadIds()) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId);
+            if (threadInfo == null || threadInfo.getThreadName().startsWith(CLIENT_THREAD_PREFIX)) {
+                continue;
+            }
+            long cpuNanos = threadMXBean.getThreadCpuTime(threadId);
+            if (cpuNanos > 0) {
+                total += cpuNanos;
+            }
+        }
+        return total;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Writes pregenerated lines to its connections as fast as the server reads them.
+     */
+    private class LoadGenerator implements Runnable {
+        private final int port;
+        private final int generatorIndex;
+        private final int connectionCount;
+        private final List<AtomicLong> measuredBytes = new CopyOnWriteArrayList<>();
+        private volatile boolean measuring = false;
+        private volatile boolean running = true;
+
+        LoadGenerator(int port, int generatorIndex, int connectionCount) {
+            this.port = port;
+            this.generatorIndex = generatorIndex;
+            this.connectionCount = connectionCount;
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                for (int i = 0; i < connectionCount; i++) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.connect(new InetSocketAddress("localhost", port));
+                    AtomicLong counter = new AtomicLong();
+                    measuredBytes.add(counter);
+                    channel.register(selector, SelectionKey.OP_CONNECT, new ClientConnection(payload(i), counter));
+                }
+                while (running) {
+                    selector.select(100);
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        if (key.isConnectable()) {
+                            if (channel.finishConnect()) {
+                                key.interestOps(SelectionKey.OP_WRITE);
+                            }
+                            continue;
+                        }
+                        ClientConnection connection = (ClientConnection) key.attachment();
+                        if (!connection.payload.hasRemaining()) {
+                            connection.payload.rewind();
+                        }
+                        int written = channel.write(connection.payload);
+                        if (measuring) {
+                            connection.measuredBytes.addAndGet(written);
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            } catch (IOException e) {
+                log.error("Load generator failed", e);
+            }
+        }
+
+        private ByteBuffer payload(int connectionIndex) {
+            int timestamp = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < args.metricsPerConnection; i++) {
+                lines.append("bench.client").append(generatorIndex).append(".conn").append(connectionIndex)
+                    .append(".metric").append(i).append(' ').append(i * 1.5).append(' ').append(timestamp)
+                    .append('\n');
+            }
+            return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        void startMeasurement() {
+            measuring = true;
+        }
+
+        int getProgressingConnections() {
+            return (int) measuredBytes.stream().filter(counter -> counter.get() > 0).count();
+        }
+
+        void stop() {
+            running = false;
+        }
+    }
+
+    private static class ClientConnection {
+        private final ByteBuffer payload;
+        private final AtomicLong measuredBytes;
+
+        ClientConnection(ByteBuffer payload, AtomicLong measuredBytes) {
+            this.payload = payload;
+            this.measuredBytes = measuredBytes;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.MetricUtil;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.ChildMap;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDirFactory;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+import ru.yandex.market.graphouse.search.tree.MetricTree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares heap used by an in-memory metric tree with children in {@link ChildMap} and in
+ * {@link ConcurrentHashMap} as before it, and lookups of all metrics of the tree.
+ * <p>
+ * Directories have 1 to <code>--max-children</code> children, a few of them have <code>--wide-children</code>.
+ * Level names are interned before the trees are built, so bytes per node are of nodes and child maps only.
+ * Run with a heap big enough for a tree and its garbage, e.g. <code>-Xmx3g</code>.
+ */
+public class TreeFootprintBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--nodes", description = "Directories and metrics in the tree")
+        private Integer nodes = 2_000_000;
+
+        @Parameter(names = "--max-children", description = "Max children of most directories")
+        private Integer maxChildren = 5;
+
+        @Parameter(names = "--wide-share", description = "Share of directories with many children")
+        private Double wideShare = 0.01;
+
+        @Parameter(names = "--wide-children", description = "Children of wide directories")
+        private Integer wideChildren = 100;
+
+        @Parameter(names = "--lookups", description = "Lookup passes over all metrics")
+        private Integer lookups = 5;
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final Set<String> levels = new HashSet<>();
+    private final List<String> metrics = new ArrayList<>();
+    private int nodes = 0;
+
+    private TreeFootprintBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        new TreeFootprintBenchmark(benchmarkArgs).run();
+    }
+
+    private void run() {
+        Random random = new Random(42);
+        while (nodes < args.nodes) {
+            generate(random, "", 0);
+        }
+        log.info("Generated " + metrics.size() + " metrics, " + nodes + " nodes");
+        measure("concurrent hash map", ConcurrentHashMapMetricDir::new);
+        measure("child map", InMemoryMetricDir::new);
+    }
+
+    private void generate(Random random, String prefix, int depth) {
+        int children = random.nextDouble() < args.wideShare
+            ? args.wideChildren
+            : 1 + random.nextInt(args.maxChildren);
+        for (int i = 0; i < children && nodes < args.nodes; i++) {
+            String level = ("level" + depth + "_" + i).intern();
+            levels.add(level);
+            nodes++;
+            if (depth < 3 || depth < 10 && random.nextInt(3) > 0) {
+                generate(random, prefix + level + MetricUtil.LEVEL_SPLITTER, depth + 1);
+            } else {
+                metrics.add(prefix + level);
+            }
+        }
+    }
+
+    private void measure(String mode, MetricDirFactory metricDirFactory) {
+        long before = usedMemory();
+        MetricTree tree = new MetricTree(metricDirFactory, new DefaultRetentionProvider(), -1, -1);
+        for (String metric : metrics) {
+            tree.add(metric);
+        }
+        long bytes = usedMemory() - before;
+        int loadedNodes = tree.metricCount() + tree.dirCount();
+
+        List<String[]> paths = new ArrayList<>(metrics.size());
+        for (String metric : metrics) {
+            paths.add(MetricUtil.splitToLevels(metric));
+        }
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < args.lookups; i++) {
+            for (String[] path : paths) {
+                if (tree.maybeFindMetric(path) != null) {
+                    found++;
+                }
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+        log.info(String.format(
+            "%s: %d nodes, %.1f bytes per node, %.1f ns per metric lookup (%d found)",
+            mode, loadedNodes, (double) bytes / loadedNodes,
+            (double) lookupNanos / args.lookups / paths.size(), found / args.lookups
+        ));
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                TimeUnit.MILLISECONDS.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * {@link InMemoryMetricDir} before {@link ChildMap}.
+     */
+    private static class ConcurrentHashMapMetricDir extends MetricDir {
+        private volatile Map<String, MetricName> metrics;
+        private volatile Map<String, MetricDir> dirs;
+
+        ConcurrentHashMapMetricDir(MetricDir parent, String name, MetricStatus status) {
+            super(parent, name, status);
+        }
+
+        @Override
+        public Map<String, MetricDir> getDirs() {
+            if (dirs == null) {
+                synchronized (this) {
+                    if (dirs == null) {
+                        dirs = new ConcurrentHashMap<>();
+                    }
+                }
+            }
+            return dirs;
+        }
+
+        @Override
+        public Map<String, MetricDir> maybeGetDirs() {
+            return getDirs();
+        }
+
+        @Override
+        public Map<String, MetricName> getMetrics() {
+            if (metrics == null) {
+                synchronized (this) {
+                    if (metrics == null) {
+                        metrics = new ConcurrentHashMap<>();
+                    }
+                }
+            }
+            return metrics;
+        }
+
+        @Override
+        public Map<String, MetricName> maybeGetMetrics() {
+            return getMetrics();
+        }
+
+        @Override
+        public boolean hasDirs() {
+            return dirs != null && !dirs.isEmpty();
+        }
+
+        @Override
+        public boolean hasMetrics() {
+            return metrics != null && !metrics.isEmpty();
+        }
+
+        @Override
+        public int loadedMetricCount() {
+            int count = hasMetrics() ? metrics.size() : 0;
+            if (hasDirs()) {
+                for (MetricDir dir : dirs.values()) {
+                    count += dir.loadedMetricCount();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int loadedDirCount() {
+            if (!hasDirs()) {
+                return 0;
+            }
+            int count = dirs.size();
+            for (MetricDir dir : dirs.values()) {
+                count += dir.loadedDirCount();
+            }
+            return count;
+        }
+
+        @Override
+        public MetricDir maybeGetDir(String name) {
+            return dirs == null ? null : dirs.get(name);
+        }
+
+        @Override
+        public MetricName maybeGetMetric(String name) {
+            return metrics == null ? null : metrics.get(name);
+        }
+    }
+}
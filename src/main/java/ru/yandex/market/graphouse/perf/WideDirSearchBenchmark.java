@@ -0,0 +1,109 @@
+package ru.yandex.market.graphouse.perf;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricTree;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares searches of alternatives in a wide directory by matching all its children and by lookups of
+ * the names the alternatives are expanded to, see <code>graphouse.search.max-expanded-names</code>.
+ * The tree is <code>servers.host{N}.cpu{M}</code> with <code>--hosts</code> directories in <code>servers</code>.
+ */
+public class WideDirSearchBenchmark {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static class BenchmarkArgs {
+
+        @Parameter(names = "--hosts", description = "Directories in the wide directory")
+        private Integer hosts = 100_000;
+
+        @Parameter(names = "--metrics", description = "Metrics in every host directory")
+        private Integer metrics = 8;
+
+        @Parameter(names = "--max-expanded-names", description = "Max names of an expanded glob")
+        private Integer maxExpandedNames = 256;
+
+        @Parameter(names = "--seconds", description = "Measured seconds for every query and mode")
+        private Integer seconds = 3;
+
+        @Parameter(names = "--queries", description = "Queries to compare")
+        private List<String> queries = Arrays.asList(
+            "servers.{host1,host2,host3}.cpu{0,1,2}",
+            "servers.host1234[0-9].cpu0",
+            "servers.{host42,host4242}.*",
+            "servers.host{1,2}[0-9][0-9].cpu[0-3]"
+        );
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+    }
+
+    private final BenchmarkArgs args;
+    private final MetricTree tree = new MetricTree(InMemoryMetricDir::new, new DefaultRetentionProvider(), -1, -1);
+
+    private WideDirSearchBenchmark(BenchmarkArgs args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkArgs benchmarkArgs = new BenchmarkArgs();
+        JCommander jCommander = new JCommander(benchmarkArgs, args);
+        if (benchmarkArgs.help) {
+            jCommander.usage();
+            System.exit(0);
+        }
+        new WideDirSearchBenchmark(benchmarkArgs).run();
+    }
+
+    private void run() throws IOException {
+        for (int host = 0; host < args.hosts; host++) {
+            for (int metric = 0; metric < args.metrics; metric++) {
+                tree.add("servers.host" + host + ".cpu" + metric);
+            }
+        }
+        log.info("Tree of " + tree.dirCount() + " dirs and " + tree.metricCount() + " metrics");
+        for (String query : args.queries) {
+            tree.setMaxExpandedNames(0);
+            double scanMicros = measure(query, "scan");
+            tree.setMaxExpandedNames(args.maxExpandedNames);
+            double lookupMicros = measure(query, "expanded lookups");
+            log.info(String.format("%s: %.0fx faster with expanded lookups", query, scanMicros / lookupMicros));
+        }
+    }
+
+    /**
+     * @return microseconds per query
+     */
+    private double measure(String query, String mode) throws IOException {
+        int[] found = new int[1];
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < end) {
+            tree.search(query, metric -> found[0]++);
+        }
+        long queries = 0;
+        found[0] = 0;
+        long start = System.nanoTime();
+        end = start + TimeUnit.SECONDS.toNanos(args.seconds);
+        long now;
+        do {
+            tree.search(query, metric -> found[0]++);
+            queries++;
+            now = System.nanoTime();
+        } while (now < end);
+        double micros = TimeUnit.NANOSECONDS.toMicros(now - start) / (double) queries;
+        log.info(String.format(
+            "%s, %s: %.1f us per query, %d results", query, mode, micros, found[0] / queries
+        ));
+        return micros;
+    }
+}
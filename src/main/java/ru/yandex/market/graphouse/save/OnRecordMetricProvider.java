@@ -54,9 +54,14 @@ public class OnRecordMetricProvider implements InitializingBean, Runnable, Metri
         this.cacheEnable = cacheEnable;
         this.metricCache = metricCache;
 
-        Caffeine<Object, Object> savedMetricsCacheBuilder = Caffeine.newBuilder()
+        Caffeine<OnRecordMetricDescription, OnReadDirContent> savedMetricsCacheBuilder = Caffeine.newBuilder()
             .recordStats()
-            .expireAfterAccess(cacheExpireTimeMinutes, TimeUnit.MINUTES);
+            .expireAfterAccess(cacheExpireTimeMinutes, TimeUnit.MINUTES)
+            .removalListener((dir, content, cause) -> {
+                if (content != null) {
+                    content.dropEncodedNames();
+                }
+            });
 
         if (maxCacheSize > 0) {
             savedMetricsCacheBuilder.maximumSize(maxCacheSize);
@@ -40,7 +40,19 @@ public class OnReadDirContent {
     public void removeDescription(String name, boolean dir) {
         ConcurrentMap<String, OnRecordMetricDescription> content = getContent(dir);
         if (content != null) {
-            content.remove(name);
+            OnRecordMetricDescription removed = content.remove(name);
+            if (removed != null) {
+                removed.dropEncodedName();
+            }
+        }
+    }
+
+    /**
+     * Called when the content is evicted.
+     */
+    public void dropEncodedNames() {
+        if (metrics != null) {
+            metrics.values().forEach(OnRecordMetricDescription::dropEncodedName);
         }
     }
 
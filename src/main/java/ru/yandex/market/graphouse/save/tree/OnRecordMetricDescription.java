@@ -6,15 +6,19 @@ import com.google.common.util.concurrent.UncheckedExecutionException;
 import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
 import ru.yandex.market.graphouse.MetricUtil;
 import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.EncodedNameCache;
 import ru.yandex.market.graphouse.search.tree.MetricBase;
 import ru.yandex.market.graphouse.search.tree.MetricDescription;
 
 import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class OnRecordMetricDescription implements MetricDescription {
     private static final String ROOT_NAME = "ROOT";
+    private static final AtomicReferenceFieldUpdater<OnRecordMetricDescription, byte[]> ENCODED_NAME =
+        AtomicReferenceFieldUpdater.newUpdater(OnRecordMetricDescription.class, byte[].class, "encodedName");
     private final AsyncLoadingCache<OnRecordMetricDescription, OnReadDirContent> dirContentProvider;
 
     private volatile OnRecordMetricDescription parent;
@@ -24,6 +28,10 @@ public class OnRecordMetricDescription implements MetricDescription {
     private volatile long updateTimeMillis;
     private volatile boolean maybeNewMetrics;
     private volatile boolean contentLoaded;
+    /**
+     * Only for metrics, see {@link EncodedNameCache}.
+     */
+    private volatile byte[] encodedName;
 
     public OnRecordMetricDescription(
         AsyncLoadingCache<OnRecordMetricDescription, OnReadDirContent> dirContentProvider,
@@ -58,6 +66,10 @@ public class OnRecordMetricDescription implements MetricDescription {
 
     @Override
     public int getNameLengthInBytes() {
+        byte[] bytes = getCachedEncodedName();
+        if (bytes != null) {
+            return bytes.length;
+        }
         int length = name.getBytes().length;
         if (isDir()) {
             length++;
@@ -70,6 +82,11 @@ public class OnRecordMetricDescription implements MetricDescription {
 
     @Override
     public void writeName(ClickHouseRowBinaryStream stream) throws IOException {
+        byte[] bytes = getCachedEncodedName();
+        if (bytes != null) {
+            stream.writeBytes(bytes);
+            return;
+        }
         if (!parent.isRoot()) {
             parent.writeName(stream);
         }
@@ -79,6 +96,23 @@ public class OnRecordMetricDescription implements MetricDescription {
         }
     }
 
+    @Override
+    public byte[] getCachedEncodedName() {
+        return dir ? null : EncodedNameCache.get(ENCODED_NAME, this, this::getName);
+    }
+
+    /**
+     * Called when the metric is evicted from the tree.
+     */
+    public void dropEncodedName() {
+        EncodedNameCache.drop(ENCODED_NAME, this);
+    }
+
+    @Override
+    public boolean isEvicted() {
+        return EncodedNameCache.isDropped(ENCODED_NAME, this);
+    }
+
     public void setParent(OnRecordMetricDescription parent) {
         this.parent = parent;
     }
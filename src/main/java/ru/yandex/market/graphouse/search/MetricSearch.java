@@ -18,6 +18,7 @@ import ru.yandex.market.graphouse.monitoring.MonitoringUnit;
 import ru.yandex.market.graphouse.retention.RetentionProvider;
 import ru.yandex.market.graphouse.save.OnRecordCacheUpdater;
 import ru.yandex.market.graphouse.save.UpdateMetricQueueService;
+import ru.yandex.market.graphouse.search.tree.ChildMap;
 import ru.yandex.market.graphouse.search.tree.DirContent;
 import ru.yandex.market.graphouse.search.tree.DirContentBatcher;
 import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
@@ -44,7 +45,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -120,6 +120,9 @@ public class MetricSearch implements InitializingBean, Runnable, MetricDescripti
     @Value("${graphouse.search.max-metrics-per-query}")
     private int maxMetricsPerQuery;
 
+    @Value("${graphouse.search.max-expanded-names}")
+    private int maxExpandedNames;
+
     @Value("${graphouse.on-record-metric-cache.enable}")
     private boolean onRecordCacheEnable;
 
@@ -190,9 +193,16 @@ public class MetricSearch implements InitializingBean, Runnable, MetricDescripti
             dirContentBatcherAggregationTimeMillis
         );
 
-        Caffeine<Object, Object> dirContentProviderBuilder = Caffeine.newBuilder()
+        Caffeine<MetricDir, DirContent> dirContentProviderBuilder = Caffeine.newBuilder()
             .recordStats()
-            .expireAfterAccess(dirContentCacheTimeMinutes, TimeUnit.MINUTES);
+            .expireAfterAccess(dirContentCacheTimeMinutes, TimeUnit.MINUTES)
+            .removalListener((dir, content, cause) -> {
+                if (content != null) {
+                    // Marks the dropped metrics as evicted, contents of the dropped dirs are unreachable now
+                    content.getMetrics().values().forEach(MetricName::dropEncodedName);
+                    content.getDirs().values().forEach(dirContentProvider.synchronous()::invalidate);
+                }
+            });
 
         if (maxCacheSize > 0) {
             dirContentProviderBuilder.maximumSize(maxCacheSize);
@@ -200,6 +210,7 @@ public class MetricSearch implements InitializingBean, Runnable, MetricDescripti
         dirContentProvider = dirContentProviderBuilder.buildAsync((dir) -> dirContentBatcher.loadDirContent(dir));
 
         metricTree = new MetricTree(metricDirFactory, retentionProvider, maxSubDirsPerDir, maxMetricsPerDir);
+        metricTree.setMaxExpandedNames(maxExpandedNames);
 
 
         if (warnSaveDelaySeconds > 0) {
@@ -274,8 +285,8 @@ public class MetricSearch implements InitializingBean, Runnable, MetricDescripti
                 flushResult();
                 currentDirName = dirName;
                 currentDir = dirNames.remove(dirName);
-                currentDirs = new ConcurrentHashMap<>();
-                currentMetrics = new ConcurrentHashMap<>();
+                currentDirs = new ChildMap<>();
+                currentMetrics = new ChildMap<>();
             }
         }
 
@@ -430,6 +441,8 @@ public class MetricSearch implements InitializingBean, Runnable, MetricDescripti
             String[] metricLevels = MetricUtil.splitToLevels(metric);
             if (metricLevels.length <= inMemoryLevelsCount || (metricTree.maybeFindParent(metricLevels) != null)) {
                 metricTree.modify(metric, status);
+            } else if (status != MetricStatus.SIMPLE) {
+                metricTree.incrementStatusVersion();
             }
 
             int count = metricCount.incrementAndGet();
@@ -519,6 +532,10 @@ public class MetricSearch implements InitializingBean, Runnable, MetricDescripti
         return metricTree.maybeFindMetric(levels);
     }
 
+    public long getStatusVersion() {
+        return metricTree.getStatusVersion();
+    }
+
     @Override
     public MetricDescription getMetricDescription(String name) {
         return add(name);
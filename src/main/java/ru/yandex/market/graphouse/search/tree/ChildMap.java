@@ -0,0 +1,363 @@
+package ru.yandex.market.graphouse.search.tree;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Children of a tree node by name. Most directories have a few children, so up to {@link #MAX_INLINE_SIZE}
+ * they are kept in a sorted array of names and children, replaced on every change under the lock of the map.
+ * The first child above it promotes the map to a {@link ConcurrentHashMap}, which it stays even if children
+ * are removed later.
+ * <p>
+ * Reads are lock free, iteration is over a snapshot of the array or weakly consistent as in the hash map.
+ * {@link #computeIfAbsent} calls the function at most once per key as {@link ConcurrentHashMap} does,
+ * and the function is called under the lock while the map is small.
+ */
+public class ChildMap<V> extends AbstractMap<String, V> implements ConcurrentMap<String, V> {
+
+    static final int MAX_INLINE_SIZE = 8;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    /**
+     * Sorted names at even and their children at odd indexes, or the hash map after promotion.
+     */
+    private volatile Object children = EMPTY;
+
+    @Override
+    public int size() {
+        Object children = this.children;
+        return children instanceof Object[] ? ((Object[]) children).length / 2 : asMap(children).size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object children = this.children;
+        if (!(children instanceof Object[])) {
+            return asMap(children).get(key);
+        }
+        Object[] array = (Object[]) children;
+        int index = indexOf(array, (String) Objects.requireNonNull(key));
+        return index >= 0 ? (V) array[index + 1] : null;
+    }
+
+    @Override
+    public V put(String key, V value) {
+        return put(key, value, false);
+    }
+
+    @Override
+    public V putIfAbsent(String key, V value) {
+        return put(key, value, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(String key, Function<? super String, ? extends V> mappingFunction) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        ConcurrentHashMap<String, V> map = getMap();
+        if (map == null) {
+            synchronized (this) {
+                Object children = this.children;
+                if (children instanceof Object[]) {
+                    Object[] array = (Object[]) children;
+                    int index = indexOf(array, key);
+                    if (index >= 0) {
+                        return (V) array[index + 1];
+                    }
+                    value = mappingFunction.apply(key);
+                    if (value != null) {
+                        insert(array, -index - 1, key, value);
+                    }
+                    return value;
+                }
+                map = asMap(children);
+            }
+        }
+        return map.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return remove(key, null, false);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return value != null && remove(key, value, true) != null;
+    }
+
+    @Override
+    public boolean replace(String key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        ConcurrentHashMap<String, V> map = getMap();
+        if (map == null) {
+            synchronized (this) {
+                Object children = this.children;
+                if (children instanceof Object[]) {
+                    Object[] array = (Object[]) children;
+                    int index = indexOf(array, key);
+                    if (index < 0 || !array[index + 1].equals(oldValue)) {
+                        return false;
+                    }
+                    set(array, index, newValue);
+                    return true;
+                }
+                map = asMap(children);
+            }
+        }
+        return map.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(String key, V value) {
+        Objects.requireNonNull(value);
+        ConcurrentHashMap<String, V> map = getMap();
+        if (map == null) {
+            synchronized (this) {
+                Object children = this.children;
+                if (children instanceof Object[]) {
+                    Object[] array = (Object[]) children;
+                    int index = indexOf(array, key);
+                    if (index < 0) {
+                        return null;
+                    }
+                    V oldValue = (V) array[index + 1];
+                    set(array, index, value);
+                    return oldValue;
+                }
+                map = asMap(children);
+            }
+        }
+        return map.replace(key, value);
+    }
+
+    @Override
+    public void clear() {
+        ConcurrentHashMap<String, V> map = getMap();
+        if (map == null) {
+            synchronized (this) {
+                Object children = this.children;
+                if (children instanceof Object[]) {
+                    this.children = EMPTY;
+                    return;
+                }
+                map = asMap(children);
+            }
+        }
+        map.clear();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super String, ? super V> action) {
+        Object children = this.children;
+        if (!(children instanceof Object[])) {
+            asMap(children).forEach(action);
+            return;
+        }
+        Object[] array = (Object[]) children;
+        for (int i = 0; i < array.length; i += 2) {
+            action.accept((String) array[i], (V) array[i + 1]);
+        }
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    boolean isPromoted() {
+        return getMap() != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(String key, V value, boolean onlyIfAbsent) {
+        Objects.requireNonNull(value);
+        ConcurrentHashMap<String, V> map = getMap();
+        if (map == null) {
+            synchronized (this) {
+                Object children = this.children;
+                if (children instanceof Object[]) {
+                    Object[] array = (Object[]) children;
+                    int index = indexOf(array, Objects.requireNonNull(key));
+                    if (index < 0) {
+                        insert(array, -index - 1, key, value);
+                        return null;
+                    }
+                    V oldValue = (V) array[index + 1];
+                    if (!onlyIfAbsent) {
+                        set(array, index, value);
+                    }
+                    return oldValue;
+                }
+                map = asMap(children);
+            }
+        }
+        return onlyIfAbsent ? map.putIfAbsent(key, value) : map.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V remove(Object key, Object value, boolean onlyIfMapped) {
+        ConcurrentHashMap<String, V> map = getMap();
+        if (map == null) {
+            synchronized (this) {
+                Object children = this.children;
+                if (children instanceof Object[]) {
+                    Object[] array = (Object[]) children;
+                    int index = indexOf(array, (String) Objects.requireNonNull(key));
+                    if (index < 0 || onlyIfMapped && !array[index + 1].equals(value)) {
+                        return null;
+                    }
+                    Object[] removed = new Object[array.length - 2];
+                    System.arraycopy(array, 0, removed, 0, index);
+                    System.arraycopy(array, index + 2, removed, index, array.length - index - 2);
+                    this.children = removed.length == 0 ? EMPTY : removed;
+                    return (V) array[index + 1];
+                }
+                map = asMap(children);
+            }
+        }
+        if (onlyIfMapped) {
+            return map.remove(key, value) ? (V) value : null;
+        }
+        return map.remove(key);
+    }
+
+    /**
+     * Called under the lock with the current array.
+     *
+     * @param position index of the name in the array after insertion
+     */
+    private void insert(Object[] array, int position, String key, V value) {
+        if (array.length / 2 < MAX_INLINE_SIZE) {
+            Object[] inserted = new Object[array.length + 2];
+            System.arraycopy(array, 0, inserted, 0, position);
+            inserted[position] = key;
+            inserted[position + 1] = value;
+            System.arraycopy(array, position, inserted, position + 2, array.length - position);
+            children = inserted;
+            return;
+        }
+        ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<>(MAX_INLINE_SIZE * 4);
+        for (int i = 0; i < array.length; i += 2) {
+            map.put((String) array[i], array[i + 1]);
+        }
+        map.put(key, value);
+        children = map;
+    }
+
+    private void set(Object[] array, int index, V value) {
+        Object[] replaced = array.clone();
+        replaced[index + 1] = value;
+        children = replaced;
+    }
+
+    /**
+     * @return index of the name in the array, or <code>-(insertion index) - 1</code>
+     */
+    private static int indexOf(Object[] array, String key) {
+        int low = 0;
+        int high = array.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            String name = (String) array[middle * 2];
+            // Names are interned, so lookups by them mostly stop here
+            int compare = name == key ? 0 : name.compareTo(key);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle * 2;
+            }
+        }
+        return -(low * 2) - 1;
+    }
+
+    private ConcurrentHashMap<String, V> getMap() {
+        Object children = this.children;
+        return children instanceof Object[] ? null : asMap(children);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentHashMap<String, V> asMap(Object children) {
+        return (ConcurrentHashMap<String, V>) children;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<String, V>> {
+        @Override
+        public Iterator<Entry<String, V>> iterator() {
+            Object children = ChildMap.this.children;
+            if (!(children instanceof Object[])) {
+                return asMap(children).entrySet().iterator();
+            }
+            return new ArrayIterator((Object[]) children);
+        }
+
+        @Override
+        public int size() {
+            return ChildMap.this.size();
+        }
+    }
+
+    private class ArrayIterator implements Iterator<Entry<String, V>> {
+        private final Object[] array;
+        private int index = 0;
+        private String last;
+
+        ArrayIterator(Object[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < array.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<String, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = (String) array[index];
+            Entry<String, V> entry = new SimpleImmutableEntry<>(last, (V) array[index + 1]);
+            index += 2;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            ChildMap.this.remove(last);
+            last = null;
+        }
+    }
+}
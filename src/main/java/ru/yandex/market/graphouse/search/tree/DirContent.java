@@ -2,7 +2,6 @@ package ru.yandex.market.graphouse.search.tree;
 
 import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -35,6 +34,6 @@ public class DirContent {
     }
 
     public static DirContent createEmpty() {
-        return new DirContent(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        return new DirContent(new ChildMap<>(), new ChildMap<>());
     }
 }
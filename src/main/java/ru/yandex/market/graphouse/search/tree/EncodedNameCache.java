@@ -0,0 +1,84 @@
+package ru.yandex.market.graphouse.search.tree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Optional cache of UTF-8 full names on metric nodes, so writers don't walk to the root for every point.
+ * Names are encoded lazily on the first write and dropped when the node is evicted from its tree.
+ * Global, as nodes are created deep in the trees, enabled with <code>graphouse.cacher.cache-encoded-names</code>.
+ */
+public class EncodedNameCache {
+
+    /**
+     * Array header with compressed oops, arrays are aligned by 8 bytes.
+     */
+    private static final int ARRAY_HEADER_BYTES = 16;
+    /**
+     * Marks evicted nodes, which may still be written from the queue, so the name is not cached again.
+     */
+    private static final byte[] DROPPED = new byte[0];
+
+    private static volatile boolean enabled = false;
+    private static final LongAdder names = new LongAdder();
+    private static final LongAdder heapBytes = new LongAdder();
+
+    private EncodedNameCache() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        EncodedNameCache.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static long getNameCount() {
+        return names.sum();
+    }
+
+    /**
+     * @return heap taken by the cached names
+     */
+    public static long getHeapBytes() {
+        return heapBytes.sum();
+    }
+
+    /**
+     * @return cached name, encoded now if the cache is enabled, or <code>null</code>
+     */
+    public static <T> byte[] get(AtomicReferenceFieldUpdater<T, byte[]> field, T node, Supplier<String> name) {
+        byte[] bytes = field.get(node);
+        if (bytes == null && enabled) {
+            byte[] encoded = name.get().getBytes(StandardCharsets.UTF_8);
+            if (field.compareAndSet(node, null, encoded)) {
+                names.increment();
+                heapBytes.add(heapSize(encoded));
+            }
+            bytes = field.get(node);
+        }
+        return bytes == DROPPED ? null : bytes;
+    }
+
+    /**
+     * @return true if the node was evicted from its tree
+     */
+    public static <T> boolean isDropped(AtomicReferenceFieldUpdater<T, byte[]> field, T node) {
+        return field.get(node) == DROPPED;
+    }
+
+    public static <T> void drop(AtomicReferenceFieldUpdater<T, byte[]> field, T node) {
+        byte[] bytes = field.getAndSet(node, DROPPED);
+        if (bytes != null && bytes != DROPPED) {
+            names.decrement();
+            heapBytes.add(-heapSize(bytes));
+        }
+    }
+
+    private static long heapSize(byte[] bytes) {
+        return (ARRAY_HEADER_BYTES + bytes.length + 7) & ~7L;
+    }
+}
@@ -0,0 +1,537 @@
+package ru.yandex.market.graphouse.search.tree;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled glob of a level of a search query, matches names the same way as the <code>glob:</code>
+ * {@link java.nio.file.PathMatcher} of the default file system did: <code>*</code>, <code>?</code>,
+ * classes <code>[a-z]</code> and <code>[!a-z]</code>, groups <code>{a,b}</code> without nesting and
+ * <code>\</code> escapes. Only <code>**</code> matches <code>/</code>.
+ * <p>
+ * Matching doesn't allocate. Literal prefix and suffix of the glob are checked first, so most names are
+ * rejected without running the pattern, and <code>prefix*suffix</code> globs are matched by them only.
+ * Globs of groups and classes without stars, <code>?</code> and negation, like <code>{host1,host2}</code> or
+ * <code>cpu[0-3]</code>, are also expanded to the names they match, if there are few of them,
+ * so children are looked up by the names instead of matching all of them.
+ */
+public class GlobMatcher {
+
+    private final String prefix;
+    private final String suffix;
+    private final int minLength;
+    /**
+     * Pattern after the prefix, <code>null</code> if the prefix and the suffix are enough to match.
+     */
+    private final Node program;
+    /**
+     * If there's a star between the prefix and the suffix without the program.
+     */
+    private final boolean star;
+    private final boolean starMatchesSeparator;
+    private final String[] expandedNames;
+
+    private GlobMatcher(String prefix, String suffix, Node program, String[] expandedNames) {
+        this.expandedNames = expandedNames;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.minLength = prefix.length() + program.minLength();
+        if (program == End.INSTANCE) {
+            this.program = null;
+            this.star = false;
+            this.starMatchesSeparator = false;
+        } else if (program instanceof AnySequence
+            && (program.next == End.INSTANCE || program.next instanceof Literal && program.next.next == End.INSTANCE)) {
+            this.program = null;
+            this.star = true;
+            this.starMatchesSeparator = ((AnySequence) program).matchesSeparator;
+        } else {
+            this.program = program;
+            this.star = false;
+            this.starMatchesSeparator = false;
+        }
+    }
+
+    /**
+     * @param maxExpandedNames max names the glob is expanded to, 0 not to expand it
+     * @throws PatternSyntaxException if the glob is invalid, as the glob {@link java.nio.file.PathMatcher} does
+     */
+    public static GlobMatcher compile(String glob, int maxExpandedNames) {
+        Node program = new Parser(glob).parse();
+        String[] expandedNames = maxExpandedNames > 0 ? new Expansion(maxExpandedNames).expand(program) : null;
+        String prefix = "";
+        if (program instanceof Literal) {
+            prefix = ((Literal) program).literal;
+            program = program.next;
+        }
+        Node last = program;
+        while (last != End.INSTANCE && last.next != End.INSTANCE) {
+            last = last.next;
+        }
+        String suffix = last instanceof Literal ? ((Literal) last).literal : "";
+        return new GlobMatcher(prefix, suffix, program, expandedNames);
+    }
+
+    /**
+     * @return all names the glob matches, <code>null</code> if they are too many or unbounded
+     */
+    public String[] getExpandedNames() {
+        return expandedNames;
+    }
+
+    public boolean matches(CharSequence name) {
+        int length = name.length();
+        if (length < minLength || !regionMatches(name, 0, prefix)
+            || !regionMatches(name, length - suffix.length(), suffix)) {
+            return false;
+        }
+        if (program != null) {
+            return program.matches(name, prefix.length());
+        }
+        if (!star) {
+            return length == minLength;
+        }
+        return starMatchesSeparator || indexOfSeparator(name, prefix.length(), length - suffix.length()) < 0;
+    }
+
+    private static int indexOfSeparator(CharSequence name, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (name.charAt(i) == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence name, int offset, String literal) {
+        if (offset < 0 || offset + literal.length() > name.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (name.charAt(offset + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private abstract static class Node {
+        Node next;
+        private int minLength = -1;
+
+        /**
+         * @return if the rest of the name from the index matches this node and the following ones
+         */
+        abstract boolean matches(CharSequence name, int index);
+
+        /**
+         * @return min length of names matching this node and the following ones
+         */
+        final int minLength() {
+            if (minLength < 0) {
+                minLength = computeMinLength();
+            }
+            return minLength;
+        }
+
+        abstract int computeMinLength();
+
+        /**
+         * Adds names matching this node and the following ones after the current name of the expansion.
+         *
+         * @return <code>false</code> if the names are unbounded or too many
+         */
+        boolean expand(Expansion expansion) {
+            return false;
+        }
+    }
+
+    private static class End extends Node {
+        static final End INSTANCE = new End();
+
+        @Override
+        boolean matches(CharSequence name, int index) {
+            return index == name.length();
+        }
+
+        @Override
+        boolean expand(Expansion expansion) {
+            return expansion.add();
+        }
+
+        @Override
+        int computeMinLength() {
+            return 0;
+        }
+    }
+
+    private static class Literal extends Node {
+        final String literal;
+
+        Literal(String literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(CharSequence name, int index) {
+            return regionMatches(name, index, literal) && next.matches(name, index + literal.length());
+        }
+
+        @Override
+        int computeMinLength() {
+            return literal.length() + next.minLength();
+        }
+
+        @Override
+        boolean expand(Expansion expansion) {
+            int length = expansion.name.length();
+            expansion.name.append(literal);
+            boolean expanded = next.expand(expansion);
+            expansion.name.setLength(length);
+            return expanded;
+        }
+    }
+
+    /**
+     * <code>?</code> and classes.
+     */
+    private static class AnyChar extends Node {
+        /**
+         * Pairs of first and last chars of ranges of the class, <code>null</code> for <code>?</code>.
+         */
+        final char[] ranges;
+        final boolean negated;
+
+        AnyChar(char[] ranges, boolean negated) {
+            this.ranges = ranges;
+            this.negated = negated;
+        }
+
+        @Override
+        boolean matches(CharSequence name, int index) {
+            return index < name.length() && matches(name.charAt(index)) && next.matches(name, index + 1);
+        }
+
+        private boolean matches(char c) {
+            if (c == '/') {
+                return false;
+            }
+            if (ranges == null) {
+                return true;
+            }
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+
+        @Override
+        int computeMinLength() {
+            return 1 + next.minLength();
+        }
+
+        @Override
+        boolean expand(Expansion expansion) {
+            if (ranges == null || negated) {
+                return false;
+            }
+            int length = expansion.name.length();
+            for (int i = 0; i < ranges.length; i += 2) {
+                for (int c = ranges[i]; c <= ranges[i + 1]; c++) {
+                    if (c == '/') {
+                        continue;
+                    }
+                    expansion.name.append((char) c);
+                    boolean expanded = next.expand(expansion);
+                    expansion.name.setLength(length);
+                    if (!expanded) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * <code>*</code> and <code>**</code>.
+     */
+    private static class AnySequence extends Node {
+        final boolean matchesSeparator;
+
+        AnySequence(boolean matchesSeparator) {
+            this.matchesSeparator = matchesSeparator;
+        }
+
+        @Override
+        boolean matches(CharSequence name, int index) {
+            int length = name.length();
+            if (next == End.INSTANCE) {
+                return matchesSeparator || indexOfSeparator(name, index, length) < 0;
+            }
+            for (int i = index; i <= length - next.minLength(); i++) {
+                if (next.matches(name, i)) {
+                    return true;
+                }
+                if (!matchesSeparator && i < length && name.charAt(i) == '/') {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int computeMinLength() {
+            return next.minLength();
+        }
+    }
+
+    private static class Group extends Node {
+        final Node[] alternatives;
+
+        Group(Node[] alternatives) {
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        boolean matches(CharSequence name, int index) {
+            for (Node alternative : alternatives) {
+                if (alternative.matches(name, index)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int computeMinLength() {
+            int minLength = Integer.MAX_VALUE;
+            for (Node alternative : alternatives) {
+                minLength = Math.min(minLength, alternative.minLength());
+            }
+            return minLength;
+        }
+
+        @Override
+        boolean expand(Expansion expansion) {
+            for (Node alternative : alternatives) {
+                if (!alternative.expand(expansion)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Expansion {
+        private final int maxNames;
+        private final StringBuilder name = new StringBuilder();
+        private final Set<String> names = new LinkedHashSet<>();
+        /**
+         * Paths to the end of the glob, more than names if groups have the same alternatives.
+         */
+        private int paths = 0;
+
+        Expansion(int maxNames) {
+            this.maxNames = maxNames;
+        }
+
+        String[] expand(Node program) {
+            return program.expand(this) ? names.toArray(new String[0]) : null;
+        }
+
+        boolean add() {
+            names.add(name.toString());
+            return ++paths <= maxNames;
+        }
+    }
+
+    /**
+     * Follows <code>sun.nio.fs.Globs</code>, which the glob {@link java.nio.file.PathMatcher} uses.
+     */
+    private static class Parser {
+        private final String glob;
+        private int index = 0;
+
+        Parser(String glob) {
+            this.glob = glob;
+        }
+
+        Node parse() {
+            List<Node> nodes = new ArrayList<>();
+            while (index < glob.length()) {
+                char c = glob.charAt(index++);
+                if (c == '{') {
+                    nodes.add(parseGroup());
+                } else {
+                    nodes.add(parseNode(c, false));
+                }
+            }
+            return link(nodes, End.INSTANCE);
+        }
+
+        private Node parseGroup() {
+            List<List<Node>> alternatives = new ArrayList<>();
+            List<Node> alternative = new ArrayList<>();
+            while (true) {
+                if (index == glob.length()) {
+                    throw error("Missing '}'", index - 1);
+                }
+                char c = glob.charAt(index++);
+                if (c == '{') {
+                    throw error("Cannot nest groups", index - 1);
+                } else if (c == '}') {
+                    alternatives.add(alternative);
+                    break;
+                } else if (c == ',') {
+                    alternatives.add(alternative);
+                    alternative = new ArrayList<>();
+                } else {
+                    alternative.add(parseNode(c, true));
+                }
+            }
+            return new GroupBuilder(alternatives);
+        }
+
+        private Node parseNode(char c, boolean inGroup) {
+            switch (c) {
+                case '*':
+                    if (index < glob.length() && glob.charAt(index) == '*') {
+                        index++;
+                        return new AnySequence(true);
+                    }
+                    return new AnySequence(false);
+                case '?':
+                    return new AnyChar(null, false);
+                case '[':
+                    return parseClass();
+                case '\\':
+                    if (index == glob.length()) {
+                        throw error("No character to escape", index - 1);
+                    }
+                    return new Literal(String.valueOf(glob.charAt(index++)));
+                default:
+                    return new Literal(String.valueOf(c));
+            }
+        }
+
+        private Node parseClass() {
+            boolean negated = false;
+            StringBuilder ranges = new StringBuilder();
+            if (next() == '^') {
+                ranges.append("^^");
+                index++;
+            } else {
+                if (next() == '!') {
+                    negated = true;
+                    index++;
+                }
+                if (next() == '-') {
+                    ranges.append("--");
+                    index++;
+                }
+            }
+            boolean hasRangeStart = false;
+            char last = 0;
+            char c = 0;
+            while (index < glob.length()) {
+                c = glob.charAt(index++);
+                if (c == ']') {
+                    break;
+                }
+                if (c == '/') {
+                    throw error("Explicit 'name separator' in class", index - 1);
+                }
+                if (c == '-') {
+                    if (!hasRangeStart) {
+                        throw error("Invalid range", index - 1);
+                    }
+                    c = next();
+                    index++;
+                    if (c == 0 || c == ']') {
+                        // Trailing '-' is a literal
+                        ranges.append("--");
+                        break;
+                    }
+                    if (c < last) {
+                        throw error("Invalid range", index - 3);
+                    }
+                    ranges.setCharAt(ranges.length() - 1, c);
+                    hasRangeStart = false;
+                } else {
+                    ranges.append(c).append(c);
+                    hasRangeStart = true;
+                    last = c;
+                }
+            }
+            if (c != ']') {
+                throw error("Missing ']'", index - 1);
+            }
+            if (ranges.length() == 0) {
+                throw error("Empty class", index - 1);
+            }
+            return new AnyChar(ranges.toString().toCharArray(), negated);
+        }
+
+        private char next() {
+            return index < glob.length() ? glob.charAt(index) : 0;
+        }
+
+        private PatternSyntaxException error(String message, int position) {
+            return new PatternSyntaxException(message, glob, position);
+        }
+
+        /**
+         * Merges adjacent literals and links the nodes in order, groups link their alternatives to the next node.
+         */
+        private static Node link(List<Node> nodes, Node tail) {
+            Node next = tail;
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                Node node = nodes.get(i);
+                if (node instanceof GroupBuilder) {
+                    node = ((GroupBuilder) node).build(next);
+                } else if (node instanceof Literal && next instanceof Literal) {
+                    node = new Literal(((Literal) node).literal + ((Literal) next).literal);
+                    next = next.next;
+                }
+                node.next = next;
+                next = node;
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Alternatives of a group until the node after it is known.
+     */
+    private static class GroupBuilder extends Node {
+        private final List<List<Node>> alternatives;
+
+        GroupBuilder(List<List<Node>> alternatives) {
+            this.alternatives = alternatives;
+        }
+
+        Group build(Node next) {
+            Node[] linked = new Node[alternatives.size()];
+            for (int i = 0; i < linked.length; i++) {
+                linked[i] = Parser.link(alternatives.get(i), next);
+            }
+            return new Group(linked);
+        }
+
+        @Override
+        boolean matches(CharSequence name, int index) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        int computeMinLength() {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -3,15 +3,14 @@ package ru.yandex.market.graphouse.search.tree;
 import ru.yandex.market.graphouse.search.MetricStatus;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Dmitry Andreev <a href="mailto:AndreevDm@yandex-team.ru"></a>
  * @date 26/01/2017
  */
 public class InMemoryMetricDir extends MetricDir {
-    private volatile Map<String, MetricName> metrics;
-    private volatile Map<String, MetricDir> dirs;
+    private volatile ChildMap<MetricName> metrics;
+    private volatile ChildMap<MetricDir> dirs;
 
     public InMemoryMetricDir(MetricDir parent, String name, MetricStatus status) {
         super(parent, name, status);
@@ -21,7 +20,7 @@ public class InMemoryMetricDir extends MetricDir {
         if (dirs == null) {
             synchronized (this) {
                 if (dirs == null) {
-                    dirs = new ConcurrentHashMap<>();
+                    dirs = new ChildMap<>();
                 }
             }
         }
@@ -31,7 +30,7 @@ public class InMemoryMetricDir extends MetricDir {
         if (metrics == null) {
             synchronized (this) {
                 if (metrics == null) {
-                    metrics = new ConcurrentHashMap<>();
+                    metrics = new ChildMap<>();
                 }
             }
         }
@@ -19,6 +19,20 @@ public interface MetricDescription {
 
     void writeName(ClickHouseRowBinaryStream stream) throws IOException;
 
+    /**
+     * @return UTF-8 name from {@link EncodedNameCache}, or <code>null</code> if it is not cached
+     */
+    default byte[] getCachedEncodedName() {
+        return null;
+    }
+
+    /**
+     * @return true if the metric was evicted from its tree, so it won't see status changes anymore
+     */
+    default boolean isEvicted() {
+        return false;
+    }
+
     MetricStatus getStatus();
 
     boolean isDir();
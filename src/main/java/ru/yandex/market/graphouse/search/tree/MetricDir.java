@@ -115,7 +115,10 @@ public abstract class MetricDir extends MetricBase {
             if (metricBase.isDir()) {
                 getDirs().remove(metricBase.getName());
             } else {
-                getMetrics().remove(metricBase.getName());
+                MetricName removed = getMetrics().remove(metricBase.getName());
+                if (removed != null) {
+                    removed.dropEncodedName();
+                }
             }
         }
 
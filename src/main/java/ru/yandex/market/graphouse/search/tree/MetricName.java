@@ -1,11 +1,12 @@
 package ru.yandex.market.graphouse.search.tree;
 
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
 import ru.yandex.market.graphouse.retention.MetricRetention;
 import ru.yandex.market.graphouse.retention.RetentionProvider;
 import ru.yandex.market.graphouse.search.MetricStatus;
 
-import java.io.DataOutput;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * @author Dmitry Andreev <a href="mailto:AndreevDm@yandex-team.ru"></a>
@@ -13,7 +14,11 @@ import java.io.IOException;
  */
 public class MetricName extends MetricBase {
 
+    private static final AtomicReferenceFieldUpdater<MetricName, byte[]> ENCODED_NAME =
+        AtomicReferenceFieldUpdater.newUpdater(MetricName.class, byte[].class, "encodedName");
+
     private final MetricRetention retention;
+    private volatile byte[] encodedName;
 
     public MetricName(MetricDir parent, String name, MetricStatus status, RetentionProvider retentionProvider) {
         this(parent, name, status, retentionProvider.getRetention(parent.getName() + name));
@@ -37,4 +42,37 @@ public class MetricName extends MetricBase {
     public MetricRetention getRetention() {
         return retention;
     }
+
+    @Override
+    public byte[] getCachedEncodedName() {
+        return EncodedNameCache.get(ENCODED_NAME, this, this::getName);
+    }
+
+    @Override
+    public void writeName(ClickHouseRowBinaryStream stream) throws IOException {
+        byte[] bytes = getCachedEncodedName();
+        if (bytes == null) {
+            super.writeName(stream);
+        } else {
+            stream.writeBytes(bytes);
+        }
+    }
+
+    @Override
+    public int getNameLengthInBytes() {
+        byte[] bytes = getCachedEncodedName();
+        return bytes == null ? super.getNameLengthInBytes() : bytes.length;
+    }
+
+    /**
+     * Called when the metric is evicted from the tree.
+     */
+    public void dropEncodedName() {
+        EncodedNameCache.drop(ENCODED_NAME, this);
+    }
+
+    @Override
+    public boolean isEvicted() {
+        return EncodedNameCache.isDropped(ENCODED_NAME, this);
+    }
 }
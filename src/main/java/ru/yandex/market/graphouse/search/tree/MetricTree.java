@@ -1,18 +1,17 @@
 package ru.yandex.market.graphouse.search.tree;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import ru.yandex.market.graphouse.MetricUtil;
 import ru.yandex.market.graphouse.retention.RetentionProvider;
-import ru.yandex.market.graphouse.search.MetricPath;
 import ru.yandex.market.graphouse.search.MetricStatus;
 import ru.yandex.market.graphouse.utils.AppendableResult;
 
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.PatternSyntaxException;
 
 /**
@@ -24,6 +23,7 @@ public class MetricTree {
     public static final String ALL_PATTERN = "*";
 
     private static final CharMatcher EXPRESSION_MATCHER = CharMatcher.anyOf(ALL_PATTERN + "?[]{}");
+    private static final int GLOB_MATCHER_CACHE_SIZE = 10_000;
     final MetricDir root = new InMemoryMetricDir(null, "", MetricStatus.SIMPLE);
 
     private final MetricDirFactory metricDirFactory;
@@ -34,6 +34,14 @@ public class MetricTree {
     private final String subdirsPerDirLimitMessage;
     private final String metricsPerDirLimitMessage;
 
+    private final AtomicLong statusVersion = new AtomicLong();
+    /**
+     * Compiled globs of levels of recent queries, dashboards repeat the same ones.
+     */
+    private final Cache<String, GlobMatcher> globMatchers = Caffeine.newBuilder()
+        .maximumSize(GLOB_MATCHER_CACHE_SIZE)
+        .build();
+    private volatile int maxExpandedNames = 0;
 
     public MetricTree(MetricDirFactory metricDirFactory, RetentionProvider retentionProvider,
                       int maxSubDirsPerDir, int maxMetricsPerDir) {
@@ -73,16 +81,7 @@ public class MetricTree {
 
 
         if (!isPattern) {
-            if (parentDir.hasDirs()) {
-                if (isLast) {
-                    appendSimpleResult(parentDir.getDirs(), level, result, false);
-                } else {
-                    search(parentDir.getDirs().get(level), levels, levelIndex + 1, result);
-                }
-            }
-            if (isLast && parentDir.hasMetrics()) {
-                appendSimpleResult(parentDir.getMetrics(), level, result, false);
-            }
+            searchName(parentDir, level, levels, levelIndex, result);
         } else if (level.equals(ALL_PATTERN)) {
             if (isLast) {
                 appendLimitNotificationsIfNeeded(parentDir, result);
@@ -98,25 +97,47 @@ public class MetricTree {
                 }
             }
         } else {
-            PathMatcher pathMatcher = createPathMatcher(level);
-            if (pathMatcher == null) {
+            GlobMatcher globMatcher = getGlobMatcher(level);
+            if (globMatcher == null) {
+                return;
+            }
+            String[] names = globMatcher.getExpandedNames();
+            if (names != null) {
+                for (String name : names) {
+                    searchName(parentDir, name, levels, levelIndex, result);
+                }
                 return;
             }
             if (parentDir.hasDirs()) {
                 if (isLast) {
-                    appendAllPatternResult(parentDir.getDirs(), pathMatcher, result, false);
+                    appendAllPatternResult(parentDir.getDirs(), globMatcher, result, false);
                 } else {
                     for (Map.Entry<String, MetricDir> dirEntry : parentDir.getDirs().entrySet()) {
-                        if (matches(pathMatcher, dirEntry.getKey())) {
+                        if (globMatcher.matches(dirEntry.getKey())) {
                             search(dirEntry.getValue(), levels, levelIndex + 1, result);
                         }
                     }
                 }
             }
             if (isLast && parentDir.hasMetrics()) {
-                appendAllPatternResult(parentDir.getMetrics(), pathMatcher, result, false);
+                appendAllPatternResult(parentDir.getMetrics(), globMatcher, result, false);
+            }
+        }
+    }
+
+    private void searchName(MetricDir parentDir, String name, String[] levels, int levelIndex,
+                            AppendableResult result) throws IOException {
+        boolean isLast = (levelIndex == levels.length - 1);
+        if (parentDir.hasDirs()) {
+            if (isLast) {
+                appendSimpleResult(parentDir.getDirs(), name, result, false);
+            } else {
+                search(parentDir.getDirs().get(name), levels, levelIndex + 1, result);
             }
         }
+        if (isLast && parentDir.hasMetrics()) {
+            appendSimpleResult(parentDir.getMetrics(), name, result, false);
+        }
     }
 
 
@@ -141,14 +162,7 @@ public class MetricTree {
         Map<String, MetricDir> dirs = parentDir.maybeGetDirs();
         Map<String, MetricName> metrics = parentDir.maybeGetMetrics();
         if (!isPattern) {
-            if (isLast) {
-                appendSimpleResult(dirs, level, result, true);
-            } else {
-                searchCachedMetrics(dirs.get(level), levels, levelIndex + 1, result);
-            }
-            if (isLast) {
-                appendSimpleResult(metrics, level, result, true);
-            }
+            searchCachedName(dirs, metrics, level, levels, levelIndex, result);
         } else if (level.equals(ALL_PATTERN)) {
             if (isLast) {
                 appendAllResult(dirs, result, true);
@@ -159,25 +173,43 @@ public class MetricTree {
                 }
             }
         } else {
-            PathMatcher pathMatcher = createPathMatcher(level);
-            if (pathMatcher == null) {
+            GlobMatcher globMatcher = getGlobMatcher(level);
+            if (globMatcher == null) {
+                return;
+            }
+            String[] names = globMatcher.getExpandedNames();
+            if (names != null) {
+                for (String name : names) {
+                    searchCachedName(dirs, metrics, name, levels, levelIndex, result);
+                }
                 return;
             }
             if (isLast) {
-                appendAllPatternResult(dirs, pathMatcher, result, true);
+                appendAllPatternResult(dirs, globMatcher, result, true);
             } else {
                 for (Map.Entry<String, MetricDir> dirEntry : dirs.entrySet()) {
-                    if (matches(pathMatcher, dirEntry.getKey())) {
+                    if (globMatcher.matches(dirEntry.getKey())) {
                         searchCachedMetrics(dirEntry.getValue(), levels, levelIndex + 1, result);
                     }
                 }
             }
             if (isLast) {
-                appendAllPatternResult(metrics, pathMatcher, result, true);
+                appendAllPatternResult(metrics, globMatcher, result, true);
             }
         }
     }
 
+    private void searchCachedName(Map<String, MetricDir> dirs, Map<String, MetricName> metrics, String name,
+                                  String[] levels, int levelIndex, AppendableResult result) throws IOException {
+        boolean isLast = (levelIndex == levels.length - 1);
+        if (isLast) {
+            appendSimpleResult(dirs, name, result, true);
+            appendSimpleResult(metrics, name, result, true);
+        } else {
+            searchCachedMetrics(dirs.get(name), levels, levelIndex + 1, result);
+        }
+    }
+
     private void appendLimitNotificationsIfNeeded(MetricDir parentDir, AppendableResult result) throws IOException {
         if (maxSubDirsPerDir > 0 && parentDir.hasDirs() && parentDir.getDirs().size() >= maxSubDirsPerDir) {
             result.appendMetric(new NotificationMetric(parentDir, subdirsPerDirLimitMessage));
@@ -188,11 +220,11 @@ public class MetricTree {
     }
 
     private <T extends MetricBase> void appendAllPatternResult(
-        Map<String, T> map, PathMatcher pathMatcher, AppendableResult result, boolean forceAppend
+        Map<String, T> map, GlobMatcher globMatcher, AppendableResult result, boolean forceAppend
     ) throws IOException {
         if (map != null) {
             for (MetricBase metricBase : map.values()) {
-                if (matches(pathMatcher, metricBase.name)) {
+                if (globMatcher.matches(metricBase.name)) {
                     appendResult(metricBase, result, forceAppend);
                 }
             }
@@ -223,21 +255,31 @@ public class MetricTree {
         }
     }
 
+    /**
+     * @param maxExpandedNames max names a glob of a level is expanded to for lookups of children by them,
+     *                         instead of matching all children, 0 to match all children always
+     */
+    public void setMaxExpandedNames(int maxExpandedNames) {
+        this.maxExpandedNames = maxExpandedNames;
+        globMatchers.invalidateAll();
+    }
+
+    private GlobMatcher getGlobMatcher(String glob) {
+        return globMatchers.get(glob, key -> createGlobMatcher(key, maxExpandedNames));
+    }
+
+    /**
+     * @return <code>null</code> if the glob is invalid
+     */
     @VisibleForTesting
-    static PathMatcher createPathMatcher(String globPattern) {
+    static GlobMatcher createGlobMatcher(String glob, int maxExpandedNames) {
         try {
-            return FileSystems.getDefault().getPathMatcher("glob:" + globPattern);
+            return GlobMatcher.compile(glob, maxExpandedNames);
         } catch (PatternSyntaxException e) {
             return null;
         }
     }
 
-    @VisibleForTesting
-    static boolean matches(PathMatcher pathMatcher, final String fileName) {
-        Path mockPath = new MetricPath(fileName);
-        return pathMatcher.matches(mockPath);
-    }
-
     public int metricCount() {
         return root.loadedMetricCount();
     }
@@ -327,6 +369,23 @@ public class MetricTree {
         throw new IllegalStateException();
     }
 
+    /**
+     * Changes every time statuses may have changed out of the loaded nodes: a metric not loaded to the tree
+     * got a new status. Descriptions found before may be banned or hidden since then, if the version has changed.
+     * Status changes of the loaded nodes are visible in the descriptions themselves,
+     * and evicted metrics are marked, see {@link MetricDescription#isEvicted()}.
+     */
+    public long getStatusVersion() {
+        return statusVersion.get();
+    }
+
+    /**
+     * For status changes of metrics, which are not loaded to the tree, but may have been loaded before.
+     */
+    public void incrementStatusVersion() {
+        statusVersion.incrementAndGet();
+    }
+
     @VisibleForTesting
     static boolean containsExpressions(String metric) {
         return EXPRESSION_MATCHER.matchesAnyOf(metric);
@@ -0,0 +1,61 @@
+package ru.yandex.market.graphouse.server;
+
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and statistics common for all handoff implementations.
+ * Every stage reports its latency, so it is visible where batches wait:
+ * in the handoff, in the parsers or for a place in the {@link MetricCacher} queue.
+ */
+public abstract class BaseLineBatchProcessor implements LineBatchProcessor {
+
+    private final MetricFactory metricFactory;
+    private final MetricCacher metricCacher;
+    protected final StatisticsService statisticsService;
+
+    protected BaseLineBatchProcessor(MetricFactory metricFactory, MetricCacher metricCacher,
+                                     StatisticsService statisticsService) {
+        this.metricFactory = metricFactory;
+        this.metricCacher = metricCacher;
+        this.statisticsService = statisticsService;
+    }
+
+    /**
+     * Adds metrics of all valid lines of the batch to the list.
+     *
+     * @param submittedNanos {@link System#nanoTime()} when the batch was handed over
+     */
+    protected void parse(LineBatch batch, long submittedNanos, List<Metric> metrics) {
+        long startNanos = System.nanoTime();
+        statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_HANDED_OFF_BATCHES, 1);
+        statisticsService.accumulateMetric(AccumulatedMetric.HANDOFF_WAIT_MILLIS, toMillis(startNanos - submittedNanos));
+        int updatedSeconds = batch.getUpdatedSeconds();
+        batch.forEachLine((bytes, offset, length) -> {
+            Metric metric = metricFactory.createMetric(bytes, offset, length, updatedSeconds);
+            if (metric != null) {
+                metrics.add(metric);
+            }
+        });
+        statisticsService.accumulateMetric(AccumulatedMetric.PARSE_MILLIS, toMillis(System.nanoTime() - startNanos));
+    }
+
+    protected void save(List<Metric> metrics) {
+        long startNanos = System.nanoTime();
+        metricCacher.submitMetrics(metrics);
+        statisticsService.accumulateMetric(AccumulatedMetric.CACHER_SUBMIT_MILLIS, toMillis(System.nanoTime() - startNanos));
+    }
+
+    protected void readerBlocked(long blockedNanos) {
+        statisticsService.accumulateMetric(AccumulatedMetric.HANDOFF_BLOCKED_MILLIS, toMillis(blockedNanos));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -6,6 +6,7 @@ import ru.yandex.market.graphouse.Metric;
 import ru.yandex.market.graphouse.MetricValidator;
 import ru.yandex.market.graphouse.search.tree.MetricDescription;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 public abstract class BaseMetricFactory implements MetricFactory {
@@ -14,6 +15,8 @@ public abstract class BaseMetricFactory implements MetricFactory {
     private final boolean redirectHostMetrics;
     private final String hostMetricDir;
     private final List<String> hostPostfixes;
+    private final ThreadLocal<GraphiteLineParser> lineParser = ThreadLocal.withInitial(GraphiteLineParser::new);
+    private MetricNameCache nameCache;
 
     public BaseMetricFactory(MetricValidator metricValidator, boolean redirectHostMetrics, String hostMetricDir, String hostPostfixes) {
         this.metricValidator = metricValidator;
@@ -39,42 +42,71 @@ public abstract class BaseMetricFactory implements MetricFactory {
      */
     @Override
     public Metric createMetric(String line, int updatedSeconds) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return createMetric(bytes, 0, bytes.length, updatedSeconds);
+    }
 
-        String[] splits = line.split(" ");
-        if (splits.length != 3) {
+    /**
+     * Same as {@link #createMetric(String, int)}, but doesn't create any objects except the metric itself
+     * for metrics found in {@link MetricNameCache}.
+     */
+    @Override
+    public Metric createMetric(byte[] line, int offset, int length, int updatedSeconds) {
+        GraphiteLineParser parser = lineParser.get();
+        if (!parser.parse(line, offset, length)) {
             return null;
         }
-        String name = processName(splits[0]);
+        return createMetric(
+            line, parser.getNameOffset(), parser.getNameLength(),
+            parser.getValue(), parser.getTimestampSeconds(), updatedSeconds
+        );
+    }
 
-        try {
-            MetricDescription metricDescription = getOrCreateMetricDescription(name);
+    @Override
+    public Metric createMetric(byte[] name, int offset, int length, double value, int timestampSeconds,
+                               int updatedSeconds) {
+        if (length == 0 || !Double.isFinite(value) || timestampSeconds <= 0) {
+            return null;
+        }
+        long statusVersion = nameCache != null ? getStatusVersion() : -1;
+        MetricDescription metricDescription = null;
+        if (statusVersion >= 0) {
+            metricDescription = nameCache.get(name, offset, length, statusVersion);
+        }
+        if (metricDescription == null) {
+            String nameString = new String(name, offset, length, StandardCharsets.UTF_8);
+            try {
+                metricDescription = getOrCreateMetricDescription(processName(nameString));
+            } catch (RuntimeException e) {
+                getLog().error("Error on get MetricDescription for metric '" + nameString + "'. Data may be lost.", e);
+                return null;
+            }
             if (metricDescription == null) {
                 return null;
             }
-
-            return createMetric(metricDescription, splits, updatedSeconds);
-        } catch (RuntimeException e) {
-            getLog().error("Error on get MetricDescription for line '" + line + "'. Data may be lost.", e);
-            return null;
+            if (statusVersion >= 0 && metricDescription.getStatus().visible()) {
+                nameCache.put(name, offset, length, statusVersion, metricDescription);
+            }
         }
+        return new Metric(metricDescription, timestampSeconds, value, updatedSeconds);
     }
 
     protected abstract MetricDescription getOrCreateMetricDescription(String name);
 
-    private Metric createMetric(MetricDescription metric, String[] metricParts, int updatedSeconds) {
-        try {
-            double value = Double.parseDouble(metricParts[1]);
-            if (!Double.isFinite(value)) {
-                return null;
-            }
-            int timeSeconds = (int) Math.round(Double.parseDouble(metricParts[2]));
-            if (timeSeconds <= 0) {
-                return null;
-            }
-            return new Metric(metric, timeSeconds, value, updatedSeconds);
-        } catch (NumberFormatException e) {
-            return null;
-        }
+    /**
+     * Version of metric statuses, see {@link ru.yandex.market.graphouse.search.tree.MetricTree#getStatusVersion()}.
+     *
+     * @return negative value if descriptions of this factory can't be cached by name
+     */
+    protected long getStatusVersion() {
+        return -1;
+    }
+
+    /**
+     * @param nameCache cache for metrics created from bytes, <code>null</code> to disable
+     */
+    public void setNameCache(MetricNameCache nameCache) {
+        this.nameCache = nameCache;
     }
 
     protected String processName(String name) {
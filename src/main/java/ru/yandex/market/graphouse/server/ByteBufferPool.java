@@ -0,0 +1,43 @@
+package ru.yandex.market.graphouse.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct buffers of the same size.
+ * Direct buffers are expensive to allocate and are released only on GC, so receivers reuse them.
+ */
+public class ByteBufferPool {
+
+    private final int bufferSizeBytes;
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * @param bufferSizeBytes size of every buffer
+     * @param maxPooledBuffers buffers above this count are not kept in the pool after release
+     */
+    public ByteBufferPool(int bufferSizeBytes, int maxPooledBuffers) {
+        this.bufferSizeBytes = bufferSizeBytes;
+        this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSizeBytes);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSizeBytes) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSizeBytes() {
+        return bufferSizeBytes;
+    }
+}
@@ -0,0 +1,216 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.base.Splitter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.InstantMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per client admission control of the ingest: every source address has a token bucket of lines.
+ * TCP receivers stop reading a connection of a client, which exceeded its rate, for the time the debt takes
+ * to refill, so the client gets TCP back pressure while the others keep flowing.
+ * UDP has no back pressure, so datagrams over the rate are shed.
+ * Enabled with <code>graphouse.cacher.admission.enabled=true</code>.
+ */
+public class ClientAdmission {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final long IDLE_BUCKET_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final long CLEANUP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    @Value("${graphouse.cacher.admission.enabled}")
+    private boolean enabled = false;
+
+    @Value("${graphouse.cacher.admission.lines-per-second}")
+    private double linesPerSecond = 100_000;
+
+    @Value("${graphouse.cacher.admission.burst-seconds}")
+    private double burstSeconds = 1;
+
+    @Value("${graphouse.cacher.admission.client-lines-per-second}")
+    private String clientLinesPerSecond = "";
+
+    private final StatisticsService statisticsService;
+    private final Map<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastCleanupNanos = new AtomicLong(System.nanoTime());
+    private volatile Map<String, Double> clientRates;
+
+    public ClientAdmission(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+        statisticsService.registerInstantMetric(InstantMetric.ADMISSION_CLIENTS, () -> (double) buckets.size());
+        statisticsService.registerInstantMetric(
+            InstantMetric.ADMISSION_THROTTLED_CLIENTS,
+            () -> (double) buckets.values().stream().filter(Bucket::inDebt).count()
+        );
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return bucket shared by all connections of the address,
+     * <code>null</code> if admission is disabled or the address is not limited
+     */
+    public Bucket getBucket(InetAddress address) {
+        if (!enabled) {
+            return null;
+        }
+        cleanupIdleBuckets();
+        Bucket bucket = buckets.get(address);
+        if (bucket == null) {
+            double rate = getClientRates().getOrDefault(address.getHostAddress(), linesPerSecond);
+            if (rate <= 0) {
+                return null;
+            }
+            bucket = buckets.computeIfAbsent(address, a -> new Bucket(a, rate, rate * burstSeconds));
+        }
+        return bucket;
+    }
+
+    /**
+     * Takes tokens for the lines, which are already read. The bucket may go to debt.
+     *
+     * @return nanos the client must not be read for, 0 if it's within its rate
+     */
+    public long acquire(Bucket bucket, int lines) {
+        if (bucket == null || lines == 0) {
+            return 0;
+        }
+        long delayNanos = bucket.acquire(lines);
+        if (delayNanos > 0) {
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_THROTTLED_READS, 1);
+            statisticsService.accumulateMetric(
+                AccumulatedMetric.THROTTLED_MILLIS, TimeUnit.NANOSECONDS.toMillis(delayNanos)
+            );
+            bucket.logThrottled();
+        }
+        return delayNanos;
+    }
+
+    /**
+     * Takes tokens only if all the lines fit in the bucket, for receivers which can't delay the client.
+     *
+     * @return <code>false</code> if the lines have to be shed
+     */
+    public boolean tryAcquire(Bucket bucket, int lines) {
+        if (bucket == null || lines == 0) {
+            return true;
+        }
+        if (bucket.tryAcquire(lines)) {
+            return true;
+        }
+        statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_SHED_LINES, lines);
+        bucket.logThrottled();
+        return false;
+    }
+
+    private Map<String, Double> getClientRates() {
+        if (clientRates == null) {
+            Map<String, Double> rates = new ConcurrentHashMap<>();
+            Splitter.on(',').omitEmptyStrings().trimResults().withKeyValueSeparator('=')
+                .split(clientLinesPerSecond)
+                .forEach((address, rate) -> rates.put(address, Double.parseDouble(rate)));
+            clientRates = rates;
+        }
+        return clientRates;
+    }
+
+    private void cleanupIdleBuckets() {
+        long now = System.nanoTime();
+        long lastCleanup = lastCleanupNanos.get();
+        if (now - lastCleanup < CLEANUP_INTERVAL_NANOS || !lastCleanupNanos.compareAndSet(lastCleanup, now)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.idleSince(now - IDLE_BUCKET_NANOS));
+    }
+
+    public static class Bucket {
+        private final InetAddress address;
+        private final double linesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+        private long lastLogNanos;
+
+        Bucket(InetAddress address, double linesPerSecond, double capacity) {
+            this.address = address;
+            this.linesPerNano = linesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(capacity, 1);
+            this.tokens = this.capacity;
+            this.lastRefillNanos = System.nanoTime();
+            this.lastLogNanos = lastRefillNanos - LOG_INTERVAL_NANOS;
+        }
+
+        synchronized long acquire(int lines) {
+            refill();
+            tokens -= lines;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / linesPerNano);
+        }
+
+        synchronized boolean tryAcquire(int lines) {
+            refill();
+            if (tokens < lines) {
+                return false;
+            }
+            tokens -= lines;
+            return true;
+        }
+
+        synchronized boolean inDebt() {
+            return tokens + (System.nanoTime() - lastRefillNanos) * linesPerNano < 0;
+        }
+
+        synchronized boolean idleSince(long nanos) {
+            return lastRefillNanos < nanos;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * linesPerNano);
+            lastRefillNanos = now;
+        }
+
+        private void logThrottled() {
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (now - lastLogNanos < LOG_INTERVAL_NANOS) {
+                    return;
+                }
+                lastLogNanos = now;
+            }
+            log.warn(
+                "Client " + address.getHostAddress() + " exceeds " +
+                    Math.round(linesPerNano * TimeUnit.SECONDS.toNanos(1)) + " lines/sec, throttling"
+            );
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setLinesPerSecond(double linesPerSecond) {
+        this.linesPerSecond = linesPerSecond;
+    }
+
+    public void setBurstSeconds(double burstSeconds) {
+        this.burstSeconds = burstSeconds;
+    }
+
+    public void setClientLinesPerSecond(String clientLinesPerSecond) {
+        this.clientLinesPerSecond = clientLinesPerSecond;
+        this.clientRates = null;
+    }
+}
@@ -0,0 +1,220 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+/**
+ * Graphite plaintext receiver of compressed streams, for relays sending over slow links.
+ * The codec is set for the port with <code>graphouse.cacher.compressed.codec</code>
+ * or detected by the magic header of every connection, see {@link StreamCodec}.
+ * Decompressed lines go to the same parsers as the plain ones.
+ * Every connection is read and decompressed by its own thread.
+ * Enabled with <code>graphouse.cacher.compressed.enabled=true</code>, works along with the plaintext receiver.
+ */
+public class CompressedMetricServer implements InitializingBean, MetricReceiver {
+
+    private static final Logger log = LogManager.getLogger();
+
+    @Value("${graphouse.cacher.compressed.enabled}")
+    private boolean enabled;
+
+    @Value("${graphouse.cacher.compressed.port}")
+    private int port;
+
+    @Value("${graphouse.cacher.bind-address}")
+    private String bindAddress;
+
+    @Value("${graphouse.cacher.socket-timeout-millis}")
+    private int socketTimeoutMillis;
+
+    @Value("${graphouse.cacher.compressed.codec}")
+    private String codecName;
+
+    @Value("${graphouse.cacher.compressed.threads}")
+    private int threadCount;
+
+    @Value("${graphouse.cacher.compressed.parser-threads}")
+    private int parserThreadCount;
+
+    @Value("${graphouse.cacher.read-batch-size}")
+    private int readBatchSize;
+
+    @Value("${graphouse.log.remote-socket-address:false}")
+    private boolean shouldLogRemoteSocketAddress;
+
+    private final MetricCacher metricCacher;
+    private final MetricFactory metricFactory;
+    private final LineBatchProcessorFactory lineBatchProcessorFactory;
+    private final ClientAdmission clientAdmission;
+
+    private StreamCodec codec;
+    private ServerSocket serverSocket;
+    private ExecutorService readersExecutorService;
+    private LineBatchProcessor lineBatchProcessor;
+
+    public CompressedMetricServer(MetricCacher metricCacher, MetricFactory metricFactory,
+                                  LineBatchProcessorFactory lineBatchProcessorFactory,
+                                  ClientAdmission clientAdmission) {
+        this.metricCacher = metricCacher;
+        this.metricFactory = metricFactory;
+        this.lineBatchProcessorFactory = lineBatchProcessorFactory;
+        this.clientAdmission = clientAdmission;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            log.info("Compressed metric server disabled");
+            return;
+        }
+        codec = StreamCodec.forName(codecName);
+        log.info(
+            "Starting compressed metric server on port: {} with codec {} and factory {}",
+            port, codec, metricFactory.getClass().getSimpleName()
+        );
+        serverSocket = new ServerSocket();
+        SocketAddress socketAddress;
+        if (Strings.isNullOrEmpty(bindAddress)) {
+            socketAddress = new InetSocketAddress(port);
+        } else {
+            socketAddress = new InetSocketAddress(bindAddress, port);
+        }
+        serverSocket.bind(socketAddress);
+
+        lineBatchProcessor = lineBatchProcessorFactory.create(metricFactory, metricCacher, parserThreadCount);
+        readersExecutorService = Executors.newFixedThreadPool(
+            threadCount,
+            new ThreadFactoryBuilder().setNameFormat("compressed-reader-thread-%d").build()
+        );
+        for (int i = 0; i < threadCount; i++) {
+            readersExecutorService.submit(new CompressedServerWorker());
+        }
+
+        log.info("Compressed metric server started on port " + port);
+    }
+
+    /**
+     * Stops reading and waits for the parsers.
+     */
+    @Override
+    public void shutdown() {
+        if (serverSocket == null) {
+            return;
+        }
+        log.info("Shutting down compressed metric server");
+        readersExecutorService.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        while (!readersExecutorService.isTerminated()) {
+            log.info("Awaiting compressed readers completion");
+            try {
+                readersExecutorService.awaitTermination(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        lineBatchProcessor.shutdown();
+        lineBatchProcessor.awaitTermination();
+        log.info("Compressed metric server stopped");
+    }
+
+    private class CompressedServerWorker implements Runnable {
+
+        private final StreamLineReader lineReader = new StreamLineReader(
+            lineBatchProcessor, clientAdmission, readBatchSize
+        );
+
+        @Override
+        public void run() {
+            while (!Thread.interrupted() && !serverSocket.isClosed()) {
+                try {
+                    read();
+                } catch (Throwable t) {
+                    log.warn("Reading from compressed socket has been failed", t);
+                }
+            }
+            log.info("CompressedServerWorker stopped");
+        }
+
+        private void read() throws IOException {
+            lineReader.clear();
+            Socket socket = serverSocket.accept();
+            String remoteAddress = socket.getRemoteSocketAddress().toString();
+            if (shouldLogRemoteSocketAddress) {
+                log.info("Compressed connection accepted. Client's address: '{}'", remoteAddress);
+            }
+            try {
+                socket.setSoTimeout(socketTimeoutMillis);
+                socket.setKeepAlive(false);
+                ClientAdmission.Bucket bucket = clientAdmission.getBucket(socket.getInetAddress());
+                lineReader.readLines(
+                    codec.decompress(socket.getInputStream()), bucket, () -> Thread.currentThread().isInterrupted()
+                );
+            } catch (SocketTimeoutException e) {
+                log.warn("Socket timeout from " + remoteAddress);
+            } catch (SocketException e) {
+                log.warn("Socket exception from " + remoteAddress);
+            } catch (ZipException | EOFException e) {
+                log.warn("Invalid compressed stream from " + remoteAddress + ": " + e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.warn("Error on socket close", e);
+                }
+            }
+            lineReader.submitBatch();
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public void setCodecName(String codecName) {
+        this.codecName = codecName;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setParserThreadCount(int parserThreadCount) {
+        this.parserThreadCount = parserThreadCount;
+    }
+
+    public void setReadBatchSize(int readBatchSize) {
+        this.readBatchSize = readBatchSize;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses batches in a thread pool. When the pool queue is full, the reader parses the batch itself.
+ */
+public class ExecutorLineBatchProcessor extends BaseLineBatchProcessor {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final RejectedExecutionHandler CALLER_RUNS = new ThreadPoolExecutor.CallerRunsPolicy();
+
+    private final ThreadPoolExecutor executorService;
+
+    public ExecutorLineBatchProcessor(MetricFactory metricFactory, MetricCacher metricCacher,
+                                      StatisticsService statisticsService, int threadCount) {
+        super(metricFactory, metricCacher, statisticsService);
+        this.executorService = new ThreadPoolExecutor(
+            threadCount,
+            threadCount,
+            1, TimeUnit.SECONDS,
+            // Queue is limited so that we won't eat all available memory if we are reading metrics from sockets faster
+            // than we are able to write them to ClickHouse.
+            new ArrayBlockingQueue<>(10 * threadCount),
+            new ThreadFactoryBuilder().setNameFormat("parser-thread-%d").build(),
+            // Whenever a task is rejected because the task queue is full we will run it in the thread that attempted to
+            // enqueue it. This ensures that (1) we won't just ignore rejected tasks and (2) we will stop reading new
+            // metrics from sockets when the queue is full. Tasks of trySubmit are rejected back to the caller.
+            (task, executor) -> {
+                if (task instanceof TrySubmitTask) {
+                    throw new RejectedExecutionException();
+                }
+                CALLER_RUNS.rejectedExecution(task, executor);
+            }
+        );
+    }
+
+    @Override
+    public LineBatch submit(LineBatch batch) {
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        long submittedNanos = System.nanoTime();
+        executorService.execute(() -> parseAndSave(batch, submittedNanos));
+        readerBlocked(System.nanoTime() - submittedNanos);
+        return new LineBatch(batch.getCapacityBytes());
+    }
+
+    @Override
+    public LineBatch trySubmit(LineBatch batch) {
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        long submittedNanos = System.nanoTime();
+        try {
+            executorService.execute(new TrySubmitTask(() -> parseAndSave(batch, submittedNanos)));
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return new LineBatch(batch.getCapacityBytes());
+    }
+
+    /**
+     * Marks tasks, which must not be run by the caller when the queue is full.
+     */
+    private static class TrySubmitTask implements Runnable {
+        private final Runnable task;
+
+        TrySubmitTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private void parseAndSave(LineBatch batch, long submittedNanos) {
+        List<Metric> metrics = new ArrayList<>(batch.getLineCount());
+        parse(batch, submittedNanos, metrics);
+        save(metrics);
+    }
+
+    @Override
+    public int getQueueSize() {
+        return executorService.getQueue().size();
+    }
+
+    @Override
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    @Override
+    public void awaitTermination() {
+        while (!executorService.isTerminated()) {
+            log.info("Awaiting parsers completion");
+            try {
+                executorService.awaitTermination(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
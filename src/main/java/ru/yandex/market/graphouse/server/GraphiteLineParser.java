@@ -0,0 +1,182 @@
+package ru.yandex.market.graphouse.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a Graphite plaintext line "name value timestamp" and parses the numbers without creating Strings.
+ * Accepts exactly the lines {@link BaseMetricFactory#createMetric(String, int)} accepts.
+ * Not thread safe: holds the result of the last {@link #parse} call.
+ */
+public class GraphiteLineParser {
+
+    private static final byte SEPARATOR = ' ';
+
+    /**
+     * Larger mantissas can't be represented exactly and need a proper decimal-to-binary conversion.
+     */
+    private static final int MAX_FAST_PATH_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private int nameOffset;
+    private int nameLength;
+    private double value;
+    private int timestampSeconds;
+
+    /**
+     * @return false if the line is not a valid metric line
+     */
+    public boolean parse(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int nameEnd = indexOf(bytes, offset, end, SEPARATOR);
+        if (nameEnd <= offset) {
+            return false;
+        }
+        int valueEnd = indexOf(bytes, nameEnd + 1, end, SEPARATOR);
+        if (valueEnd < 0) {
+            return false;
+        }
+        int timestampEnd = indexOf(bytes, valueEnd + 1, end, SEPARATOR);
+        if (timestampEnd < 0) {
+            timestampEnd = end;
+        } else {
+            // Same as String.split: trailing separators are ignored, anything else means extra fields
+            for (int i = timestampEnd; i < end; i++) {
+                if (bytes[i] != SEPARATOR) {
+                    return false;
+                }
+            }
+        }
+        try {
+            value = parseDouble(bytes, nameEnd + 1, valueEnd);
+            if (!Double.isFinite(value)) {
+                return false;
+            }
+            timestampSeconds = (int) Math.round(parseDouble(bytes, valueEnd + 1, timestampEnd));
+            if (timestampSeconds <= 0) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        nameOffset = offset;
+        nameLength = nameEnd - offset;
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses plain decimal numbers like "-12.5e3" in place, when the result is exact.
+     * Everything else (long mantissas, NaN, hex, etc.) is handed to {@link Double#parseDouble},
+     * so the result is always the same as of {@link Double#parseDouble}.
+     *
+     * @throws NumberFormatException if {@link Double#parseDouble} throws it
+     */
+    static double parseDouble(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        for (; i < to && isDigit(bytes[i]); i++) {
+            hasDigits = true;
+            if (mantissa != 0 || bytes[i] != '0') {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                significantDigits++;
+            }
+            if (significantDigits > MAX_FAST_PATH_DIGITS) {
+                return parseDoubleSlow(bytes, from, to);
+            }
+        }
+        if (i < to && bytes[i] == '.') {
+            for (i++; i < to && isDigit(bytes[i]); i++) {
+                hasDigits = true;
+                if (mantissa != 0 || bytes[i] != '0') {
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    significantDigits++;
+                }
+                if (significantDigits > MAX_FAST_PATH_DIGITS) {
+                    return parseDoubleSlow(bytes, from, to);
+                }
+                exponent--;
+            }
+        }
+        if (!hasDigits) {
+            return parseDoubleSlow(bytes, from, to);
+        }
+        if (i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int explicitExponent = 0;
+            for (; i < to && isDigit(bytes[i]); i++) {
+                if (i - exponentStart >= 3) {
+                    return parseDoubleSlow(bytes, from, to);
+                }
+                explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+            }
+            if (i == exponentStart) {
+                return parseDoubleSlow(bytes, from, to);
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i != to) {
+            return parseDoubleSlow(bytes, from, to);
+        }
+
+        double result;
+        if (mantissa == 0) {
+            result = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            result = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            result = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseDoubleSlow(bytes, from, to);
+        }
+        return negative ? -result : result;
+    }
+
+    private static double parseDoubleSlow(byte[] bytes, int from, int to) {
+        return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    public int getNameOffset() {
+        return nameOffset;
+    }
+
+    public int getNameLength() {
+        return nameLength;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public int getTimestampSeconds() {
+        return timestampSeconds;
+    }
+}
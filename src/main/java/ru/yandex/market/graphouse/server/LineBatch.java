@@ -0,0 +1,109 @@
+package ru.yandex.market.graphouse.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Raw plaintext lines received from clients, kept as bytes until they are handed to the parsers.
+ * Every line is stored terminated with '\n', trailing '\r' is dropped.
+ * Not thread safe: a batch is filled by one reader and then handed to one parser.
+ */
+public class LineBatch {
+
+    private static final byte LINE_SEPARATOR = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private byte[] bytes;
+    private int size;
+    private int lineCount;
+    private int updatedSeconds;
+
+    public LineBatch(int initialCapacityBytes) {
+        this.bytes = new byte[Math.max(initialCapacityBytes, 16)];
+    }
+
+    public void addLine(byte[] source, int offset, int length) {
+        length = trimCarriageReturn(source, offset, length);
+        ensureCapacity(length + 1);
+        System.arraycopy(source, offset, bytes, size, length);
+        lineAdded(length);
+    }
+
+    /**
+     * Copies line from the buffer. Buffer position and limit are not changed.
+     */
+    public void addLine(ByteBuffer source, int offset, int length) {
+        if (length > 0 && source.get(offset + length - 1) == CARRIAGE_RETURN) {
+            length--;
+        }
+        ensureCapacity(length + 1);
+        ByteBuffer view = source.duplicate();
+        view.limit(offset + length).position(offset);
+        view.get(bytes, size, length);
+        lineAdded(length);
+    }
+
+    private void lineAdded(int length) {
+        if (lineCount == 0) {
+            updatedSeconds = (int) (System.currentTimeMillis() / 1000);
+        }
+        size += length;
+        bytes[size++] = LINE_SEPARATOR;
+        lineCount++;
+    }
+
+    private static int trimCarriageReturn(byte[] source, int offset, int length) {
+        if (length > 0 && source[offset + length - 1] == CARRIAGE_RETURN) {
+            return length - 1;
+        }
+        return length;
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        if (size + additionalBytes > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additionalBytes));
+        }
+    }
+
+    public void forEachLine(LineConsumer consumer) {
+        int lineStart = 0;
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] == LINE_SEPARATOR) {
+                consumer.accept(bytes, lineStart, i - lineStart);
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        lineCount = 0;
+    }
+
+    public boolean isEmpty() {
+        return lineCount == 0;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int getSizeBytes() {
+        return size;
+    }
+
+    public int getCapacityBytes() {
+        return bytes.length;
+    }
+
+    /**
+     * @return time when the first line of the batch was received
+     */
+    public int getUpdatedSeconds() {
+        return updatedSeconds;
+    }
+
+    public interface LineConsumer {
+        void accept(byte[] bytes, int offset, int length);
+    }
+}
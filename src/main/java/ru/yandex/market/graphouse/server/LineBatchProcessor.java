@@ -0,0 +1,38 @@
+package ru.yandex.market.graphouse.server;
+
+/**
+ * Hands batches of raw lines from socket readers over to parsers,
+ * which create metrics with {@link MetricFactory} and submit them to {@link ru.yandex.market.graphouse.cacher.MetricCacher}.
+ * Batches are swapped rather than copied: the reader gets an empty batch back and goes on filling it.
+ * Created by {@link LineBatchProcessorFactory}.
+ */
+public interface LineBatchProcessor {
+
+    /**
+     * Hands the batch over to the parsers, waits if all of them are busy.
+     * The batch must not be used by the caller afterwards.
+     *
+     * @return empty batch to read the next lines to
+     */
+    LineBatch submit(LineBatch batch);
+
+    /**
+     * Same as {@link #submit}, but never waits.
+     *
+     * @return empty batch to read the next lines to or <code>null</code> if the batch was not accepted
+     * and is still owned by the caller
+     */
+    LineBatch trySubmit(LineBatch batch);
+
+    /**
+     * @return batches waiting for the parsers
+     */
+    int getQueueSize();
+
+    /**
+     * Parsers complete already submitted batches and stop.
+     */
+    void shutdown();
+
+    void awaitTermination();
+}
@@ -0,0 +1,69 @@
+package ru.yandex.market.graphouse.server;
+
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.InstantMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Creates {@link LineBatchProcessor} for receivers according to <code>graphouse.cacher.handoff</code>
+ * and reports the total number of batches waiting for parsers.
+ */
+public class LineBatchProcessorFactory {
+
+    public static final String EXECUTOR = "executor";
+    public static final String RING_BUFFER = "ring-buffer";
+
+    @Value("${graphouse.cacher.handoff}")
+    private String handoff = EXECUTOR;
+
+    @Value("${graphouse.cacher.ring-buffer.size}")
+    private int ringBufferSize = 1024;
+
+    @Value("${graphouse.cacher.ring-buffer.wait-strategy}")
+    private String waitStrategy = "blocking";
+
+    private final StatisticsService statisticsService;
+    private final List<LineBatchProcessor> processors = new CopyOnWriteArrayList<>();
+
+    public LineBatchProcessorFactory(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+        statisticsService.registerInstantMetric(
+            InstantMetric.HANDOFF_QUEUE_SIZE,
+            () -> (double) processors.stream().mapToInt(LineBatchProcessor::getQueueSize).sum()
+        );
+    }
+
+    public LineBatchProcessor create(MetricFactory metricFactory, MetricCacher metricCacher, int threadCount) {
+        LineBatchProcessor processor;
+        switch (handoff) {
+            case EXECUTOR:
+                processor = new ExecutorLineBatchProcessor(metricFactory, metricCacher, statisticsService, threadCount);
+                break;
+            case RING_BUFFER:
+                processor = new RingBufferLineBatchProcessor(
+                    metricFactory, metricCacher, statisticsService, threadCount, ringBufferSize, waitStrategy
+                );
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown handoff: " + handoff);
+        }
+        processors.add(processor);
+        return processor;
+    }
+
+    public void setHandoff(String handoff) {
+        this.handoff = handoff;
+    }
+
+    public void setRingBufferSize(int ringBufferSize) {
+        this.ringBufferSize = ringBufferSize;
+    }
+
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+}
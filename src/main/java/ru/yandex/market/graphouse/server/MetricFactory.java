@@ -2,6 +2,26 @@ package ru.yandex.market.graphouse.server;
 
 import ru.yandex.market.graphouse.Metric;
 
+import java.nio.charset.StandardCharsets;
+
 public interface MetricFactory {
     Metric createMetric(String line, int updatedSeconds);
+
+    /**
+     * Same as {@link #createMetric(String, int)} for a line as it was read from the socket, without line end.
+     */
+    default Metric createMetric(byte[] line, int offset, int length, int updatedSeconds) {
+        return createMetric(new String(line, offset, length, StandardCharsets.UTF_8), updatedSeconds);
+    }
+
+    /**
+     * For protocols, where name, value and timestamp come separately.
+     *
+     * @param name UTF-8 metric name
+     */
+    default Metric createMetric(byte[] name, int offset, int length, double value, int timestampSeconds,
+                                int updatedSeconds) {
+        String line = new String(name, offset, length, StandardCharsets.UTF_8) + " " + value + " " + timestampSeconds;
+        return createMetric(line, updatedSeconds);
+    }
 }
@@ -0,0 +1,114 @@
+package ru.yandex.market.graphouse.server;
+
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps raw metric name bytes, as they came in a line, to already resolved {@link MetricDescription}.
+ * Lets the factory skip name decoding, splitting and tree lookup for known metrics.
+ * <p>
+ * Fixed size direct mapped table: a new name just replaces the one with the same slot.
+ * An entry is used only while the metric is in its tree and the metric and all its parents are visible,
+ * so a ban, hide or eviction invalidates just the entries under the changed node.
+ * Every entry also remembers the version of metric statuses it was resolved at,
+ * see {@link ru.yandex.market.graphouse.search.tree.MetricTree#getStatusVersion()}, for changes the tree can't see.
+ */
+public class MetricNameCache {
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MetricNameCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.entries = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return cached description or <code>null</code> if the name is unknown, was resolved at another version
+     * or is evicted or not visible anymore
+     */
+    public MetricDescription get(byte[] bytes, int offset, int length, long statusVersion) {
+        int hash = hash(bytes, offset, length);
+        Entry entry = entries.get(hash & mask);
+        if (entry == null || entry.hash != hash || entry.statusVersion != statusVersion
+            || !entry.nameEquals(bytes, offset, length) || entry.description.isEvicted()
+            || !visibleWithParents(entry.description)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.description;
+    }
+
+    public void put(byte[] bytes, int offset, int length, long statusVersion, MetricDescription description) {
+        int hash = hash(bytes, offset, length);
+        byte[] name = Arrays.copyOfRange(bytes, offset, offset + length);
+        entries.lazySet(hash & mask, new Entry(name, hash, statusVersion, description));
+    }
+
+    public int capacity() {
+        return entries.length();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static boolean visibleWithParents(MetricDescription description) {
+        for (MetricDescription node = description; !node.isRoot(); node = node.getParent()) {
+            if (!node.getStatus().visible()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // Names differ mostly in the last bytes, spread them over the slot bits
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Entry {
+        private final byte[] name;
+        private final int hash;
+        private final long statusVersion;
+        private final MetricDescription description;
+
+        Entry(byte[] name, int hash, long statusVersion, MetricDescription description) {
+            this.name = name;
+            this.hash = hash;
+            this.statusVersion = statusVersion;
+            this.description = description;
+        }
+
+        boolean nameEquals(byte[] bytes, int offset, int length) {
+            if (name.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name[i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
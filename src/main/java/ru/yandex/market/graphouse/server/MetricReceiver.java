@@ -0,0 +1,13 @@
+package ru.yandex.market.graphouse.server;
+
+/**
+ * Source of metrics for the cacher, stopped by {@link MetricReceiverShutdown} before the cacher is flushed.
+ */
+public interface MetricReceiver {
+
+    /**
+     * Stops receiving and returns when all received metrics are submitted to the cacher.
+     * Does nothing if the receiver is disabled.
+     */
+    void shutdown();
+}
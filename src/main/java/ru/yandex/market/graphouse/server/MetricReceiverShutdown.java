@@ -0,0 +1,53 @@
+package ru.yandex.market.graphouse.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stops all receivers in one shutdown hook and flushes the cacher only after all of them.
+ * Shutdown hooks run concurrently, so with a hook per receiver metrics parsed after the flush were lost.
+ */
+public class MetricReceiverShutdown implements InitializingBean {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final MetricCacher metricCacher;
+    private final List<MetricReceiver> receivers;
+
+    public MetricReceiverShutdown(MetricCacher metricCacher, List<MetricReceiver> receivers) {
+        this.metricCacher = metricCacher;
+        this.receivers = receivers;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "metric-receiver-shutdown"));
+    }
+
+    /**
+     * Receivers are stopped in parallel, as every one may wait for its connections to finish.
+     */
+    public void shutdown() {
+        log.info("Shutting down {} metric receivers", receivers.size());
+        List<Thread> threads = new ArrayList<>();
+        for (MetricReceiver receiver : receivers) {
+            Thread thread = new Thread(receiver::shutdown, receiver.getClass().getSimpleName() + "-shutdown");
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        metricCacher.flushAndShutdown();
+    }
+}
@@ -8,33 +8,41 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import ru.yandex.market.graphouse.cacher.MetricCacher;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * @author Dmitry Andreev <a href="mailto:AndreevDm@yandex-team.ru"></a>
  * @date 02/04/15
  */
-public class MetricServer implements InitializingBean {
+public class MetricServer implements InitializingBean, MetricReceiver {
 
     private static final Logger log = LogManager.getLogger();
 
+    public static final String MODE = "blocking";
+
+    private static final long DRAIN_LOG_INTERVAL_MILLIS = 1000;
+    private static final long HANDOFF_POLL_MILLIS = 100;
+
+    @Value("${graphouse.cacher.server-mode}")
+    private String serverMode = MODE;
+
     @Value("${graphouse.cacher.port}")
     private int port;
 
@@ -47,6 +55,9 @@ public class MetricServer implements InitializingBean {
     @Value("${graphouse.cacher.threads}")
     private int threadCount;
 
+    @Value("${graphouse.cacher.acceptors}")
+    private int acceptorCount = 1;
+
     @Value("${graphouse.cacher.read-batch-size}")
     private int readBatchSize;
 
@@ -56,24 +67,37 @@ public class MetricServer implements InitializingBean {
     @Value("${graphouse.log.remote-socket-address:false}")
     private boolean shouldLogRemoteSocketAddress;
 
-    private ServerSocket serverSocket;
+    private ServerSocket[] serverSockets;
+    private ExecutorService acceptorsExecutorService;
     private ExecutorService readersExecutorService;
-    private ExecutorService writersExecutorService;
+    private final BlockingQueue<Socket> acceptedSockets = new SynchronousQueue<>();
+    private LineBatchProcessor lineBatchProcessor;
+    private final Set<Socket> activeSockets = ConcurrentHashMap.newKeySet();
+    private final List<StreamLineReader> lineReaders = new CopyOnWriteArrayList<>();
 
     private final MetricCacher metricCacher;
     private final MetricFactory metricFactory;
+    private final LineBatchProcessorFactory lineBatchProcessorFactory;
+    private final ClientAdmission clientAdmission;
 
+    private volatile boolean acceptorsStopped = false;
     private volatile boolean forceStopReadersExecutorService = false;
 
-    public MetricServer(MetricCacher metricCacher, MetricFactory metricFactory) {
+    public MetricServer(MetricCacher metricCacher, MetricFactory metricFactory,
+                        LineBatchProcessorFactory lineBatchProcessorFactory, ClientAdmission clientAdmission) {
         this.metricCacher = metricCacher;
         this.metricFactory = metricFactory;
+        this.lineBatchProcessorFactory = lineBatchProcessorFactory;
+        this.clientAdmission = clientAdmission;
     }
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        if (!MODE.equals(serverMode)) {
+            log.info("Blocking metric server disabled, server mode: {}", serverMode);
+            return;
+        }
         log.info("Starting metric server on port: {} with factory {}", port, metricFactory.getClass().getSimpleName());
-        serverSocket = new ServerSocket();
         SocketAddress socketAddress;
 
         if (Strings.isNullOrEmpty(bindAddress)) {
@@ -81,92 +105,214 @@ public class MetricServer implements InitializingBean {
         } else {
             socketAddress = new InetSocketAddress(bindAddress, port);
         }
-        serverSocket.bind(socketAddress);
+        serverSockets = openServerSockets(socketAddress, acceptorCount);
 
-        log.info("Starting " + threadCount + " metric server threads");
+        log.info("Starting " + threadCount + " metric server threads on " + serverSockets.length + " sockets");
 
+        lineBatchProcessor = lineBatchProcessorFactory.create(metricFactory, metricCacher, threadCount);
         readersExecutorService = Executors.newFixedThreadPool(
             threadCount,
             new ThreadFactoryBuilder().setNameFormat("reader-thread-%d").build()
         );
-
         for (int i = 0; i < threadCount; i++) {
             readersExecutorService.submit(new MetricServerWorker());
         }
 
-        writersExecutorService = new ThreadPoolExecutor(
-            threadCount,
-            threadCount,
-            1, TimeUnit.SECONDS,
-            // Queue is limited so that we won't eat all available memory if we are reading metrics from sockets faster
-            // than we are able to write them to ClickHouse.
-            new ArrayBlockingQueue<>(10 * threadCount),
-            new ThreadFactoryBuilder().setNameFormat("writer-thread-%d").build(),
-            // Whenever a task is rejected because the task queue is full we will run it in the thread that attempted to
-            // enqueue it. This ensures that (1) we won't just ignore rejected tasks and (2) we will stop reading new
-            // metrics from sockets when the queue is full.
-            new ThreadPoolExecutor.CallerRunsPolicy()
+        acceptorsExecutorService = Executors.newFixedThreadPool(
+            serverSockets.length,
+            new ThreadFactoryBuilder().setNameFormat("acceptor-thread-%d").build()
         );
+        for (ServerSocket serverSocket : serverSockets) {
+            acceptorsExecutorService.submit(new MetricServerAcceptor(serverSocket));
+        }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownService));
         log.info("Metric server started on port " + port);
     }
 
-    private void shutdownService() {
-        log.info("Shutting down metric server");
-        readersExecutorService.shutdownNow();
-        writersExecutorService.shutdownNow();
+    /**
+     * Several sockets are bound to the same port with SO_REUSEPORT, so the kernel spreads connections
+     * between them and their acceptors don't contend on accept.
+     */
+    private static ServerSocket[] openServerSockets(SocketAddress socketAddress, int count) throws IOException {
+        SocketOption<Boolean> reusePort = count > 1 ? findReusePortOption() : null;
+        if (reusePort == null) {
+            if (count > 1) {
+                log.warn("SO_REUSEPORT is not supported, using one listening socket");
+            }
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.bind(socketAddress);
+            return new ServerSocket[]{serverSocket};
+        }
+        ServerSocket[] serverSockets = new ServerSocket[count];
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.setOption(reusePort, true);
+            channel.bind(socketAddress);
+            serverSockets[i] = channel.socket();
+        }
+        return serverSockets;
+    }
+
+    /**
+     * Looked up by name, as <code>StandardSocketOptions.SO_REUSEPORT</code> appeared only in Java 9.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() throws IOException {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            for (SocketOption<?> option : channel.supportedOptions()) {
+                if ("SO_REUSEPORT".equals(option.name())) {
+                    return (SocketOption<Boolean>) option;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops accepting and lets open connections finish within <code>graphouse.cacher.forced-stop-timeout-sec</code>,
+     * connections left after it are closed.
+     */
+    @Override
+    public void shutdown() {
+        if (serverSockets == null) {
+            return;
+        }
+        log.info("Shutting down metric server, draining {} connections", activeSockets.size());
+        long startMillis = System.currentTimeMillis();
+        long startLines = getTotalLineCount();
+        int connections = activeSockets.size();
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        acceptorsExecutorService.shutdown();
         try {
-            serverSocket.close();
-        } catch (IOException ignored) {
+            acceptorsExecutorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignored) {
         }
-        if (forcedStopTimeoutSec > 0) {
-            waitAndForceStopReadersExecutorService();
+        // Readers finish their connections and stop
+        acceptorsStopped = true;
+        readersExecutorService.shutdown();
+        long deadlineMillis = forcedStopTimeoutSec > 0
+            ? startMillis + TimeUnit.SECONDS.toMillis(forcedStopTimeoutSec)
+            : Long.MAX_VALUE;
+        awaitReaders(deadlineMillis);
+        if (!readersExecutorService.isTerminated()) {
+            log.warn("Closing {} connections not finished in {} seconds", activeSockets.size(), forcedStopTimeoutSec);
+            forceStopReadersExecutorService = true;
+            readersExecutorService.shutdownNow();
+            activeSockets.forEach(MetricServer.this::safeSocketClose);
+            awaitReaders(Long.MAX_VALUE);
         }
-        awaitTermination(readersExecutorService, "reader");
-        awaitTermination(writersExecutorService, "writer");
-        metricCacher.flushAndShutdown();
+        log.info(
+            "Drained {} lines from {} connections in {} ms",
+            getTotalLineCount() - startLines, connections, System.currentTimeMillis() - startMillis
+        );
+        lineBatchProcessor.shutdown();
+        lineBatchProcessor.awaitTermination();
         log.info("Metric server stopped");
     }
 
-    private void awaitTermination(ExecutorService executorService, String serviceName) {
-        while (!executorService.isTerminated()) {
-            log.info("Awaiting {} completion", serviceName);
+    private void awaitReaders(long deadlineMillis) {
+        while (!readersExecutorService.isTerminated() && System.currentTimeMillis() < deadlineMillis) {
+            log.info("Awaiting readers completion, {} connections left", activeSockets.size());
             try {
-                executorService.awaitTermination(100, TimeUnit.MICROSECONDS);
+                readersExecutorService.awaitTermination(
+                    Math.min(DRAIN_LOG_INTERVAL_MILLIS, deadlineMillis - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS
+                );
             } catch (InterruptedException ignored) {
             }
         }
     }
 
-    private void waitAndForceStopReadersExecutorService() {
-        try {
-            TimeUnit.SECONDS.sleep(forcedStopTimeoutSec);
-        } catch (InterruptedException ignored) {
+    private long getTotalLineCount() {
+        return lineReaders.stream().mapToLong(StreamLineReader::getTotalLineCount).sum();
+    }
+
+    /**
+     * Accepts connections of one listening socket and hands them over to the shared reader threads.
+     * The next connection is accepted only after a reader has taken the previous one, so connections
+     * waiting for a reader stay in the kernel backlog and don't hold file descriptors.
+     */
+    private class MetricServerAcceptor implements Runnable {
+
+        private final ServerSocket serverSocket;
+
+        MetricServerAcceptor(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
         }
 
-        forceStopReadersExecutorService = true;
+        @Override
+        public void run() {
+            while (!Thread.interrupted() && !serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    activeSockets.add(socket);
+                    handOver(socket);
+                } catch (Throwable t) {
+                    if (!serverSocket.isClosed()) {
+                        log.warn("Accepting connection has been failed", t);
+                    }
+                }
+            }
+            log.info("MetricServerAcceptor stopped");
+        }
+
+        private void handOver(Socket socket) {
+            try {
+                while (!serverSocket.isClosed()) {
+                    if (acceptedSockets.offer(socket, HANDOFF_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Stopping, not read like the connections left in the backlog
+            safeSocketClose(socket);
+            activeSockets.remove(socket);
+        }
     }
 
     private class MetricServerWorker implements Runnable {
 
-        private List<UnparsedLine> metrics = new ArrayList<>(readBatchSize);
+        private final StreamLineReader lineReader = new StreamLineReader(
+            lineBatchProcessor, clientAdmission, readBatchSize
+        );
+
+        MetricServerWorker() {
+            lineReaders.add(lineReader);
+        }
 
         @Override
         public void run() {
-            while (!Thread.interrupted() && !serverSocket.isClosed()) {
+            while (!Thread.interrupted()) {
+                Socket socket;
+                try {
+                    socket = acceptedSockets.poll(HANDOFF_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (socket == null) {
+                    if (acceptorsStopped) {
+                        break;
+                    }
+                    continue;
+                }
                 try {
-                    read();
+                    read(socket);
                 } catch (Throwable t) {
-                    log.warn("Reading from socket has been failed. Metrics size: " + metrics.size(), t);
+                    log.warn("Reading from socket has been failed. Metrics size: " + lineReader.getLineCount(), t);
                 }
             }
             log.info("MetricServerWorker stopped");
         }
 
-        private void read() throws IOException {
-            metrics.clear();
-            Socket socket = serverSocket.accept();
+        private void read(Socket socket) throws IOException {
+            lineReader.clear();
 
             if (shouldLogRemoteSocketAddress) {
                 log.info("Connection accepted. Client's address: '{}'", socket.getRemoteSocketAddress().toString());
@@ -175,20 +321,9 @@ public class MetricServer implements InitializingBean {
             try {
                 socket.setSoTimeout(socketTimeoutMillis);
                 socket.setKeepAlive(false);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    metrics.add(new UnparsedLine(
-                        line,
-                        (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())
-                    ));
-                    if (metrics.size() >= readBatchSize) {
-                        submitAndClearMetrics();
-                    }
-                    if (needInterrupt()) {
-                        log.warn("MetricServerWorker was stopped");
-                        break;
-                    }
+                ClientAdmission.Bucket bucket = clientAdmission.getBucket(socket.getInetAddress());
+                if (!lineReader.readLines(socket.getInputStream(), bucket, this::needInterrupt)) {
+                    log.warn("MetricServerWorker was stopped");
                 }
             } catch (SocketTimeoutException e) {
                 log.warn("Socket timeout from " + socket.getRemoteSocketAddress().toString());
@@ -196,29 +331,14 @@ public class MetricServer implements InitializingBean {
                 log.warn("Socket exception from " + socket.getRemoteSocketAddress().toString());
             } finally {
                 safeSocketClose(socket);
+                activeSockets.remove(socket);
             }
-            submitAndClearMetrics();
+            lineReader.submitBatch();
         }
 
         private boolean needInterrupt() {
             return forceStopReadersExecutorService && Thread.interrupted();
         }
-
-        private void submitAndClearMetrics() {
-            List<UnparsedLine> metricsToParseAndSave = metrics;
-            metrics = new ArrayList<>(readBatchSize);
-            writersExecutorService.submit(
-                () -> metricCacher.submitMetrics(
-                    metricsToParseAndSave.stream()
-                        .map(unparsedLine -> metricFactory.createMetric(
-                            unparsedLine.line,
-                            unparsedLine.updatedSeconds
-                        ))
-                        .filter(Objects::nonNull)
-                        .collect(Collectors.toList())
-                )
-            );
-        }
     }
 
     private void safeSocketClose(Socket socket) {
@@ -229,16 +349,6 @@ public class MetricServer implements InitializingBean {
         }
     }
 
-    private static class UnparsedLine {
-        final String line;
-        final int updatedSeconds;
-
-        private UnparsedLine(String line, int updatedSeconds) {
-            this.line = line;
-            this.updatedSeconds = updatedSeconds;
-        }
-    }
-
     public void setSocketTimeoutMillis(int socketTimeoutMillis) {
         this.socketTimeoutMillis = socketTimeoutMillis;
     }
@@ -250,4 +360,20 @@ public class MetricServer implements InitializingBean {
     public void setPort(int port) {
         this.port = port;
     }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public void setAcceptorCount(int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public void setForcedStopTimeoutSec(int forcedStopTimeoutSec) {
+        this.forcedStopTimeoutSec = forcedStopTimeoutSec;
+    }
+
+    public void setReadBatchSize(int readBatchSize) {
+        this.readBatchSize = readBatchSize;
+    }
 }
@@ -0,0 +1,191 @@
+package ru.yandex.market.graphouse.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipException;
+
+/**
+ * <code>POST /write</code> with graphite plaintext lines in the body, for clients that prefer http
+ * with keep-alive and retries to raw TCP. The body may be gzipped with <code>Content-Encoding: gzip</code>.
+ * Lines are parsed while the body is read and submitted to the cacher in batches,
+ * the response contains the numbers of accepted and rejected lines.
+ * <p>
+ * When the cacher queue is loaded more than <code>graphouse.http.write.max-queue-load-percent</code>,
+ * the request is rejected with 429 before reading, so the client can retry later.
+ * On shutdown new requests are rejected with 503, and requests in progress are submitted before the cacher is flushed.
+ */
+public class MetricWriteServlet extends HttpServlet implements MetricReceiver {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int READ_BUFFER_SIZE_BYTES = 8192;
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final long SHUTDOWN_LOG_INTERVAL_MILLIS = 1000;
+
+    private final MetricFactory metricFactory;
+    private final MetricCacher metricCacher;
+    private final StatisticsService statisticsService;
+    private final int batchSize;
+    private final double maxQueueLoadPercent;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private volatile boolean shuttingDown = false;
+
+    public MetricWriteServlet(MetricFactory metricFactory, MetricCacher metricCacher,
+                              StatisticsService statisticsService, int batchSize, double maxQueueLoadPercent) {
+        this.metricFactory = metricFactory;
+        this.metricCacher = metricCacher;
+        this.statisticsService = statisticsService;
+        this.batchSize = batchSize;
+        this.maxQueueLoadPercent = maxQueueLoadPercent;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_WEB_REQUESTS, 1);
+
+        // Counted before the check, so shutdown either waits for the request or the request sees the shutdown
+        activeRequests.incrementAndGet();
+        try {
+            if (shuttingDown) {
+                resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                resp.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+                resp.getWriter().println("Shutting down, retry later");
+                return;
+            }
+            write(req, resp);
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+    }
+
+    private void write(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (metricCacher.getQueueOccupancyPercent() > maxQueueLoadPercent) {
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_REJECTED_WRITE_REQUESTS, 1);
+            resp.setStatus(SC_TOO_MANY_REQUESTS);
+            resp.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+            resp.getWriter().println("Metric queue is full, retry later");
+            return;
+        }
+
+        InputStream inputStream = req.getInputStream();
+        if ("gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+            inputStream = StreamCodec.GZIP.decompress(inputStream);
+        }
+
+        BodyReader bodyReader = new BodyReader();
+        try {
+            bodyReader.read(inputStream);
+        } catch (ZipException e) {
+            log.warn("Invalid gzip body from " + req.getRemoteAddr() + ": " + e.getMessage());
+            writeResult(resp, HttpServletResponse.SC_BAD_REQUEST, bodyReader);
+            return;
+        } finally {
+            bodyReader.submit();
+        }
+        writeResult(resp, HttpServletResponse.SC_OK, bodyReader);
+    }
+
+    /**
+     * Rejects new requests and waits for the requests in progress.
+     */
+    @Override
+    public void shutdown() {
+        log.info("Shutting down http metric writes");
+        shuttingDown = true;
+        long lastLogMillis = System.currentTimeMillis();
+        while (activeRequests.get() > 0) {
+            if (System.currentTimeMillis() - lastLogMillis >= SHUTDOWN_LOG_INTERVAL_MILLIS) {
+                log.info("Awaiting {} write requests completion", activeRequests.get());
+                lastLogMillis = System.currentTimeMillis();
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        log.info("Http metric writes stopped");
+    }
+
+    private static void writeResult(HttpServletResponse resp, int status, BodyReader bodyReader) throws IOException {
+        resp.setStatus(status);
+        PrintWriter writer = resp.getWriter();
+        writer.println("accepted: " + bodyReader.accepted);
+        writer.println("rejected: " + bodyReader.rejected);
+    }
+
+    /**
+     * Reads the body incrementally, only the current incomplete line is kept between reads.
+     */
+    private class BodyReader {
+        private final List<Metric> metrics = new ArrayList<>();
+        private final int updatedSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        private byte[] buffer = new byte[READ_BUFFER_SIZE_BYTES];
+        private int accepted = 0;
+        private int rejected = 0;
+
+        void read(InputStream inputStream) throws IOException {
+            int size = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer, size, buffer.length - size)) >= 0) {
+                int scanFrom = size;
+                size += bytesRead;
+                int lineStart = 0;
+                for (int i = scanFrom; i < size; i++) {
+                    if (buffer[i] == '\n') {
+                        addLine(lineStart, i - lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+                size -= lineStart;
+                System.arraycopy(buffer, lineStart, buffer, 0, size);
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            addLine(0, size);
+        }
+
+        private void addLine(int offset, int length) {
+            if (length > 0 && buffer[offset + length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                return;
+            }
+            Metric metric = metricFactory.createMetric(buffer, offset, length, updatedSeconds);
+            if (metric == null) {
+                rejected++;
+                return;
+            }
+            accepted++;
+            metrics.add(metric);
+            if (metrics.size() >= batchSize) {
+                submit();
+            }
+        }
+
+        void submit() {
+            if (!metrics.isEmpty()) {
+                metricCacher.submitMetrics(metrics);
+                metrics.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.base.Strings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graphite plaintext receiver, which multiplexes all connections over a few selector threads.
+ * Unlike {@link MetricServer} the number of connections is not limited by the number of threads.
+ * Enabled with <code>graphouse.cacher.server-mode=nio</code>.
+ * <p>
+ * Selector threads only read and split lines, they never parse or wait for the parsers. When the parsers are
+ * busy, the batch is kept and the connections are not read until it is handed over, so clients get back pressure.
+ * Then the paused connections are read in the order they were paused, so every connection gets its turn.
+ */
+public class NioMetricServer implements InitializingBean, MetricReceiver {
+
+    private static final Logger log = LogManager.getLogger();
+
+    public static final String MODE = "nio";
+
+    private static final int SELECT_TIMEOUT_MILLIS = 100;
+    private static final int HANDOFF_RETRY_MILLIS = 1;
+    private static final int IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    @Value("${graphouse.cacher.server-mode}")
+    private String serverMode = MODE;
+
+    @Value("${graphouse.cacher.port}")
+    private int port;
+
+    @Value("${graphouse.cacher.bind-address}")
+    private String bindAddress;
+
+    @Value("${graphouse.cacher.socket-timeout-millis}")
+    private int socketTimeoutMillis;
+
+    @Value("${graphouse.cacher.threads}")
+    private int parserThreadCount;
+
+    @Value("${graphouse.cacher.nio.threads}")
+    private int eventLoopCount;
+
+    @Value("${graphouse.cacher.nio.buffer-size-bytes}")
+    private int bufferSizeBytes;
+
+    @Value("${graphouse.cacher.read-batch-size}")
+    private int readBatchSize;
+
+    @Value("${graphouse.cacher.forced-stop-timeout-sec:120}")
+    private int forcedStopTimeoutSec;
+
+    @Value("${graphouse.log.remote-socket-address:false}")
+    private boolean shouldLogRemoteSocketAddress;
+
+    private final MetricCacher metricCacher;
+    private final MetricFactory metricFactory;
+    private final LineBatchProcessorFactory lineBatchProcessorFactory;
+    private final ClientAdmission clientAdmission;
+
+    private ServerSocketChannel serverChannel;
+    private LineBatchProcessor lineBatchProcessor;
+    private ByteBufferPool bufferPool;
+    private EventLoop[] eventLoops;
+    private Thread[] eventLoopThreads;
+
+    private volatile long stopDeadlineMillis = Long.MAX_VALUE;
+    private volatile boolean stopping = false;
+
+    public NioMetricServer(MetricCacher metricCacher, MetricFactory metricFactory,
+                           LineBatchProcessorFactory lineBatchProcessorFactory, ClientAdmission clientAdmission) {
+        this.metricCacher = metricCacher;
+        this.metricFactory = metricFactory;
+        this.lineBatchProcessorFactory = lineBatchProcessorFactory;
+        this.clientAdmission = clientAdmission;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!MODE.equals(serverMode)) {
+            return;
+        }
+        log.info(
+            "Starting nio metric server on port: {} with {} event loops and factory {}",
+            port, eventLoopCount, metricFactory.getClass().getSimpleName()
+        );
+        lineBatchProcessor = lineBatchProcessorFactory.create(metricFactory, metricCacher, parserThreadCount);
+        bufferPool = new ByteBufferPool(bufferSizeBytes, eventLoopCount);
+
+        eventLoops = new EventLoop[eventLoopCount];
+        eventLoopThreads = new Thread[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(Selector.open(), bufferPool.acquire());
+            eventLoopThreads[i] = new Thread(eventLoops[i], "nio-reader-thread-" + i);
+            eventLoopThreads[i].start();
+        }
+
+        SocketAddress socketAddress;
+        if (Strings.isNullOrEmpty(bindAddress)) {
+            socketAddress = new InetSocketAddress(port);
+        } else {
+            socketAddress = new InetSocketAddress(bindAddress, port);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(socketAddress);
+        new Thread(this::acceptConnections, "nio-acceptor-thread").start();
+
+        log.info("Nio metric server started on port " + port);
+    }
+
+    private void acceptConnections() {
+        int nextLoop = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setKeepAlive(false);
+                eventLoops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (Throwable t) {
+                log.warn("Failed to accept connection", t);
+            }
+        }
+        log.info("Nio acceptor stopped");
+    }
+
+    @Override
+    public void shutdown() {
+        if (serverChannel == null) {
+            return;
+        }
+        log.info("Shutting down nio metric server");
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        stopDeadlineMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(forcedStopTimeoutSec);
+        stopping = true;
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i].selector.wakeup();
+            awaitThread(eventLoopThreads[i]);
+        }
+        lineBatchProcessor.shutdown();
+        lineBatchProcessor.awaitTermination();
+        log.info("Nio metric server stopped");
+    }
+
+    private void awaitThread(Thread thread) {
+        while (thread.isAlive()) {
+            log.info("Awaiting {} completion", thread.getName());
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private final SocketAddress remoteAddress;
+        private final ClientAdmission.Bucket bucket;
+        private byte[] tail = new byte[0];
+        private int tailLength = 0;
+        private boolean skipUntilLineEnd = false;
+        private long lastReadMillis = System.currentTimeMillis();
+        private long resumeNanos = 0;
+        private boolean handoffPaused = false;
+
+        Connection(SocketChannel channel, SocketAddress remoteAddress, ClientAdmission.Bucket bucket) {
+            this.channel = channel;
+            this.remoteAddress = remoteAddress;
+            this.bucket = bucket;
+        }
+
+        boolean paused() {
+            return resumeNanos != 0 || handoffPaused;
+        }
+
+        void saveTail(ByteBuffer buffer, int offset, int length) {
+            if (tail.length < length) {
+                tail = Arrays.copyOf(tail, Math.max(length, tail.length * 2));
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + length).position(offset);
+            view.get(tail, 0, length);
+            tailLength = length;
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final List<SelectionKey> pausedKeys = new ArrayList<>();
+        private final Queue<SelectionKey> handoffPausedKeys = new ArrayDeque<>();
+        private LineBatch batch = newBatch();
+        private boolean handoffBlocked = false;
+        private long lastIdleCheckMillis = System.currentTimeMillis();
+
+        EventLoop(Selector selector, ByteBuffer readBuffer) {
+            this.selector = selector;
+            this.readBuffer = readBuffer;
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!needStop()) {
+                try {
+                    selector.select(selectTimeoutMillis());
+                    registerPendingChannels();
+                    submitBatch();
+                    readHandoffPausedConnections();
+                    resumePausedConnections();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (!key.isValid() || !key.isReadable()) {
+                            continue;
+                        }
+                        if (handoffBlocked) {
+                            pauseForHandoff(key);
+                        } else {
+                            read(key);
+                        }
+                    }
+                    submitBatch();
+                    closeIdleConnections();
+                } catch (Throwable t) {
+                    log.warn("Nio event loop iteration failed. Metrics size: " + batch.getLineCount(), t);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            // Stopping, so the loop may wait for the parsers now
+            batch = lineBatchProcessor.submit(batch);
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            bufferPool.release(readBuffer);
+            log.info("Nio event loop stopped");
+        }
+
+        private boolean needStop() {
+            if (!stopping) {
+                return false;
+            }
+            return selector.keys().isEmpty() || System.currentTimeMillis() > stopDeadlineMillis;
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    SocketAddress remoteAddress = channel.getRemoteAddress();
+                    if (shouldLogRemoteSocketAddress) {
+                        log.info("Connection accepted. Client's address: '{}'", remoteAddress);
+                    }
+                    ClientAdmission.Bucket bucket = clientAdmission.getBucket(channel.socket().getInetAddress());
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel, remoteAddress, bucket));
+                } catch (IOException e) {
+                    log.warn("Failed to register connection", e);
+                    safeClose(channel);
+                }
+            }
+        }
+
+        private void read(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            readBuffer.clear();
+            readBuffer.put(connection.tail, 0, connection.tailLength);
+            int scanFrom = connection.tailLength;
+            int bytesRead;
+            try {
+                bytesRead = connection.channel.read(readBuffer);
+            } catch (IOException e) {
+                log.warn("Socket exception from " + connection.remoteAddress);
+                close(key);
+                return;
+            }
+            connection.lastReadMillis = System.currentTimeMillis();
+            readBuffer.flip();
+
+            int lineStart = 0;
+            int lineCount = 0;
+            int limit = readBuffer.limit();
+            for (int i = scanFrom; i < limit; i++) {
+                if (readBuffer.get(i) == '\n') {
+                    if (connection.skipUntilLineEnd) {
+                        connection.skipUntilLineEnd = false;
+                    } else {
+                        addLine(lineStart, i - lineStart);
+                        lineCount++;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+
+            int tailLength = limit - lineStart;
+            if (bytesRead < 0) {
+                if (tailLength > 0 && !connection.skipUntilLineEnd) {
+                    addLine(lineStart, tailLength);
+                }
+                close(key);
+                return;
+            }
+            if (tailLength == readBuffer.capacity()) {
+                log.warn(
+                    "Line longer than " + readBuffer.capacity() + " bytes from " + connection.remoteAddress +
+                        " skipped"
+                );
+                connection.skipUntilLineEnd = true;
+                tailLength = 0;
+            }
+            connection.saveTail(readBuffer, lineStart, tailLength);
+            if (handoffBlocked) {
+                pauseForHandoff(key);
+            } else {
+                throttle(key, connection, lineCount);
+            }
+        }
+
+        /**
+         * Stops reading the connection while the client is over its rate, so it gets TCP back pressure.
+         */
+        private void throttle(SelectionKey key, Connection connection, int lineCount) {
+            long delayNanos = clientAdmission.acquire(connection.bucket, lineCount);
+            if (delayNanos <= 0) {
+                return;
+            }
+            key.interestOps(0);
+            connection.resumeNanos = System.nanoTime() + delayNanos;
+            pausedKeys.add(key);
+        }
+
+        private void pauseForHandoff(SelectionKey key) {
+            key.interestOps(0);
+            ((Connection) key.attachment()).handoffPaused = true;
+            handoffPausedKeys.add(key);
+        }
+
+        /**
+         * Reads connections paused by the blocked handoff, while the parsers take batches.
+         */
+        private void readHandoffPausedConnections() {
+            SelectionKey key;
+            while (!handoffBlocked && (key = handoffPausedKeys.poll()) != null) {
+                if (!key.isValid()) {
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                connection.handoffPaused = false;
+                connection.lastReadMillis = System.currentTimeMillis();
+                key.interestOps(SelectionKey.OP_READ);
+                read(key);
+            }
+        }
+
+        private void resumePausedConnections() {
+            if (pausedKeys.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            Iterator<SelectionKey> iterator = pausedKeys.iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    iterator.remove();
+                } else if (now - connection.resumeNanos >= 0) {
+                    connection.resumeNanos = 0;
+                    connection.lastReadMillis = System.currentTimeMillis();
+                    key.interestOps(SelectionKey.OP_READ);
+                    iterator.remove();
+                }
+            }
+        }
+
+        private long selectTimeoutMillis() {
+            if (handoffBlocked) {
+                return HANDOFF_RETRY_MILLIS;
+            }
+            long timeoutMillis = SELECT_TIMEOUT_MILLIS;
+            long now = System.nanoTime();
+            for (SelectionKey key : pausedKeys) {
+                long resumeMillis = TimeUnit.NANOSECONDS.toMillis(((Connection) key.attachment()).resumeNanos - now);
+                timeoutMillis = Math.min(timeoutMillis, Math.max(resumeMillis, 1));
+            }
+            return timeoutMillis;
+        }
+
+        private void addLine(int offset, int length) {
+            batch.addLine(readBuffer, offset, length);
+            if (batch.getLineCount() >= readBatchSize && !handoffBlocked) {
+                submitBatch();
+            }
+        }
+
+        /**
+         * Lines of the current read are added to the batch even if the handoff is blocked,
+         * and the batch is handed over again before the next select.
+         */
+        private void submitBatch() {
+            if (batch.isEmpty()) {
+                handoffBlocked = false;
+                return;
+            }
+            LineBatch emptyBatch = lineBatchProcessor.trySubmit(batch);
+            handoffBlocked = emptyBatch == null;
+            if (emptyBatch != null) {
+                batch = emptyBatch;
+            }
+        }
+
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (socketTimeoutMillis <= 0 || now - lastIdleCheckMillis < IDLE_CHECK_INTERVAL_MILLIS) {
+                return;
+            }
+            lastIdleCheckMillis = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!connection.paused() && now - connection.lastReadMillis > socketTimeoutMillis) {
+                    log.warn("Socket timeout from " + connection.remoteAddress);
+                    close(key);
+                }
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            safeClose(((Connection) key.attachment()).channel);
+        }
+    }
+
+    private LineBatch newBatch() {
+        return new LineBatch(bufferSizeBytes);
+    }
+
+    private static void safeClose(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error on socket close", e);
+        }
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public void setParserThreadCount(int parserThreadCount) {
+        this.parserThreadCount = parserThreadCount;
+    }
+
+    public void setEventLoopCount(int eventLoopCount) {
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    public void setBufferSizeBytes(int bufferSizeBytes) {
+        this.bufferSizeBytes = bufferSizeBytes;
+    }
+
+    public void setReadBatchSize(int readBatchSize) {
+        this.readBatchSize = readBatchSize;
+    }
+}
@@ -0,0 +1,394 @@
+package ru.yandex.market.graphouse.server;
+
+import java.util.Arrays;
+
+/**
+ * Decodes carbon pickle frames: a list of <code>(name, (timestamp, value))</code> tuples.
+ * Only opcodes of binary protocols (1-4), that python emits for such lists, are supported.
+ * <p>
+ * Instead of building python objects, the stack keeps only what the metric list can consist of:
+ * names (as ranges of the frame), numbers, <code>(timestamp, value)</code> pairs and whole datapoints.
+ * Datapoints are handed to the consumer as soon as they are appended to a list, names are not copied.
+ * Not thread safe, reuse one decoder per thread.
+ */
+public class PickleDecoder {
+
+    private static final byte MARK = '(';
+    private static final byte STOP = '.';
+    private static final byte POP = '0';
+    private static final byte NONE = 'N';
+    private static final byte BININT = 'J';
+    private static final byte BININT1 = 'K';
+    private static final byte BININT2 = 'M';
+    private static final byte BINFLOAT = 'G';
+    private static final byte BINSTRING = 'T';
+    private static final byte SHORT_BINSTRING = 'U';
+    private static final byte BINUNICODE = 'X';
+    private static final byte APPEND = 'a';
+    private static final byte APPENDS = 'e';
+    private static final byte LIST = 'l';
+    private static final byte EMPTY_LIST = ']';
+    private static final byte TUPLE = 't';
+    private static final byte EMPTY_TUPLE = ')';
+    private static final byte BINGET = 'h';
+    private static final byte LONG_BINGET = 'j';
+    private static final byte BINPUT = 'q';
+    private static final byte LONG_BINPUT = 'r';
+    private static final byte PROTO = (byte) 0x80;
+    private static final byte NEWTRUE = (byte) 0x88;
+    private static final byte NEWFALSE = (byte) 0x89;
+    private static final byte LONG1 = (byte) 0x8a;
+    private static final byte TUPLE1 = (byte) 0x85;
+    private static final byte TUPLE2 = (byte) 0x86;
+    private static final byte TUPLE3 = (byte) 0x87;
+    private static final byte SHORT_BINBYTES = 'C';
+    private static final byte BINBYTES = 'B';
+    private static final byte SHORT_BINUNICODE = (byte) 0x8c;
+    private static final byte MEMOIZE = (byte) 0x94;
+    private static final byte FRAME = (byte) 0x95;
+
+    private static final int TYPE_MARK = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_NUMBER = 2;
+    private static final int TYPE_PAIR = 3;
+    private static final int TYPE_DATAPOINT = 4;
+    private static final int TYPE_LIST = 5;
+    /**
+     * Anything that can't be a part of a datapoint, e.g. tuples of other sizes.
+     */
+    private static final int TYPE_OTHER = 6;
+
+    private final Slots stack = new Slots();
+    private final Slots memo = new Slots();
+
+    public interface DatapointConsumer {
+        /**
+         * @param value {@link Double#NaN} for None values
+         */
+        void accept(byte[] bytes, int nameOffset, int nameLength, double timestamp, double value);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the frame is not a valid pickle of the supported subset
+     */
+    public void decode(byte[] bytes, int offset, int length, DatapointConsumer consumer) {
+        stack.size = 0;
+        memo.size = 0;
+        int end = offset + length;
+        int i = offset;
+        try {
+            while (true) {
+                checkBounds(i, 1, end);
+                byte opcode = bytes[i++];
+                switch (opcode) {
+                    case PROTO:
+                        i += 1;
+                        break;
+                    case FRAME:
+                        i += 8;
+                        break;
+                    case STOP:
+                        return;
+                    case MARK:
+                        stack.push(TYPE_MARK);
+                        break;
+                    case POP:
+                        stack.pop();
+                        break;
+                    case NONE:
+                        pushNumber(Double.NaN);
+                        break;
+                    case NEWTRUE:
+                        pushNumber(1);
+                        break;
+                    case NEWFALSE:
+                        pushNumber(0);
+                        break;
+                    case BININT:
+                        checkBounds(i, 4, end);
+                        pushNumber(readIntLittleEndian(bytes, i, 4));
+                        i += 4;
+                        break;
+                    case BININT1:
+                        checkBounds(i, 1, end);
+                        pushNumber(bytes[i] & 0xFF);
+                        i += 1;
+                        break;
+                    case BININT2:
+                        checkBounds(i, 2, end);
+                        pushNumber(readIntLittleEndian(bytes, i, 2) & 0xFFFF);
+                        i += 2;
+                        break;
+                    case LONG1:
+                        checkBounds(i, 1, end);
+                        int longLength = bytes[i++] & 0xFF;
+                        checkBounds(i, longLength, end);
+                        pushNumber(readLong1(bytes, i, longLength));
+                        i += longLength;
+                        break;
+                    case BINFLOAT:
+                        checkBounds(i, 8, end);
+                        pushNumber(Double.longBitsToDouble(readLongBigEndian(bytes, i)));
+                        i += 8;
+                        break;
+                    case SHORT_BINSTRING:
+                    case SHORT_BINBYTES:
+                    case SHORT_BINUNICODE:
+                        checkBounds(i, 1, end);
+                        i = pushString(bytes, i + 1, bytes[i] & 0xFF, end);
+                        break;
+                    case BINSTRING:
+                    case BINBYTES:
+                    case BINUNICODE:
+                        checkBounds(i, 4, end);
+                        i = pushString(bytes, i + 4, readIntLittleEndian(bytes, i, 4), end);
+                        break;
+                    case EMPTY_LIST:
+                        stack.push(TYPE_LIST);
+                        break;
+                    case LIST:
+                        int listMark = popMark();
+                        emitItems(bytes, consumer, listMark + 1);
+                        stack.size = listMark;
+                        stack.push(TYPE_LIST);
+                        break;
+                    case APPEND:
+                        checkList(stack.size - 2);
+                        emitItems(bytes, consumer, stack.size - 1);
+                        stack.size--;
+                        break;
+                    case APPENDS:
+                        int mark = popMark();
+                        checkList(mark - 1);
+                        emitItems(bytes, consumer, mark + 1);
+                        stack.size = mark;
+                        break;
+                    case EMPTY_TUPLE:
+                        stack.push(TYPE_OTHER);
+                        break;
+                    case TUPLE1:
+                        makeTuple(stack.size - 1, stack.size);
+                        break;
+                    case TUPLE2:
+                        makeTuple(stack.size - 2, stack.size);
+                        break;
+                    case TUPLE3:
+                        makeTuple(stack.size - 3, stack.size);
+                        break;
+                    case TUPLE:
+                        int tupleMark = popMark();
+                        makeTuple(tupleMark + 1, stack.size);
+                        // Removing the mark
+                        stack.copy(stack, stack.size - 1, tupleMark);
+                        stack.size = tupleMark + 1;
+                        break;
+                    case BINPUT:
+                        checkBounds(i, 1, end);
+                        memo.put(bytes[i] & 0xFF, stack, length);
+                        i += 1;
+                        break;
+                    case LONG_BINPUT:
+                        checkBounds(i, 4, end);
+                        memo.put(readIntLittleEndian(bytes, i, 4), stack, length);
+                        i += 4;
+                        break;
+                    case MEMOIZE:
+                        memo.put(memo.size, stack, length);
+                        break;
+                    case BINGET:
+                        checkBounds(i, 1, end);
+                        stack.pushFrom(memo, bytes[i] & 0xFF);
+                        i += 1;
+                        break;
+                    case LONG_BINGET:
+                        checkBounds(i, 4, end);
+                        stack.pushFrom(memo, readIntLittleEndian(bytes, i, 4));
+                        i += 4;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(String.format("Unsupported pickle opcode 0x%02x", opcode));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed pickle", e);
+        }
+    }
+
+    private static void checkBounds(int position, int length, int end) {
+        if (length < 0 || position + length > end) {
+            throw new IllegalArgumentException("Unexpected end of pickle");
+        }
+    }
+
+    private void pushNumber(double number) {
+        stack.push(TYPE_NUMBER);
+        stack.first[stack.size - 1] = number;
+    }
+
+    private int pushString(byte[] bytes, int offset, int length, int end) {
+        checkBounds(offset, length, end);
+        stack.push(TYPE_STRING);
+        stack.offset[stack.size - 1] = offset;
+        stack.length[stack.size - 1] = length;
+        return offset + length;
+    }
+
+    private int popMark() {
+        for (int i = stack.size - 1; i >= 0; i--) {
+            if (stack.type[i] == TYPE_MARK) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Mark not found");
+    }
+
+    /**
+     * Replaces items from..to with one tuple at <code>from</code>.
+     */
+    private void makeTuple(int from, int to) {
+        if (from < 0) {
+            throw new IllegalArgumentException("Not enough items for tuple");
+        }
+        if (from == to) {
+            stack.push(TYPE_OTHER);
+            return;
+        }
+        int type = TYPE_OTHER;
+        if (to - from == 2) {
+            int firstType = stack.type[from];
+            int secondType = stack.type[from + 1];
+            if (firstType == TYPE_NUMBER && secondType == TYPE_NUMBER) {
+                type = TYPE_PAIR;
+                stack.second[from] = stack.first[from + 1];
+            } else if (firstType == TYPE_STRING && secondType == TYPE_PAIR) {
+                type = TYPE_DATAPOINT;
+                stack.first[from] = stack.first[from + 1];
+                stack.second[from] = stack.second[from + 1];
+            }
+        }
+        stack.type[from] = type;
+        stack.size = from + 1;
+    }
+
+    private void checkList(int index) {
+        if (index < 0 || stack.type[index] != TYPE_LIST) {
+            throw new IllegalArgumentException("Append to not a list");
+        }
+    }
+
+    /**
+     * Datapoints from the index to the top of the stack are the appended items.
+     */
+    private void emitItems(byte[] bytes, DatapointConsumer consumer, int from) {
+        for (int i = from; i < stack.size; i++) {
+            if (stack.type[i] == TYPE_DATAPOINT) {
+                consumer.accept(bytes, stack.offset[i], stack.length[i], stack.first[i], stack.second[i]);
+            }
+        }
+    }
+
+    private static int readIntLittleEndian(byte[] bytes, int offset, int length) {
+        int result = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static long readLongBigEndian(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Little endian two's complement integer of any length.
+     */
+    private static double readLong1(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (length > 8) {
+            throw new IllegalArgumentException("Too long integer: " + length + " bytes");
+        }
+        long result = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        }
+        int unusedBits = 64 - 8 * length;
+        return (result << unusedBits) >> unusedBits;
+    }
+
+    /**
+     * Stack or memo entries as parallel arrays, so that decoding creates no objects.
+     */
+    private static class Slots {
+        private int[] type = new int[64];
+        private int[] offset = new int[64];
+        private int[] length = new int[64];
+        private double[] first = new double[64];
+        private double[] second = new double[64];
+        private int size;
+
+        void push(int entryType) {
+            ensureCapacity(size + 1);
+            type[size++] = entryType;
+        }
+
+        void pop() {
+            if (size == 0) {
+                throw new IllegalArgumentException("Pop from empty stack");
+            }
+            size--;
+        }
+
+        void pushFrom(Slots source, int index) {
+            if (index >= source.size || source.type[index] == TYPE_MARK) {
+                throw new IllegalArgumentException("Unknown memo key " + index);
+            }
+            ensureCapacity(size + 1);
+            copy(source, index, size++);
+        }
+
+        /**
+         * Memo key is usually the next index, gaps are filled with marks which can't be got.
+         * Keys far above the size are rejected, so that a hostile frame can't make the memo huge.
+         *
+         * @param frameLength a frame has fewer memoized items than bytes
+         */
+        void put(int index, Slots stack, int frameLength) {
+            if (stack.size == 0 || index < 0) {
+                throw new IllegalArgumentException("Nothing to memoize");
+            }
+            if (index > size + frameLength) {
+                throw new IllegalArgumentException("Too big memo key " + index);
+            }
+            ensureCapacity(index + 1);
+            while (size <= index) {
+                type[size++] = TYPE_MARK;
+            }
+            copy(stack, stack.size - 1, index);
+        }
+
+        void copy(Slots source, int sourceIndex, int index) {
+            type[index] = source.type[sourceIndex];
+            offset[index] = source.offset[sourceIndex];
+            length[index] = source.length[sourceIndex];
+            first[index] = source.first[sourceIndex];
+            second[index] = source.second[sourceIndex];
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > type.length) {
+                int newLength = Math.max(capacity, type.length * 2);
+                type = Arrays.copyOf(type, newLength);
+                offset = Arrays.copyOf(offset, newLength);
+                length = Arrays.copyOf(length, newLength);
+                first = Arrays.copyOf(first, newLength);
+                second = Arrays.copyOf(second, newLength);
+            }
+        }
+    }
+}
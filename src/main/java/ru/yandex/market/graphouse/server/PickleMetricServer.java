@@ -0,0 +1,268 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver of carbon pickle protocol, as carbon-relay sends it: every frame is a 4-byte big endian length
+ * followed by a pickled list of <code>(name, (timestamp, value))</code>, see {@link PickleDecoder}.
+ * Relays keep a few long-lived connections, so every connection is read by its own thread,
+ * which decodes the frames and creates metrics itself.
+ * Enabled with <code>graphouse.cacher.pickle.enabled=true</code>, works along with the plaintext receiver.
+ */
+public class PickleMetricServer implements InitializingBean, MetricReceiver {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int INITIAL_FRAME_BUFFER_SIZE_BYTES = 64 * 1024;
+
+    @Value("${graphouse.cacher.pickle.enabled}")
+    private boolean enabled;
+
+    @Value("${graphouse.cacher.pickle.port}")
+    private int port;
+
+    @Value("${graphouse.cacher.bind-address}")
+    private String bindAddress;
+
+    @Value("${graphouse.cacher.socket-timeout-millis}")
+    private int socketTimeoutMillis;
+
+    @Value("${graphouse.cacher.pickle.threads}")
+    private int threadCount;
+
+    @Value("${graphouse.cacher.pickle.max-frame-size-bytes}")
+    private int maxFrameSizeBytes;
+
+    @Value("${graphouse.log.remote-socket-address:false}")
+    private boolean shouldLogRemoteSocketAddress;
+
+    private final MetricCacher metricCacher;
+    private final MetricFactory metricFactory;
+    private final ClientAdmission clientAdmission;
+
+    private ServerSocket serverSocket;
+    private ExecutorService readersExecutorService;
+    private final Set<Socket> activeSockets = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopping = false;
+
+    public PickleMetricServer(MetricCacher metricCacher, MetricFactory metricFactory, ClientAdmission clientAdmission) {
+        this.metricCacher = metricCacher;
+        this.metricFactory = metricFactory;
+        this.clientAdmission = clientAdmission;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            log.info("Pickle metric server disabled");
+            return;
+        }
+        log.info("Starting pickle metric server on port: {} with factory {}", port, metricFactory.getClass().getSimpleName());
+        serverSocket = new ServerSocket();
+        SocketAddress socketAddress;
+        if (Strings.isNullOrEmpty(bindAddress)) {
+            socketAddress = new InetSocketAddress(port);
+        } else {
+            socketAddress = new InetSocketAddress(bindAddress, port);
+        }
+        serverSocket.bind(socketAddress);
+
+        readersExecutorService = Executors.newFixedThreadPool(
+            threadCount,
+            new ThreadFactoryBuilder().setNameFormat("pickle-reader-thread-%d").build()
+        );
+        for (int i = 0; i < threadCount; i++) {
+            readersExecutorService.submit(new PickleServerWorker());
+        }
+
+        log.info("Pickle metric server started on port " + port);
+    }
+
+    /**
+     * Frames are processed synchronously, so nothing is left after the readers stop.
+     * Connections are closed to stop the readers waiting for the next frame,
+     * a frame which is already being submitted is completed.
+     */
+    @Override
+    public void shutdown() {
+        if (serverSocket == null) {
+            return;
+        }
+        log.info("Shutting down pickle metric server, closing {} connections", activeSockets.size());
+        stopping = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        readersExecutorService.shutdown();
+        activeSockets.forEach(this::safeSocketClose);
+        while (!readersExecutorService.isTerminated()) {
+            log.info("Awaiting pickle readers completion");
+            try {
+                readersExecutorService.awaitTermination(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        log.info("Pickle metric server stopped");
+    }
+
+    private class PickleServerWorker implements Runnable {
+
+        private final PickleDecoder decoder = new PickleDecoder();
+        private byte[] frame = new byte[INITIAL_FRAME_BUFFER_SIZE_BYTES];
+        private final List<Metric> metrics = new ArrayList<>();
+        private int updatedSeconds;
+
+        @Override
+        public void run() {
+            while (!stopping && !serverSocket.isClosed()) {
+                try {
+                    read();
+                } catch (Throwable t) {
+                    if (!stopping) {
+                        log.warn("Reading from pickle socket has been failed", t);
+                    }
+                }
+            }
+            log.info("PickleServerWorker stopped");
+        }
+
+        private void read() throws IOException {
+            Socket socket = serverSocket.accept();
+            activeSockets.add(socket);
+            if (stopping) {
+                // Accepted after shutdown has closed the connections
+                safeSocketClose(socket);
+                activeSockets.remove(socket);
+                return;
+            }
+            String remoteAddress = socket.getRemoteSocketAddress().toString();
+            if (shouldLogRemoteSocketAddress) {
+                log.info("Pickle connection accepted. Client's address: '{}'", remoteAddress);
+            }
+            try {
+                socket.setSoTimeout(socketTimeoutMillis);
+                socket.setKeepAlive(false);
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                ClientAdmission.Bucket bucket = clientAdmission.getBucket(socket.getInetAddress());
+                while (!stopping) {
+                    int frameLength;
+                    try {
+                        frameLength = inputStream.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (frameLength < 0 || frameLength > maxFrameSizeBytes) {
+                        log.warn("Pickle frame of " + frameLength + " bytes from " + remoteAddress + ", closing");
+                        break;
+                    }
+                    if (frame.length < frameLength) {
+                        frame = new byte[Math.max(frameLength, frame.length * 2)];
+                    }
+                    inputStream.readFully(frame, 0, frameLength);
+                    processFrame(frameLength, remoteAddress, bucket);
+                }
+            } catch (SocketTimeoutException e) {
+                log.warn("Socket timeout from " + remoteAddress);
+            } catch (SocketException | EOFException e) {
+                if (!stopping) {
+                    log.warn("Socket exception from " + remoteAddress);
+                }
+            } finally {
+                safeSocketClose(socket);
+                activeSockets.remove(socket);
+            }
+            if (frame.length > INITIAL_FRAME_BUFFER_SIZE_BYTES) {
+                frame = new byte[INITIAL_FRAME_BUFFER_SIZE_BYTES];
+            }
+        }
+
+        private void processFrame(int frameLength, String remoteAddress, ClientAdmission.Bucket bucket) {
+            updatedSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            try {
+                decoder.decode(frame, 0, frameLength, this::addDatapoint);
+            } catch (IllegalArgumentException e) {
+                // The whole frame is dropped, as the relay doesn't know which of its datapoints were taken
+                log.warn("Invalid pickle frame from " + remoteAddress + ": " + e.getMessage());
+                metrics.clear();
+                return;
+            }
+            metricCacher.submitMetrics(metrics);
+            long delayNanos = clientAdmission.acquire(bucket, metrics.size());
+            metrics.clear();
+            if (delayNanos > 0) {
+                // The next frame is not read while the client is over its rate, so it gets TCP back pressure
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void addDatapoint(byte[] bytes, int nameOffset, int nameLength, double timestamp, double value) {
+            Metric metric = metricFactory.createMetric(
+                bytes, nameOffset, nameLength, value, (int) Math.round(timestamp), updatedSeconds
+            );
+            if (metric != null) {
+                metrics.add(metric);
+            }
+        }
+    }
+
+    private void safeSocketClose(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Error on socket close", e);
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setMaxFrameSizeBytes(int maxFrameSizeBytes) {
+        this.maxFrameSizeBytes = maxFrameSizeBytes;
+    }
+}
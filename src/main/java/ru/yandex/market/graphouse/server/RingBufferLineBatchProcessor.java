@@ -0,0 +1,218 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer multi-consumer ring of preallocated batches between readers and parsers.
+ * <p>
+ * Every slot has a sequence, which tells whose turn it is: a reader claims position <code>p</code>
+ * when the slot sequence is <code>p</code>, swaps its filled batch with the empty one of the slot and publishes it
+ * by setting the sequence to <code>p + 1</code>. A parser claims up to {@link #MAX_CLAIM} published slots at once,
+ * parses them and releases each slot for the next round by setting its sequence to <code>p + size</code>.
+ * So in a steady state neither batches nor tasks are allocated.
+ * <p>
+ * When the ring is full readers wait with the configured {@link WaitStrategy} and stop reading sockets,
+ * instead of parsing on their own.
+ */
+public class RingBufferLineBatchProcessor extends BaseLineBatchProcessor {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int MAX_CLAIM = 16;
+    private static final int INITIAL_BATCH_CAPACITY_BYTES = 4096;
+
+    private final LineBatch[] slots;
+    private final long[] publishedNanos;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    /**
+     * Next position for readers to claim.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Next position for parsers to claim.
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final WaitStrategy readersWaitStrategy;
+    private final WaitStrategy parsersWaitStrategy;
+    private final Thread[] parsers;
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param size rounded up to a power of two
+     */
+    public RingBufferLineBatchProcessor(MetricFactory metricFactory, MetricCacher metricCacher,
+                                        StatisticsService statisticsService, int threadCount,
+                                        int size, String waitStrategy) {
+        super(metricFactory, metricCacher, statisticsService);
+        Preconditions.checkArgument(size > 0, "Ring buffer size must be positive");
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        slots = new LineBatch[capacity];
+        publishedNanos = new long[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new LineBatch(INITIAL_BATCH_CAPACITY_BYTES);
+            sequences.set(i, i);
+        }
+        readersWaitStrategy = WaitStrategy.create(waitStrategy);
+        parsersWaitStrategy = WaitStrategy.create(waitStrategy);
+
+        parsers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            parsers[i] = new Thread(this::runParser, "parser-thread-" + i);
+            parsers[i].start();
+        }
+    }
+
+    @Override
+    public LineBatch submit(LineBatch batch) {
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        return publish(claim(true), batch);
+    }
+
+    @Override
+    public LineBatch trySubmit(LineBatch batch) {
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        long position = claim(false);
+        if (position < 0) {
+            return null;
+        }
+        return publish(position, batch);
+    }
+
+    /**
+     * @return claimed position or -1 if the ring is full and waiting is not allowed
+     */
+    private long claim(boolean wait) {
+        long blockedSinceNanos = 0;
+        int attempt = 0;
+        long position = tail.get();
+        while (true) {
+            long difference = sequences.get(index(position)) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                if (!wait) {
+                    return -1;
+                }
+                if (blockedSinceNanos == 0) {
+                    blockedSinceNanos = System.nanoTime();
+                }
+                long awaitedPosition = position;
+                readersWaitStrategy.await(attempt++, () -> sequences.get(index(awaitedPosition)) >= awaitedPosition);
+            }
+            position = tail.get();
+        }
+        if (blockedSinceNanos != 0) {
+            readerBlocked(System.nanoTime() - blockedSinceNanos);
+        }
+        return position;
+    }
+
+    private LineBatch publish(long position, LineBatch batch) {
+        int index = index(position);
+        LineBatch emptyBatch = slots[index];
+        slots[index] = batch;
+        publishedNanos[index] = System.nanoTime();
+        sequences.set(index, position + 1);
+        parsersWaitStrategy.signalAll();
+        return emptyBatch;
+    }
+
+    private void runParser() {
+        List<Metric> metrics = new ArrayList<>();
+        int attempt = 0;
+        while (true) {
+            long position = head.get();
+            long difference = sequences.get(index(position)) - (position + 1);
+            if (difference == 0) {
+                int count = 1;
+                while (count < MAX_CLAIM && sequences.get(index(position + count)) == position + count + 1) {
+                    count++;
+                }
+                if (head.compareAndSet(position, position + count)) {
+                    attempt = 0;
+                    parseAndRelease(position, count, metrics);
+                }
+            } else if (difference < 0) {
+                // Claimed but not yet published positions are waited for even on shutdown
+                if (shutdown && position == tail.get()) {
+                    break;
+                }
+                parsersWaitStrategy.await(attempt++, this::isPublishedOrShutdown);
+            }
+        }
+    }
+
+    private boolean isPublishedOrShutdown() {
+        long position = head.get();
+        return shutdown || sequences.get(index(position)) > position;
+    }
+
+    private void parseAndRelease(long position, int count, List<Metric> metrics) {
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = index(position + i);
+                LineBatch batch = slots[index];
+                try {
+                    parse(batch, publishedNanos[index], metrics);
+                } finally {
+                    batch.clear();
+                    sequences.set(index, position + i + slots.length);
+                }
+            }
+            readersWaitStrategy.signalAll();
+            save(metrics);
+        } catch (RuntimeException e) {
+            log.error("Failed to parse " + count + " batches", e);
+        } finally {
+            metrics.clear();
+        }
+    }
+
+    private int index(long position) {
+        return (int) (position & mask);
+    }
+
+    @Override
+    public int getQueueSize() {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        parsersWaitStrategy.signalAll();
+    }
+
+    @Override
+    public void awaitTermination() {
+        for (Thread parser : parsers) {
+            while (parser.isAlive()) {
+                log.info("Awaiting parsers completion");
+                try {
+                    parser.join(100);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+}
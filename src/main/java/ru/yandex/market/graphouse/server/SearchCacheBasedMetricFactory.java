@@ -47,6 +47,11 @@ public class SearchCacheBasedMetricFactory extends BaseMetricFactory {
         return metric;
     }
 
+    @Override
+    protected long getStatusVersion() {
+        return metricSearch.getStatusVersion();
+    }
+
     @Override
     protected Logger getLog() {
         return log;
@@ -0,0 +1,82 @@
+package ru.yandex.market.graphouse.server;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression of a plaintext stream for {@link CompressedMetricServer}.
+ */
+public enum StreamCodec {
+    PLAIN,
+    /**
+     * Concatenated members are read as one stream, so a relay may flush by finishing a member.
+     */
+    GZIP,
+    /**
+     * Block stream of lz4-java, as written by <code>net.jpountz.lz4.LZ4BlockOutputStream</code>.
+     */
+    LZ4,
+    /**
+     * Codec is detected by the magic header of the stream, no header means {@link #PLAIN}.
+     */
+    AUTO;
+
+    private static final int BUFFER_SIZE_BYTES = 64 * 1024;
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+    private static final byte[] LZ4_MAGIC = "LZ4Block".getBytes(StandardCharsets.US_ASCII);
+
+    public InputStream decompress(InputStream inputStream) throws IOException {
+        switch (this) {
+            case PLAIN:
+                return inputStream;
+            case GZIP:
+                return new GZIPInputStream(inputStream, BUFFER_SIZE_BYTES);
+            case LZ4:
+                return new LZ4BlockInputStream(inputStream);
+            case AUTO:
+                BufferedInputStream bufferedStream = new BufferedInputStream(inputStream, BUFFER_SIZE_BYTES);
+                return detect(bufferedStream).decompress(bufferedStream);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public static StreamCodec forName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+
+    private static StreamCodec detect(BufferedInputStream inputStream) throws IOException {
+        byte[] header = new byte[LZ4_MAGIC.length];
+        inputStream.mark(header.length);
+        int length = 0;
+        int bytesRead;
+        while (length < header.length && (bytesRead = inputStream.read(header, length, header.length - length)) > 0) {
+            length += bytesRead;
+        }
+        inputStream.reset();
+        if (startsWith(header, length, LZ4_MAGIC)) {
+            return LZ4;
+        }
+        if (startsWith(header, length, GZIP_MAGIC)) {
+            return GZIP;
+        }
+        return PLAIN;
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.yandex.market.graphouse.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Reads plaintext lines from blocking streams of a reader thread and hands them to the parsers in batches.
+ * One instance per reader thread, reused for all its connections.
+ */
+class StreamLineReader {
+
+    private static final int READ_BUFFER_SIZE_BYTES = 8192;
+
+    private final LineBatchProcessor lineBatchProcessor;
+    private final ClientAdmission clientAdmission;
+    private final int readBatchSize;
+    private final AtomicLong totalLineCount = new AtomicLong();
+
+    private byte[] buffer = new byte[READ_BUFFER_SIZE_BYTES];
+    private LineBatch batch = new LineBatch(READ_BUFFER_SIZE_BYTES);
+
+    StreamLineReader(LineBatchProcessor lineBatchProcessor, ClientAdmission clientAdmission, int readBatchSize) {
+        this.lineBatchProcessor = lineBatchProcessor;
+        this.clientAdmission = clientAdmission;
+        this.readBatchSize = readBatchSize;
+    }
+
+    /**
+     * Splits the stream to lines like {@link java.io.BufferedReader#readLine()}, but without decoding them.
+     * Lines are not submitted until {@link #submitBatch()} or the batch is full.
+     *
+     * @param needStop checked after every read
+     * @return <code>false</code> if stopped before the end of the stream
+     */
+    boolean readLines(InputStream inputStream, ClientAdmission.Bucket bucket,
+                      BooleanSupplier needStop) throws IOException {
+        int size = 0;
+        int bytesRead;
+        try {
+            while ((bytesRead = inputStream.read(buffer, size, buffer.length - size)) >= 0) {
+                int scanFrom = size;
+                size += bytesRead;
+                int lineStart = 0;
+                int lineCount = 0;
+                for (int i = scanFrom; i < size; i++) {
+                    if (buffer[i] == '\n') {
+                        batch.addLine(buffer, lineStart, i - lineStart);
+                        if (batch.getLineCount() >= readBatchSize) {
+                            submitBatch();
+                        }
+                        lineStart = i + 1;
+                        lineCount++;
+                    }
+                }
+                totalLineCount.lazySet(totalLineCount.get() + lineCount);
+                throttle(bucket, lineCount);
+                size -= lineStart;
+                System.arraycopy(buffer, lineStart, buffer, 0, size);
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                if (needStop.getAsBoolean()) {
+                    return false;
+                }
+            }
+            if (size > 0) {
+                batch.addLine(buffer, 0, size);
+                totalLineCount.lazySet(totalLineCount.get() + 1);
+            }
+            return true;
+        } finally {
+            if (buffer.length > READ_BUFFER_SIZE_BYTES) {
+                buffer = new byte[READ_BUFFER_SIZE_BYTES];
+            }
+        }
+    }
+
+    /**
+     * Doesn't read the stream while the client is over its rate, so it gets TCP back pressure.
+     */
+    private void throttle(ClientAdmission.Bucket bucket, int lineCount) {
+        long delayNanos = clientAdmission.acquire(bucket, lineCount);
+        if (delayNanos <= 0) {
+            return;
+        }
+        submitBatch();
+        try {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void submitBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch = lineBatchProcessor.submit(batch);
+    }
+
+    void clear() {
+        batch.clear();
+    }
+
+    int getLineCount() {
+        return batch.getLineCount();
+    }
+
+    /**
+     * @return lines read by this reader since start, may be called from any thread
+     */
+    long getTotalLineCount() {
+        return totalLineCount.get();
+    }
+}
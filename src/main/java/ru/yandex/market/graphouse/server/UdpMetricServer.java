@@ -0,0 +1,260 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.base.Strings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graphite plaintext receiver over UDP. Every datagram contains one or more lines.
+ * Enabled with <code>graphouse.cacher.udp.enabled=true</code>, works along with the TCP receiver.
+ * <p>
+ * UDP has no back pressure, so when parsers can't keep up, packets are dropped instead of blocking the receiver.
+ */
+public class UdpMetricServer implements InitializingBean, MetricReceiver {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int SELECT_TIMEOUT_MILLIS = 100;
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 1024;
+
+    @Value("${graphouse.cacher.udp.enabled}")
+    private boolean enabled;
+
+    @Value("${graphouse.cacher.udp.port}")
+    private int port;
+
+    @Value("${graphouse.cacher.bind-address}")
+    private String bindAddress;
+
+    @Value("${graphouse.cacher.udp.threads}")
+    private int parserThreadCount;
+
+    @Value("${graphouse.cacher.udp.buffer-size-bytes}")
+    private int bufferSizeBytes;
+
+    @Value("${graphouse.cacher.udp.receive-buffer-size-bytes}")
+    private int receiveBufferSizeBytes;
+
+    @Value("${graphouse.cacher.read-batch-size}")
+    private int readBatchSize;
+
+    private final MetricCacher metricCacher;
+    private final MetricFactory metricFactory;
+    private final LineBatchProcessorFactory lineBatchProcessorFactory;
+    private final StatisticsService statisticsService;
+    private final ClientAdmission clientAdmission;
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private LineBatchProcessor lineBatchProcessor;
+    private ByteBufferPool bufferPool;
+    private Thread receiverThread;
+
+    private LineBatch batch;
+    private int batchPackets = 0;
+
+    private volatile boolean running = true;
+
+    public UdpMetricServer(MetricCacher metricCacher, MetricFactory metricFactory,
+                           StatisticsService statisticsService, LineBatchProcessorFactory lineBatchProcessorFactory,
+                           ClientAdmission clientAdmission) {
+        this.metricCacher = metricCacher;
+        this.metricFactory = metricFactory;
+        this.statisticsService = statisticsService;
+        this.lineBatchProcessorFactory = lineBatchProcessorFactory;
+        this.clientAdmission = clientAdmission;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            log.info("Udp metric server disabled");
+            return;
+        }
+        log.info("Starting udp metric server on port: {} with factory {}", port, metricFactory.getClass().getSimpleName());
+        lineBatchProcessor = lineBatchProcessorFactory.create(metricFactory, metricCacher, parserThreadCount);
+        bufferPool = new ByteBufferPool(bufferSizeBytes, 1);
+        batch = newBatch();
+
+        SocketAddress socketAddress;
+        if (Strings.isNullOrEmpty(bindAddress)) {
+            socketAddress = new InetSocketAddress(port);
+        } else {
+            socketAddress = new InetSocketAddress(bindAddress, port);
+        }
+        channel = DatagramChannel.open();
+        if (receiveBufferSizeBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSizeBytes);
+        }
+        channel.bind(socketAddress);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        receiverThread = new Thread(this::receive, "udp-receiver-thread");
+        receiverThread.start();
+
+        log.info("Udp metric server started on port " + port);
+    }
+
+    private void receive() {
+        ByteBuffer buffer = bufferPool.acquire();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                selector.selectedKeys().clear();
+                for (int i = 0; i < MAX_DATAGRAMS_PER_WAKEUP; i++) {
+                    buffer.clear();
+                    SocketAddress source = channel.receive(buffer);
+                    if (source == null) {
+                        break;
+                    }
+                    buffer.flip();
+                    addDatagram(buffer, source);
+                }
+                submitBatch();
+            } catch (Throwable t) {
+                log.warn("Udp receive iteration failed. Metrics size: " + batch.getLineCount(), t);
+            }
+        }
+        submitBatch();
+        bufferPool.release(buffer);
+        log.info("Udp receiver stopped");
+    }
+
+    private void addDatagram(ByteBuffer buffer, SocketAddress source) {
+        int limit = buffer.limit();
+        // Datagram is silently cut to the buffer size, so the last line can't be trusted
+        boolean truncated = limit == buffer.capacity();
+        if (truncated) {
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_TRUNCATED_UDP_PACKETS, 1);
+        }
+        if (!admit(buffer, source, truncated)) {
+            return;
+        }
+        int lineStart = 0;
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                addLine(buffer, lineStart, i - lineStart);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < limit && !truncated) {
+            addLine(buffer, lineStart, limit - lineStart);
+        }
+        batchPackets++;
+    }
+
+    private boolean admit(ByteBuffer buffer, SocketAddress source, boolean truncated) {
+        if (!clientAdmission.isEnabled()) {
+            return true;
+        }
+        ClientAdmission.Bucket bucket = clientAdmission.getBucket(((InetSocketAddress) source).getAddress());
+        if (bucket == null) {
+            return true;
+        }
+        int limit = buffer.limit();
+        int lineCount = 0;
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                lineCount++;
+            }
+        }
+        if (limit > 0 && buffer.get(limit - 1) != '\n' && !truncated) {
+            lineCount++;
+        }
+        return clientAdmission.tryAcquire(bucket, lineCount);
+    }
+
+    private void addLine(ByteBuffer buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        batch.addLine(buffer, offset, length);
+        if (batch.getLineCount() >= readBatchSize) {
+            submitBatch();
+        }
+    }
+
+    private void submitBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        LineBatch emptyBatch = lineBatchProcessor.trySubmit(batch);
+        if (emptyBatch != null) {
+            batch = emptyBatch;
+        } else {
+            statisticsService.accumulateMetric(AccumulatedMetric.NUMBER_OF_DROPPED_UDP_PACKETS, batchPackets);
+            batch.clear();
+        }
+        batchPackets = 0;
+    }
+
+    private LineBatch newBatch() {
+        return new LineBatch(bufferSizeBytes);
+    }
+
+    /**
+     * Datagrams already received are parsed and submitted, the cacher is flushed after it.
+     */
+    @Override
+    public void shutdown() {
+        if (channel == null) {
+            return;
+        }
+        log.info("Shutting down udp metric server");
+        running = false;
+        selector.wakeup();
+        try {
+            receiverThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ignored) {
+        }
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        lineBatchProcessor.shutdown();
+        lineBatchProcessor.awaitTermination();
+        log.info("Udp metric server stopped");
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public void setParserThreadCount(int parserThreadCount) {
+        this.parserThreadCount = parserThreadCount;
+    }
+
+    public void setBufferSizeBytes(int bufferSizeBytes) {
+        this.bufferSizeBytes = bufferSizeBytes;
+    }
+
+    public void setReadBatchSize(int readBatchSize) {
+        this.readBatchSize = readBatchSize;
+    }
+}
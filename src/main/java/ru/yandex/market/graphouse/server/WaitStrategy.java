@@ -0,0 +1,138 @@
+package ru.yandex.market.graphouse.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How {@link RingBufferLineBatchProcessor} threads wait for batches or free slots.
+ * Trades latency and CPU burnt while idle:
+ * <ul>
+ * <li>blocking - waits on a condition, no CPU when idle, the highest latency</li>
+ * <li>sleeping - spins, yields and then parks for a short time</li>
+ * <li>yielding - spins and yields, one core per waiting thread when idle</li>
+ * <li>busy-spin - only spins, the lowest latency, only for threads pinned to dedicated cores</li>
+ * </ul>
+ */
+public interface WaitStrategy {
+
+    /**
+     * Called in a loop until the awaited state is reached. May return before it.
+     *
+     * @param attempt number of the call in the current loop, starting with 0
+     * @param ready   checks the awaited state
+     */
+    void await(int attempt, BooleanSupplier ready);
+
+    /**
+     * Wakes up all waiting threads after the state has changed.
+     */
+    void signalAll();
+
+    static WaitStrategy create(String name) {
+        switch (name) {
+            case "blocking":
+                return new BlockingWaitStrategy();
+            case "sleeping":
+                return new SleepingWaitStrategy();
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "busy-spin":
+                return new BusySpinWaitStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+
+    class BlockingWaitStrategy implements WaitStrategy {
+        /**
+         * Signals are not lost, waiters wake up on timeout only to check shutdown.
+         */
+        private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition condition = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        @Override
+        public void await(int attempt, BooleanSupplier ready) {
+            // Registered before the check: whoever changes the state after it, sees the waiter and signals
+            waiters.incrementAndGet();
+            lock.lock();
+            try {
+                if (!ready.getAsBoolean()) {
+                    condition.awaitNanos(MAX_WAIT_NANOS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+                waiters.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            if (waiters.get() == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                condition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    class SleepingWaitStrategy implements WaitStrategy {
+        private static final int SPIN_ATTEMPTS = 100;
+        private static final int YIELD_ATTEMPTS = 200;
+        private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        @Override
+        public void await(int attempt, BooleanSupplier ready) {
+            if (attempt < SPIN_ATTEMPTS) {
+                return;
+            }
+            if (attempt < YIELD_ATTEMPTS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(SLEEP_NANOS);
+            }
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    class YieldingWaitStrategy implements WaitStrategy {
+        private static final int SPIN_ATTEMPTS = 100;
+
+        @Override
+        public void await(int attempt, BooleanSupplier ready) {
+            if (attempt >= SPIN_ATTEMPTS) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    class BusySpinWaitStrategy implements WaitStrategy {
+        @Override
+        public void await(int attempt, BooleanSupplier ready) {
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+}
@@ -12,5 +12,33 @@ public enum AccumulatedMetric {
     NUMBER_OF_WEB_REQUESTS,
     NUMBER_OF_LOADED_DIRS,
     NUMBER_OF_LOADED_METRICS,
-    NUMBER_OF_UPDATED_METRIC_TREE_NODES
+    NUMBER_OF_UPDATED_METRIC_TREE_NODES,
+    NUMBER_OF_DROPPED_UDP_PACKETS,
+    NUMBER_OF_TRUNCATED_UDP_PACKETS,
+    NUMBER_OF_HANDED_OFF_BATCHES,
+    HANDOFF_WAIT_MILLIS, // batches waiting for a parser
+    HANDOFF_BLOCKED_MILLIS, // readers waiting for a free place in the handoff
+    PARSE_MILLIS,
+    CACHER_SUBMIT_MILLIS, // parsers waiting for a free place in the metric cacher queue
+    NUMBER_OF_THROTTLED_READS, // connections paused by client admission
+    THROTTLED_MILLIS,
+    NUMBER_OF_SHED_LINES,
+    NUMBER_OF_REJECTED_WRITE_REQUESTS, // http writes rejected because of the full metric queue
+    NUMBER_OF_SPILLED_METRICS, // written to the disk spill because ClickHouse is unavailable
+    NUMBER_OF_REPLAYED_METRICS,
+    NUMBER_OF_DROPPED_SPILL_SEGMENTS, // expired before replay
+    NUMBER_OF_BATCH_INSERTS,
+    BATCH_INSERT_MILLIS,
+    NUMBER_OF_STREAMING_INSERTS,
+    NUMBER_OF_STREAMED_BATCHES, // taken from the queue to open streaming inserts
+    STREAMING_INSERT_MILLIS, // without waiting for metrics to stream
+    NUMBER_OF_ASYNC_INSERTS,
+    ASYNC_INSERT_MILLIS,
+    INSERT_UNCOMPRESSED_BYTES, // RowBinary of inserts with graphouse.cacher.insert.compress
+    INSERT_COMPRESSED_BYTES,
+    NUMBER_OF_COLLAPSED_METRICS, // duplicates of a metric and timestamp removed from batches
+    NUMBER_OF_SORTED_BATCHES,
+    BATCH_SORT_MILLIS,
+    NUMBER_OF_LATE_METRICS, // outside of the current partition with graphouse.cacher.partition-by
+    NUMBER_OF_LATE_BATCHES
 }
@@ -8,5 +8,16 @@ public enum InstantMetric {
     METRIC_CACHE_QUEUE_SIZE,
     METRIC_CACHE_QUEUE_LOAD_PERCENT,
     NUMBER_OF_LOADED_DIRS,
-    NUMBER_OF_LOADED_METRICS
+    NUMBER_OF_LOADED_METRICS,
+    HANDOFF_QUEUE_SIZE,
+    NAME_CACHE_HITS, // total since start
+    NAME_CACHE_MISSES,
+    ADMISSION_CLIENTS,
+    ADMISSION_THROTTLED_CLIENTS,
+    SPILL_SIZE_BYTES,
+    SPILL_SEGMENTS,
+    ENCODED_NAME_CACHE_SIZE,
+    ENCODED_NAME_CACHE_BYTES,
+    ADAPTIVE_BATCH_SIZE,
+    ADAPTIVE_OUTPUT_THREADS
 }
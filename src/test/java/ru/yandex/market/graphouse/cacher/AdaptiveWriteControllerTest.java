@@ -0,0 +1,66 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveWriteControllerTest {
+
+    private final AdaptiveWriteController controller = new AdaptiveWriteController(
+        10_000, 1_000_000, 1, 8, 5000, 30
+    );
+
+    @Test
+    public void testInitial() {
+        Assert.assertEquals(10_000, controller.getBatchSize());
+        Assert.assertEquals(8, controller.getWriters());
+
+        controller.adjust(90);
+        Assert.assertEquals(10_000, controller.getBatchSize());
+        Assert.assertEquals(8, controller.getWriters());
+    }
+
+    @Test
+    public void testOverload() {
+        controller.onInsert(6000);
+        controller.adjust(10);
+        Assert.assertEquals(20_000, controller.getBatchSize());
+        Assert.assertEquals(4, controller.getWriters());
+
+        controller.onError();
+        controller.adjust(10);
+        Assert.assertEquals(40_000, controller.getBatchSize());
+        Assert.assertEquals(2, controller.getWriters());
+
+        for (int i = 0; i < 10; i++) {
+            controller.onError();
+            controller.adjust(10);
+        }
+        Assert.assertEquals(1_000_000, controller.getBatchSize());
+        Assert.assertEquals(1, controller.getWriters());
+    }
+
+    @Test
+    public void testRecovery() {
+        for (int i = 0; i < 10; i++) {
+            controller.onError();
+            controller.adjust(10);
+        }
+
+        controller.onInsert(100);
+        controller.adjust(50);
+        Assert.assertEquals(2, controller.getWriters());
+        Assert.assertEquals(1_000_000, controller.getBatchSize());
+
+        controller.onInsert(100);
+        controller.adjust(10);
+        Assert.assertEquals(2, controller.getWriters());
+        Assert.assertEquals(901_000, controller.getBatchSize());
+
+        for (int i = 0; i < 20; i++) {
+            controller.onInsert(100);
+            controller.adjust(i < 10 ? 50 : 10);
+        }
+        Assert.assertEquals(8, controller.getWriters());
+        Assert.assertEquals(10_000, controller.getBatchSize());
+    }
+}
@@ -0,0 +1,88 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchCollapserTest {
+
+    private final MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+    private final MetricName a = name("a");
+    private final MetricName b = name("b");
+
+    @Test
+    public void testLastWriteWins() {
+        List<MetricChunk> chunks = MetricChunk.fromMetrics(Arrays.asList(
+            new Metric(a, 60, 1, 100),
+            new Metric(b, 60, 2, 100),
+            new Metric(a, 120, 3, 100),
+            new Metric(a, 60, 4, 101),
+            new Metric(a, 60, 5, 99),
+            new Metric(b, 60, 6, 100)
+        ));
+
+        Assert.assertEquals(3, new BatchCollapser().collapse(chunks));
+
+        MetricChunk chunk = chunks.get(0);
+        Assert.assertEquals(3, chunk.size());
+        assertPoint(chunk, 0, a, 120, 3);
+        assertPoint(chunk, 1, a, 60, 4);
+        assertPoint(chunk, 2, b, 60, 6);
+    }
+
+    @Test
+    public void testAcrossChunks() {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < MetricChunk.CAPACITY * 2; i++) {
+            metrics.add(new Metric(i % 2 == 0 ? a : b, i % MetricChunk.CAPACITY, i, 100));
+        }
+        List<MetricChunk> chunks = MetricChunk.fromMetrics(metrics);
+        BatchCollapser collapser = new BatchCollapser();
+
+        Assert.assertEquals(MetricChunk.CAPACITY, collapser.collapse(chunks));
+        Assert.assertEquals(0, chunks.get(0).size());
+        Assert.assertEquals(MetricChunk.CAPACITY, chunks.get(1).size());
+        assertPoint(chunks.get(1), 1, b, 1, MetricChunk.CAPACITY + 1);
+
+        // Tables are cleared between batches
+        Assert.assertEquals(0, collapser.collapse(chunks));
+        Assert.assertEquals(0, collapser.collapse(MetricChunk.fromMetrics(metrics.subList(0, 10))));
+    }
+
+    @Test
+    public void testEncodingDropped() {
+        ZoneId zoneId = ZoneId.of("UTC");
+        MetricChunk changed = new MetricChunk();
+        MetricChunk unchanged = new MetricChunk();
+        changed.add(new Metric(a, 60, 1, 100));
+        changed.add(new Metric(a, 60, 2, 100));
+        unchanged.add(new Metric(b, 60, 3, 100));
+        // Rows themselves don't matter here
+        changed.startEncoding(zoneId);
+        unchanged.startEncoding(zoneId);
+
+        Assert.assertEquals(1, new BatchCollapser().collapse(Arrays.asList(changed, unchanged)));
+        Assert.assertFalse(changed.isEncodedFor(zoneId));
+        Assert.assertTrue(unchanged.isEncodedFor(zoneId));
+    }
+
+    private static void assertPoint(MetricChunk chunk, int index, MetricName name, int timestamp, double value) {
+        Assert.assertSame(name, chunk.getMetricDescription(index));
+        Assert.assertEquals(timestamp, chunk.getTimestampSeconds(index));
+        Assert.assertEquals(value, chunk.getValue(index), 0);
+    }
+
+    private MetricName name(String name) {
+        return new MetricName(root, name, MetricStatus.SIMPLE, new DefaultRetentionProvider());
+    }
+}
@@ -0,0 +1,113 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class BatchSorterTest {
+
+    private final MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+
+    @Test
+    public void testSort() {
+        MetricName a = name("a.b");
+        MetricName ab = name("a_b");
+        // Above any ASCII in UTF-8
+        MetricName cyrillic = name("ж");
+        List<MetricChunk> chunks = MetricChunk.fromMetrics(Arrays.asList(
+            new Metric(cyrillic, 60, 1, 100),
+            new Metric(ab, 120, 2, 100),
+            new Metric(a, 120, 3, 100),
+            new Metric(ab, 60, 4, 100),
+            new Metric(a, 120, 5, 101),
+            new Metric(a, 60, 6, 100)
+        ));
+
+        new BatchSorter().sort(chunks);
+
+        MetricChunk chunk = chunks.get(0);
+        assertPoint(chunk, 0, a, 60, 6);
+        assertPoint(chunk, 1, a, 120, 3);
+        assertPoint(chunk, 2, a, 120, 5);
+        assertPoint(chunk, 3, ab, 60, 4);
+        assertPoint(chunk, 4, ab, 120, 2);
+        assertPoint(chunk, 5, cyrillic, 60, 1);
+    }
+
+    @Test
+    public void testAcrossChunks() {
+        Random random = new Random(42);
+        MetricName[] names = new MetricName[1000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = name("metric" + i);
+        }
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < MetricChunk.CAPACITY * 3 + 10; i++) {
+            metrics.add(new Metric(names[random.nextInt(names.length)], random.nextInt(1000), i, 100));
+        }
+        List<MetricChunk> chunks = MetricChunk.fromMetrics(metrics);
+        BatchSorter sorter = new BatchSorter();
+
+        sorter.sort(chunks);
+        assertSorted(chunks, metrics);
+        // Arrays are reused by a smaller batch
+        List<MetricChunk> small = MetricChunk.fromMetrics(metrics.subList(0, 100));
+        sorter.sort(small);
+        assertSorted(small, metrics.subList(0, 100));
+    }
+
+    @Test
+    public void testOrderedKeepsEncoding() {
+        ZoneId zoneId = ZoneId.of("UTC");
+        MetricChunk ordered = new MetricChunk();
+        ordered.add(new Metric(name("a"), 60, 1, 100));
+        ordered.add(new Metric(name("b"), 60, 2, 100));
+        // Rows themselves don't matter here
+        ordered.startEncoding(zoneId);
+
+        new BatchSorter().sort(Collections.singletonList(ordered));
+        Assert.assertTrue(ordered.isEncodedFor(zoneId));
+    }
+
+    private static void assertSorted(List<MetricChunk> chunks, List<Metric> metrics) {
+        List<Metric> expected = new ArrayList<>(metrics);
+        expected.sort(
+            Comparator.comparing((Metric metric) -> metric.getMetricDescription().getName())
+                .thenComparingInt(Metric::getTimestampSeconds)
+        );
+        int point = 0;
+        for (MetricChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size(); i++) {
+                Metric metric = expected.get(point++);
+                assertPoint(
+                    chunk, i, (MetricName) metric.getMetricDescription(), metric.getTimestampSeconds(),
+                    metric.getValue()
+                );
+            }
+        }
+        Assert.assertEquals(metrics.size(), point);
+    }
+
+    private static void assertPoint(MetricChunk chunk, int index, MetricName name, int timestamp, double value) {
+        Assert.assertSame(name, chunk.getMetricDescription(index));
+        Assert.assertEquals(timestamp, chunk.getTimestampSeconds(index));
+        Assert.assertEquals(value, chunk.getValue(index), 0);
+    }
+
+    private MetricName name(String name) {
+        return new MetricName(root, name, MetricStatus.SIMPLE, new DefaultRetentionProvider());
+    }
+}
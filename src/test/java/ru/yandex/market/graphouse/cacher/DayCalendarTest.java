@@ -0,0 +1,36 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+public class DayCalendarTest {
+
+    @Test
+    public void testSameAsLocalDate() {
+        // With DST changes in the table
+        for (String zone : new String[]{"UTC", "Europe/Moscow", "America/New_York", "Australia/Lord_Howe"}) {
+            ZoneId zoneId = ZoneId.of(zone);
+            LocalDate today = LocalDate.of(2017, 4, 16);
+            DayCalendar calendar = DayCalendar.get(zoneId, today);
+            long from = today.minusDays(DayCalendar.DAYS + 10).atStartOfDay(zoneId).toEpochSecond();
+            long to = today.plusDays(10).atStartOfDay(zoneId).toEpochSecond();
+            for (long seconds = from; seconds < to; seconds += TimeUnit.MINUTES.toSeconds(30) - 1) {
+                long expected = Instant.ofEpochSecond(seconds).atZone(zoneId).toLocalDate().toEpochDay();
+                Assert.assertEquals(zone + " " + seconds, expected, calendar.getDay((int) seconds));
+            }
+        }
+    }
+
+    @Test
+    public void testReused() {
+        LocalDate today = LocalDate.of(2017, 4, 16);
+        DayCalendar calendar = DayCalendar.get(ZoneId.of("UTC"), today);
+        Assert.assertSame(calendar, DayCalendar.get(ZoneId.of("UTC"), today));
+        Assert.assertNotSame(calendar, DayCalendar.get(ZoneId.of("UTC"), today.plusDays(1)));
+    }
+}
@@ -0,0 +1,135 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.clickhouse.util.ClickHouseStreamCallback;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.ByteArrayOutputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TimeZone;
+
+public class InsertStrategyTest {
+
+    private static final String QUERY = "INSERT INTO data (metric, value, timestamp, date, updated)";
+    private static final ZoneId ZONE_ID = ZoneId.of("UTC");
+
+    private final StatisticsService statisticsService = Mockito.mock(StatisticsService.class);
+    private final ClickHouseStatementImpl statement = Mockito.mock(ClickHouseStatementImpl.class);
+    private final MetricDir dir = new InMemoryMetricDir(
+        new InMemoryMetricDir(null, null, MetricStatus.SIMPLE), "one", MetricStatus.SIMPLE
+    );
+
+    @Test
+    public void testBatch() throws Exception {
+        InsertStrategy strategy = InsertStrategy.create("batch", RowBinarySender.DRIVER, statisticsService, 10, true);
+        List<MetricChunk> chunks = chunks(0, 10);
+
+        strategy.insert(statement, QUERY, chunks, ZONE_ID, all -> {
+            throw new AssertionError("Batch insert takes no more metrics");
+        });
+
+        Assert.assertEquals(encode(chunks(0, 10)), write(QUERY));
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.NUMBER_OF_BATCH_INSERTS, 1);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        InsertStrategy strategy = InsertStrategy.create("async", RowBinarySender.DRIVER, statisticsService, 10, true);
+
+        strategy.insert(statement, QUERY, chunks(0, 10), ZONE_ID, null);
+
+        Assert.assertEquals(
+            encode(chunks(0, 10)), write(QUERY + " SETTINGS async_insert = 1, wait_for_async_insert = 1")
+        );
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.NUMBER_OF_ASYNC_INSERTS, 1);
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        InsertStrategy strategy = InsertStrategy.create(
+            "streaming", RowBinarySender.DRIVER, statisticsService, 10, true
+        );
+        Queue<List<MetricChunk>> polled = new LinkedList<>(Arrays.asList(
+            chunks(10, 20), Collections.emptyList(), chunks(20, 30), null
+        ));
+        List<MetricChunk> chunks = chunks(0, 10);
+        String[] written = new String[1];
+
+        Mockito.doAnswer(invocation -> {
+            // Rows are written by the driver while the insert is sent
+            written[0] = write((ClickHouseStreamCallback) invocation.getArgument(1));
+            return null;
+        }).when(statement).sendRowBinaryStream(Mockito.eq(QUERY), Mockito.any(ClickHouseStreamCallback.class));
+        strategy.insert(statement, QUERY, chunks, ZONE_ID, all -> polled.poll());
+
+        Assert.assertTrue(polled.isEmpty());
+        Assert.assertEquals(encode(chunks(0, 30)), written[0]);
+        Assert.assertEquals(30, MetricChunk.countMetrics(chunks));
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.NUMBER_OF_STREAMING_INSERTS, 1);
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.NUMBER_OF_STREAMED_BATCHES, 2);
+    }
+
+    @Test
+    public void testStreamingRetry() throws Exception {
+        InsertStrategy strategy = InsertStrategy.create(
+            "streaming", RowBinarySender.DRIVER, statisticsService, 10, true
+        );
+        List<MetricChunk> chunks = chunks(0, 10);
+
+        strategy.insert(statement, QUERY, chunks, ZONE_ID, null);
+
+        Assert.assertEquals(encode(chunks(0, 10)), write(QUERY));
+        Assert.assertEquals(10, MetricChunk.countMetrics(chunks));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknown() {
+        InsertStrategy.create("bulk", RowBinarySender.DRIVER, statisticsService, 10, true);
+    }
+
+    private String write(String query) throws Exception {
+        ArgumentCaptor<ClickHouseStreamCallback> callback = ArgumentCaptor.forClass(ClickHouseStreamCallback.class);
+        Mockito.verify(statement).sendRowBinaryStream(Mockito.eq(query), callback.capture());
+        return write(callback.getValue());
+    }
+
+    private static String write(ClickHouseStreamCallback callback) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        callback.writeTo(
+            new ClickHouseRowBinaryStream(out, TimeZone.getTimeZone(ZONE_ID), new ClickHouseProperties())
+        );
+        return Arrays.toString(out.toByteArray());
+    }
+
+    private static String encode(List<MetricChunk> chunks) throws Exception {
+        return write(MetricsStreamCallback.ofChunks(chunks, ZONE_ID));
+    }
+
+    private List<MetricChunk> chunks(int from, int to) {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            MetricName name = new MetricName(dir, "metric" + i, MetricStatus.SIMPLE, new DefaultRetentionProvider());
+            metrics.add(new Metric(name, 1492342562, i, 1492342562));
+        }
+        return MetricChunk.fromMetrics(metrics);
+    }
+}
@@ -0,0 +1,143 @@
+package ru.yandex.market.graphouse.cacher;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.clickhouse.ClickHouseConnection;
+import ru.yandex.clickhouse.ClickHouseStatementImpl;
+import ru.yandex.clickhouse.response.ClickHouseLZ4Stream;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Random;
+
+public class Lz4RowBinarySenderTest {
+
+    private final StatisticsService statisticsService = Mockito.mock(StatisticsService.class);
+    private HttpServer server;
+    private volatile String requestQuery;
+    private volatile byte[] requestBody;
+    private volatile int responseCode = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requestQuery = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+            requestBody = ByteStreams.toByteArray(exchange.getRequestBody());
+            String response = responseCode == 200 ? "" : "Code: 60, e.displayText() = DB::Exception: No table";
+            // Chunked as ClickHouse does
+            exchange.sendResponseHeaders(responseCode, 0);
+            exchange.getResponseBody().write(response.getBytes(StandardCharsets.UTF_8));
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        ClickHouseProperties properties = new ClickHouseProperties();
+        properties.setUser("graphouse");
+        Lz4RowBinarySender sender = new Lz4RowBinarySender(properties, statisticsService);
+        byte[] rows = rows(3 * Lz4BlockOutputStream.BLOCK_SIZE + 42);
+
+        sender.send(statement(), "INSERT INTO data (metric, value)", stream -> stream.writeBytes(rows));
+
+        Assert.assertTrue(
+            requestQuery, requestQuery.contains("query=INSERT INTO data (metric, value) FORMAT RowBinary")
+        );
+        Assert.assertTrue(requestQuery, requestQuery.contains("database=graphite"));
+        Assert.assertTrue(requestQuery, requestQuery.contains("decompress=1"));
+        Assert.assertTrue(requestQuery, requestQuery.contains("user=graphouse"));
+        Assert.assertTrue(requestBody.length < rows.length);
+        Assert.assertArrayEquals(rows, decompress(requestBody));
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.INSERT_UNCOMPRESSED_BYTES, rows.length);
+        Mockito.verify(statisticsService).accumulateMetric(
+            AccumulatedMetric.INSERT_COMPRESSED_BYTES, requestBody.length
+        );
+    }
+
+    @Test
+    public void testBuffersReused() throws Exception {
+        Lz4RowBinarySender sender = new Lz4RowBinarySender(new ClickHouseProperties(), statisticsService);
+        byte[] first = rows(Lz4BlockOutputStream.BLOCK_SIZE + 1);
+        byte[] second = rows(100);
+
+        sender.send(statement(), "INSERT INTO data", stream -> stream.writeBytes(first));
+        Assert.assertArrayEquals(first, decompress(requestBody));
+        sender.send(statement(), "INSERT INTO data", stream -> stream.writeBytes(second));
+        Assert.assertArrayEquals(second, decompress(requestBody));
+    }
+
+    @Test
+    public void testError() throws Exception {
+        responseCode = 404;
+        Lz4RowBinarySender sender = new Lz4RowBinarySender(new ClickHouseProperties(), statisticsService);
+        try {
+            sender.send(statement(), "INSERT INTO data", stream -> stream.writeBytes(rows(100)));
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(60, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testSmallWrites() throws Exception {
+        byte[] rows = rows(10_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Lz4BlockOutputStream stream = new Lz4BlockOutputStream(1000).reset(out);
+        for (byte b : rows) {
+            stream.write(b);
+        }
+        stream.finish();
+
+        Assert.assertArrayEquals(rows, decompress(out.toByteArray()));
+        Assert.assertEquals(rows.length, stream.getUncompressedBytes());
+        Assert.assertEquals(out.size(), stream.getCompressedBytes());
+    }
+
+    private ClickHouseStatementImpl statement() throws SQLException {
+        DatabaseMetaData metaData = Mockito.mock(DatabaseMetaData.class);
+        Mockito.when(metaData.getURL()).thenReturn(
+            "jdbc:clickhouse://127.0.0.1:" + server.getAddress().getPort() + "/graphite"
+        );
+        ClickHouseConnection connection = Mockito.mock(ClickHouseConnection.class);
+        Mockito.when(connection.getMetaData()).thenReturn(metaData);
+        ClickHouseStatementImpl statement = Mockito.mock(ClickHouseStatementImpl.class);
+        Mockito.when(statement.getConnection()).thenReturn(connection);
+        return statement;
+    }
+
+    /**
+     * Metric-like rows, compressible but not trivially.
+     */
+    private static byte[] rows(int length) {
+        Random random = new Random(42);
+        byte[] rows = new byte[length];
+        for (int i = 0; i < length; i++) {
+            rows[i] = (byte) (i % 64 < 48 ? 'a' + i % 64 % 26 : random.nextInt());
+        }
+        return rows;
+    }
+
+    private static byte[] decompress(byte[] body) throws Exception {
+        return ByteStreams.toByteArray(new ClickHouseLZ4Stream(new ByteArrayInputStream(body)));
+    }
+}
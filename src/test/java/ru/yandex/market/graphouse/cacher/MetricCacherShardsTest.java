@@ -0,0 +1,217 @@
+package ru.yandex.market.graphouse.cacher;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.LittleEndianDataInputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.clickhouse.ClickHouseDataSource;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.monitoring.Monitoring;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.EncodedNameCache;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class MetricCacherShardsTest {
+
+    private final List<ClickHouseStandIn> standIns = new ArrayList<>();
+    private final List<Metric> metrics = new ArrayList<>();
+
+    public MetricCacherShardsTest() {
+        MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+        MetricDir dir = new InMemoryMetricDir(root, "one", MetricStatus.SIMPLE);
+        for (int i = 0; i < 300; i++) {
+            MetricName name = new MetricName(dir, "metric" + i, MetricStatus.SIMPLE, new DefaultRetentionProvider());
+            metrics.add(new Metric(name, 1492342562, i, 1492342562));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        standIns.forEach(ClickHouseStandIn::stop);
+    }
+
+    @Test
+    public void testRoutedByName() throws Exception {
+        MetricCacher metricCacher = createMetricCacher(3);
+        metricCacher.submitMetrics(metrics);
+        metricCacher.flushAndShutdown();
+
+        int received = 0;
+        for (int shard = 0; shard < standIns.size(); shard++) {
+            Queue<String> names = standIns.get(shard).names;
+            Assert.assertFalse(names.isEmpty());
+            for (String name : names) {
+                Assert.assertEquals(name, shard, ClickHouseShards.getShard(find(name).getMetricDescription(), 3));
+            }
+            Assert.assertTrue(standIns.get(shard).queries.peek().startsWith("INSERT INTO data_local "));
+            received += names.size();
+        }
+        Assert.assertEquals(metrics.size(), received);
+    }
+
+    @Test
+    public void testSlowShard() throws Exception {
+        MetricCacher metricCacher = createMetricCacher(2);
+        CountDownLatch slowShardLatch = new CountDownLatch(1);
+        standIns.get(1).insertLatch = slowShardLatch;
+        metricCacher.submitMetrics(metrics);
+        Thread flush = new Thread(metricCacher::flushAndShutdown);
+        flush.start();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (standIns.get(0).names.isEmpty() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        Assert.assertFalse("Saved while the other shard hangs", standIns.get(0).names.isEmpty());
+        Assert.assertTrue(standIns.get(1).names.isEmpty());
+
+        slowShardLatch.countDown();
+        flush.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertEquals(metrics.size(), standIns.get(0).names.size() + standIns.get(1).names.size());
+    }
+
+    @Test
+    public void testSameShardWithEncodedNames() {
+        MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+        MetricDir dir = new InMemoryMetricDir(root, "one", MetricStatus.SIMPLE);
+        List<MetricName> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // Not only ASCII, the names are hashed as UTF-8 either way
+            String name = "metric\uD83D\uDE00" + i;
+            names.add(new MetricName(dir, name, MetricStatus.SIMPLE, new DefaultRetentionProvider()));
+        }
+        List<Integer> shards = new ArrayList<>();
+        names.forEach(name -> shards.add(ClickHouseShards.getShard(name, 5)));
+        EncodedNameCache.setEnabled(true);
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                Assert.assertNotNull(names.get(i).getCachedEncodedName());
+                Assert.assertEquals(shards.get(i).intValue(), ClickHouseShards.getShard(names.get(i), 5));
+            }
+        } finally {
+            EncodedNameCache.setEnabled(false);
+        }
+    }
+
+    private Metric find(String name) {
+        return metrics.stream().filter(metric -> metric.getMetricDescription().getName().equals(name))
+            .findFirst().orElseThrow(IllegalStateException::new);
+    }
+
+    private MetricCacher createMetricCacher(int shardCount) throws IOException {
+        ClickHouseProperties properties = new ClickHouseProperties();
+        properties.setUseServerTimeZone(true);
+        properties.setUseServerTimeZoneForDates(true);
+        properties.setCompress(false);
+        properties.setDecompress(false);
+        List<JdbcTemplate> jdbcTemplates = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            ClickHouseStandIn standIn = new ClickHouseStandIn();
+            standIns.add(standIn);
+            jdbcTemplates.add(new JdbcTemplate(new ClickHouseDataSource(
+                "jdbc:clickhouse://127.0.0.1:" + standIn.getPort() + "/graphite", properties
+            )));
+        }
+        StatisticsService statisticsService = Mockito.mock(StatisticsService.class);
+        MetricCacher metricCacher = new MetricCacher(
+            null, new Monitoring(), statisticsService, new MetricSpill(statisticsService)
+        );
+        metricCacher.setShards(new ClickHouseShards(jdbcTemplates, "data_local"));
+        metricCacher.afterPropertiesSet();
+        return metricCacher;
+    }
+
+    /**
+     * ClickHouse HTTP interface answering the server time zone query and recording metric names of inserts.
+     */
+    private static class ClickHouseStandIn {
+        private final HttpServer server;
+        private final Queue<String> queries = new ConcurrentLinkedQueue<>();
+        private final Queue<String> names = new ConcurrentLinkedQueue<>();
+        private volatile CountDownLatch insertLatch = new CountDownLatch(0);
+
+        ClickHouseStandIn() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+            int queryEnd = 0;
+            while (queryEnd < body.length && body[queryEnd] != '\n') {
+                queryEnd++;
+            }
+            String query = new String(body, 0, queryEnd, StandardCharsets.UTF_8);
+            byte[] response = new byte[0];
+            if (query.startsWith("INSERT")) {
+                try {
+                    insertLatch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                queries.add(query);
+                readNames(new ByteArrayInputStream(body, queryEnd + 1, body.length - queryEnd - 1));
+            } else {
+                response = "timezone()\nString\nUTC\n".getBytes(StandardCharsets.UTF_8);
+            }
+            exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        }
+
+        /**
+         * (metric, value, timestamp, date, updated) rows.
+         */
+        private void readNames(ByteArrayInputStream rows) throws IOException {
+            LittleEndianDataInputStream input = new LittleEndianDataInputStream(rows);
+            while (rows.available() > 0) {
+                byte[] name = new byte[readUnsignedLeb128(input)];
+                input.readFully(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+                input.skipBytes(8 + 4 + 2 + 4);
+            }
+        }
+
+        private static int readUnsignedLeb128(LittleEndianDataInputStream input) throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = input.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
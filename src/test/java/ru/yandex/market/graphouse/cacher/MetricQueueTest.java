@@ -0,0 +1,169 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+
+import java.io.ByteArrayOutputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MetricQueueTest {
+
+    private final MetricName name = new MetricName(
+        new InMemoryMetricDir(null, null, MetricStatus.SIMPLE), "a", MetricStatus.SIMPLE,
+        new DefaultRetentionProvider()
+    );
+
+    @Test
+    public void testPartialChunks() throws Exception {
+        MetricQueue queue = new MetricQueue(0, 1);
+        queue.add(metric(1));
+        queue.addAll(metrics(2, MetricChunk.CAPACITY + 2));
+        Assert.assertEquals(MetricChunk.CAPACITY + 2, queue.size());
+
+        List<MetricChunk> full = queue.poll(1);
+        Assert.assertEquals(1, full.size());
+        Assert.assertEquals(MetricChunk.CAPACITY, full.get(0).size());
+        Assert.assertEquals(1, full.get(0).getTimestampSeconds(0));
+
+        List<MetricChunk> partial = queue.poll(1);
+        Assert.assertEquals(2, MetricChunk.countMetrics(partial));
+        Assert.assertEquals(MetricChunk.CAPACITY + 2, partial.get(0).getTimestampSeconds(1));
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertTrue(queue.poll(1).isEmpty());
+
+        Assert.assertEquals(100.0, queue.getOccupancyPercent(), 0);
+        queue.release(full);
+        queue.release(partial);
+        Assert.assertEquals(0.0, queue.getOccupancyPercent(), 0);
+    }
+
+    @Test
+    public void testBlocksWhenFull() throws Exception {
+        MetricQueue queue = new MetricQueue(0, 1);
+        queue.addAll(metrics(1, MetricChunk.CAPACITY * 2));
+        Assert.assertEquals(100.0, queue.getOccupancyPercent(), 0);
+
+        Thread producer = new Thread(() -> {
+            try {
+                queue.add(metric(0));
+            } catch (InterruptedException ignored) {
+            }
+        });
+        producer.start();
+        producer.join(100);
+        Assert.assertTrue(producer.isAlive());
+
+        queue.release(queue.poll(MetricChunk.CAPACITY));
+        producer.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(MetricChunk.CAPACITY + 1, queue.size());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        int producerCount = 8;
+        int perProducer = 100_000;
+        MetricQueue queue = new MetricQueue(MetricChunk.BYTES * 20, 4);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < producerCount; i++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int j = 0; j < perProducer; j += 1000) {
+                        queue.addAll(metrics(j, j + 999));
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        long polled = 0;
+        long timestampSum = 0;
+        while (polled < (long) producerCount * perProducer) {
+            List<MetricChunk> chunks = queue.poll(10_000);
+            for (MetricChunk chunk : chunks) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    timestampSum += chunk.getTimestampSeconds(i);
+                }
+            }
+            polled += MetricChunk.countMetrics(chunks);
+            queue.release(chunks);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        Assert.assertEquals((long) producerCount * perProducer, polled);
+        Assert.assertEquals((long) producerCount * perProducer * (perProducer - 1) / 2, timestampSum);
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPreEncoded() throws Exception {
+        ZoneId zoneId = ZoneId.of("Europe/Moscow");
+        MetricQueue queue = new MetricQueue(0, 1, () -> zoneId);
+        List<Metric> metrics = metrics(1492342562, 1492342562 + MetricChunk.CAPACITY + 100);
+        queue.addAll(metrics);
+        List<MetricChunk> chunks = queue.poll(Integer.MAX_VALUE);
+        Assert.assertTrue(chunks.get(0).isEncodedFor(zoneId));
+        Assert.assertFalse(chunks.get(0).isEncodedFor(ZoneId.of("UTC")));
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        MetricsStreamCallback.ofChunks(chunks, zoneId).writeTo(stream(encoded));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new MetricsStreamCallback(metrics, zoneId).writeTo(stream(expected));
+        Assert.assertTrue(expected.size() > RowBinaryPages.PAGE_SIZE);
+        Assert.assertArrayEquals(expected.toByteArray(), encoded.toByteArray());
+
+        ByteArrayOutputStream reencoded = new ByteArrayOutputStream();
+        MetricsStreamCallback.ofChunks(chunks, ZoneId.of("UTC")).writeTo(stream(reencoded));
+        ByteArrayOutputStream expectedUtc = new ByteArrayOutputStream();
+        new MetricsStreamCallback(metrics, ZoneId.of("UTC")).writeTo(stream(expectedUtc));
+        Assert.assertArrayEquals(expectedUtc.toByteArray(), reencoded.toByteArray());
+    }
+
+    @Test
+    public void testPreEncodedZoneChange() throws Exception {
+        AtomicReference<ZoneId> zoneId = new AtomicReference<>(ZoneId.of("Europe/Moscow"));
+        MetricQueue queue = new MetricQueue(0, 1, zoneId::get);
+        queue.addAll(metrics(1492342562, 1492342662));
+        zoneId.set(ZoneId.of("UTC"));
+        queue.addAll(metrics(1492342663, 1492342762));
+        List<MetricChunk> chunks = queue.poll(Integer.MAX_VALUE);
+        Assert.assertEquals(1, chunks.size());
+        Assert.assertFalse(chunks.get(0).isEncodedFor(ZoneId.of("Europe/Moscow")));
+        Assert.assertFalse(chunks.get(0).isEncodedFor(ZoneId.of("UTC")));
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        MetricsStreamCallback.ofChunks(chunks, ZoneId.of("UTC")).writeTo(stream(encoded));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new MetricsStreamCallback(metrics(1492342562, 1492342762), ZoneId.of("UTC")).writeTo(stream(expected));
+        Assert.assertArrayEquals(expected.toByteArray(), encoded.toByteArray());
+    }
+
+    private static ClickHouseRowBinaryStream stream(ByteArrayOutputStream outputStream) {
+        return new ClickHouseRowBinaryStream(outputStream, null, new ClickHouseProperties());
+    }
+
+    private Metric metric(int timestampSeconds) {
+        return new Metric(name, timestampSeconds, 42, 0);
+    }
+
+    private List<Metric> metrics(int fromTimestamp, int toTimestamp) {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = fromTimestamp; i <= toTimestamp; i++) {
+            metrics.add(metric(i));
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,77 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.monitoring.Monitoring;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MetricSinkTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MetricName name = new MetricName(
+        new InMemoryMetricDir(null, null, MetricStatus.SIMPLE), "a", MetricStatus.SIMPLE,
+        new DefaultRetentionProvider()
+    );
+
+    @Test
+    public void testCacherWritesToSink() throws Exception {
+        StatisticsService statisticsService = Mockito.mock(StatisticsService.class);
+        MetricCacher metricCacher = new MetricCacher(
+            null, new Monitoring(), statisticsService, new MetricSpill(statisticsService)
+        );
+        MetricSink.NullSink sink = new MetricSink.NullSink(0);
+        metricCacher.setSink(sink);
+        metricCacher.afterPropertiesSet();
+
+        List<Metric> metrics = metrics(MetricChunk.CAPACITY * 3);
+        metricCacher.submitMetrics(metrics);
+        metricCacher.submitMetric(new Metric(name, 0, 0, 0));
+        metricCacher.flushAndShutdown();
+
+        Assert.assertEquals(metrics.size() + 1, sink.getSavedMetrics());
+    }
+
+    @Test
+    public void testFileSink() throws Exception {
+        Path dir = folder.getRoot().toPath().resolve("sink");
+        MetricSink sink = MetricSink.create("file", dir.toString(), 0);
+        List<MetricChunk> first = MetricChunk.fromMetrics(metrics(10));
+        List<MetricChunk> second = MetricChunk.fromMetrics(metrics(20));
+        sink.save(first, null);
+        sink.save(second, null);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ClickHouseRowBinaryStream stream = new ClickHouseRowBinaryStream(expected, null, new ClickHouseProperties());
+        ZoneId zoneId = sink.getZoneId();
+        MetricsStreamCallback.ofChunks(first, zoneId).writeTo(stream);
+        MetricsStreamCallback.ofChunks(second, zoneId).writeTo(stream);
+        Assert.assertArrayEquals(expected.toByteArray(), Files.readAllBytes(dir.resolve("metrics-0.rowbinary")));
+    }
+
+    private List<Metric> metrics(int count) {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric(name, 1492342562 + i, i, 1492342562));
+        }
+        return metrics;
+    }
+}
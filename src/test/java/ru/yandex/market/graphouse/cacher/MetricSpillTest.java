@@ -0,0 +1,130 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MetricSpillTest {
+
+    private static final ZoneId ZONE_ID = ZoneId.of("Europe/Moscow");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Metric> metrics = new ArrayList<>();
+    private MetricSpill spill;
+
+    @Before
+    public void setUp() throws Exception {
+        MetricDir root = new InMemoryMetricDir(null, null, MetricStatus.SIMPLE);
+        MetricDir dir = new InMemoryMetricDir(root, "a", MetricStatus.SIMPLE);
+        for (int i = 0; i < MetricChunk.CAPACITY + 10; i++) {
+            MetricName name = new MetricName(dir, "m" + i, MetricStatus.SIMPLE, new DefaultRetentionProvider());
+            metrics.add(new Metric(name, 1492342562 + i, i, 1492350000));
+        }
+        spill = createSpill();
+    }
+
+    @Test
+    public void testReplayInOrder() throws Exception {
+        List<Metric> first = metrics.subList(0, 10);
+        List<Metric> second = metrics.subList(10, metrics.size());
+        Assert.assertTrue(spill.trySpill(MetricChunk.fromMetrics(first), ZONE_ID));
+        Assert.assertTrue(spill.trySpill(MetricChunk.fromMetrics(second), ZONE_ID));
+        Assert.assertNull("Segment is sealed only when spilling stops", spill.nextSegment(60_000));
+
+        MetricSpill.Segment segment = spill.nextSegment(0);
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        Assert.assertEquals(metrics.size(), segment.writeTo(stream(replayed)));
+        Assert.assertArrayEquals(rowBinary(metrics), replayed.toByteArray());
+
+        spill.delete(segment);
+        Assert.assertNull(spill.nextSegment(0));
+        Assert.assertEquals(0, spill.getSizeBytes());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        spill.setSegmentSizeMb(0);
+        Assert.assertTrue(spill.trySpill(MetricChunk.fromMetrics(metrics.subList(0, 1)), ZONE_ID));
+        Assert.assertTrue(spill.trySpill(MetricChunk.fromMetrics(metrics.subList(1, 2)), ZONE_ID));
+
+        MetricSpill restarted = createSpill();
+        Assert.assertEquals(2, restarted.getSegmentCount());
+        Assert.assertEquals(spill.getSizeBytes(), restarted.getSizeBytes());
+        Assert.assertTrue(restarted.trySpill(MetricChunk.fromMetrics(metrics.subList(2, 3)), ZONE_ID));
+
+        for (int i = 0; i < 3; i++) {
+            MetricSpill.Segment segment = restarted.nextSegment(0);
+            ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+            segment.writeTo(stream(replayed));
+            Assert.assertArrayEquals(rowBinary(metrics.subList(i, i + 1)), replayed.toByteArray());
+            restarted.delete(segment);
+        }
+    }
+
+    @Test
+    public void testTornFrame() throws Exception {
+        Assert.assertTrue(spill.trySpill(MetricChunk.fromMetrics(metrics), ZONE_ID));
+        MetricSpill.Segment segment = spill.nextSegment(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.getPath().toFile(), "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        Assert.assertEquals(MetricChunk.CAPACITY, segment.writeTo(stream(replayed)));
+        Assert.assertArrayEquals(rowBinary(metrics.subList(0, MetricChunk.CAPACITY)), replayed.toByteArray());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        spill.setMaxSizeMb(0);
+        Assert.assertFalse(spill.trySpill(MetricChunk.fromMetrics(metrics), ZONE_ID));
+        Assert.assertEquals(0, spill.getSegmentCount());
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        Assert.assertTrue(spill.trySpill(MetricChunk.fromMetrics(metrics), ZONE_ID));
+        MetricSpill.Segment segment = spill.nextSegment(0);
+        Assert.assertTrue(segment.getPath().toFile().setLastModified(System.currentTimeMillis() - 25 * 3600_000L));
+        Assert.assertNull(spill.nextSegment(0));
+        Assert.assertFalse(segment.getPath().toFile().exists());
+    }
+
+    private MetricSpill createSpill() throws IOException {
+        MetricSpill spill = new MetricSpill(Mockito.mock(StatisticsService.class));
+        spill.setEnabled(true);
+        spill.setDir(folder.getRoot().getPath());
+        spill.afterPropertiesSet();
+        return spill;
+    }
+
+    private static byte[] rowBinary(List<Metric> metrics) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new MetricsStreamCallback(metrics, ZONE_ID).writeTo(stream(outputStream));
+        return outputStream.toByteArray();
+    }
+
+    private static ClickHouseRowBinaryStream stream(ByteArrayOutputStream outputStream) {
+        return new ClickHouseRowBinaryStream(outputStream, null, new ClickHouseProperties());
+    }
+}
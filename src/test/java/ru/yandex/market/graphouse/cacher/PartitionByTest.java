@@ -0,0 +1,36 @@
+package ru.yandex.market.graphouse.cacher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+
+public class PartitionByTest {
+
+    @Test
+    public void testMonday() {
+        for (LocalDate date = LocalDate.of(1969, 12, 1); date.getYear() < 1971; date = date.plusDays(1)) {
+            LocalDate monday = date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            int start = PartitionBy.MONDAY.getPartitionStartDay((int) date.toEpochDay());
+            Assert.assertEquals(date.toString(), monday.toEpochDay(), start);
+            Assert.assertEquals(monday.plusWeeks(1).toEpochDay(), PartitionBy.MONDAY.getNextPartitionStartDay(start));
+        }
+    }
+
+    @Test
+    public void testMonth() {
+        LocalDate date = LocalDate.of(2017, 12, 31);
+        int start = PartitionBy.MONTH.getPartitionStartDay((int) date.toEpochDay());
+        Assert.assertEquals(LocalDate.of(2017, 12, 1).toEpochDay(), start);
+        Assert.assertEquals(LocalDate.of(2018, 1, 1).toEpochDay(), PartitionBy.MONTH.getNextPartitionStartDay(start));
+    }
+
+    @Test
+    public void testOf() {
+        Assert.assertEquals(PartitionBy.NONE, PartitionBy.of(""));
+        Assert.assertEquals(PartitionBy.MONDAY, PartitionBy.of("toMonday"));
+        Assert.assertEquals(PartitionBy.MONTH, PartitionBy.of("toYYYYMM"));
+    }
+}
@@ -0,0 +1,112 @@
+package ru.yandex.market.graphouse.search.tree;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChildMapTest {
+
+    @Test
+    public void testPromotion() {
+        ChildMap<Integer> map = new ChildMap<>();
+        for (int i = ChildMap.MAX_INLINE_SIZE - 1; i >= 0; i--) {
+            Assert.assertNull(map.put("child" + i, i));
+        }
+        Assert.assertFalse(map.isPromoted());
+        List<String> names = new ArrayList<>(map.keySet());
+        for (int i = 0; i < ChildMap.MAX_INLINE_SIZE; i++) {
+            Assert.assertEquals("child" + i, names.get(i));
+        }
+
+        Assert.assertEquals(42, map.computeIfAbsent("child42", name -> 42).intValue());
+        Assert.assertTrue(map.isPromoted());
+        Assert.assertEquals(ChildMap.MAX_INLINE_SIZE + 1, map.size());
+        for (int i = 0; i < ChildMap.MAX_INLINE_SIZE; i++) {
+            Assert.assertEquals(i, map.get("child" + i).intValue());
+        }
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertTrue(map.isPromoted());
+    }
+
+    @Test
+    public void testInlineUpdates() {
+        ChildMap<String> map = new ChildMap<>();
+        Assert.assertNull(map.putIfAbsent("b", "1"));
+        Assert.assertEquals("1", map.putIfAbsent("b", "2"));
+        Assert.assertEquals("1", map.put("b", "3"));
+        Assert.assertEquals("3", map.computeIfAbsent("b", name -> "4"));
+        Assert.assertNull(map.computeIfAbsent("c", name -> null));
+        Assert.assertFalse(map.containsKey("c"));
+        Assert.assertNull(map.replace("a", "1"));
+        Assert.assertFalse(map.replace("b", "1", "5"));
+        Assert.assertTrue(map.replace("b", "3", "5"));
+        Assert.assertFalse(map.remove("b", "3"));
+        map.put("a", "6");
+        map.put("c", "7");
+
+        // Iteration is over a snapshot
+        Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+        Assert.assertEquals("a", iterator.next().getKey());
+        iterator.remove();
+        map.put("d", "8");
+        Assert.assertEquals("b", iterator.next().getKey());
+        Assert.assertEquals("c", iterator.next().getKey());
+        Assert.assertFalse(iterator.hasNext());
+
+        Assert.assertEquals("5", map.remove("b"));
+        Assert.assertNull(map.remove("b"));
+        Assert.assertEquals(Arrays.asList("7", "8"), new ArrayList<>(map.values()));
+        Map<String, String> expected = new ConcurrentHashMap<>();
+        expected.put("c", "7");
+        expected.put("d", "8");
+        Assert.assertEquals(expected, map);
+    }
+
+    @Test
+    public void testConcurrentComputeIfAbsent() throws InterruptedException {
+        ChildMap<Object> map = new ChildMap<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<Map<String, Object>> seen = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Map<String, Object> children = new ConcurrentHashMap<>();
+            seen.add(children);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 100; i++) {
+                    String name = "child" + i;
+                    children.put(name, map.computeIfAbsent(name, s -> {
+                        calls.incrementAndGet();
+                        return new Object();
+                    }));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(100, calls.get());
+        Assert.assertEquals(100, map.size());
+        for (Map<String, Object> children : seen) {
+            children.forEach((name, child) -> Assert.assertSame(map.get(name), child));
+        }
+    }
+}
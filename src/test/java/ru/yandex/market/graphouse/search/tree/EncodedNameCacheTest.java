@@ -0,0 +1,77 @@
+package ru.yandex.market.graphouse.search.tree;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryStream;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.save.tree.OnReadDirContent;
+import ru.yandex.market.graphouse.save.tree.OnRecordMetricDescription;
+import ru.yandex.market.graphouse.search.MetricStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class EncodedNameCacheTest {
+
+    private final MetricTree tree = new MetricTree(
+        InMemoryMetricDir::new, new DefaultRetentionProvider(), -1, -1
+    );
+
+    @After
+    public void tearDown() {
+        EncodedNameCache.setEnabled(false);
+    }
+
+    @Test
+    public void testCachedName() throws Exception {
+        MetricName metric = (MetricName) tree.add("one.two.three.four");
+        byte[] expected = encode(metric);
+
+        EncodedNameCache.setEnabled(true);
+        long names = EncodedNameCache.getNameCount();
+        long heapBytes = EncodedNameCache.getHeapBytes();
+        Assert.assertArrayEquals(expected, encode(metric));
+        Assert.assertEquals(names + 1, EncodedNameCache.getNameCount());
+        Assert.assertEquals(heapBytes + 40, EncodedNameCache.getHeapBytes());
+        Assert.assertEquals("one.two.three.four".length(), metric.getNameLengthInBytes());
+
+        Assert.assertArrayEquals(expected, encode(metric));
+        Assert.assertEquals(names + 1, EncodedNameCache.getNameCount());
+
+        metric.dropEncodedName();
+        Assert.assertEquals(names, EncodedNameCache.getNameCount());
+        Assert.assertEquals(heapBytes, EncodedNameCache.getHeapBytes());
+
+        // Evicted metric may still be written from the queue
+        Assert.assertArrayEquals(expected, encode(metric));
+        Assert.assertEquals(names, EncodedNameCache.getNameCount());
+    }
+
+    @Test
+    public void testOnRecordMetric() throws Exception {
+        OnRecordMetricDescription root = new OnRecordMetricDescription(null, null, "", MetricStatus.SIMPLE, true);
+        OnRecordMetricDescription dir = new OnRecordMetricDescription(null, root, "one", MetricStatus.SIMPLE, true);
+        OnRecordMetricDescription metric = new OnRecordMetricDescription(null, dir, "two", MetricStatus.SIMPLE, false);
+        OnReadDirContent content = OnReadDirContent.createEmpty();
+        content.computeDescriptionIfAbsent("two", false, name -> metric);
+        byte[] expected = encode(metric);
+
+        EncodedNameCache.setEnabled(true);
+        long names = EncodedNameCache.getNameCount();
+        Assert.assertArrayEquals(expected, encode(metric));
+        Assert.assertArrayEquals("one.".getBytes(), encode(dir));
+        // Only metrics are cached
+        Assert.assertEquals(names + 1, EncodedNameCache.getNameCount());
+
+        content.removeDescription("two", false);
+        Assert.assertEquals(names, EncodedNameCache.getNameCount());
+    }
+
+    private static byte[] encode(MetricDescription metric) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        metric.writeName(new ClickHouseRowBinaryStream(outputStream, null, new ClickHouseProperties()));
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,116 @@
+package ru.yandex.market.graphouse.search.tree;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.market.graphouse.search.MetricPath;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+public class GlobMatcherTest {
+
+    private static final List<String> GLOBS = Arrays.asList(
+        "", "abc", "a*", "*c", "a*c", "*", "**", "a**c", "?", "a?c", "??", "*b*", "a*b*c", "*a*a",
+        "[ab]c", "[!ab]c", "[a-c]*", "[!a-c]", "[-a]", "[a-]", "[^a]", "[^]", "[-]", "[\\]", "[[]", "a\\*",
+        "{a,b}c", "{,a}b", "{a*,b?}", "x{a,b}{c,d}", "{a,b}*{c,d}", "a{b,c*}d", "\\{a,b}", "a,b}",
+        "{a,[bc]}{c,}", "*{a,b}", "{*a,b*}*", "{}", "a/b", "*/*"
+    );
+
+    private static final List<String> NAMES = Arrays.asList(
+        "", "a", "b", "c", "d", "-", "^", "\\", "[", "*", "ac", "bc", "cc", "abc", "aac", "abbc", "acc", "aa",
+        "aba", "a*", "a/c", "a/b", "/", "xac", "xbd", "xad", "ab", "abd", "acd", "accd", "{a,b}", "a,b}",
+        "bcc", "ba", "b/a", "abcabc", "ñc"
+    );
+
+    @Test
+    public void testSameAsPathMatcher() {
+        for (String glob : GLOBS) {
+            PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            GlobMatcher globMatcher = GlobMatcher.compile(glob, 0);
+            for (String name : NAMES) {
+                Assert.assertEquals(
+                    glob + " for " + name,
+                    pathMatcher.matches(new MetricPath(name)), globMatcher.matches(name)
+                );
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        for (String glob : Arrays.asList("a[", "[a", "[!", "{a", "{a{b}}", "a\\", "[a/]", "[]", "[!]", "[b-a]")) {
+            try {
+                GlobMatcher.compile(glob, 0);
+                Assert.fail(glob);
+            } catch (PatternSyntaxException e) {
+                try {
+                    FileSystems.getDefault().getPathMatcher("glob:" + glob);
+                    Assert.fail("PathMatcher accepts " + glob);
+                } catch (PatternSyntaxException expected) {
+                    // Same as the path matcher
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomSameAsPathMatcher() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            String glob = randomString(random, "ab*?[]{},-!^\\/", 7);
+            PathMatcher pathMatcher;
+            try {
+                pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            } catch (PatternSyntaxException e) {
+                pathMatcher = null;
+            }
+            GlobMatcher globMatcher = MetricTree.createGlobMatcher(glob, 1000);
+            Assert.assertEquals(glob, pathMatcher == null, globMatcher == null);
+            if (pathMatcher == null) {
+                continue;
+            }
+            String[] expandedNames = globMatcher.getExpandedNames();
+            Set<String> expanded = expandedNames == null ? null : new HashSet<>(Arrays.asList(expandedNames));
+            for (int j = 0; j < 20; j++) {
+                String name = randomString(random, "ab-/,", 6);
+                boolean matches = pathMatcher.matches(new MetricPath(name));
+                Assert.assertEquals(glob + " for " + name, matches, globMatcher.matches(name));
+                if (expanded != null) {
+                    Assert.assertEquals(glob + " expanded for " + name, matches, expanded.contains(name));
+                }
+            }
+            for (int j = 0; expandedNames != null && j < expandedNames.length; j++) {
+                String name = expandedNames[j];
+                Assert.assertTrue(glob + " for " + name, pathMatcher.matches(new MetricPath(name)));
+            }
+        }
+    }
+
+    private static String randomString(Random random, String chars, int maxLength) {
+        StringBuilder builder = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            builder.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testExpand() {
+        Assert.assertArrayEquals(
+            new String[]{"host1.cpu0", "host1.cpu1", "host2.cpu0", "host2.cpu1"},
+            GlobMatcher.compile("host{1,2}.cpu[01]", 10).getExpandedNames()
+        );
+        Assert.assertArrayEquals(new String[]{"a", "b"}, GlobMatcher.compile("{a,b,a}", 10).getExpandedNames());
+        Assert.assertNull(GlobMatcher.compile("host{1,2}.cpu[0-9]", 10).getExpandedNames());
+        Assert.assertNull(GlobMatcher.compile("host{1,2}*", 10).getExpandedNames());
+        Assert.assertNull(GlobMatcher.compile("host[!1]", 10).getExpandedNames());
+        Assert.assertNull(GlobMatcher.compile("host{1,2}", 0).getExpandedNames());
+    }
+}
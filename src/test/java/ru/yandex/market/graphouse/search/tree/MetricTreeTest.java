@@ -12,7 +12,6 @@ import ru.yandex.market.graphouse.utils.AppendableList;
 import ru.yandex.market.graphouse.utils.AppendableWrapper;
 
 import java.io.IOException;
-import java.nio.file.PathMatcher;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
@@ -29,16 +28,16 @@ public class MetricTreeTest {
 
     @Test
     public void testGlobPath() {
-        assertNull(MetricTree.createPathMatcher("asdf["));
+        assertNull(MetricTree.createGlobMatcher("asdf[", 0));
 
         Multimap<String, String> pattern2Candidates = generate();
         for (Map.Entry<String, Collection<String>> pattern2CandidatesMap : pattern2Candidates.asMap().entrySet()) {
             String glob = pattern2CandidatesMap.getKey();
-            PathMatcher matcher = MetricTree.createPathMatcher(glob);
+            GlobMatcher matcher = MetricTree.createGlobMatcher(glob, 0);
 
             assertNotNull(matcher);
             pattern2CandidatesMap.getValue().forEach(
-                node -> assertTrue(MetricTree.matches(matcher, node))
+                node -> assertTrue(matcher.matches(node))
             );
         }
     }
@@ -215,6 +214,38 @@ public class MetricTreeTest {
         );
     }
 
+    @Test
+    public void testExpandedSearch() throws IOException {
+        MetricTree tree = new MetricTree(InMemoryMetricDir::new, new DefaultRetentionProvider(), -1, -1);
+        for (int i = 0; i < 20; i++) {
+            tree.add("servers.host" + i + ".cpu0");
+            tree.add("servers.host" + i + ".cpu1");
+        }
+        tree.add("servers.host2.cpu3.");
+        tree.modify("servers.host3.", MetricStatus.HIDDEN);
+
+        for (String query : Arrays.asList(
+            "servers.{host1,host2,host3,host42}.cpu[0-3]", "servers.host[1-2].cpu{1,3}", "servers.host{1,1}.cpu0"
+        )) {
+            AppendableWrapper scanned = new AppendableWrapper();
+            tree.search(query, scanned);
+            tree.setMaxExpandedNames(100);
+            AppendableWrapper expanded = new AppendableWrapper();
+            tree.search(query, expanded);
+            tree.setMaxExpandedNames(0);
+
+            String[] expected = scanned.toString().split("\\n");
+            String[] actual = expanded.toString().split("\\n");
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertArrayEquals(query, expected, actual);
+        }
+        AppendableWrapper expanded = new AppendableWrapper();
+        tree.setMaxExpandedNames(100);
+        tree.search("servers.host{1,2}.cpu[13]", expanded);
+        assertEquals("servers.host1.cpu1\nservers.host2.cpu1\nservers.host2.cpu3.\n", expanded.toString());
+    }
+
     /*
      * Data is added to cache in random order
      * because the request to get data from ClickHouse doesn't contain the "ORDER BY" condition
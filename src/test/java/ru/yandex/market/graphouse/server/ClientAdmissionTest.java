@@ -0,0 +1,63 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.market.graphouse.statistics.AccumulatedMetric;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+public class ClientAdmissionTest {
+
+    private final StatisticsService statisticsService = Mockito.mock(StatisticsService.class);
+    private final ClientAdmission admission = new ClientAdmission(statisticsService);
+
+    @Before
+    public void setUp() {
+        admission.setEnabled(true);
+        admission.setLinesPerSecond(1000);
+        admission.setBurstSeconds(1);
+        admission.setClientLinesPerSecond("10.0.0.2=0, 10.0.0.3=10");
+    }
+
+    @Test
+    public void testAcquire() throws Exception {
+        ClientAdmission.Bucket bucket = admission.getBucket(InetAddress.getByName("10.0.0.1"));
+        Assert.assertSame(bucket, admission.getBucket(InetAddress.getByName("10.0.0.1")));
+
+        Assert.assertEquals(0, admission.acquire(bucket, 1000));
+        long delayNanos = admission.acquire(bucket, 500);
+        Assert.assertTrue(delayNanos > TimeUnit.MILLISECONDS.toNanos(400));
+        Assert.assertTrue(delayNanos <= TimeUnit.MILLISECONDS.toNanos(500));
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.NUMBER_OF_THROTTLED_READS, 1);
+    }
+
+    @Test
+    public void testTryAcquire() throws Exception {
+        ClientAdmission.Bucket bucket = admission.getBucket(InetAddress.getByName("10.0.0.1"));
+        Assert.assertTrue(admission.tryAcquire(bucket, 600));
+        Assert.assertFalse(admission.tryAcquire(bucket, 600));
+        Assert.assertTrue(admission.tryAcquire(bucket, 300));
+        Mockito.verify(statisticsService).accumulateMetric(AccumulatedMetric.NUMBER_OF_SHED_LINES, 600);
+    }
+
+    @Test
+    public void testClientRates() throws Exception {
+        Assert.assertNull(admission.getBucket(InetAddress.getByName("10.0.0.2")));
+        ClientAdmission.Bucket bucket = admission.getBucket(InetAddress.getByName("10.0.0.3"));
+        Assert.assertEquals(0, admission.acquire(bucket, 10));
+        Assert.assertTrue(admission.acquire(bucket, 10) > TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        admission.setEnabled(false);
+        ClientAdmission.Bucket bucket = admission.getBucket(InetAddress.getByName("10.0.0.1"));
+        Assert.assertNull(bucket);
+        Assert.assertEquals(0, admission.acquire(bucket, 1_000_000));
+        Assert.assertTrue(admission.tryAcquire(bucket, 1_000_000));
+    }
+}
@@ -0,0 +1,64 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorLineBatchProcessorTest {
+
+    @Test
+    public void testTrySubmitNeverRunsInCaller() throws Exception {
+        MetricFactory metricFactory = (line, updatedSeconds) ->
+            new Metric(null, 1, Double.parseDouble(line), updatedSeconds);
+        MetricCacher metricCacher = Mockito.mock(MetricCacher.class);
+        CountDownLatch parserLatch = new CountDownLatch(1);
+        Set<Thread> savingThreads = ConcurrentHashMap.newKeySet();
+        AtomicInteger saved = new AtomicInteger();
+        Mockito.doAnswer(invocation -> {
+            savingThreads.add(Thread.currentThread());
+            parserLatch.await();
+            saved.addAndGet(invocation.<List<Metric>>getArgument(0).size());
+            return null;
+        }).when(metricCacher).submitMetrics(Mockito.anyList());
+
+        LineBatchProcessor processor = new ExecutorLineBatchProcessor(
+            metricFactory, metricCacher, Mockito.mock(StatisticsService.class), 1
+        );
+        int accepted = 0;
+        LineBatch batch = batch();
+        // One batch is parsed and 10 are queued, the rest are returned to the caller
+        for (int i = 0; i < 20; i++) {
+            LineBatch emptyBatch = processor.trySubmit(batch);
+            if (emptyBatch == null) {
+                Assert.assertEquals(1, batch.getLineCount());
+            } else {
+                accepted++;
+                batch = batch();
+            }
+        }
+        Assert.assertEquals(11, accepted);
+
+        parserLatch.countDown();
+        processor.shutdown();
+        processor.awaitTermination();
+        Assert.assertEquals(11, saved.get());
+        Assert.assertFalse(savingThreads.contains(Thread.currentThread()));
+    }
+
+    private static LineBatch batch() {
+        LineBatch batch = new LineBatch(16);
+        byte[] line = "1".getBytes(StandardCharsets.UTF_8);
+        batch.addLine(line, 0, line.length);
+        return batch;
+    }
+}
@@ -0,0 +1,97 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class GraphiteLineParserTest {
+
+    private final GraphiteLineParser parser = new GraphiteLineParser();
+
+    @Test
+    public void testParse() {
+        checkLine("one_min.host.cpu 42.5 1500000000", "one_min.host.cpu", 42.5, 1500000000);
+        checkLine("a.b -1e3 1500000000.7", "a.b", -1000, 1500000001);
+        checkLine("a.b 0 1500000000   ", "a.b", 0, 1500000000);
+        checkLine("a.b +.5 1.5e9", "a.b", 0.5, 1500000000);
+        checkLine("a.b 1.7976931348623157E308 1500000000", "a.b", Double.MAX_VALUE, 1500000000);
+        checkLine("a.b 0x1p3 1500000000", "a.b", 8, 1500000000);
+        checkLine("a.b 12d 1500000000", "a.b", 12, 1500000000);
+        checkLine("метрика.тест 1 1500000000", "метрика.тест", 1, 1500000000);
+    }
+
+    @Test
+    public void testInvalidLines() {
+        checkInvalid("");
+        checkInvalid("a.b");
+        checkInvalid("a.b 1");
+        checkInvalid("a.b 1 ");
+        checkInvalid(" 1 1500000000");
+        checkInvalid("a.b  1 1500000000");
+        checkInvalid("a.b 1 1500000000 5");
+        checkInvalid("a.b 1 1500000000  5");
+        checkInvalid("a.b NaN 1500000000");
+        checkInvalid("a.b Infinity 1500000000");
+        checkInvalid("a.b 1e400 1500000000");
+        checkInvalid("a.b 1 0");
+        checkInvalid("a.b 1 -1500000000");
+        checkInvalid("a.b 1,5 1500000000");
+        checkInvalid("a.b . 1500000000");
+        checkInvalid("a.b 1e 1500000000");
+        checkInvalid("a.b - 1500000000");
+        checkInvalid("a.b 1 1500000000\t5");
+    }
+
+    @Test
+    public void testParseDoubleSameAsJdk() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            String number;
+            switch (i % 4) {
+                case 0:
+                    number = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+                    break;
+                case 1:
+                    number = Long.toString(random.nextLong() >> random.nextInt(64));
+                    break;
+                case 2:
+                    number = String.format("%.6f", random.nextGaussian() * 1000);
+                    break;
+                default:
+                    number = random.nextInt(1000) + "." + random.nextInt(100_000) + "e" + (random.nextInt(50) - 25);
+            }
+            checkDouble(number);
+        }
+        checkDouble("0.000000000000000000000000000001");
+        checkDouble("123456789012345678901234567890");
+        checkDouble("-0");
+        checkDouble("9007199254740993");
+        checkDouble("1e22");
+        checkDouble("1e23");
+    }
+
+    private void checkDouble(String number) {
+        byte[] bytes = number.getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(
+            number,
+            Double.doubleToLongBits(Double.parseDouble(number)),
+            Double.doubleToLongBits(GraphiteLineParser.parseDouble(bytes, 0, bytes.length))
+        );
+    }
+
+    private void checkLine(String line, String name, double value, int timestampSeconds) {
+        byte[] bytes = ("xx" + line + "yy").getBytes(StandardCharsets.UTF_8);
+        Assert.assertTrue(line, parser.parse(bytes, 2, bytes.length - 4));
+        String parsedName = new String(bytes, parser.getNameOffset(), parser.getNameLength(), StandardCharsets.UTF_8);
+        Assert.assertEquals(name, parsedName);
+        Assert.assertEquals(value, parser.getValue(), 0);
+        Assert.assertEquals(timestampSeconds, parser.getTimestampSeconds());
+    }
+
+    private void checkInvalid(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        Assert.assertFalse(line, parser.parse(bytes, 0, bytes.length));
+    }
+}
@@ -0,0 +1,86 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.market.graphouse.retention.DefaultRetentionProvider;
+import ru.yandex.market.graphouse.search.MetricStatus;
+import ru.yandex.market.graphouse.search.tree.InMemoryMetricDir;
+import ru.yandex.market.graphouse.search.tree.MetricDescription;
+import ru.yandex.market.graphouse.search.tree.MetricName;
+import ru.yandex.market.graphouse.search.tree.MetricTree;
+
+import java.nio.charset.StandardCharsets;
+
+public class MetricNameCacheTest {
+
+    private final MetricTree tree = new MetricTree(InMemoryMetricDir::new, new DefaultRetentionProvider(), -1, -1);
+    private final MetricNameCache cache = new MetricNameCache(1024);
+
+    @Test
+    public void testGetAndPut() {
+        MetricDescription metric = tree.add("one_min.host.cpu");
+        put("one_min.host.cpu", 0, metric);
+
+        Assert.assertSame(metric, get("one_min.host.cpu", 0));
+        Assert.assertNull(get("one_min.host.mem", 0));
+        Assert.assertNull(get("one_min.host.cpu", 1));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidatedByStatusChange() {
+        MetricDescription cpu = tree.add("one_min.host1.cpu");
+        MetricDescription mem = tree.add("one_min.host1.mem");
+        MetricDescription other = tree.add("one_min.host2.cpu");
+        put("one_min.host1.cpu", 0, cpu);
+        put("one_min.host1.mem", 0, mem);
+        put("one_min.host2.cpu", 0, other);
+
+        tree.modify("one_min.host1.mem", MetricStatus.HIDDEN);
+        Assert.assertSame(cpu, get("one_min.host1.cpu", 0));
+        Assert.assertNull(get("one_min.host1.mem", 0));
+
+        tree.modify("one_min.host1.", MetricStatus.BAN);
+        Assert.assertNull(get("one_min.host1.cpu", 0));
+        Assert.assertSame(other, get("one_min.host2.cpu", 0));
+    }
+
+    @Test
+    public void testInvalidatedByEviction() {
+        MetricName cpu = (MetricName) tree.add("one_min.host1.cpu");
+        MetricDescription mem = tree.add("one_min.host1.mem");
+        put("one_min.host1.cpu", 0, cpu);
+        put("one_min.host1.mem", 0, mem);
+
+        cpu.dropEncodedName();
+        Assert.assertNull(get("one_min.host1.cpu", 0));
+        Assert.assertSame(mem, get("one_min.host1.mem", 0));
+    }
+
+    @Test
+    public void testSameSlot() {
+        MetricNameCache smallCache = new MetricNameCache(1);
+        MetricDescription first = tree.add("a.first");
+        MetricDescription second = tree.add("a.second");
+        smallCache.put(bytes("a.first"), 0, bytes("a.first").length, 0, first);
+        smallCache.put(bytes("a.second"), 0, bytes("a.second").length, 0, second);
+
+        Assert.assertEquals(2, smallCache.capacity());
+        Assert.assertSame(second, smallCache.get(bytes("a.second"), 0, bytes("a.second").length, 0));
+    }
+
+    private void put(String name, long statusVersion, MetricDescription description) {
+        byte[] bytes = bytes("xx" + name);
+        cache.put(bytes, 2, bytes.length - 2, statusVersion, description);
+    }
+
+    private MetricDescription get(String name, long statusVersion) {
+        byte[] bytes = bytes(name + " 1 1500000000");
+        return cache.get(bytes, 0, name.length(), statusVersion);
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,38 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MetricReceiverShutdownTest {
+
+    @Test
+    public void testFlushedAfterReceivers() throws Exception {
+        AtomicInteger stopped = new AtomicInteger();
+        MetricReceiver slow = () -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            stopped.incrementAndGet();
+        };
+        MetricReceiver fast = stopped::incrementAndGet;
+        MetricCacher metricCacher = Mockito.mock(MetricCacher.class);
+        AtomicInteger stoppedOnFlush = new AtomicInteger(-1);
+        Mockito.doAnswer(invocation -> {
+            stoppedOnFlush.set(stopped.get());
+            return null;
+        }).when(metricCacher).flushAndShutdown();
+
+        new MetricReceiverShutdown(metricCacher, Arrays.asList(slow, fast, slow)).shutdown();
+
+        Mockito.verify(metricCacher).flushAndShutdown();
+        Assert.assertEquals(3, stoppedOnFlush.get());
+    }
+}
@@ -0,0 +1,128 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.perf.InMemoryMetricFactory;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class MetricWriteServletTest {
+
+    private final MetricCacher metricCacher = Mockito.mock(MetricCacher.class);
+    private final List<Metric> submitted = new ArrayList<>();
+    private final MetricWriteServlet servlet = new MetricWriteServlet(
+        new InMemoryMetricFactory(), metricCacher, Mockito.mock(StatisticsService.class), 2, 80
+    );
+    private final HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    private final StringWriter response = new StringWriter();
+
+    @Before
+    public void setUp() throws Exception {
+        Mockito.doAnswer(invocation -> submitted.addAll(invocation.getArgument(0)))
+            .when(metricCacher).submitMetrics(Mockito.anyList());
+        Mockito.when(resp.getWriter()).thenReturn(new PrintWriter(response, true));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        String body = "a.b.c 1 1500000000\r\na.b.d 2 1500000000\ninvalid\n\na.b.e 3 1500000000";
+        servlet.doPost(request(body.getBytes(StandardCharsets.UTF_8), null), resp);
+
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertEquals("accepted: 3\nrejected: 1\n", response.toString().replace("\r\n", "\n"));
+        Assert.assertEquals(3, submitted.size());
+        Assert.assertEquals("a.b.e", submitted.get(2).getMetricDescription().getName());
+        Mockito.verify(metricCacher, Mockito.times(2)).submitMetrics(Mockito.anyList());
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new GZIPOutputStream(body)) {
+            outputStream.write("a.b.c 1 1500000000\n".getBytes(StandardCharsets.UTF_8));
+        }
+        servlet.doPost(request(body.toByteArray(), "gzip"), resp);
+
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertEquals(1, submitted.size());
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        Mockito.when(metricCacher.getQueueOccupancyPercent()).thenReturn(90.0);
+        HttpServletRequest req = request("a.b.c 1 1500000000\n".getBytes(StandardCharsets.UTF_8), null);
+        servlet.doPost(req, resp);
+
+        Mockito.verify(resp).setStatus(429);
+        Mockito.verify(req, Mockito.never()).getInputStream();
+        Assert.assertTrue(submitted.isEmpty());
+    }
+
+    @Test
+    public void testShuttingDown() throws Exception {
+        servlet.shutdown();
+        HttpServletRequest req = request("a.b.c 1 1500000000\n".getBytes(StandardCharsets.UTF_8), null);
+        servlet.doPost(req, resp);
+
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Mockito.verify(req, Mockito.never()).getInputStream();
+        Assert.assertTrue(submitted.isEmpty());
+    }
+
+    private static HttpServletRequest request(byte[] body, String contentEncoding) throws IOException {
+        HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(req.getHeader("Content-Encoding")).thenReturn(contentEncoding);
+        Mockito.when(req.getInputStream()).thenReturn(new BodyInputStream(body));
+        return req;
+    }
+
+    private static class BodyInputStream extends ServletInputStream {
+        private final ByteArrayInputStream body;
+
+        BodyInputStream(byte[] body) {
+            this.body = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return body.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            return body.read(bytes, offset, length);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return body.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+    }
+}
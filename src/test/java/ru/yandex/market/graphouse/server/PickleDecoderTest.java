@@ -0,0 +1,103 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PickleDecoderTest {
+
+    private final PickleDecoder decoder = new PickleDecoder();
+
+    /**
+     * <code>[(name, (1500000000, 1.5)), (name, (1500000060, None)), ('one_min.host.mem', (1500000000.4, 2)),
+     * ('x.y', (1500000000, -3))]</code>, the first name is the same object, so it is taken from memo.
+     */
+    private static final List<String> EXPECTED = Arrays.asList(
+        "one_min.host.cpu 1.5 1.5E9",
+        "one_min.host.cpu NaN 1.50000006E9",
+        "one_min.host.mem 2.0 1.5000000004E9",
+        "x.y -3.0 1.5E9"
+    );
+
+    @Test
+    public void testProtocol2() {
+        check(
+            "80025d71002858100000006f6e655f6d696e2e686f73742e63707571014a002f6859473ff800000000000086710286710368014a3c" +
+                "2f68594e86710486710558100000006f6e655f6d696e2e686f73742e6d656d71064741d65a0bc019999a4b0286710786710858" +
+                "03000000782e7971094a002f68594afdffffff86710a86710b652e",
+            EXPECTED
+        );
+    }
+
+    @Test
+    public void testProtocol4() {
+        check(
+            "8004956c000000000000005d94288c106f6e655f6d696e2e686f73742e637075944a002f6859473ff80000000000008694869468" +
+                "014a3c2f68594e869486948c106f6e655f6d696e2e686f73742e6d656d944741d65a0bc019999a4b02869486948c03782e7994" +
+                "4a002f68594afdffffff86948694652e",
+            EXPECTED
+        );
+    }
+
+    @Test
+    public void testLongValues() {
+        // [('m.0', (1500000000, 0)), ('m.1', (1500000000, 1000000000000)), ('m.2', (1500000000, 2000000000000))]
+        check(
+            "80025d71002858030000006d2e3071014a002f68594b0086710286710358030000006d2e3171044a002f68598a060010a5d4e800" +
+                "86710586710658030000006d2e3271074a002f68598a0600204aa9d101867108867109652e",
+            Arrays.asList("m.0 0.0 1.5E9", "m.1 1.0E12 1.5E9", "m.2 2.0E12 1.5E9")
+        );
+    }
+
+    @Test
+    public void testInvalidFrames() {
+        checkInvalid("80025d7100285803000000782e79");
+        checkInvalid("80025d710028580300000078");
+        checkInvalid("80026370646220");
+        checkInvalid("8002652e");
+        // LONG_BINPUT with key 2^31 - 1
+        checkInvalid("80025d72ffffff7f2e");
+        checkInvalid("80025d71002858030000006d2e3072ffffff7f2e");
+    }
+
+    @Test
+    public void testSkipsNotDatapoints() {
+        // [('x.y', 1), ('x.z', (1500000000, 1), 2), ('x.w', (1500000000, 1))]
+        check(
+            "80025d7100285803000000782e7971014b018671025803000000782e7a71034a002f68594b018671044b02877105580300000078" +
+                "2e7771066804867107652e",
+            Arrays.asList("x.w 1.0 1.5E9")
+        );
+    }
+
+    private void check(String hex, List<String> expected) {
+        byte[] frame = hexToBytes(hex);
+        List<String> datapoints = new ArrayList<>();
+        decoder.decode(frame, 0, frame.length, (bytes, nameOffset, nameLength, timestamp, value) ->
+            datapoints.add(new String(bytes, nameOffset, nameLength, StandardCharsets.UTF_8) + " " + value + " " + timestamp)
+        );
+        Assert.assertEquals(expected, datapoints);
+    }
+
+    private void checkInvalid(String hex) {
+        byte[] frame = hexToBytes(hex);
+        try {
+            decoder.decode(frame, 0, frame.length, (bytes, nameOffset, nameLength, timestamp, value) -> {
+            });
+            Assert.fail("Decoded invalid frame " + hex);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
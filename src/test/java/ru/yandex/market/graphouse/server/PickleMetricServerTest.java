@@ -0,0 +1,106 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class PickleMetricServerTest {
+
+    /**
+     * <code>[('one_min.host.cpu', (1500000000, 1.5)), ('one_min.host.cpu', (1500000060, None)),
+     * ('one_min.host.mem', (1500000000.4, 2)), ('x.y', (1500000000, -3))]</code>
+     */
+    private static final String FRAME =
+        "80025d71002858100000006f6e655f6d696e2e686f73742e63707571014a002f6859473ff800000000000086710286710368014a3c" +
+            "2f68594e86710486710558100000006f6e655f6d696e2e686f73742e6d656d71064741d65a0bc019999a4b0286710786710858" +
+            "03000000782e7971094a002f68594afdffffff86710a86710b652e";
+
+    private final MetricCacher metricCacher = Mockito.mock(MetricCacher.class);
+    private final List<Metric> submitted = new CopyOnWriteArrayList<>();
+    private final List<String> created = new CopyOnWriteArrayList<>();
+    private PickleMetricServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        Mockito.doAnswer(invocation -> submitted.addAll(invocation.getArgument(0)))
+            .when(metricCacher).submitMetrics(Mockito.anyList());
+        MetricFactory metricFactory = (line, updatedSeconds) -> {
+            created.add(line);
+            return new Metric(null, 1, Double.parseDouble(line.split(" ")[1]), updatedSeconds);
+        };
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        server = new PickleMetricServer(
+            metricCacher, metricFactory, new ClientAdmission(Mockito.mock(StatisticsService.class))
+        );
+        server.setEnabled(true);
+        server.setPort(port);
+        server.setSocketTimeoutMillis(10_000);
+        server.setThreadCount(1);
+        server.setMaxFrameSizeBytes(64 * 1024);
+        server.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void testCorruptFrameIsDropped() throws Exception {
+        byte[] frame = PickleDecoderTest.hexToBytes(FRAME);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            writeFrame(outputStream, frame, frame.length);
+            // Datapoints are decoded, but STOP is missing
+            writeFrame(outputStream, frame, frame.length - 1);
+            writeFrame(outputStream, frame, frame.length);
+            socket.shutdownOutput();
+            // The server closes the connection after all the frames are processed
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        }
+
+        Assert.assertEquals(12, created.size());
+        Assert.assertEquals(8, submitted.size());
+        Mockito.verify(metricCacher, Mockito.times(2)).submitMetrics(Mockito.anyList());
+    }
+
+    @Test
+    public void testShutdownClosesIdleConnections() throws Exception {
+        byte[] frame = PickleDecoderTest.hexToBytes(FRAME);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            writeFrame(new DataOutputStream(socket.getOutputStream()), frame, frame.length);
+            while (submitted.size() < 4) {
+                Thread.sleep(10);
+            }
+
+            long startMillis = System.currentTimeMillis();
+            server.shutdown();
+            // The reader waiting for the next frame doesn't wait for the socket timeout
+            Assert.assertTrue(System.currentTimeMillis() - startMillis < 5_000);
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        }
+        Assert.assertEquals(4, submitted.size());
+    }
+
+    private static void writeFrame(DataOutputStream outputStream, byte[] frame, int length) throws IOException {
+        outputStream.writeInt(length);
+        outputStream.write(frame, 0, length);
+        outputStream.flush();
+    }
+}
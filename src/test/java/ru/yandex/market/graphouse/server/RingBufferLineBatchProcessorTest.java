@@ -0,0 +1,82 @@
+package ru.yandex.market.graphouse.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ru.yandex.market.graphouse.Metric;
+import ru.yandex.market.graphouse.cacher.MetricCacher;
+import ru.yandex.market.graphouse.statistics.StatisticsService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public class RingBufferLineBatchProcessorTest {
+
+    private static final int READERS = 4;
+    private static final int LINES_PER_READER = 50_000;
+    private static final int LINES_PER_BATCH = 100;
+
+    private final BitSet receivedLines = new BitSet();
+    private int duplicates = 0;
+
+    @Test
+    public void testAllLinesParsedOnce() throws Exception {
+        checkAllLinesParsedOnce("blocking");
+        checkAllLinesParsedOnce("sleeping");
+    }
+
+    private void checkAllLinesParsedOnce(String waitStrategy) throws Exception {
+        receivedLines.clear();
+        MetricFactory metricFactory = (line, updatedSeconds) -> new Metric(null, 1, Double.parseDouble(line), updatedSeconds);
+        MetricCacher metricCacher = Mockito.mock(MetricCacher.class);
+        Mockito.doAnswer(invocation -> {
+            List<Metric> metrics = invocation.getArgument(0);
+            synchronized (receivedLines) {
+                for (Metric metric : metrics) {
+                    int line = (int) metric.getValue();
+                    if (receivedLines.get(line)) {
+                        duplicates++;
+                    }
+                    receivedLines.set(line);
+                }
+            }
+            return null;
+        }).when(metricCacher).submitMetrics(Mockito.anyList());
+
+        // Small ring, so that readers have to wait for parsers
+        LineBatchProcessor processor = new RingBufferLineBatchProcessor(
+            metricFactory, metricCacher, Mockito.mock(StatisticsService.class), 3, 4, waitStrategy
+        );
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            int firstLine = i * LINES_PER_READER;
+            Thread reader = new Thread(() -> read(processor, firstLine));
+            readers.add(reader);
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        processor.shutdown();
+        processor.awaitTermination();
+
+        Assert.assertEquals(0, duplicates);
+        Assert.assertEquals(READERS * LINES_PER_READER, receivedLines.cardinality());
+        Assert.assertEquals(0, processor.getQueueSize());
+    }
+
+    private void read(LineBatchProcessor processor, int firstLine) {
+        LineBatch batch = new LineBatch(16);
+        for (int line = firstLine; line < firstLine + LINES_PER_READER; line++) {
+            byte[] bytes = Integer.toString(line).getBytes(StandardCharsets.UTF_8);
+            batch.addLine(bytes, 0, bytes.length);
+            if (batch.getLineCount() == LINES_PER_BATCH) {
+                batch = processor.submit(batch);
+                Assert.assertTrue(batch.isEmpty());
+            }
+        }
+        processor.submit(batch);
+    }
+}
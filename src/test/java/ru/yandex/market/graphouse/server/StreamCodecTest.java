@@ -0,0 +1,65 @@
+package ru.yandex.market.graphouse.server;
+
+import com.google.common.io.ByteStreams;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+public class StreamCodecTest {
+
+    private static final String LINES = "one_min.host.cpu 42.5 1500000000\none_min.host.mem 1 1500000000\n";
+
+    @Test
+    public void testGzip() throws Exception {
+        byte[] stream = gzip(LINES);
+        Assert.assertEquals(LINES, decompress(StreamCodec.GZIP, stream));
+        Assert.assertEquals(LINES, decompress(StreamCodec.AUTO, stream));
+    }
+
+    @Test
+    public void testGzipMembers() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(gzip(LINES));
+        stream.write(gzip(LINES));
+        Assert.assertEquals(LINES + LINES, decompress(StreamCodec.AUTO, stream.toByteArray()));
+    }
+
+    @Test
+    public void testLz4() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new LZ4BlockOutputStream(stream, 64)) {
+            outputStream.write(LINES.getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(LINES, decompress(StreamCodec.LZ4, stream.toByteArray()));
+        Assert.assertEquals(LINES, decompress(StreamCodec.AUTO, stream.toByteArray()));
+    }
+
+    @Test
+    public void testPlain() throws Exception {
+        byte[] stream = LINES.getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(LINES, decompress(StreamCodec.AUTO, stream));
+        Assert.assertEquals("a.b", decompress(StreamCodec.AUTO, "a.b".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(StreamCodec.LZ4, StreamCodec.forName("lz4"));
+    }
+
+    private static byte[] gzip(String lines) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new GZIPOutputStream(stream)) {
+            outputStream.write(lines.getBytes(StandardCharsets.UTF_8));
+        }
+        return stream.toByteArray();
+    }
+
+    private static String decompress(StreamCodec codec, byte[] stream) throws IOException {
+        InputStream inputStream = codec.decompress(new ByteArrayInputStream(stream));
+        return new String(ByteStreams.toByteArray(inputStream), StandardCharsets.UTF_8);
+    }
+}